@@ -0,0 +1,160 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho.benchmarks;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.anntex.camel.paho.broker.PahoMqttEmbeddedBroker;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * This class measures the dispatch latency of the consumer: the time from the
+ * embedded broker sending a message until the processor of the route receives
+ * it. The measured time includes the hop over the loopback interface and the
+ * <code>messageArrived</code> callback of the Paho client.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PahoMqttConsumerBenchmark
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private static final String          TOPIC     = "benchmark/consume";
+
+    @Param({ "0", "1", "2" })
+    private int                          qosLevel;
+
+    @Param({ "0", "4" })
+    private int                          consumerThreads;
+
+    private final BlockingQueue<Object>  mArrived  = new LinkedBlockingQueue<Object>();
+
+    private final byte[]                 mPayload  = new byte[256];
+
+    private PahoMqttEmbeddedBroker       mBroker;
+
+    private DefaultCamelContext          mContext;
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        this.mBroker = new PahoMqttEmbeddedBroker();
+        this.mBroker.start();
+
+        this.mContext = new DefaultCamelContext();
+        this.mContext.addRoutes(new RouteBuilder()
+        {
+            @Override
+            public void configure() throws Exception
+            {
+                this.from("mqtt:benchmarkConsumer?host=" + PahoMqttConsumerBenchmark.this.mBroker.getHost()
+                        + "&subTopicName=" + PahoMqttConsumerBenchmark.TOPIC
+                        + "&qosLevel=" + PahoMqttConsumerBenchmark.this.qosLevel
+                        + "&consumerThreads=" + PahoMqttConsumerBenchmark.this.consumerThreads)
+                        .process(new Processor()
+                        {
+                            @Override
+                            public void process(Exchange exchange) throws Exception
+                            {
+                                PahoMqttConsumerBenchmark.this.mArrived.add(exchange.getIn().getBody());
+                            }
+                        });
+            }
+        });
+        this.mContext.start();
+
+        // the subscription completes asynchronously, wait for the first message
+        long deadline = System.currentTimeMillis() + 10000;
+        while (this.mArrived.isEmpty())
+        {
+            if (System.currentTimeMillis() > deadline)
+            {
+                throw new IllegalStateException("The consumer did not subscribe within 10 seconds");
+            }
+            this.mBroker.publish(PahoMqttConsumerBenchmark.TOPIC, this.mPayload, this.qosLevel);
+            Thread.sleep(50);
+        }
+        Thread.sleep(200);
+        this.mArrived.clear();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        this.mContext.stop();
+        this.mBroker.stop();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public Object dispatchThroughput() throws Exception
+    {
+        return this.dispatch();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Object dispatchLatency() throws Exception
+    {
+        return this.dispatch();
+    }
+
+    /**
+     * Sends a message from the broker and waits until the route processed it.
+     */
+    private Object dispatch() throws Exception
+    {
+        this.mBroker.publish(PahoMqttConsumerBenchmark.TOPIC, this.mPayload, this.qosLevel);
+
+        Object body = this.mArrived.poll(10, TimeUnit.SECONDS);
+        if (body == null)
+        {
+            throw new IllegalStateException("The message did not arrive within 10 seconds");
+        }
+        return body;
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import com.anntex.camel.paho.PahoMqttComponent;
+import org.apache.camel.Endpoint;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * This class measures the cost of creating an end point in
+ * {@link PahoMqttComponent#createEndpoint(String)}, including the parsing of
+ * the URI options into the configuration. No broker is needed since end
+ * points do not connect.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PahoMqttEndpointBenchmark
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private static final String URI = "mqtt:benchmarkEndpoint?host=127.0.0.1:1883&pubTopicName=benchmark/publish"
+                                            + "&subTopicName=benchmark/a:1,benchmark/b/+:2&qosLevel=1&retained=true"
+                                            + "&maxInFlight=100&connectionPoolSize=4";
+
+    private DefaultCamelContext mContext;
+
+    private PahoMqttComponent   mComponent;
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        this.mContext = new DefaultCamelContext();
+        this.mContext.start();
+        this.mComponent = this.mContext.getComponent("mqtt", PahoMqttComponent.class);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        this.mContext.stop();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public Endpoint createEndpointThroughput() throws Exception
+    {
+        return this.mComponent.createEndpoint(PahoMqttEndpointBenchmark.URI);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Endpoint createEndpointLatency() throws Exception
+    {
+        return this.mComponent.createEndpoint(PahoMqttEndpointBenchmark.URI);
+    }
+}
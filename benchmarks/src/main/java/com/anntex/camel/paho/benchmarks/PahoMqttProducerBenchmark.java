@@ -0,0 +1,134 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import com.anntex.camel.paho.broker.PahoMqttEmbeddedBroker;
+import org.apache.camel.Endpoint;
+import org.apache.camel.Exchange;
+import org.apache.camel.Producer;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.util.ServiceHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * This class measures the publish path of the producer, from
+ * {@link Producer#process(Exchange)} until the broker acknowledged the message
+ * according to its QoS level, against the embedded broker.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PahoMqttProducerBenchmark
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    @Param({ "0", "1", "2" })
+    private int                    qosLevel;
+
+    @Param({ "16", "1024", "65536" })
+    private int                    payloadSize;
+
+    private PahoMqttEmbeddedBroker mBroker;
+
+    private DefaultCamelContext    mContext;
+
+    private Endpoint               mEndpoint;
+
+    private Producer               mProducer;
+
+    private byte[]                 mPayload;
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        this.mBroker = new PahoMqttEmbeddedBroker();
+        this.mBroker.start();
+
+        this.mContext = new DefaultCamelContext();
+        this.mContext.start();
+
+        this.mEndpoint = this.mContext.getEndpoint("mqtt:benchmarkProducer?host=" + this.mBroker.getHost()
+                + "&pubTopicName=benchmark/publish&qosLevel=" + this.qosLevel);
+        this.mProducer = this.mEndpoint.createProducer();
+        ServiceHelper.startService(this.mProducer);
+
+        this.mPayload = new byte[this.payloadSize];
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        ServiceHelper.stopService(this.mProducer);
+        this.mContext.stop();
+        this.mBroker.stop();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public Exchange publishThroughput() throws Exception
+    {
+        return this.publish();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Exchange publishLatency() throws Exception
+    {
+        return this.publish();
+    }
+
+    /**
+     * Publishes a single exchange and waits for its completion.
+     */
+    private Exchange publish() throws Exception
+    {
+        Exchange exchange = this.mEndpoint.createExchange();
+        exchange.getIn().setBody(this.mPayload);
+
+        this.mProducer.process(exchange);
+        if (exchange.getException() != null)
+        {
+            throw exchange.getException();
+        }
+        return exchange;
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This class calculates the delays between reconnect attempts. The upper bound
+ * of the delay doubles with every failed attempt until it reaches the maximum
+ * delay, the actual delay is chosen randomly between zero and this bound (full
+ * jitter), so many clients losing their connection at the same time do not
+ * reconnect at the same time.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+class PahoMqttBackoff
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private final long mInitialDelay;
+    private final long mMaxDelay;
+
+    /**
+     * Defines the number of failed attempts since the last reset.
+     */
+    private int        mAttempts;
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    /**
+     * @param initialDelay
+     *            The upper bound in milliseconds of the first delay.
+     * @param maxDelay
+     *            The upper bound in milliseconds of all delays.
+     */
+    PahoMqttBackoff(long initialDelay, long maxDelay)
+    {
+        this.mInitialDelay = Math.max(1, initialDelay);
+        this.mMaxDelay = Math.max(this.mInitialDelay, maxDelay);
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * @return the delay in milliseconds before the next attempt.
+     */
+    synchronized long nextDelay()
+    {
+        // the shift is capped to avoid an overflow of the bound
+        long bound = this.mInitialDelay << Math.min(this.mAttempts, 30);
+        if (bound <= 0 || bound > this.mMaxDelay)
+        {
+            bound = this.mMaxDelay;
+        }
+        else
+        {
+            this.mAttempts++;
+        }
+
+        return ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    /**
+     * Resets the delays after a successful attempt.
+     */
+    synchronized void reset()
+    {
+        this.mAttempts = 0;
+    }
+}
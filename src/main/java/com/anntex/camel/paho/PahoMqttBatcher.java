@@ -0,0 +1,297 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * This class gathers incoming messages into batches. A batch is flushed as
+ * soon as it holds the configured number of messages or, driven by a timer,
+ * when the first message of the batch waited for the configured timeout.
+ * Flushed batches are delivered one at a time and in the order they were
+ * flushed, no matter if the size or the timer flushed them.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+class PahoMqttBatcher
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    /**
+     * Defines the receiver of flushed batches.
+     */
+    interface Listener
+    {
+        /**
+         * Called for every flushed batch, either on the thread adding the
+         * last message or on the timer thread, but never for two batches at
+         * the same time.
+         *
+         * @param batch
+         *            The flushed batch.
+         */
+        void onBatch(Batch batch);
+    }
+
+    private final int                      mBatchSize;
+    private final long                     mTimeoutMillis;
+    private final ScheduledExecutorService mTimer;
+    private final Listener                 mListener;
+
+    /**
+     * Defines the batch currently filled, guarded by <tt>this</tt>.
+     */
+    private Batch                          mBatch;
+
+    /**
+     * Defines the timeout flush of the current batch, guarded by <tt>this</tt>.
+     */
+    private ScheduledFuture<?>             mTimeout;
+
+    /**
+     * Defines the flushed batches waiting for delivery in the order they were
+     * flushed, guarded by <tt>this</tt>.
+     */
+    private final Deque<Batch>             mFlushed = new ArrayDeque<Batch>();
+
+    /**
+     * Defines if a thread delivers the flushed batches, guarded by
+     * <tt>this</tt>.
+     */
+    private boolean                        mDelivering;
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    /**
+     * @param batchSize
+     *            The number of messages flushing a batch.
+     * @param timeoutMillis
+     *            The time in milliseconds the first message of a batch waits
+     *            at most.
+     * @param timer
+     *            The executor running the timeout flushes.
+     * @param listener
+     *            The receiver of flushed batches.
+     */
+    PahoMqttBatcher(int batchSize, long timeoutMillis, ScheduledExecutorService timer, Listener listener)
+    {
+        this.mBatchSize = batchSize;
+        this.mTimeoutMillis = timeoutMillis;
+        this.mTimer = timer;
+        this.mListener = listener;
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * Adds a message to the current batch and flushes the batch if it is full.
+     *
+     * @param topic
+     *            The topic the message was published to.
+     * @param message
+     *            The received message.
+     */
+    void add(String topic, MqttMessage message)
+    {
+        boolean full = false;
+        synchronized (this)
+        {
+            if (this.mBatch == null)
+            {
+                final Batch batch = new Batch(this.mBatchSize);
+                this.mBatch = batch;
+                this.mTimeout = this.mTimer.schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        PahoMqttBatcher.this.flush(batch);
+                    }
+                }, this.mTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+
+            this.mBatch.add(topic, message);
+            if (this.mBatch.size() >= this.mBatchSize)
+            {
+                this.take();
+                full = true;
+            }
+        }
+
+        if (full)
+        {
+            this.deliver();
+        }
+    }
+
+    /**
+     * Flushes the current batch regardless of its size, e.g. while stopping.
+     */
+    void flush()
+    {
+        synchronized (this)
+        {
+            if (this.mBatch != null)
+            {
+                this.take();
+            }
+        }
+        this.deliver();
+    }
+
+    /**
+     * Flushes the given batch if it is still the current one. A batch already
+     * flushed because of its size is ignored.
+     */
+    private void flush(Batch batch)
+    {
+        synchronized (this)
+        {
+            if (this.mBatch != batch)
+            {
+                return;
+            }
+            this.take();
+        }
+        this.deliver();
+    }
+
+    /**
+     * Removes the current batch, cancels its timeout and queues it for
+     * delivery. Needs to be called while holding the lock.
+     */
+    private void take()
+    {
+        this.mFlushed.add(this.mBatch);
+        this.mBatch = null;
+        this.mTimeout.cancel(false);
+        this.mTimeout = null;
+    }
+
+    /**
+     * Delivers the flushed batches unless another thread already does. That
+     * thread picks up the batches queued meanwhile.
+     */
+    private void deliver()
+    {
+        synchronized (this)
+        {
+            if (this.mDelivering)
+            {
+                return;
+            }
+            this.mDelivering = true;
+        }
+
+        Batch batch = null;
+        try
+        {
+            while ((batch = this.next()) != null)
+            {
+                this.mListener.onBatch(batch);
+            }
+        } finally
+        {
+            if (batch != null)
+            {
+                // the listener failed, the next flush delivers the rest
+                synchronized (this)
+                {
+                    this.mDelivering = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the next flushed batch, or <code>null</code> if none is left and
+     *         the delivery ended.
+     */
+    private synchronized Batch next()
+    {
+        Batch batch = this.mFlushed.poll();
+        if (batch == null)
+        {
+            this.mDelivering = false;
+        }
+        return batch;
+    }
+
+    // --------------------------------------------------
+    // INNER CLASSES
+    // --------------------------------------------------
+
+    /**
+     * Holds the payloads of a batch together with the topic and QoS level of
+     * every payload.
+     */
+    static final class Batch
+    {
+        private final List<byte[]>  mPayloads;
+        private final List<String>  mTopics;
+        private final List<Integer> mQosLevels;
+
+        private Batch(int capacity)
+        {
+            this.mPayloads = new ArrayList<byte[]>(capacity);
+            this.mTopics = new ArrayList<String>(capacity);
+            this.mQosLevels = new ArrayList<Integer>(capacity);
+        }
+
+        private void add(String topic, MqttMessage message)
+        {
+            this.mPayloads.add(message.getPayload());
+            this.mTopics.add(topic);
+            this.mQosLevels.add(message.getQos());
+        }
+
+        int size()
+        {
+            return this.mPayloads.size();
+        }
+
+        List<byte[]> getPayloads()
+        {
+            return this.mPayloads;
+        }
+
+        List<String> getTopics()
+        {
+            return this.mTopics;
+        }
+
+        List<Integer> getQosLevels()
+        {
+            return this.mQosLevels;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+/**
+ * This class defines the frame of a chunk of a streamed transfer. A frame
+ * starts with four marker bytes, the last of them the format version,
+ * followed by the eight byte id of the transfer, the four byte sequence
+ * number of the chunk and a flag byte. The last chunk of a transfer carries
+ * the total length of the transfer as eight byte integer and its CRC32
+ * checksum as four byte integer before its data. All integers are written
+ * big-endian.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+final class PahoMqttChunks
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    /**
+     * Defines the marker every chunk starts with, see
+     * {@link PahoMqttPayloads#marker(char)}.
+     */
+    private static final byte[] MAGIC            = PahoMqttPayloads.marker('C');
+
+    /**
+     * Defines the flag of the last chunk of a transfer.
+     */
+    private static final int    FLAG_LAST        = 1;
+
+    /**
+     * Defines the size of the header of every chunk.
+     */
+    static final int            HEADER_SIZE      = MAGIC.length + 8 + 4 + 1;
+
+    /**
+     * Defines the size of the header of the last chunk.
+     */
+    static final int            LAST_HEADER_SIZE = HEADER_SIZE + 8 + 4;
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    private PahoMqttChunks()
+    {
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * Creates a chunk in the middle of a transfer.
+     *
+     * @param transferId
+     *            The id of the transfer.
+     * @param sequence
+     *            The sequence number of the chunk, starting with 0.
+     * @param data
+     *            The buffer holding the data of the chunk.
+     * @param length
+     *            The number of bytes at the start of the buffer.
+     * @return the payload of the chunk.
+     */
+    static byte[] chunk(long transferId, int sequence, byte[] data, int length)
+    {
+        byte[] chunk = new byte[HEADER_SIZE + length];
+        PahoMqttChunks.writeHeader(chunk, transferId, sequence, 0);
+        System.arraycopy(data, 0, chunk, HEADER_SIZE, length);
+        return chunk;
+    }
+
+    /**
+     * Creates the last chunk of a transfer.
+     *
+     * @param transferId
+     *            The id of the transfer.
+     * @param sequence
+     *            The sequence number of the chunk.
+     * @param data
+     *            The buffer holding the data of the chunk.
+     * @param length
+     *            The number of bytes at the start of the buffer.
+     * @param totalLength
+     *            The length of the whole transfer.
+     * @param checksum
+     *            The CRC32 checksum of the whole transfer.
+     * @return the payload of the chunk.
+     */
+    static byte[] lastChunk(long transferId, int sequence, byte[] data, int length, long totalLength,
+            int checksum)
+    {
+        byte[] chunk = new byte[LAST_HEADER_SIZE + length];
+        int position = PahoMqttChunks.writeHeader(chunk, transferId, sequence, FLAG_LAST);
+        position = PahoMqttChunks.write(chunk, position, totalLength, 8);
+        PahoMqttChunks.write(chunk, position, checksum, 4);
+        System.arraycopy(data, 0, chunk, LAST_HEADER_SIZE, length);
+        return chunk;
+    }
+
+    /**
+     * @param payload
+     *            The received payload.
+     * @return <code>true</code> if the payload is a complete chunk header.
+     */
+    static boolean isChunk(byte[] payload)
+    {
+        if (payload.length < HEADER_SIZE)
+        {
+            return false;
+        }
+        if (!PahoMqttPayloads.hasMarker(payload, MAGIC))
+        {
+            return false;
+        }
+        return !PahoMqttChunks.isLast(payload) || payload.length >= LAST_HEADER_SIZE;
+    }
+
+    /**
+     * @return the id of the transfer of a chunk.
+     */
+    static long transferId(byte[] chunk)
+    {
+        return PahoMqttChunks.read(chunk, MAGIC.length, 8);
+    }
+
+    /**
+     * @return the sequence number of a chunk.
+     */
+    static int sequence(byte[] chunk)
+    {
+        return (int) PahoMqttChunks.read(chunk, MAGIC.length + 8, 4);
+    }
+
+    /**
+     * @return <code>true</code> if the chunk is the last of its transfer.
+     */
+    static boolean isLast(byte[] chunk)
+    {
+        return (chunk[HEADER_SIZE - 1] & FLAG_LAST) != 0;
+    }
+
+    /**
+     * @return the length of the whole transfer, only valid for the last
+     *         chunk.
+     */
+    static long totalLength(byte[] chunk)
+    {
+        return PahoMqttChunks.read(chunk, HEADER_SIZE, 8);
+    }
+
+    /**
+     * @return the CRC32 checksum of the whole transfer, only valid for the
+     *         last chunk.
+     */
+    static int checksum(byte[] chunk)
+    {
+        return (int) PahoMqttChunks.read(chunk, HEADER_SIZE + 8, 4);
+    }
+
+    /**
+     * @return the offset of the data of a chunk.
+     */
+    static int dataOffset(byte[] chunk)
+    {
+        return PahoMqttChunks.isLast(chunk) ? LAST_HEADER_SIZE : HEADER_SIZE;
+    }
+
+    private static int writeHeader(byte[] chunk, long transferId, int sequence, int flags)
+    {
+        System.arraycopy(MAGIC, 0, chunk, 0, MAGIC.length);
+        int position = PahoMqttChunks.write(chunk, MAGIC.length, transferId, 8);
+        position = PahoMqttChunks.write(chunk, position, sequence, 4);
+        chunk[position++] = (byte) flags;
+        return position;
+    }
+
+    private static int write(byte[] buffer, int position, long value, int size)
+    {
+        for (int i = size - 1; i >= 0; i--)
+        {
+            buffer[position++] = (byte) (value >>> (8 * i));
+        }
+        return position;
+    }
+
+    private static long read(byte[] buffer, int position, int size)
+    {
+        long value = 0;
+        for (int i = 0; i < size; i++)
+        {
+            value = value << 8 | buffer[position + i] & 0xFF;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+/**
+ * This interface defines the MQTT client a producer or consumer connection
+ * talks to the broker with, so the transport can be chosen per end point. The
+ * methods follow the asynchronous Paho client: the outcome of an operation is
+ * reported to its listener and the {@link MqttCallback} receives messages and
+ * the loss of the connection. Listeners only rely on the outcome, the token
+ * passed to them may be <code>null</code>.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+interface PahoMqttClient
+{
+    /**
+     * @return the MQTT client id.
+     */
+    String getClientId();
+
+    /**
+     * @return <code>true</code> if the client is connected to the broker.
+     */
+    boolean isConnected();
+
+    /**
+     * @param callback
+     *            The receiver of messages and of the loss of the connection.
+     */
+    void setCallback(MqttCallback callback);
+
+    /**
+     * Connects to the broker without waiting.
+     *
+     * @param options
+     *            The options of the connection.
+     * @param listener
+     *            The listener notified once the broker accepted or refused
+     *            the connection.
+     * @throws MqttException
+     *             if the connect can not be started.
+     */
+    void connect(MqttConnectOptions options, IMqttActionListener listener) throws MqttException;
+
+    /**
+     * Connects to the broker and waits until the broker accepted the
+     * connection.
+     *
+     * @param options
+     *            The options of the connection.
+     * @throws MqttException
+     *             if the connection can not be established.
+     */
+    void connectAndWait(MqttConnectOptions options) throws MqttException;
+
+    /**
+     * Publishes a message without waiting.
+     *
+     * @param topic
+     *            The topic to publish to.
+     * @param payload
+     *            The payload to publish.
+     * @param qos
+     *            The QoS level of the publish.
+     * @param retained
+     *            The retained flag of the publish.
+     * @param listener
+     *            The listener notified once the publish was acknowledged
+     *            according to its QoS level or failed.
+     * @throws MqttException
+     *             if the client is not connected.
+     */
+    void publish(String topic, byte[] payload, int qos, boolean retained, IMqttActionListener listener)
+            throws MqttException;
+
+    /**
+     * Subscribes to topic filters without waiting.
+     *
+     * @param topicFilters
+     *            The topic filters to subscribe to.
+     * @param qos
+     *            The QoS level of every topic filter.
+     * @throws MqttException
+     *             if the client is not connected.
+     */
+    void subscribe(String[] topicFilters, int[] qos) throws MqttException;
+
+    /**
+     * Unsubscribes from topic filters without waiting.
+     *
+     * @param topicFilters
+     *            The topic filters to unsubscribe from.
+     * @throws MqttException
+     *             if the client is not connected.
+     */
+    void unsubscribe(String[] topicFilters) throws MqttException;
+
+    /**
+     * Disconnects from the broker without waiting.
+     *
+     * @param listener
+     *            The listener notified once the client disconnected.
+     * @throws MqttException
+     *             if the client is not connected.
+     */
+    void disconnect(IMqttActionListener listener) throws MqttException;
+
+    /**
+     * Disconnects from the broker and waits until the client disconnected.
+     *
+     * @throws MqttException
+     *             if the client fails to disconnect.
+     */
+    void disconnectAndWait() throws MqttException;
+}
@@ -0,0 +1,318 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.Exchange;
+
+/**
+ * This class gathers the publishes of a producer into one envelope per
+ * topic. An envelope is published as soon as it holds the configured number
+ * of messages or, driven by a timer, when its first message waited for the
+ * configured timeout. A publish with another QoS level or retain flag than
+ * the pending envelope of its topic publishes that envelope first, so the
+ * messages of a topic keep their order.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+class PahoMqttCoalescer
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    /**
+     * Defines the receiver of completed envelopes.
+     */
+    interface Listener
+    {
+        /**
+         * Called for every completed envelope, either on the thread adding
+         * the last message or on the timer thread.
+         *
+         * @param envelope
+         *            The completed envelope.
+         */
+        void onEnvelope(Envelope envelope);
+    }
+
+    private final int                      mEnvelopeSize;
+    private final long                     mTimeoutMillis;
+    private final ScheduledExecutorService mTimer;
+    private final Listener                 mListener;
+
+    /**
+     * Defines the envelope currently filled per topic, guarded by
+     * <tt>this</tt>.
+     */
+    private final Map<String, Envelope>    mPending = new HashMap<String, Envelope>();
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    /**
+     * @param envelopeSize
+     *            The number of messages completing an envelope.
+     * @param timeoutMillis
+     *            The time in milliseconds the first message of an envelope
+     *            waits at most.
+     * @param timer
+     *            The executor running the timeouts.
+     * @param listener
+     *            The receiver of completed envelopes.
+     */
+    PahoMqttCoalescer(int envelopeSize, long timeoutMillis, ScheduledExecutorService timer, Listener listener)
+    {
+        this.mEnvelopeSize = envelopeSize;
+        this.mTimeoutMillis = timeoutMillis;
+        this.mTimer = timer;
+        this.mListener = listener;
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * Adds a publish to the envelope of its topic. The callback is completed
+     * once the envelope was published.
+     *
+     * @param exchange
+     *            The exchange to publish.
+     * @param callback
+     *            The callback of the exchange.
+     * @param topic
+     *            The topic to publish to.
+     * @param payload
+     *            The payload to publish.
+     * @param qosLevel
+     *            The QoS level of the publish.
+     * @param retained
+     *            The retained flag of the publish.
+     */
+    void add(Exchange exchange, AsyncCallback callback, final String topic, byte[] payload, int qosLevel,
+            boolean retained)
+    {
+        Envelope previous = null;
+        Envelope full = null;
+        synchronized (this)
+        {
+            Envelope envelope = this.mPending.get(topic);
+            if (envelope != null && (envelope.mQosLevel != qosLevel || envelope.mRetained != retained))
+            {
+                previous = this.take(topic);
+                envelope = null;
+            }
+
+            if (envelope == null)
+            {
+                final Envelope created = new Envelope(topic, qosLevel, retained, this.mEnvelopeSize);
+                created.mTimeout = this.mTimer.schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        PahoMqttCoalescer.this.flush(created);
+                    }
+                }, this.mTimeoutMillis, TimeUnit.MILLISECONDS);
+                this.mPending.put(topic, created);
+                envelope = created;
+            }
+
+            envelope.add(exchange, callback, payload);
+            if (envelope.size() >= this.mEnvelopeSize)
+            {
+                full = this.take(topic);
+            }
+        }
+
+        if (previous != null)
+        {
+            this.mListener.onEnvelope(previous);
+        }
+        if (full != null)
+        {
+            this.mListener.onEnvelope(full);
+        }
+    }
+
+    /**
+     * Hands over all pending envelopes regardless of their size, e.g. while
+     * stopping.
+     */
+    void flush()
+    {
+        List<Envelope> envelopes;
+        synchronized (this)
+        {
+            envelopes = new ArrayList<Envelope>(this.mPending.size());
+            for (String topic : new ArrayList<String>(this.mPending.keySet()))
+            {
+                envelopes.add(this.take(topic));
+            }
+        }
+
+        for (Envelope envelope : envelopes)
+        {
+            this.mListener.onEnvelope(envelope);
+        }
+    }
+
+    /**
+     * Hands over the given envelope if it is still pending. An envelope
+     * already handed over because of its size is ignored.
+     */
+    private void flush(Envelope envelope)
+    {
+        synchronized (this)
+        {
+            if (this.mPending.get(envelope.mTopic) != envelope)
+            {
+                return;
+            }
+            this.take(envelope.mTopic);
+        }
+
+        this.mListener.onEnvelope(envelope);
+    }
+
+    /**
+     * Removes the pending envelope of a topic and cancels its timeout. Needs
+     * to be called while holding the lock.
+     */
+    private Envelope take(String topic)
+    {
+        Envelope envelope = this.mPending.remove(topic);
+        envelope.mTimeout.cancel(false);
+        envelope.mTimeout = null;
+        return envelope;
+    }
+
+    // --------------------------------------------------
+    // INNER CLASSES
+    // --------------------------------------------------
+
+    /**
+     * Holds the payloads of an envelope together with the exchanges waiting
+     * for its publish.
+     */
+    static final class Envelope
+    {
+        private final String              mTopic;
+        private final int                 mQosLevel;
+        private final boolean             mRetained;
+        private final List<byte[]>        mPayloads;
+        private final List<Exchange>      mExchanges;
+        private final List<AsyncCallback> mCallbacks;
+        private ScheduledFuture<?>        mTimeout;
+
+        private Envelope(String topic, int qosLevel, boolean retained, int capacity)
+        {
+            this.mTopic = topic;
+            this.mQosLevel = qosLevel;
+            this.mRetained = retained;
+            this.mPayloads = new ArrayList<byte[]>(capacity);
+            this.mExchanges = new ArrayList<Exchange>(capacity);
+            this.mCallbacks = new ArrayList<AsyncCallback>(capacity);
+        }
+
+        private void add(Exchange exchange, AsyncCallback callback, byte[] payload)
+        {
+            this.mExchanges.add(exchange);
+            this.mCallbacks.add(callback);
+            this.mPayloads.add(payload);
+        }
+
+        /**
+         * @return the number of messages in the envelope.
+         */
+        int size()
+        {
+            return this.mPayloads.size();
+        }
+
+        /**
+         * @return the topic of the envelope.
+         */
+        String getTopic()
+        {
+            return this.mTopic;
+        }
+
+        /**
+         * @return the QoS level of the envelope.
+         */
+        int getQosLevel()
+        {
+            return this.mQosLevel;
+        }
+
+        /**
+         * @return the retained flag of the envelope.
+         */
+        boolean isRetained()
+        {
+            return this.mRetained;
+        }
+
+        /**
+         * @return the payloads in the order they were added.
+         */
+        List<byte[]> getPayloads()
+        {
+            return this.mPayloads;
+        }
+
+        /**
+         * @return the exchange the envelope is published with, the first one
+         *         added.
+         */
+        Exchange getExchange()
+        {
+            return this.mExchanges.get(0);
+        }
+
+        /**
+         * Completes the callbacks of all exchanges of the envelope with the
+         * outcome of its publish. The exchanges were handed over
+         * asynchronously, so their callbacks are never completed
+         * synchronously.
+         */
+        void complete()
+        {
+            Exception failure = this.getExchange().getException();
+            for (int i = 0; i < this.mExchanges.size(); i++)
+            {
+                if (failure != null && i > 0)
+                {
+                    this.mExchanges.get(i).setException(failure);
+                }
+                this.mCallbacks.get(i).done(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * This class encodes and decodes the MQTT 3.1.1 packets a client sends and
+ * receives. Every encoded packet is a buffer ready to be written to a
+ * channel. A packet starts with a fixed header byte holding its type and
+ * flags, followed by the length of the remaining packet as variable byte
+ * integer of up to four bytes.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+final class PahoMqttCodec
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private static final Charset UTF_8            = Charset.forName("UTF-8");
+
+    // packet types of the fixed header
+    static final int             CONNECT          = 1;
+    static final int             CONNACK          = 2;
+    static final int             PUBLISH          = 3;
+    static final int             PUBACK           = 4;
+    static final int             PUBREC           = 5;
+    static final int             PUBREL           = 6;
+    static final int             PUBCOMP          = 7;
+    static final int             SUBSCRIBE        = 8;
+    static final int             SUBACK           = 9;
+    static final int             UNSUBSCRIBE      = 10;
+    static final int             UNSUBACK         = 11;
+    static final int             PINGREQ          = 12;
+    static final int             PINGRESP         = 13;
+    static final int             DISCONNECT       = 14;
+
+    /**
+     * Defines the largest length of the remaining packet a variable byte
+     * integer can hold.
+     */
+    static final int             MAX_LENGTH       = 268435455;
+
+    /**
+     * Defines the protocol level of MQTT 3.1.1.
+     */
+    private static final int     PROTOCOL_LEVEL   = 4;
+
+    private static final byte[]  PROTOCOL_NAME    = { 0, 4, 'M', 'Q', 'T', 'T' };
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    private PahoMqttCodec()
+    {
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * Encodes a CONNECT packet including the last will and the credentials of
+     * the options.
+     *
+     * @param clientId
+     *            The MQTT client id.
+     * @param options
+     *            The options of the connection.
+     * @return the packet.
+     */
+    static ByteBuffer connect(String clientId, MqttConnectOptions options)
+    {
+        byte[] id = clientId.getBytes(PahoMqttCodec.UTF_8);
+        int flags = options.isCleanSession() ? 0x02 : 0;
+        int length = PROTOCOL_NAME.length + 4 + 2 + id.length;
+
+        byte[] willTopic = null;
+        byte[] willPayload = null;
+        MqttMessage will = options.getWillMessage();
+        if (options.getWillDestination() != null && will != null)
+        {
+            willTopic = options.getWillDestination().getBytes(PahoMqttCodec.UTF_8);
+            willPayload = will.getPayload();
+            flags |= 0x04 | will.getQos() << 3 | (will.isRetained() ? 0x20 : 0);
+            length += 2 + willTopic.length + 2 + willPayload.length;
+        }
+
+        byte[] userName = null;
+        if (options.getUserName() != null)
+        {
+            userName = options.getUserName().getBytes(PahoMqttCodec.UTF_8);
+            flags |= 0x80;
+            length += 2 + userName.length;
+        }
+        byte[] password = null;
+        if (options.getPassword() != null)
+        {
+            password = new String(options.getPassword()).getBytes(PahoMqttCodec.UTF_8);
+            flags |= 0x40;
+            length += 2 + password.length;
+        }
+
+        ByteBuffer packet = PahoMqttCodec.allocate(CONNECT << 4, length);
+        packet.put(PROTOCOL_NAME).put((byte) PROTOCOL_LEVEL).put((byte) flags);
+        packet.putShort((short) options.getKeepAliveInterval());
+        PahoMqttCodec.putBytes(packet, id);
+        if (willTopic != null)
+        {
+            PahoMqttCodec.putBytes(packet, willTopic);
+            PahoMqttCodec.putBytes(packet, willPayload);
+        }
+        if (userName != null)
+        {
+            PahoMqttCodec.putBytes(packet, userName);
+        }
+        if (password != null)
+        {
+            PahoMqttCodec.putBytes(packet, password);
+        }
+        packet.flip();
+        return packet;
+    }
+
+    /**
+     * Encodes a PUBLISH packet. The packet id of a QoS 1 or 2 message is set
+     * later with {@link #setPacketId(ByteBuffer, int)}, so the packet can be
+     * encoded by the publishing thread.
+     *
+     * @param topic
+     *            The topic to publish to.
+     * @param payload
+     *            The payload to publish.
+     * @param qos
+     *            The QoS level of the publish.
+     * @param retained
+     *            The retained flag of the publish.
+     * @return the packet.
+     */
+    static ByteBuffer publish(String topic, byte[] payload, int qos, boolean retained)
+    {
+        byte[] name = topic.getBytes(PahoMqttCodec.UTF_8);
+        int length = 2 + name.length + (qos > 0 ? 2 : 0) + payload.length;
+        if (length > MAX_LENGTH)
+        {
+            throw new IllegalArgumentException("The payload of " + payload.length + " bytes is too large for MQTT");
+        }
+
+        ByteBuffer packet = PahoMqttCodec.allocate(PUBLISH << 4 | qos << 1 | (retained ? 1 : 0), length);
+        PahoMqttCodec.putBytes(packet, name);
+        if (qos > 0)
+        {
+            packet.putShort((short) 0);
+        }
+        packet.put(payload);
+        packet.flip();
+        return packet;
+    }
+
+    /**
+     * Sets the packet id of an encoded QoS 1 or 2 PUBLISH packet, e.g. when
+     * it is sent again with a new id.
+     *
+     * @param packet
+     *            The packet from {@link #publish(String, byte[], int, boolean)}.
+     * @param packetId
+     *            The packet id.
+     */
+    static void setPacketId(ByteBuffer packet, int packetId)
+    {
+        int position = 1;
+        while ((packet.get(position) & 0x80) != 0)
+        {
+            position++;
+        }
+        position++;
+        position += 2 + (packet.getShort(position) & 0xFFFF);
+        packet.putShort(position, (short) packetId);
+    }
+
+    /**
+     * Encodes an acknowledgement, i.e. a PUBACK, PUBREC, PUBREL, PUBCOMP or
+     * UNSUBACK packet.
+     *
+     * @param type
+     *            The packet type.
+     * @param packetId
+     *            The id of the acknowledged packet.
+     * @return the packet.
+     */
+    static ByteBuffer ack(int type, int packetId)
+    {
+        // PUBREL has the reserved flags 0010
+        int header = type << 4 | (type == PUBREL ? 0x02 : 0);
+        return ByteBuffer.wrap(new byte[] { (byte) header, 2, (byte) (packetId >> 8), (byte) packetId });
+    }
+
+    /**
+     * Encodes a SUBSCRIBE packet.
+     *
+     * @param packetId
+     *            The packet id.
+     * @param topicFilters
+     *            The topic filters to subscribe to.
+     * @param qos
+     *            The QoS level of every topic filter.
+     * @return the packet.
+     */
+    static ByteBuffer subscribe(int packetId, String[] topicFilters, int[] qos)
+    {
+        byte[][] filters = PahoMqttCodec.encodeAll(topicFilters);
+        int length = 2;
+        for (byte[] filter : filters)
+        {
+            length += 2 + filter.length + 1;
+        }
+
+        ByteBuffer packet = PahoMqttCodec.allocate(SUBSCRIBE << 4 | 0x02, length);
+        packet.putShort((short) packetId);
+        for (int i = 0; i < filters.length; i++)
+        {
+            PahoMqttCodec.putBytes(packet, filters[i]);
+            packet.put((byte) qos[i]);
+        }
+        packet.flip();
+        return packet;
+    }
+
+    /**
+     * Encodes an UNSUBSCRIBE packet.
+     *
+     * @param packetId
+     *            The packet id.
+     * @param topicFilters
+     *            The topic filters to unsubscribe from.
+     * @return the packet.
+     */
+    static ByteBuffer unsubscribe(int packetId, String[] topicFilters)
+    {
+        byte[][] filters = PahoMqttCodec.encodeAll(topicFilters);
+        int length = 2;
+        for (byte[] filter : filters)
+        {
+            length += 2 + filter.length;
+        }
+
+        ByteBuffer packet = PahoMqttCodec.allocate(UNSUBSCRIBE << 4 | 0x02, length);
+        packet.putShort((short) packetId);
+        for (byte[] filter : filters)
+        {
+            PahoMqttCodec.putBytes(packet, filter);
+        }
+        packet.flip();
+        return packet;
+    }
+
+    /**
+     * @return a PINGREQ packet.
+     */
+    static ByteBuffer pingRequest()
+    {
+        return ByteBuffer.wrap(new byte[] { (byte) (PINGREQ << 4), 0 });
+    }
+
+    /**
+     * @return a DISCONNECT packet.
+     */
+    static ByteBuffer disconnect()
+    {
+        return ByteBuffer.wrap(new byte[] { (byte) (DISCONNECT << 4), 0 });
+    }
+
+    /**
+     * Decodes the length of the remaining packet following the fixed header
+     * byte.
+     *
+     * @param in
+     *            The buffer positioned after the fixed header byte. Its
+     *            position is moved behind the length.
+     * @return the length, or -1 if the buffer does not hold the whole length
+     *         yet.
+     * @throws IllegalArgumentException
+     *             if the length is longer than four bytes.
+     */
+    static int decodeLength(ByteBuffer in)
+    {
+        int length = 0;
+        int multiplier = 1;
+        for (int i = 0; i < 4; i++)
+        {
+            if (!in.hasRemaining())
+            {
+                return -1;
+            }
+            int digit = in.get() & 0xFF;
+            length += (digit & 0x7F) * multiplier;
+            if ((digit & 0x80) == 0)
+            {
+                return length;
+            }
+            multiplier *= 128;
+        }
+        throw new IllegalArgumentException("Malformed remaining length");
+    }
+
+    /**
+     * Decodes a string prefixed by its two byte length.
+     */
+    static String readString(ByteBuffer in)
+    {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, PahoMqttCodec.UTF_8);
+    }
+
+    /**
+     * Allocates a packet and writes its fixed header.
+     */
+    private static ByteBuffer allocate(int header, int length)
+    {
+        ByteBuffer packet = ByteBuffer.allocate(1 + PahoMqttCodec.lengthSize(length) + length);
+        packet.put((byte) header);
+        do
+        {
+            int digit = length % 128;
+            length /= 128;
+            packet.put((byte) (length > 0 ? digit | 0x80 : digit));
+        } while (length > 0);
+        return packet;
+    }
+
+    /**
+     * @return the number of bytes the variable byte integer of a length
+     *         takes.
+     */
+    static int lengthSize(int length)
+    {
+        return length < 128 ? 1 : length < 16384 ? 2 : length < 2097152 ? 3 : 4;
+    }
+
+    private static void putBytes(ByteBuffer packet, byte[] bytes)
+    {
+        packet.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static byte[][] encodeAll(String[] strings)
+    {
+        byte[][] encoded = new byte[strings.length][];
+        for (int i = 0; i < strings.length; i++)
+        {
+            encoded[i] = strings[i].getBytes(PahoMqttCodec.UTF_8);
+        }
+        return encoded;
+    }
+}
@@ -16,20 +16,77 @@
  */
 package com.anntex.camel.paho;
 
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
 
 import com.anntex.camel.paho.config.PahoMqttConfiguration;
 import org.apache.camel.Endpoint;
 import org.apache.camel.impl.UriEndpointComponent;
+import org.apache.camel.spi.ExecutorServiceManager;
+import org.eclipse.paho.client.mqttv3.MqttException;
 
 /**
  * This class represents a component that will be used by Apache Camel to create and manage a {@link PahoMqttEndpoint}.
+ * The component also manages the connections shared by consumers of the same broker and client identity.
  *
  * @author dennis.grewe [https://github.com/Anntex]
  * @version 0.9-SNAPSHOT March 04, 2015
  */
 public class PahoMqttComponent extends UriEndpointComponent
 {
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    /**
+     * Defines the shared consumer connections by broker and client identity, guarded by <tt>this</tt>.
+     */
+    private final Map<String, PahoMqttConsumerConnection> mSharedConnections =
+            new HashMap<String, PahoMqttConsumerConnection>();
+
+    /**
+     * Defines the timer running the reconnect attempts of the shared consumer connections, guarded by
+     * <tt>this</tt>.
+     */
+    private ScheduledExecutorService                      mReconnectTimer;
+
+    /**
+     * Defines the number of topics the last value cache keeps, 0 disables the cache.
+     */
+    private int                                           mLastValueCacheSize;
+
+    /**
+     * Defines the time in milliseconds a value is kept by the last value cache, 0 to keep it until it is evicted.
+     */
+    private long                                          mLastValueCacheTtlMillis;
+
+    /**
+     * Defines the newest message per topic delivered by the consumers of this component, created with the first
+     * consumer, guarded by <tt>this</tt>.
+     */
+    private PahoMqttLastValueCache                        mLastValueCache;
+
+    /**
+     * Defines the number of event loops of the nio transport.
+     */
+    private int                                           mNioThreads;
+
+    /**
+     * Defines the number of threads running the callbacks of the nio transport, e.g. the routes of its consumers.
+     */
+    private int                                           mNioCallbackThreads;
+
+    /**
+     * Defines the event loops serving the connections of end points with <code>transport=nio</code>, created with
+     * the first of these connections, guarded by <tt>this</tt>.
+     */
+    private PahoMqttNioTransport                          mNioTransport;
+    private ExecutorService                               mNioLoopExecutor;
+    private ExecutorService                               mNioCallbackExecutor;
+
     // --------------------------------------------------
     // CONSTRUCTOR
     // --------------------------------------------------
@@ -37,6 +94,8 @@ public class PahoMqttComponent extends UriEndpointComponent
     public PahoMqttComponent()
     {
         super(PahoMqttEndpoint.class);
+        this.mNioThreads = Runtime.getRuntime().availableProcessors();
+        this.mNioCallbackThreads = 2 * this.mNioThreads;
     }
 
     // --------------------------------------------------
@@ -68,4 +127,241 @@ public class PahoMqttComponent extends UriEndpointComponent
     {
         return true;
     }
+
+    /**
+     * Registers a consumer at the connection shared by all consumers with the same broker and client identity. The
+     * connection is created with the first consumer.
+     *
+     * @param consumer The consumer to register
+     * @param configuration The configuration of the consumer
+     * @return the shared {@link PahoMqttConsumerConnection}
+     * @throws MqttException if the Paho client can not be created
+     * @throws IllegalArgumentException if the connection options of the consumer differ from the options the shared
+     *             connection was created with
+     */
+    synchronized PahoMqttConsumerConnection registerSharedConsumer(PahoMqttConsumer consumer,
+            PahoMqttConfiguration configuration) throws MqttException
+    {
+        String key = PahoMqttConsumerConnection.keyOf(configuration);
+        PahoMqttConsumerConnection connection = this.mSharedConnections.get(key);
+        if (connection == null)
+        {
+            connection = new PahoMqttConsumerConnection(configuration,
+                    this.createClient(configuration, configuration.getEndPointName()));
+            this.mSharedConnections.put(key, connection);
+        }
+        else
+        {
+            connection.checkOptions(configuration);
+        }
+
+        connection.register(consumer, configuration.getSubscriptions(), this.reconnectTimer());
+        return connection;
+    }
+
+    /**
+     * Unregisters a consumer from its shared connection. The connection is closed with the last consumer.
+     *
+     * @param consumer The consumer to unregister
+     * @param connection The shared connection of the consumer
+     */
+    synchronized void unregisterSharedConsumer(PahoMqttConsumer consumer, PahoMqttConsumerConnection connection)
+    {
+        if (connection.unregister(consumer) == 0)
+        {
+            this.mSharedConnections.remove(connection.getKey());
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @return the timer running the reconnect attempts of the shared consumer connections and of all connections
+     *         using the nio transport.
+     */
+    synchronized ScheduledExecutorService reconnectTimer()
+    {
+        if (this.mReconnectTimer == null)
+        {
+            this.mReconnectTimer = this.getCamelContext().getExecutorServiceManager()
+                    .newSingleThreadScheduledExecutor(this, "PahoMqttReconnect");
+        }
+        return this.mReconnectTimer;
+    }
+
+    /**
+     * Creates the client of a connection with the transport of the end point. The nio transport is started with
+     * the first of its clients.
+     *
+     * @param configuration The configuration of the end point
+     * @param clientId The MQTT client id of the connection
+     * @return the client, not connected yet
+     * @throws MqttException if the client can not be created
+     */
+    synchronized PahoMqttClient createClient(PahoMqttConfiguration configuration, String clientId)
+            throws MqttException
+    {
+        if (!PahoMqttConfiguration.TRANSPORT_NIO.equals(configuration.getTransport()))
+        {
+            return new PahoMqttDefaultClient(configuration, clientId);
+        }
+
+        if (this.mNioTransport == null)
+        {
+            ExecutorServiceManager executors = this.getCamelContext().getExecutorServiceManager();
+            this.mNioLoopExecutor = executors.newFixedThreadPool(this, "PahoMqttNioLoop", this.mNioThreads);
+            this.mNioCallbackExecutor = executors.newFixedThreadPool(this, "PahoMqttNioCallback",
+                    this.mNioCallbackThreads);
+            try
+            {
+                this.mNioTransport = new PahoMqttNioTransport(this.mNioLoopExecutor, this.mNioThreads,
+                        this.mNioCallbackExecutor);
+            } catch (IOException ex)
+            {
+                this.stopNioTransport();
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, ex);
+            }
+            this.mNioTransport.start();
+        }
+        return new PahoMqttNioClient(this.mNioTransport, configuration, clientId);
+    }
+
+    /**
+     * Stops the nio transport and its threads. Needs to be called while holding the lock.
+     */
+    private void stopNioTransport()
+    {
+        if (this.mNioTransport != null)
+        {
+            this.mNioTransport.stop();
+            this.mNioTransport = null;
+        }
+        if (this.mNioLoopExecutor != null)
+        {
+            this.getCamelContext().getExecutorServiceManager().shutdown(this.mNioLoopExecutor);
+            this.mNioLoopExecutor = null;
+        }
+        if (this.mNioCallbackExecutor != null)
+        {
+            this.getCamelContext().getExecutorServiceManager().shutdown(this.mNioCallbackExecutor);
+            this.mNioCallbackExecutor = null;
+        }
+    }
+
+    /**
+     * @return the number of event loops of the nio transport.
+     */
+    public int getNioThreads()
+    {
+        return this.mNioThreads;
+    }
+
+    /**
+     * @param nioThreads The number of event loops of the nio transport. Needs to be set before the first end point
+     *            with <code>transport=nio</code> connects.
+     */
+    public void setNioThreads(int nioThreads)
+    {
+        if (nioThreads > 0)
+        {
+            this.mNioThreads = nioThreads;
+        }
+    }
+
+    /**
+     * @return the number of threads running the callbacks of the nio transport.
+     */
+    public int getNioCallbackThreads()
+    {
+        return this.mNioCallbackThreads;
+    }
+
+    /**
+     * @param nioCallbackThreads The number of threads running the callbacks of the nio transport, e.g. the routes of
+     *            its consumers. Needs to be set before the first end point with <code>transport=nio</code> connects.
+     */
+    public void setNioCallbackThreads(int nioCallbackThreads)
+    {
+        if (nioCallbackThreads > 0)
+        {
+            this.mNioCallbackThreads = nioCallbackThreads;
+        }
+    }
+
+    /**
+     * @return the last value cache fed by the consumers of this component, or <code>null</code> if it is disabled.
+     */
+    synchronized PahoMqttLastValueCache lastValueCache()
+    {
+        if (this.mLastValueCache == null && this.mLastValueCacheSize > 0)
+        {
+            this.mLastValueCache = new PahoMqttLastValueCache(this.mLastValueCacheSize, this.mLastValueCacheTtlMillis);
+        }
+        return this.mLastValueCache;
+    }
+
+    /**
+     * @return the number of topics the last value cache keeps, 0 if it is disabled.
+     */
+    public int getLastValueCacheSize()
+    {
+        return this.mLastValueCacheSize;
+    }
+
+    /**
+     * @param lastValueCacheSize The number of topics the last value cache keeps, 0 to disable it. Needs to be set
+     *            before the first consumer starts.
+     */
+    public void setLastValueCacheSize(int lastValueCacheSize)
+    {
+        if (lastValueCacheSize >= 0)
+        {
+            this.mLastValueCacheSize = lastValueCacheSize;
+        }
+    }
+
+    /**
+     * @return the time in milliseconds a value is kept by the last value cache.
+     */
+    public long getLastValueCacheTtlMillis()
+    {
+        return this.mLastValueCacheTtlMillis;
+    }
+
+    /**
+     * @param lastValueCacheTtlMillis The time in milliseconds a value is kept by the last value cache, 0 to keep it
+     *            until it is evicted.
+     */
+    public void setLastValueCacheTtlMillis(long lastValueCacheTtlMillis)
+    {
+        if (lastValueCacheTtlMillis >= 0)
+        {
+            this.mLastValueCacheTtlMillis = lastValueCacheTtlMillis;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void doStop() throws Exception
+    {
+        synchronized (this)
+        {
+            for (PahoMqttConsumerConnection connection : this.mSharedConnections.values())
+            {
+                connection.disconnect();
+            }
+            this.mSharedConnections.clear();
+
+            if (this.mReconnectTimer != null)
+            {
+                this.getCamelContext().getExecutorServiceManager().shutdown(this.mReconnectTimer);
+                this.mReconnectTimer = null;
+            }
+
+            this.stopNioTransport();
+        }
+
+        super.doStop();
+    }
 }
\ No newline at end of file
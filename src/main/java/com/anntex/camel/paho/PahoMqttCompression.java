@@ -0,0 +1,220 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class compresses payloads with deflate into a frame consumers with
+ * the same compression recognize and decompress. A frame starts with four marker bytes, the
+ * last of them the format version, followed by the length of the original
+ * payload as four byte integer and the raw deflate data. Every thread keeps
+ * its own {@link Deflater} and {@link Inflater} and compresses into the
+ * scratch buffer of {@link PahoMqttPayloads}, so only the resulting payload
+ * is allocated per message. A payload that does not get smaller is published
+ * as it is.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+final class PahoMqttCompression
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    /**
+     * Defines the marker every frame starts with, see
+     * {@link PahoMqttPayloads#marker(char)}.
+     */
+    private static final byte[]               MAGIC       = PahoMqttPayloads.marker('Z');
+
+    private static final int                  HEADER_SIZE = MAGIC.length + 4;
+
+    /**
+     * Defines the largest payload MQTT can carry, a frame announcing more is
+     * corrupt.
+     */
+    private static final int                  MAX_LENGTH  = 268435455;
+
+    private static final ThreadLocal<Deflater> DEFLATER   = new ThreadLocal<Deflater>()
+    {
+        @Override
+        protected Deflater initialValue()
+        {
+            // fast compression suits small and frequent messages best
+            return new Deflater(Deflater.BEST_SPEED, true);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> INFLATER   = new ThreadLocal<Inflater>()
+    {
+        @Override
+        protected Inflater initialValue()
+        {
+            return new Inflater(true);
+        }
+    };
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    private PahoMqttCompression()
+    {
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * Compresses a payload into a frame.
+     *
+     * @param payload
+     *            The payload to compress.
+     * @return the frame, or <code>null</code> if it would not be smaller than
+     *         the payload.
+     */
+    static byte[] compress(byte[] payload)
+    {
+        if (payload.length <= HEADER_SIZE)
+        {
+            return null;
+        }
+
+        // the frame has to fit into the length of the payload to be worth it
+        byte[] buffer = PahoMqttPayloads.scratch(payload.length);
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(payload);
+        deflater.finish();
+        int length = HEADER_SIZE;
+        while (!deflater.finished() && length < payload.length)
+        {
+            int deflated = deflater.deflate(buffer, length, payload.length - length);
+            if (deflated == 0)
+            {
+                break;
+            }
+            length += deflated;
+        }
+        if (!deflater.finished())
+        {
+            return null;
+        }
+
+        byte[] frame = new byte[length];
+        System.arraycopy(MAGIC, 0, frame, 0, MAGIC.length);
+        PahoMqttCompression.writeInt(frame, MAGIC.length, payload.length);
+        System.arraycopy(buffer, HEADER_SIZE, frame, HEADER_SIZE, length - HEADER_SIZE);
+        return frame;
+    }
+
+    /**
+     * Decompresses a frame. The payload grows with the inflated data, so the
+     * length a frame announces is never allocated up front.
+     *
+     * @param frame
+     *            The received payload.
+     * @param maxLength
+     *            The largest original payload in bytes to accept.
+     * @return the original payload, or <code>null</code> if the payload is
+     *         not a valid frame or announces more than <tt>maxLength</tt>
+     *         bytes.
+     */
+    static byte[] decompress(byte[] frame, int maxLength)
+    {
+        if (!PahoMqttCompression.isCompressed(frame))
+        {
+            return null;
+        }
+
+        int length = PahoMqttCompression.readInt(frame, MAGIC.length);
+        if (length < 0 || length > MAX_LENGTH || length > maxLength)
+        {
+            return null;
+        }
+
+        // deflate rarely shrinks a payload by more than a few times, larger
+        // payloads are reached by doubling
+        byte[] payload = new byte[Math.min(length, Math.max(frame.length, 64) * 4)];
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(frame, HEADER_SIZE, frame.length - HEADER_SIZE);
+        try
+        {
+            int inflated = 0;
+            while (inflated < length)
+            {
+                if (inflated == payload.length)
+                {
+                    payload = Arrays.copyOf(payload, (int) Math.min(length, 2L * payload.length));
+                }
+                int count = inflater.inflate(payload, inflated, payload.length - inflated);
+                if (count == 0)
+                {
+                    // the data ended early or is missing a dictionary
+                    return null;
+                }
+                inflated += count;
+            }
+
+            // the end of the data may follow the last byte, more bytes than
+            // announced make the frame corrupt
+            if (!inflater.finished() && inflater.inflate(PahoMqttPayloads.scratch(1), 0, 1) != 0)
+            {
+                return null;
+            }
+            return inflater.finished() ? payload : null;
+        } catch (DataFormatException ex)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @param payload
+     *            The received payload.
+     * @return <code>true</code> if the payload starts like a frame.
+     */
+    static boolean isCompressed(byte[] payload)
+    {
+        if (payload.length < HEADER_SIZE)
+        {
+            return false;
+        }
+        return PahoMqttPayloads.hasMarker(payload, MAGIC);
+    }
+
+    private static void writeInt(byte[] buffer, int position, int value)
+    {
+        buffer[position] = (byte) (value >>> 24);
+        buffer[position + 1] = (byte) (value >>> 16);
+        buffer[position + 2] = (byte) (value >>> 8);
+        buffer[position + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] buffer, int position)
+    {
+        return (buffer[position] & 0xFF) << 24 | (buffer[position + 1] & 0xFF) << 16
+                | (buffer[position + 2] & 0xFF) << 8 | buffer[position + 3] & 0xFF;
+    }
+}
@@ -0,0 +1,267 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class keeps only the newest message per topic until it is delivered.
+ * A message replacing an undelivered message of its topic is conflated, so a
+ * slow route skips the stale intermediate states of a topic and the number of
+ * pending messages is bounded by the number of topics. Messages are delivered
+ * on a single thread, either as fast as the listener takes them or at a fixed
+ * interval. Topics are delivered in the order their first pending message
+ * arrived.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+class PahoMqttConflator
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private static final Logger                     LOG          = LoggerFactory.getLogger(PahoMqttConflator.class);
+
+    /**
+     * Defines how long the delivery thread waits for a message before it
+     * checks if the conflator is still running.
+     */
+    private static final long                       POLL_TIMEOUT = 100;
+
+    /**
+     * Defines the receiver of delivered messages.
+     */
+    interface Listener
+    {
+        /**
+         * Called on the delivery thread for the newest message of a topic.
+         *
+         * @param topic
+         *            The topic the message was published to.
+         * @param message
+         *            The newest message of the topic.
+         */
+        void onMessage(String topic, MqttMessage message);
+    }
+
+    /**
+     * Defines the newest undelivered message per topic.
+     */
+    private final ConcurrentMap<String, MqttMessage> mLatest      = new ConcurrentHashMap<String, MqttMessage>();
+
+    /**
+     * Defines the topics with an undelivered message, every topic at most
+     * once.
+     */
+    private final BlockingQueue<String>             mReady       = new LinkedBlockingQueue<String>();
+
+    private final long                              mIntervalMillis;
+    private final ScheduledExecutorService          mExecutor;
+    private final Listener                          mListener;
+    private final PahoMqttMetrics                   mMetrics;
+
+    /**
+     * Defines if messages are delivered.
+     */
+    private volatile boolean                        mRunning;
+
+    /**
+     * Defines the periodic delivery if an interval is configured.
+     */
+    private ScheduledFuture<?>                      mTick;
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    /**
+     * @param intervalMillis
+     *            The interval in milliseconds the pending messages are
+     *            delivered at, 0 to deliver them as fast as the listener
+     *            takes them.
+     * @param executor
+     *            The executor running the delivery thread.
+     * @param listener
+     *            The receiver of delivered messages.
+     * @param metrics
+     *            The metrics conflated messages are recorded to.
+     */
+    PahoMqttConflator(long intervalMillis, ScheduledExecutorService executor, Listener listener,
+            PahoMqttMetrics metrics)
+    {
+        this.mIntervalMillis = intervalMillis;
+        this.mExecutor = executor;
+        this.mListener = listener;
+        this.mMetrics = metrics;
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * Starts delivering messages.
+     */
+    void start()
+    {
+        this.mRunning = true;
+        if (this.mIntervalMillis > 0)
+        {
+            this.mTick = this.mExecutor.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    PahoMqttConflator.this.drain();
+                }
+            }, this.mIntervalMillis, this.mIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        else
+        {
+            this.mExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    PahoMqttConflator.this.deliverContinuously();
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops delivering messages after the current one. Pending messages are
+     * discarded.
+     */
+    void stop()
+    {
+        this.mRunning = false;
+        if (this.mTick != null)
+        {
+            this.mTick.cancel(false);
+            this.mTick = null;
+        }
+
+        int discarded = this.mLatest.size();
+        this.mLatest.clear();
+        this.mReady.clear();
+        if (discarded > 0)
+        {
+            PahoMqttConflator.LOG.warn("\t--> discarded {} pending messages while stopping", discarded);
+        }
+    }
+
+    /**
+     * Adds a message, replacing the undelivered message of its topic.
+     *
+     * @param topic
+     *            The topic the message was published to.
+     * @param message
+     *            The received message.
+     */
+    void offer(String topic, MqttMessage message)
+    {
+        if (this.mLatest.put(topic, message) == null)
+        {
+            this.mReady.add(topic);
+        }
+        else
+        {
+            this.mMetrics.messageConflated();
+        }
+    }
+
+    /**
+     * @return the number of topics with an undelivered message.
+     */
+    int size()
+    {
+        return this.mLatest.size();
+    }
+
+    /**
+     * Delivers the topics pending at the start of the call, topics receiving
+     * a message meanwhile wait for the next call.
+     */
+    void drain()
+    {
+        for (int pending = this.mReady.size(); pending > 0 && this.mRunning; pending--)
+        {
+            String topic = this.mReady.poll();
+            if (topic == null)
+            {
+                return;
+            }
+            this.deliver(topic);
+        }
+    }
+
+    /**
+     * Delivers messages as soon as they arrive until the conflator stops.
+     */
+    private void deliverContinuously()
+    {
+        while (this.mRunning)
+        {
+            try
+            {
+                String topic = this.mReady.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (topic != null)
+                {
+                    this.deliver(topic);
+                }
+            } catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Delivers the newest message of a topic. A message arriving during the
+     * delivery queues the topic again.
+     */
+    private void deliver(String topic)
+    {
+        MqttMessage message = this.mLatest.remove(topic);
+        if (message == null)
+        {
+            return;
+        }
+
+        try
+        {
+            this.mListener.onMessage(topic, message);
+        } catch (RuntimeException ex)
+        {
+            PahoMqttConflator.LOG.error("\t--> unexpected error while delivering a message from {}", topic, ex);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+/**
+ * This class defines the names of the message headers used by the MQTT Paho
+ * component.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public final class PahoMqttConstants
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    /**
+     * Defines the header holding the list of topics of a batch, in the order of
+     * the payloads in the body.
+     */
+    public static final String BATCH_TOPICS      = "PahoMqttBatchTopics";
+
+    /**
+     * Defines the header holding the list of QoS levels of a batch, in the
+     * order of the payloads in the body.
+     */
+    public static final String BATCH_QOS         = "PahoMqttBatchQos";
+
+    /**
+     * Defines the header overriding the topic a producer publishes to.
+     */
+    public static final String TOPIC             = "PahoMqttTopic";
+
+    /**
+     * Defines the header overriding the QoS level a producer publishes with.
+     */
+    public static final String QOS               = "PahoMqttQos";
+
+    /**
+     * Defines the header overriding the retain flag of a published message.
+     */
+    public static final String RETAINED          = "PahoMqttRetained";
+
+    /**
+     * Defines the header holding the topic a consumed message was published
+     * to. It differs from {@link #TOPIC}, so a route passing a consumed
+     * message on to a producer does not publish it to its own topic again.
+     */
+    public static final String RECEIVED_TOPIC    = "PahoMqttReceivedTopic";
+
+    /**
+     * Defines the header holding the QoS level a consumed message was
+     * delivered with.
+     */
+    public static final String RECEIVED_QOS      = "PahoMqttReceivedQos";
+
+    /**
+     * Defines the header holding the retain flag of a consumed message, which
+     * is set if the broker delivered a retained message on subscription.
+     */
+    public static final String RECEIVED_RETAINED = "PahoMqttReceivedRetained";
+
+    /**
+     * Defines the header holding the duplicate flag of a consumed message,
+     * which is set if the broker may have delivered it before.
+     */
+    public static final String DUPLICATE         = "PahoMqttDuplicate";
+
+    /**
+     * Defines the header holding the id of a transfer a consumer reassembled
+     * from chunks.
+     */
+    public static final String TRANSFER_ID       = "PahoMqttTransferId";
+
+    /**
+     * Defines the header holding the length in bytes of a transfer a consumer
+     * reassembled from chunks.
+     */
+    public static final String TRANSFER_LENGTH   = "PahoMqttTransferLength";
+
+    /**
+     * Defines the header selecting the operation of a producer, either
+     * {@link #OPERATION_PUBLISH} or {@link #OPERATION_GET}.
+     */
+    public static final String OPERATION         = "PahoMqttOperation";
+
+    /**
+     * Defines the operation publishing the body of an exchange, the default.
+     */
+    public static final String OPERATION_PUBLISH = "publish";
+
+    /**
+     * Defines the operation replacing the body of an exchange by the newest
+     * message of a topic in the last value cache of the component.
+     */
+    public static final String OPERATION_GET     = "get";
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    private PahoMqttConstants()
+    {
+    }
+}
@@ -16,19 +16,32 @@
  */
 package com.anntex.camel.paho;
 
+import java.io.File;
 import java.io.NotActiveException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import com.anntex.camel.paho.config.PahoMqttConfiguration;
 import org.apache.camel.Exchange;
+import org.apache.camel.util.AsyncProcessorHelper;
 import org.apache.camel.Processor;
 import org.apache.camel.impl.DefaultConsumer;
-import org.eclipse.paho.client.mqttv3.*;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * This class defines a Paho MQTT consumer component which is required to
  * receive MQTT message from a MQTT server.
+ * <p>
+ * With {@link PahoMqttConfiguration#isSharedConnection()} all consumers with
+ * the same broker and client identity share a single connection managed by
+ * the {@link PahoMqttComponent}, otherwise every consumer owns its own one.
  *
  * @author dennis.grewe [https://github.com/Anntex]
  * @version 0.9-SNAPSHOT March 04, 2015
@@ -39,17 +52,19 @@ public class PahoMqttConsumer extends DefaultConsumer
     // PROPERTIES
     // --------------------------------------------------
 
-    private static final Logger LOG = LoggerFactory.getLogger(PahoMqttConsumer.class);
+    private static final Logger LOG          = LoggerFactory.getLogger(PahoMqttConsumer.class);
 
     /**
-     * Defines a MQTT client based on the Paho implementation.
+     * Defines the time in milliseconds a stopping consumer waits for the
+     * worker threads to process the messages already received.
      */
-    private final MqttAsyncClient       mMqttClient;
+    private static final long   STOP_TIMEOUT = 10000;
 
     /**
-     * Defines the MQTT connection options for the end point client.
+     * Defines the MQTT client connection delivering messages to this consumer,
+     * either owned by this consumer or shared through the component.
      */
-    private final MqttConnectOptions    mConnectOptions;
+    private PahoMqttConsumerConnection  mConnection;
 
     /**
      * Defines a reference to a {@link PahoMqttConfiguration} configuration used
@@ -57,6 +72,81 @@ public class PahoMqttConsumer extends DefaultConsumer
      */
     private final PahoMqttConfiguration mConfiguration;
 
+    /**
+     * Defines the worker threads incoming messages are dispatched to, or
+     * <code>null</code> if messages are processed on the Paho callback
+     * thread.
+     */
+    private PahoMqttStripedExecutor     mDispatcher;
+
+    /**
+     * Defines the thread pool running the workers of the dispatcher.
+     */
+    private ExecutorService             mDispatcherExecutor;
+
+    /**
+     * Defines the batcher gathering incoming messages, or <code>null</code> if
+     * every message is processed as its own exchange.
+     */
+    private PahoMqttBatcher             mBatcher;
+
+    /**
+     * Defines the timer flushing batches after their timeout.
+     */
+    private ScheduledExecutorService    mBatchTimer;
+
+    /**
+     * Defines the timer running the reconnect attempts of the private
+     * connection of this consumer.
+     */
+    private ScheduledExecutorService    mReconnectTimer;
+
+    /**
+     * Defines the flow control bounding the messages received but not
+     * processed yet.
+     */
+    private PahoMqttFlowControl         mFlowControl;
+
+    /**
+     * Defines the cache of recently received messages to drop duplicates, or
+     * <code>null</code> if duplicates are passed on.
+     */
+    private PahoMqttDeduplicator        mDeduplicator;
+
+    /**
+     * Defines the filters applied before an exchange is created, or
+     * <code>null</code> if every message is delivered.
+     */
+    private PahoMqttPrefilter           mPrefilter;
+
+    /**
+     * Defines the reassembler of streamed transfers, or <code>null</code> if
+     * chunks are delivered as they are.
+     */
+    private PahoMqttReassembler         mReassembler;
+
+    /**
+     * Defines the timer discarding stalled transfers of the reassembler.
+     */
+    private ScheduledExecutorService    mReassemblerTimer;
+
+    /**
+     * Defines the conflator keeping the newest message per topic, or
+     * <code>null</code> if every message is delivered.
+     */
+    private PahoMqttConflator           mConflator;
+
+    /**
+     * Defines the thread delivering the conflated messages.
+     */
+    private ScheduledExecutorService    mConflatorExecutor;
+
+    /**
+     * Defines the cache of the component the delivered messages are put
+     * into, or <code>null</code> if it is disabled.
+     */
+    private PahoMqttLastValueCache      mLastValues;
+
     // --------------------------------------------------
     // CONSTRUCTOR
     // --------------------------------------------------
@@ -76,7 +166,11 @@ public class PahoMqttConsumer extends DefaultConsumer
      *            end point definition.
      * @throws java.io.NotActiveException
      *             if the end point can not create an instance of
-     *             {@link MqttAsyncClient}.
+     *             {@link org.eclipse.paho.client.mqttv3.MqttAsyncClient}.
+     * @throws IllegalArgumentException
+     *             if <tt>synchronousAck</tt> is set without a persistent
+     *             session or together with a shared connection, worker
+     *             threads, batches or conflation.
      */
     public PahoMqttConsumer(PahoMqttEndpoint endpoint, Processor processor, PahoMqttConfiguration configuration)
             throws NotActiveException
@@ -84,22 +178,45 @@ public class PahoMqttConsumer extends DefaultConsumer
         super(endpoint, processor);
         this.mConfiguration = configuration;
 
-        try
+        // a failed exchange closes the connection to hold back the
+        // acknowledgement, so the message is only redelivered from a
+        // persistent session and a shared connection would drop the messages
+        // of all its consumers
+        if (configuration.isSynchronousAck() && configuration.isCleanSession())
+        {
+            throw new IllegalArgumentException("The " + PahoMqttConfiguration.DEFAULT_SYNCHRONOUS_ACK_NAME
+                    + " option requires " + PahoMqttConfiguration.DEFAULT_IS_CLEAN_SESSION_NAME + "=false");
+        }
+        if (configuration.isSynchronousAck() && configuration.isSharedConnection())
         {
-            PahoMqttConsumer.LOG
-                    .info("\t--> create mqtt client and connection options based on the end point configurations");
-            // create a new instance of a MQTT client
-            this.mMqttClient = new MqttAsyncClient(configuration.getHost(), configuration.getEndPointName(), null);
-            // create new instance of MqttConnectOptions and fill in
-            // configuration options
-            this.mConnectOptions = new MqttConnectOptions();
-            this.mConnectOptions.setCleanSession(configuration.isCleanSession());
-            this.mConnectOptions.setConnectionTimeout(configuration.getConnectionTimeout());
+            throw new IllegalArgumentException("The " + PahoMqttConfiguration.DEFAULT_SYNCHRONOUS_ACK_NAME
+                    + " option can not be combined with " + PahoMqttConfiguration.DEFAULT_SHARED_CONNECTION_NAME);
         }
-        catch (MqttException ex)
+
+        // the Paho client acknowledges a message when its callback returns
+        // and delivers the next one only then, so messages are processed one
+        // at a time on the receiving thread
+        if (configuration.isSynchronousAck() && (configuration.getConsumerThreads() > 0
+                || configuration.getBatchSize() > 1 || configuration.isConflate()))
         {
-            PahoMqttConsumer.LOG.error("An error occurred while creating a MQTT client: {}", ex);
-            throw new NotActiveException();
+            throw new IllegalArgumentException("The " + PahoMqttConfiguration.DEFAULT_SYNCHRONOUS_ACK_NAME
+                    + " option can not be combined with " + PahoMqttConfiguration.DEFAULT_CONSUMER_THREADS_NAME
+                    + ", " + PahoMqttConfiguration.DEFAULT_BATCH_SIZE_NAME + " or "
+                    + PahoMqttConfiguration.DEFAULT_CONFLATE_NAME);
+        }
+
+        if (!configuration.isSharedConnection())
+        {
+            try
+            {
+                this.mConnection = new PahoMqttConsumerConnection(configuration, endpoint.getComponent()
+                        .createClient(configuration, configuration.getEndPointName()));
+            }
+            catch (MqttException ex)
+            {
+                PahoMqttConsumer.LOG.error("An error occurred while creating a MQTT client: {}", ex);
+                throw new NotActiveException();
+            }
         }
     }
 
@@ -125,104 +242,616 @@ public class PahoMqttConsumer extends DefaultConsumer
     {
         super.doStart();
 
-        // get the end point to be able to forward incoming mqtt messages to the
-        // next processor
-        final PahoMqttEndpoint endpoint = PahoMqttConsumer.this.getEndpoint();
+        this.mFlowControl = new PahoMqttFlowControl(this.mConfiguration.getConsumerHighWatermark(),
+                this.mConfiguration.getConsumerLowWatermark(), this.getEndpoint().getMetrics());
+
+        this.mPrefilter = PahoMqttPrefilter.create(this.mConfiguration);
 
-        // connect the client to the broker
-        this.mMqttClient.connect(this.mConnectOptions, null, new IMqttActionListener()
+        this.mLastValues = this.getEndpoint().getComponent().lastValueCache();
+
+        if (this.mConfiguration.isReassembleChunks())
         {
-            @Override
-            public void onSuccess(IMqttToken asyncActionToken)
+            final PahoMqttReassembler reassembler = new PahoMqttReassembler(
+                    new File(this.mConfiguration.getChunkDirectory()), this.mConfiguration.getChunkTimeoutMillis(),
+                    this.getEndpoint().getMetrics());
+            this.mReassembler = reassembler;
+
+            // a stalled transfer is discarded without waiting for its next
+            // chunk, at the latest twice the timeout after its last one
+            long timeout = this.mConfiguration.getChunkTimeoutMillis();
+            this.mReassemblerTimer = this.getEndpoint().getCamelContext().getExecutorServiceManager()
+                    .newSingleThreadScheduledExecutor(this, "PahoMqttReassembler");
+            this.mReassemblerTimer.scheduleWithFixedDelay(new Runnable()
             {
-                PahoMqttConsumer.LOG.info("\t--> connected to {}",
-                        PahoMqttConsumer.this.mConfiguration.getHost());
+                @Override
+                public void run()
+                {
+                    reassembler.expire();
+                }
+            }, timeout, timeout, TimeUnit.MILLISECONDS);
+        }
 
-                // extract the values from configuration
-                final String subTopic = PahoMqttConsumer.this.mConfiguration.getSubTopicName();
-                int qos = PahoMqttConsumer.this.mConfiguration.getQosLevel();
+        if (this.mConfiguration.getDedupCacheSize() > 0)
+        {
+            this.mDeduplicator = new PahoMqttDeduplicator(this.mConfiguration.getDedupCacheSize(),
+                    this.mConfiguration.getDedupWindowMillis(), this.mConfiguration.getDedupIdLength());
+        }
 
-                // set the callback function and handle logic for incoming
-                // messages
-                PahoMqttConsumer.this.mMqttClient.setCallback(new MqttCallback()
-                {
-                    @Override
-                    public void messageArrived(String topic, MqttMessage message) throws Exception
-                    {
-                        // create a new exchange to pass information to the next
-                        // end point
-                        Exchange exchange = endpoint.createExchange();
-                        exchange.getIn().setBody(message.getPayload());
-
-                        // get the processing end point from the consumer and
-                        // pass the exchange to the processor
-                        Processor processor = PahoMqttConsumer.this.getProcessor();
-                        processor.process(exchange);
-                    }
+        // hand incoming messages over to worker threads if configured
+        int threads = this.mConfiguration.getConsumerThreads();
+        if (threads > 0)
+        {
+            this.mDispatcherExecutor = this.getEndpoint().getCamelContext().getExecutorServiceManager()
+                    .newFixedThreadPool(this, "PahoMqttConsumer", threads);
+            this.mDispatcher = new PahoMqttStripedExecutor(this.mDispatcherExecutor, threads,
+                    this.mConfiguration.getConsumerQueueSize());
+            this.mDispatcher.start();
+        }
 
-                    @Override
-                    public void deliveryComplete(IMqttDeliveryToken token)
+        // deliver only the newest message per topic if configured
+        if (this.mConfiguration.isConflate())
+        {
+            this.mConflatorExecutor = this.getEndpoint().getCamelContext().getExecutorServiceManager()
+                    .newSingleThreadScheduledExecutor(this, "PahoMqttConflator");
+            this.mConflator = new PahoMqttConflator(this.mConfiguration.getConflateIntervalMillis(),
+                    this.mConflatorExecutor, new PahoMqttConflator.Listener()
                     {
-                        PahoMqttConsumer.LOG.info("Paho consumer - successful processing some data from {}",
-                            subTopic);
-                    }
+                        @Override
+                        public void onMessage(String topic, MqttMessage message)
+                        {
+                            PahoMqttConsumer.this.processExchange(PahoMqttConsumer.this.createExchange(topic,
+                                    message));
+                        }
+                    }, this.getEndpoint().getMetrics());
+            this.mConflator.start();
+        }
 
-                    @Override
-                    public void connectionLost(Throwable cause)
+        // gather incoming messages into batches if configured
+        if (this.mConfiguration.getBatchSize() > 1)
+        {
+            this.mBatchTimer = this.getEndpoint().getCamelContext().getExecutorServiceManager()
+                    .newSingleThreadScheduledExecutor(this, "PahoMqttBatchTimer");
+            this.mBatcher = new PahoMqttBatcher(this.mConfiguration.getBatchSize(),
+                    this.mConfiguration.getBatchTimeoutMillis(), this.mBatchTimer, new PahoMqttBatcher.Listener()
                     {
-                        PahoMqttConsumer.LOG.info("\t--> lost connection to the server! Reason: ", cause.getMessage());
-                    }
-                });
+                        @Override
+                        public void onBatch(PahoMqttBatcher.Batch batch)
+                        {
+                            PahoMqttConsumer.this.dispatchBatch(batch);
+                        }
+                    });
+        }
 
-                try
-                {
-                    // now subscribe to the configured topic and wait for the
-                    // callback to be called by the endpoint
-                    PahoMqttConsumer.this.mMqttClient.subscribe(subTopic, qos);
+        // register for the configured topic filters, this connects the client
+        // to the broker and subscribes to all filters not subscribed yet
+        if (this.mConfiguration.isSharedConnection())
+        {
+            this.mConnection = this.getEndpoint().getComponent().registerSharedConsumer(this, this.mConfiguration);
+        }
+        else if (PahoMqttConfiguration.TRANSPORT_NIO.equals(this.mConfiguration.getTransport()))
+        {
+            // connections of the nio transport share the timer of the
+            // component, so no thread is started per connection
+            this.mConnection.register(this, this.mConfiguration.getSubscriptions(),
+                    this.getEndpoint().getComponent().reconnectTimer());
+        }
+        else
+        {
+            this.mReconnectTimer = this.getEndpoint().getCamelContext().getExecutorServiceManager()
+                    .newSingleThreadScheduledExecutor(this, "PahoMqttReconnect");
+            this.mConnection.register(this, this.mConfiguration.getSubscriptions(), this.mReconnectTimer);
+        }
+    }
+
+    /**
+     * Receives a message from the connection of this consumer.
+     *
+     * @param topic
+     *            The topic the message was published to.
+     * @param message
+     *            The received message.
+     * @throws Exception
+     *             if the message can not be dispatched.
+     */
+    void onMessage(String topic, MqttMessage message) throws Exception
+    {
+        PahoMqttMetrics metrics = this.getEndpoint().getMetrics();
+        metrics.messageReceived(message.getPayload().length);
+
+        // compressed payloads are recognized by their frame on consumers
+        // expecting them, a payload which is not a valid frame is delivered
+        // as it is
+        if (PahoMqttConfiguration.COMPRESSION_DEFLATE.equals(this.mConfiguration.getCompression()))
+        {
+            byte[] decompressed = PahoMqttCompression.decompress(message.getPayload(),
+                    this.mConfiguration.getMaxDecompressedSize());
+            if (decompressed != null)
+            {
+                message = PahoMqttConsumer.withPayload(message, decompressed);
+            }
+        }
+
+        // a transfer is delivered once its last chunk arrived, chunks are
+        // never a value of their topic
+        PahoMqttReassembler reassembler = this.mReassembler;
+        boolean chunk = PahoMqttChunks.isChunk(message.getPayload());
+        if (reassembler != null && chunk)
+        {
+            PahoMqttReassembler.Transfer transfer = reassembler.accept(topic, message.getPayload());
+            if (transfer != null)
+            {
+                this.deliverTransfer(topic, message, transfer);
+            }
+            return;
+        }
+
+        // every message of an envelope is delivered on its own, a payload
+        // which is not a complete envelope is delivered as it is
+        List<byte[]> payloads = this.mConfiguration.isUnpackEnvelopes()
+                ? PahoMqttEnvelope.unpack(message.getPayload()) : null;
+        if (payloads == null)
+        {
+            if (!chunk)
+            {
+                this.putLastValue(topic, message);
+            }
+            this.deliver(topic, message, metrics);
+            return;
+        }
+
+        metrics.envelopeUnpacked(payloads.size());
+        if (!payloads.isEmpty())
+        {
+            this.putLastValue(topic, PahoMqttConsumer.withPayload(message, payloads.get(payloads.size() - 1)));
+        }
+        for (int i = 0; i < payloads.size(); i++)
+        {
+            this.deliver(topic, PahoMqttConsumer.withPayload(message, payloads.get(i)), metrics);
+        }
+    }
 
-                } catch (MqttException ex)
+    /**
+     * Delivers a reassembled transfer as a single exchange. Its body is the
+     * file holding the data of the transfer, which is deleted once the
+     * exchange completed. Transfers bypass the filters, the duplicate check,
+     * the conflation and the batches.
+     *
+     * @param topic
+     *            The topic the transfer was published to.
+     * @param message
+     *            The last chunk of the transfer.
+     * @param transfer
+     *            The reassembled transfer.
+     * @throws Exception
+     *             if the exchange can not be dispatched.
+     */
+    private void deliverTransfer(final String topic, final MqttMessage message,
+            final PahoMqttReassembler.Transfer transfer) throws Exception
+    {
+        final Exchange exchange = this.createExchange(topic, message, transfer.getFile());
+        exchange.getIn().setHeader(PahoMqttConstants.TRANSFER_ID, transfer.getId());
+        exchange.getIn().setHeader(PahoMqttConstants.TRANSFER_LENGTH, transfer.getLength());
+        exchange.addOnCompletion(new SynchronizationAdapter()
+        {
+            @Override
+            public void onDone(Exchange exchange)
+            {
+                if (!transfer.getFile().delete())
                 {
-                    PahoMqttConsumer.LOG.error("Paho consumer - error while subscribing data from topic: {}", subTopic);
+                    PahoMqttConsumer.LOG.warn("\t--> could not delete {}", transfer.getFile());
                 }
             }
+        });
+
+        if (this.mConfiguration.isSynchronousAck())
+        {
+            this.processAcknowledged(exchange, message.getQos());
+            return;
+        }
 
+        this.dispatch(topic, new Runnable()
+        {
             @Override
-            public void onFailure(IMqttToken asyncActionToken, Throwable exception)
+            public void run()
             {
-                PahoMqttConsumer.LOG.error("Paho MQTT Consumer - failed to connect to {}",
-                        PahoMqttConsumer.this.mConfiguration.getHost());
+                PahoMqttConsumer.this.processExchange(exchange);
             }
         });
     }
 
-    /*
-     * (non-Javadoc)
-     * @see org.apache.camel.impl.DefaultConsumer#doStop()
+    /**
+     * Puts a message into the last value cache of the component, as this
+     * consumer delivers it.
+     *
+     * @param topic
+     *            The topic the message was published to.
+     * @param message
+     *            The decompressed or unpacked message.
      */
-    @Override
-    protected void doStop() throws Exception
+    private void putLastValue(String topic, MqttMessage message)
+    {
+        if (this.mLastValues != null)
+        {
+            this.mLastValues.put(topic, message);
+        }
+    }
+
+    /**
+     * @return a message with the QoS level and retain flag of the received
+     *         message and the given payload.
+     */
+    private static MqttMessage withPayload(MqttMessage message, byte[] payload)
+    {
+        MqttMessage copy = new MqttMessage(payload);
+        copy.setQos(message.getQos());
+        copy.setRetained(message.isRetained());
+        return copy;
+    }
+
+    /**
+     * Delivers a received or unpacked message to the route unless it is
+     * dropped by the filters or as duplicate.
+     *
+     * @param topic
+     *            The topic the message was published to.
+     * @param message
+     *            The message to deliver.
+     * @param metrics
+     *            The metrics of the end point.
+     * @throws Exception
+     *             if the message can not be dispatched.
+     */
+    private void deliver(String topic, MqttMessage message, PahoMqttMetrics metrics) throws Exception
     {
-        if (this.mMqttClient.isConnected())
+        // drop filtered messages and duplicates before any exchange is
+        // created for them
+        PahoMqttPrefilter prefilter = this.mPrefilter;
+        if (prefilter != null && !prefilter.accept(topic, message.getPayload()))
         {
-            PahoMqttConsumer.LOG.info("\t--> try to disconnect MQTT client from {}",
-                    PahoMqttConsumer.this.mConfiguration.getHost());
+            metrics.messageFiltered();
+            return;
+        }
 
-            this.mMqttClient.disconnect(null, new IMqttActionListener()
+        PahoMqttDeduplicator deduplicator = this.mDeduplicator;
+        if (deduplicator != null)
+        {
+            boolean duplicate = deduplicator.isDuplicate(topic, message.getPayload());
+            metrics.duplicateChecked(duplicate);
+            if (duplicate)
             {
-                @Override
-                public void onSuccess(IMqttToken asyncActionToken)
+                PahoMqttConsumer.LOG.debug("\t--> dropped a duplicate message from {}", topic);
+                return;
+            }
+        }
+
+        if (this.mConfiguration.isSynchronousAck())
+        {
+            this.processAcknowledged(this.createExchange(topic, message), message.getQos());
+            return;
+        }
+
+        // the conflator bounds the pending messages by the number of topics
+        PahoMqttConflator conflator = this.mConflator;
+        if (conflator != null)
+        {
+            conflator.offer(topic, message);
+            return;
+        }
+
+        // blocks the receiving thread while the buffer is above the high
+        // watermark
+        PahoMqttFlowControl flowControl = this.mFlowControl;
+        flowControl.acquire(1);
+        try
+        {
+            this.dispatchMessage(topic, message, flowControl);
+        } catch (Exception ex)
+        {
+            flowControl.release(1);
+            throw ex;
+        }
+    }
+
+    /**
+     * Dispatches an incoming message either to the worker thread of its topic
+     * or, without workers, processes it on the calling thread. In batch mode
+     * the message is added to the current batch instead.
+     *
+     * @param topic
+     *            The topic the message was published to.
+     * @param message
+     *            The received message.
+     * @param flowControl
+     *            The flow control the message is released to after
+     *            processing.
+     * @throws Exception
+     *             if the message can not be dispatched.
+     */
+    private void dispatchMessage(final String topic, final MqttMessage message,
+            final PahoMqttFlowControl flowControl)
+            throws Exception
+    {
+        if (this.mBatcher != null)
+        {
+            this.mBatcher.add(topic, message);
+            return;
+        }
+
+        this.dispatch(topic, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // create a new exchange to pass information to the next
+                // end point
+                Exchange exchange = PahoMqttConsumer.this.createExchange(topic, message);
+
+                try
                 {
-                    PahoMqttConsumer.LOG.info("\t--> disconnected from {}",
-                            PahoMqttConsumer.this.mConfiguration.getHost());
+                    PahoMqttConsumer.this.processExchange(exchange);
+                } finally
+                {
+                    flowControl.release(1);
                 }
+            }
+        });
+    }
+
+    /**
+     * Processes a message on the receiving thread and waits until its route
+     * completed the exchange, also if the route continued asynchronously. The
+     * Paho client acknowledges a message after it was handed over, so a QoS 1
+     * or 2 message is acknowledged only after it was processed. If its
+     * exchange failed, the exception is passed on to the client, which then
+     * closes the connection without acknowledging the message. The broker
+     * keeps it in the persistent session the option requires and redelivers
+     * it to the reconnected client.
+     *
+     * @param exchange
+     *            The exchange of the received message.
+     * @param qos
+     *            The QoS level the message was received with.
+     * @throws Exception
+     *             if the exchange of a QoS 1 or 2 message failed.
+     */
+    private void processAcknowledged(Exchange exchange, int qos) throws Exception
+    {
+        long start = System.nanoTime();
+        AsyncProcessorHelper.process(this.getAsyncProcessor(), exchange);
+        this.getEndpoint().getMetrics().exchangeProcessed(start);
+
+        Exception failure = exchange.getException();
+        if (failure == null)
+        {
+            return;
+        }
+        if (qos == 0)
+        {
+            // there is no acknowledgement to hold back
+            this.getExceptionHandler().handleException("Paho consumer - error while processing a message",
+                    exchange, failure);
+            return;
+        }
+
+        PahoMqttConsumer.LOG.warn("\t--> message not acknowledged, the broker redelivers it: {}",
+                failure.getMessage());
+        throw failure;
+    }
+
+    /**
+     * @return <code>true</code> if the consumer passes the failure of a
+     *         message on to the client to hold back its acknowledgement.
+     */
+    boolean isSynchronousAck()
+    {
+        return this.mConfiguration.isSynchronousAck();
+    }
+
+    /**
+     * Creates the exchange of a received message. Its headers are read from
+     * the message only if the route accesses them.
+     *
+     * @param topic
+     *            The topic the message was published to.
+     * @param message
+     *            The received message.
+     * @return the new exchange.
+     */
+    private Exchange createExchange(String topic, MqttMessage message)
+    {
+        return this.createExchange(topic, message, this.toBody(message.getPayload()));
+    }
+
+    /**
+     * Creates the exchange of a received message with the given body.
+     *
+     * @param topic
+     *            The topic the message was published to.
+     * @param message
+     *            The received message.
+     * @param body
+     *            The body of the exchange.
+     * @return the new exchange.
+     */
+    private Exchange createExchange(String topic, MqttMessage message, Object body)
+    {
+        PahoMqttMessage in = new PahoMqttMessage(topic, message);
+        in.setBody(body);
+
+        Exchange exchange = this.getEndpoint().createExchange();
+        exchange.setIn(in);
+        return exchange;
+    }
+
+    /**
+     * @return the body of an exchange for the given payload, either the
+     *         payload itself or a read-only buffer view of it.
+     */
+    private Object toBody(byte[] payload)
+    {
+        if (this.mConfiguration.isByteBufferPayload())
+        {
+            return ByteBuffer.wrap(payload).asReadOnlyBuffer();
+        }
+        return payload;
+    }
 
+    /**
+     * Dispatches a flushed batch as a single exchange. Its body is the list of
+     * payloads, the topics and QoS levels are passed as headers.
+     *
+     * @param batch
+     *            The flushed batch.
+     */
+    private void dispatchBatch(final PahoMqttBatcher.Batch batch)
+    {
+        final PahoMqttFlowControl flowControl = this.mFlowControl;
+        try
+        {
+            // batches always use the same worker to keep their order
+            this.dispatch(PahoMqttBatcher.class, new Runnable()
+            {
                 @Override
-                public void onFailure(IMqttToken asyncActionToken, Throwable exception)
+                public void run()
                 {
-                    PahoMqttConsumer.LOG.error("\t--> failed to disconnect the MQTT client from {}",
-                            PahoMqttConsumer.this.mConfiguration.getHost());
+                    Exchange exchange = PahoMqttConsumer.this.getEndpoint().createExchange();
+                    exchange.getIn().setBody(batch.getPayloads());
+                    exchange.getIn().setHeader(PahoMqttConstants.BATCH_TOPICS, batch.getTopics());
+                    exchange.getIn().setHeader(PahoMqttConstants.BATCH_QOS, batch.getQosLevels());
+
+                    try
+                    {
+                        PahoMqttConsumer.this.processExchange(exchange);
+                    } finally
+                    {
+                        flowControl.release(batch.size());
+                    }
                 }
             });
+        } catch (InterruptedException ex)
+        {
+            flowControl.release(batch.size());
+            Thread.currentThread().interrupt();
+            PahoMqttConsumer.LOG.warn("\t--> interrupted while dispatching a batch of {} messages", batch.size());
+        }
+    }
+
+    /**
+     * Runs the task on the worker thread selected by the key or, without
+     * workers, on the calling thread.
+     *
+     * @param key
+     *            The key selecting the worker thread.
+     * @param task
+     *            The task to run.
+     * @throws InterruptedException
+     *             if the caller was interrupted while waiting for space in
+     *             the queue of the worker.
+     */
+    private void dispatch(Object key, Runnable task) throws InterruptedException
+    {
+        PahoMqttStripedExecutor dispatcher = this.mDispatcher;
+        if (dispatcher == null)
+        {
+            task.run();
+        }
+        else
+        {
+            dispatcher.execute(key, task);
+        }
+    }
+
+    /**
+     * Passes the exchange to the processor of the route and hands failures
+     * over to the exception handler of the consumer.
+     *
+     * @param exchange
+     *            The exchange to process.
+     */
+    private void processExchange(Exchange exchange)
+    {
+        long start = System.nanoTime();
+        try
+        {
+            // get the processing end point from the consumer and
+            // pass the exchange to the processor
+            Processor processor = this.getProcessor();
+            processor.process(exchange);
+        } catch (Exception ex)
+        {
+            exchange.setException(ex);
+        }
+        this.getEndpoint().getMetrics().exchangeProcessed(start);
+
+        if (exchange.getException() != null)
+        {
+            this.getExceptionHandler().handleException("Paho consumer - error while processing a message",
+                    exchange, exchange.getException());
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.camel.impl.DefaultConsumer#doStop()
+     */
+    @Override
+    protected void doStop() throws Exception
+    {
+        // a receiving thread waiting for space must not block the shutdown
+        this.mFlowControl.close();
+
+        if (this.mConfiguration.isSharedConnection())
+        {
+            this.getEndpoint().getComponent().unregisterSharedConsumer(this, this.mConnection);
+            this.mConnection = null;
+        }
+        else
+        {
+            this.mConnection.unregister(this);
+            this.mConnection.disconnect();
+            if (this.mReconnectTimer != null)
+            {
+                this.getEndpoint().getCamelContext().getExecutorServiceManager().shutdown(this.mReconnectTimer);
+                this.mReconnectTimer = null;
+            }
+        }
+
+        if (this.mReassembler != null)
+        {
+            this.getEndpoint().getCamelContext().getExecutorServiceManager().shutdown(this.mReassemblerTimer);
+            this.mReassemblerTimer = null;
+            this.mReassembler.close();
+            this.mReassembler = null;
+        }
+
+        if (this.mConflator != null)
+        {
+            this.mConflator.stop();
+            this.mConflator = null;
+            this.getEndpoint().getCamelContext().getExecutorServiceManager().shutdown(this.mConflatorExecutor);
+            this.mConflatorExecutor = null;
+        }
+
+        if (this.mDispatcher != null)
+        {
+            // the messages were acknowledged already, so the queued ones are
+            // processed before the workers end
+            PahoMqttStripedExecutor dispatcher = this.mDispatcher;
+            this.mDispatcher = null;
+            dispatcher.stop(STOP_TIMEOUT);
+            this.getEndpoint().getCamelContext().getExecutorServiceManager().shutdown(this.mDispatcherExecutor);
+            this.mDispatcherExecutor = null;
+        }
+
+        if (this.mBatcher != null)
+        {
+            // the workers ended, so the messages gathered so far are
+            // delivered on this thread after the batches queued before, a
+            // delivery running on the timer thread is awaited
+            this.mBatcher.flush();
+            this.mBatcher = null;
+            this.getEndpoint().getCamelContext().getExecutorServiceManager().shutdownGraceful(this.mBatchTimer);
+            this.mBatchTimer = null;
         }
 
         super.doStop();
@@ -0,0 +1,660 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.anntex.camel.paho.config.PahoMqttConfiguration;
+import com.anntex.camel.paho.config.PahoMqttSubscription;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class wraps the MQTT client connection used by one or more
+ * {@link PahoMqttConsumer} instances. The connection subscribes to the union of
+ * the topic filters of its consumers and routes every incoming message through
+ * a {@link PahoMqttTopicTrie} to the consumers whose filters match its topic,
+ * so a message is received once and fanned out locally.
+ * <p>
+ * A lost connection and a failed connect are retried in the background with
+ * exponential backoff and full jitter, so many consumers losing the same
+ * broker do not reconnect at the same time. After a reconnect all topic
+ * filters are subscribed again. With <code>cleanSession=false</code> the
+ * broker keeps the subscriptions in the session of the client, so only the
+ * filters added while the connection was down are subscribed and the filters
+ * removed while it was down are unsubscribed.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+class PahoMqttConsumerConnection implements MqttCallback
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private static final Logger                                  LOG = LoggerFactory
+                                                                         .getLogger(PahoMqttConsumerConnection.class);
+
+    /**
+     * Defines the MQTT client of the connection.
+     */
+    private final PahoMqttClient                                 mMqttClient;
+
+    /**
+     * Defines the MQTT connection options for the end point client.
+     */
+    private final MqttConnectOptions                             mConnectOptions;
+
+    /**
+     * Defines a reference to a {@link PahoMqttConfiguration} configuration used
+     * to create this connection.
+     */
+    private final PahoMqttConfiguration                          mConfiguration;
+
+    /**
+     * Defines the consumers of every topic filter.
+     */
+    private final PahoMqttTopicTrie<PahoMqttConsumer>            mRoutes;
+
+    /**
+     * Defines the subscriptions of every registered consumer, guarded by
+     * <tt>this</tt>.
+     */
+    private final Map<PahoMqttConsumer, List<PahoMqttSubscription>> mConsumers;
+
+    /**
+     * Defines the QoS level every topic filter is subscribed with at the
+     * broker and the number of consumers using it, guarded by <tt>this</tt>.
+     */
+    private final Map<String, int[]>                             mFilters;
+
+    /**
+     * Defines the delays between reconnect attempts.
+     */
+    private final PahoMqttBackoff                                mBackoff;
+
+    /**
+     * Defines the topic filters registered while the connection was down,
+     * guarded by <tt>this</tt>.
+     */
+    private final Set<String>                                    mPending;
+
+    /**
+     * Defines the topic filters unregistered while the connection was down
+     * which the session kept by the broker may still hold, guarded by
+     * <tt>this</tt>.
+     */
+    private final Set<String>                                    mPendingUnsubscribes;
+
+    /**
+     * Defines the executor running the reconnect attempts, guarded by
+     * <tt>this</tt>.
+     */
+    private ScheduledExecutorService                             mScheduler;
+
+    /**
+     * Defines the pending reconnect attempt, guarded by <tt>this</tt>.
+     */
+    private ScheduledFuture<?>                                   mReconnect;
+
+    /**
+     * Defines if consumers are registered and the connection has to be kept
+     * up, guarded by <tt>this</tt>.
+     */
+    private boolean                                              mActive;
+
+    /**
+     * Defines if a connect is in progress or established, guarded by
+     * <tt>this</tt>.
+     */
+    private boolean                                              mConnecting;
+
+    /**
+     * Defines if the client was connected since the connection was
+     * activated, guarded by <tt>this</tt>.
+     */
+    private boolean                                              mConnectedOnce;
+
+    /**
+     * Defines the {@link System#nanoTime()} the connection was lost at, only
+     * valid while the connection is down after it was connected, guarded by
+     * <tt>this</tt>.
+     */
+    private long                                                 mDisconnectedSince;
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    /**
+     * @param configuration
+     *            The {@link PahoMqttConfiguration} configuration the
+     *            connection is created with.
+     * @param client
+     *            The MQTT client of this connection, not connected yet.
+     */
+    PahoMqttConsumerConnection(PahoMqttConfiguration configuration, PahoMqttClient client)
+    {
+        this.mConfiguration = configuration;
+        this.mRoutes = new PahoMqttTopicTrie<PahoMqttConsumer>();
+        this.mConsumers = new LinkedHashMap<PahoMqttConsumer, List<PahoMqttSubscription>>();
+        this.mFilters = new HashMap<String, int[]>();
+        this.mPending = new LinkedHashSet<String>();
+        this.mPendingUnsubscribes = new LinkedHashSet<String>();
+        this.mBackoff = new PahoMqttBackoff(configuration.getReconnectDelay(), configuration.getReconnectMaxDelay());
+
+        PahoMqttConsumerConnection.LOG
+                .info("\t--> create mqtt client and connection options based on the end point configurations");
+        this.mMqttClient = client;
+        this.mMqttClient.setCallback(this);
+        // create new instance of MqttConnectOptions and fill in
+        // configuration options
+        this.mConnectOptions = new MqttConnectOptions();
+        this.mConnectOptions.setCleanSession(configuration.isCleanSession());
+        this.mConnectOptions.setConnectionTimeout(configuration.getConnectionTimeout());
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * Registers a consumer for its subscriptions. Topic filters not yet
+     * subscribed by another consumer are subscribed at the broker, the client
+     * connects with the first registered consumer.
+     *
+     * @param consumer
+     *            The consumer to register.
+     * @param subscriptions
+     *            The topic filters and QoS levels of the consumer.
+     * @param scheduler
+     *            The executor running the reconnect attempts.
+     */
+    synchronized void register(PahoMqttConsumer consumer, List<PahoMqttSubscription> subscriptions,
+            ScheduledExecutorService scheduler)
+    {
+        this.mConsumers.put(consumer, subscriptions);
+        this.mScheduler = scheduler;
+        this.mActive = true;
+
+        List<PahoMqttSubscription> added = new ArrayList<PahoMqttSubscription>();
+        for (PahoMqttSubscription subscription : subscriptions)
+        {
+            this.mRoutes.add(subscription.getTopicFilter(), consumer);
+
+            int[] filter = this.mFilters.get(subscription.getTopicFilter());
+            if (filter == null)
+            {
+                this.mFilters.put(subscription.getTopicFilter(), new int[] { subscription.getQosLevel(), 1 });
+                this.mPendingUnsubscribes.remove(subscription.getTopicFilter());
+                added.add(subscription);
+            }
+            else
+            {
+                filter[1]++;
+                if (subscription.getQosLevel() > filter[0])
+                {
+                    // subscribing again replaces the QoS level at the broker
+                    filter[0] = subscription.getQosLevel();
+                    added.add(subscription);
+                }
+            }
+        }
+
+        if (this.mMqttClient.isConnected())
+        {
+            this.subscribe(added);
+            return;
+        }
+
+        // subscribe as soon as the connection is up
+        for (PahoMqttSubscription subscription : added)
+        {
+            this.mPending.add(subscription.getTopicFilter());
+        }
+        if (!this.mConnecting && this.mReconnect == null)
+        {
+            this.connect();
+        }
+    }
+
+    /**
+     * Unregisters a consumer. Topic filters no other consumer uses are
+     * unsubscribed at the broker, after the reconnect if the connection is
+     * down.
+     *
+     * @param consumer
+     *            The consumer to unregister.
+     * @return the number of consumers still registered.
+     */
+    synchronized int unregister(PahoMqttConsumer consumer)
+    {
+        List<PahoMqttSubscription> subscriptions = this.mConsumers.remove(consumer);
+        if (subscriptions == null)
+        {
+            return this.mConsumers.size();
+        }
+
+        List<String> removed = new ArrayList<String>();
+        for (PahoMqttSubscription subscription : subscriptions)
+        {
+            this.mRoutes.remove(subscription.getTopicFilter(), consumer);
+
+            int[] filter = this.mFilters.get(subscription.getTopicFilter());
+            if (filter != null && --filter[1] == 0)
+            {
+                this.mFilters.remove(subscription.getTopicFilter());
+                removed.add(subscription.getTopicFilter());
+            }
+        }
+
+        if (removed.isEmpty() || this.mConsumers.isEmpty())
+        {
+            // the last consumer disconnects the client
+            return this.mConsumers.size();
+        }
+
+        if (this.mMqttClient.isConnected())
+        {
+            this.unsubscribe(removed);
+        }
+        else
+        {
+            // unsubscribe as soon as the connection is up
+            this.mPending.removeAll(removed);
+            this.mPendingUnsubscribes.addAll(removed);
+        }
+
+        return this.mConsumers.size();
+    }
+
+    /**
+     * @return the key identifying this connection, built of the broker and
+     *         the client identity.
+     */
+    String getKey()
+    {
+        return PahoMqttConsumerConnection.keyOf(this.mConfiguration);
+    }
+
+    /**
+     * @param configuration
+     *            The configuration of a consumer.
+     * @return the key of the connection a consumer with the given
+     *         configuration shares.
+     */
+    static String keyOf(PahoMqttConfiguration configuration)
+    {
+        return configuration.getHost() + "#" + configuration.getEndPointName();
+    }
+
+    /**
+     * Checks that a consumer sharing this connection agrees on the options
+     * the connection was created with, since only the options of the first
+     * consumer take effect.
+     *
+     * @param configuration
+     *            The configuration of a consumer sharing the connection.
+     * @throws IllegalArgumentException
+     *             if a connection option of the consumer differs.
+     */
+    void checkOptions(PahoMqttConfiguration configuration)
+    {
+        PahoMqttConfiguration shared = this.mConfiguration;
+        this.checkOption(PahoMqttConfiguration.DEFAULT_IS_CLEAN_SESSION_NAME, shared.isCleanSession(),
+                configuration.isCleanSession());
+        this.checkOption(PahoMqttConfiguration.DEFAULT_CONNECTION_TIMEOUT_NAME, shared.getConnectionTimeout(),
+                configuration.getConnectionTimeout());
+        this.checkOption(PahoMqttConfiguration.DEFAULT_TRANSPORT_NAME, shared.getTransport(),
+                configuration.getTransport());
+        this.checkOption(PahoMqttConfiguration.DEFAULT_PERSISTENCE_NAME, shared.getPersistence(),
+                configuration.getPersistence());
+        this.checkOption(PahoMqttConfiguration.DEFAULT_PERSISTENCE_DIR_NAME, shared.getPersistenceDirectory(),
+                configuration.getPersistenceDirectory());
+        this.checkOption(PahoMqttConfiguration.DEFAULT_RECONNECT_DELAY_NAME, shared.getReconnectDelay(),
+                configuration.getReconnectDelay());
+        this.checkOption(PahoMqttConfiguration.DEFAULT_RECONNECT_MAX_NAME, shared.getReconnectMaxDelay(),
+                configuration.getReconnectMaxDelay());
+    }
+
+    private void checkOption(String name, Object shared, Object option)
+    {
+        if (shared == null ? option != null : !shared.equals(option))
+        {
+            throw new IllegalArgumentException("The " + name + " option " + option
+                    + " differs from the value " + shared + " of the shared connection " + this.getKey());
+        }
+    }
+
+    /**
+     * Connects the client to the broker and subscribes to the topic filters
+     * of the registered consumers. A failed connect schedules the next
+     * attempt. Needs to be called while holding the lock.
+     */
+    private void connect()
+    {
+        this.mConnecting = true;
+        try
+        {
+            this.mMqttClient.connect(this.mConnectOptions, new IMqttActionListener()
+            {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken)
+                {
+                    PahoMqttConsumerConnection.LOG.info("\t--> connected to {}",
+                            PahoMqttConsumerConnection.this.mConfiguration.getHost());
+                    PahoMqttConsumerConnection.this.onConnected();
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception)
+                {
+                    PahoMqttConsumerConnection.this.onConnectFailed(exception);
+                }
+            });
+        } catch (MqttException ex)
+        {
+            this.onConnectFailed(ex);
+        }
+    }
+
+    /**
+     * Subscribes after the client connected. Without a clean session the
+     * broker kept the subscriptions made before the connection was lost.
+     */
+    private synchronized void onConnected()
+    {
+        if (!this.mActive)
+        {
+            // the consumers stopped while the connect was in progress
+            this.disconnect();
+            return;
+        }
+        this.mBackoff.reset();
+
+        List<PahoMqttSubscription> subscriptions = new ArrayList<PahoMqttSubscription>();
+        boolean resumed = this.mConnectedOnce && !this.mConfiguration.isCleanSession();
+        for (Map.Entry<String, int[]> filter : this.mFilters.entrySet())
+        {
+            if (!resumed || this.mPending.contains(filter.getKey()))
+            {
+                subscriptions.add(new PahoMqttSubscription(filter.getKey(), filter.getValue()[0]));
+            }
+        }
+        this.mPending.clear();
+        this.subscribe(subscriptions);
+
+        if (resumed && !this.mPendingUnsubscribes.isEmpty())
+        {
+            this.unsubscribe(new ArrayList<String>(this.mPendingUnsubscribes));
+        }
+        this.mPendingUnsubscribes.clear();
+
+        if (this.mConnectedOnce)
+        {
+            // every end point using this connection was affected
+            long disconnected = System.nanoTime() - this.mDisconnectedSince;
+            Map<PahoMqttMetrics, Boolean> metrics = new IdentityHashMap<PahoMqttMetrics, Boolean>();
+            for (PahoMqttConsumer consumer : this.mConsumers.keySet())
+            {
+                metrics.put(consumer.getEndpoint().getMetrics(), Boolean.TRUE);
+            }
+            for (PahoMqttMetrics endpointMetrics : metrics.keySet())
+            {
+                endpointMetrics.reconnected(disconnected);
+            }
+        }
+        this.mConnectedOnce = true;
+    }
+
+    /**
+     * Schedules the next attempt after a failed connect.
+     */
+    private synchronized void onConnectFailed(Throwable cause)
+    {
+        this.mConnecting = false;
+        long delay = this.mBackoff.nextDelay();
+        PahoMqttConsumerConnection.LOG.warn("Paho MQTT Consumer - failed to connect to {}, retry in {} ms: {}",
+                new Object[] { this.mConfiguration.getHost(), delay, cause.getMessage() });
+        this.scheduleReconnect(delay);
+    }
+
+    /**
+     * Schedules a reconnect attempt unless one is pending or the connection
+     * is not active. Needs to be called while holding the lock.
+     *
+     * @param delay
+     *            The delay of the attempt in milliseconds.
+     */
+    private void scheduleReconnect(long delay)
+    {
+        if (!this.mActive || this.mReconnect != null || this.mScheduler == null)
+        {
+            return;
+        }
+
+        try
+        {
+            this.mReconnect = this.mScheduler.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    synchronized (PahoMqttConsumerConnection.this)
+                    {
+                        PahoMqttConsumerConnection.this.mReconnect = null;
+                        if (PahoMqttConsumerConnection.this.mActive && !PahoMqttConsumerConnection.this.mConnecting)
+                        {
+                            PahoMqttConsumerConnection.LOG.info("Client is not connected: --> so reconnect!");
+                            PahoMqttConsumerConnection.this.connect();
+                        }
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex)
+        {
+            // the owner of the scheduler is stopping
+            PahoMqttConsumerConnection.LOG.debug("\t--> reconnect rejected, the consumer is stopping");
+        }
+    }
+
+    /**
+     * Subscribes to all given topic filters with a single SUBSCRIBE. Needs to
+     * be called while holding the lock.
+     */
+    private void subscribe(List<PahoMqttSubscription> subscriptions)
+    {
+        if (subscriptions.isEmpty())
+        {
+            return;
+        }
+
+        String[] topicFilters = new String[subscriptions.size()];
+        int[] qos = new int[subscriptions.size()];
+        for (int i = 0; i < topicFilters.length; i++)
+        {
+            topicFilters[i] = subscriptions.get(i).getTopicFilter();
+            qos[i] = subscriptions.get(i).getQosLevel();
+        }
+
+        try
+        {
+            this.mMqttClient.subscribe(topicFilters, qos);
+        } catch (MqttException ex)
+        {
+            PahoMqttConsumerConnection.LOG.error("Paho consumer - error while subscribing data from topics: {}",
+                    subscriptions);
+        }
+    }
+
+    /**
+     * Unsubscribes from all given topic filters with a single UNSUBSCRIBE.
+     * Needs to be called while holding the lock.
+     */
+    private void unsubscribe(List<String> topicFilters)
+    {
+        try
+        {
+            this.mMqttClient.unsubscribe(topicFilters.toArray(new String[topicFilters.size()]));
+        } catch (MqttException ex)
+        {
+            PahoMqttConsumerConnection.LOG.error("Paho consumer - error while unsubscribing from topics: {}",
+                    topicFilters);
+        }
+    }
+
+    /**
+     * Disconnects the client from the broker.
+     */
+    synchronized void disconnect()
+    {
+        this.mActive = false;
+        this.mConnecting = false;
+        this.mConnectedOnce = false;
+        this.mPending.clear();
+        this.mPendingUnsubscribes.clear();
+        if (this.mReconnect != null)
+        {
+            this.mReconnect.cancel(false);
+            this.mReconnect = null;
+        }
+        if (this.mMqttClient.isConnected())
+        {
+            PahoMqttConsumerConnection.LOG.info("\t--> try to disconnect MQTT client from {}",
+                    this.mConfiguration.getHost());
+
+            try
+            {
+                this.mMqttClient.disconnect(new IMqttActionListener()
+                {
+                    @Override
+                    public void onSuccess(IMqttToken asyncActionToken)
+                    {
+                        PahoMqttConsumerConnection.LOG.info("\t--> disconnected from {}",
+                                PahoMqttConsumerConnection.this.mConfiguration.getHost());
+                    }
+
+                    @Override
+                    public void onFailure(IMqttToken asyncActionToken, Throwable exception)
+                    {
+                        PahoMqttConsumerConnection.LOG.error("\t--> failed to disconnect the MQTT client from {}",
+                                PahoMqttConsumerConnection.this.mConfiguration.getHost());
+                    }
+                });
+            } catch (MqttException ex)
+            {
+                PahoMqttConsumerConnection.LOG.error("\t--> failed to disconnect the MQTT client from {}",
+                        this.mConfiguration.getHost());
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.eclipse.paho.client.mqttv3.MqttCallback#messageArrived(java.lang.String, org.eclipse.paho.client.mqttv3.MqttMessage)
+     */
+    @Override
+    public void messageArrived(String topic, MqttMessage message) throws Exception
+    {
+        List<PahoMqttConsumer> consumers = new ArrayList<PahoMqttConsumer>(2);
+        this.mRoutes.match(topic, consumers);
+
+        Exception failure = null;
+
+        for (int i = 0; i < consumers.size(); i++)
+        {
+            PahoMqttConsumer consumer = consumers.get(i);
+            // a consumer with overlapping filters receives the message once
+            if (consumers.indexOf(consumer) < i)
+            {
+                continue;
+            }
+
+            try
+            {
+                consumer.onMessage(topic, message);
+            } catch (Exception ex)
+            {
+                if (consumer.isSynchronousAck())
+                {
+                    // such a consumer never shares its connection, the
+                    // failure holds back the acknowledgement
+                    failure = ex;
+                    continue;
+                }
+                PahoMqttConsumerConnection.LOG.error("Paho consumer - error while dispatching a message from {}",
+                        topic, ex);
+            }
+        }
+
+        if (failure != null)
+        {
+            // the client closes the connection without acknowledging the
+            // message
+            throw failure;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.eclipse.paho.client.mqttv3.MqttCallback#deliveryComplete(org.eclipse.paho.client.mqttv3.IMqttDeliveryToken)
+     */
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token)
+    {
+        // the consumer connection does not publish messages
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.eclipse.paho.client.mqttv3.MqttCallback#connectionLost(java.lang.Throwable)
+     */
+    @Override
+    public void connectionLost(Throwable cause)
+    {
+        PahoMqttConsumerConnection.LOG.warn("\t--> lost connection to the server! Reason: {}", cause.getMessage());
+
+        synchronized (this)
+        {
+            this.mConnecting = false;
+            this.mDisconnectedSince = System.nanoTime();
+
+            // the jitter spreads the reconnects of many clients of a restarted
+            // broker, even the first attempt
+            this.scheduleReconnect(this.mBackoff.nextDelay());
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class remembers the keys of the messages a consumer received within a
+ * time window to drop duplicates, e.g. QoS 1 messages redelivered by the
+ * broker. A key is a 64 bit hash of the topic and the payload, or of the
+ * topic and an id at the start of the payload. The keys are kept in two
+ * preallocated arrays, so the memory is fixed and remembering a message does
+ * not allocate. If all slots probed for a new key are in use, the key
+ * expiring first is replaced, so under a high message rate the effective
+ * window can be shorter than configured.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+final class PahoMqttDeduplicator
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    /**
+     * Defines the number of adjacent slots a key may be stored in.
+     */
+    private static final int  PROBES = 8;
+
+    private static final long SEED   = 0xCBF29CE484222325L;
+
+    private static final long MIX    = 0x9E3779B97F4A7C15L;
+
+    /**
+     * Defines the remembered keys, 0 marks an empty slot.
+     */
+    private final long[]      mKeys;
+
+    /**
+     * Defines the {@link System#nanoTime()} every key expires at.
+     */
+    private final long[]      mExpiries;
+
+    private final int         mMask;
+
+    private final long        mWindowNanos;
+
+    /**
+     * Defines the number of leading payload bytes holding the id of a
+     * message, 0 for the whole payload.
+     */
+    private final int         mIdLength;
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    /**
+     * @param size
+     *            The number of keys to remember, rounded up to a power of two.
+     * @param windowMillis
+     *            The time in milliseconds a key is remembered.
+     * @param idLength
+     *            The number of leading payload bytes holding the id of a
+     *            message, 0 to use the whole payload.
+     */
+    PahoMqttDeduplicator(int size, long windowMillis, int idLength)
+    {
+        int capacity = Integer.highestOneBit(Math.max(size, PROBES) - 1) << 1;
+        this.mKeys = new long[capacity];
+        this.mExpiries = new long[capacity];
+        this.mMask = capacity - 1;
+        this.mWindowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.mIdLength = idLength;
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * Checks if a message was received within the window and remembers it
+     * otherwise.
+     *
+     * @param topic
+     *            The topic of the message.
+     * @param payload
+     *            The payload of the message.
+     * @return <code>true</code> if the message is a duplicate.
+     */
+    synchronized boolean isDuplicate(String topic, byte[] payload)
+    {
+        int length = this.mIdLength > 0 ? Math.min(this.mIdLength, payload.length) : payload.length;
+        long key = PahoMqttDeduplicator.hash(topic, payload, length);
+        if (key == 0)
+        {
+            key = 1;
+        }
+
+        long now = System.nanoTime();
+        int start = (int) (key ^ (key >>> 32)) & this.mMask;
+        int victim = -1;
+        boolean free = false;
+        for (int i = 0; i < PROBES; i++)
+        {
+            int slot = (start + i) & this.mMask;
+            boolean live = this.mKeys[slot] != 0 && this.mExpiries[slot] - now > 0;
+            if (live && this.mKeys[slot] == key)
+            {
+                return true;
+            }
+
+            // prefer an empty or expired slot, otherwise the key expiring
+            // first is replaced
+            if (!live)
+            {
+                if (!free)
+                {
+                    victim = slot;
+                    free = true;
+                }
+            }
+            else if (!free && (victim < 0 || this.mExpiries[slot] - this.mExpiries[victim] < 0))
+            {
+                victim = slot;
+            }
+        }
+
+        this.mKeys[victim] = key;
+        this.mExpiries[victim] = now + this.mWindowNanos;
+        return false;
+    }
+
+    /**
+     * @return the number of keys the deduplicator can remember.
+     */
+    int capacity()
+    {
+        return this.mKeys.length;
+    }
+
+    /**
+     * Computes a 64 bit hash of the topic and the leading payload bytes, eight
+     * bytes at a time.
+     */
+    static long hash(String topic, byte[] payload, int length)
+    {
+        long hash = PahoMqttDeduplicator.SEED ^ length;
+        for (int i = 0; i < topic.length(); i++)
+        {
+            hash = (hash ^ topic.charAt(i)) * PahoMqttDeduplicator.MIX;
+        }
+
+        int i = 0;
+        for (; i + 8 <= length; i += 8)
+        {
+            long word = (payload[i] & 0xFFL) | (payload[i + 1] & 0xFFL) << 8 | (payload[i + 2] & 0xFFL) << 16
+                    | (payload[i + 3] & 0xFFL) << 24 | (payload[i + 4] & 0xFFL) << 32
+                    | (payload[i + 5] & 0xFFL) << 40 | (payload[i + 6] & 0xFFL) << 48
+                    | (payload[i + 7] & 0xFFL) << 56;
+            hash = Long.rotateLeft(hash ^ word * PahoMqttDeduplicator.MIX, 31) * PahoMqttDeduplicator.MIX;
+        }
+        for (; i < length; i++)
+        {
+            hash = (hash ^ (payload[i] & 0xFF)) * PahoMqttDeduplicator.MIX;
+        }
+
+        // spread the bits of the last steps over the whole hash
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import com.anntex.camel.paho.config.PahoMqttConfiguration;
+import com.anntex.camel.paho.persist.PahoMqttPersistenceFactory;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+/**
+ * This class defines the default {@link PahoMqttClient}, a Paho
+ * {@link MqttAsyncClient} with the configured persistence. Every Paho client
+ * runs its own sender, receiver and callback threads.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+final class PahoMqttDefaultClient implements PahoMqttClient
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    /**
+     * Defines the number of QoS 1 and 2 publishes the Paho client keeps in
+     * flight per connection, it fails any further publish.
+     */
+    static final int              MAX_IN_FLIGHT = 10;
+
+    /**
+     * Defines a MQTT client based on the Paho implementation.
+     */
+    private final MqttAsyncClient mMqttClient;
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    /**
+     * @param configuration
+     *            The configuration of the end point.
+     * @param clientId
+     *            The MQTT client id.
+     * @throws MqttException
+     *             if the Paho client can not be created.
+     */
+    PahoMqttDefaultClient(PahoMqttConfiguration configuration, String clientId) throws MqttException
+    {
+        this.mMqttClient = new MqttAsyncClient(configuration.getHost(), clientId,
+                PahoMqttPersistenceFactory.create(configuration));
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getClientId()
+    {
+        return this.mMqttClient.getClientId();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isConnected()
+    {
+        return this.mMqttClient.isConnected();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setCallback(MqttCallback callback)
+    {
+        this.mMqttClient.setCallback(callback);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void connect(MqttConnectOptions options, IMqttActionListener listener) throws MqttException
+    {
+        this.mMqttClient.connect(options, null, listener);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void connectAndWait(MqttConnectOptions options) throws MqttException
+    {
+        this.mMqttClient.connect(options).waitForCompletion();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void publish(String topic, byte[] payload, int qos, boolean retained, IMqttActionListener listener)
+            throws MqttException
+    {
+        this.mMqttClient.publish(topic, payload, qos, retained, null, listener);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void subscribe(String[] topicFilters, int[] qos) throws MqttException
+    {
+        this.mMqttClient.subscribe(topicFilters, qos);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void unsubscribe(String[] topicFilters) throws MqttException
+    {
+        this.mMqttClient.unsubscribe(topicFilters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void disconnect(IMqttActionListener listener) throws MqttException
+    {
+        this.mMqttClient.disconnect(null, listener);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void disconnectAndWait() throws MqttException
+    {
+        this.mMqttClient.disconnect().waitForCompletion();
+    }
+}
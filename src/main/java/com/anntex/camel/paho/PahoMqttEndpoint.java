@@ -20,17 +20,23 @@ import com.anntex.camel.paho.config.PahoMqttConfiguration;
 import org.apache.camel.Consumer;
 import org.apache.camel.Processor;
 import org.apache.camel.Producer;
+import org.apache.camel.api.management.ManagedAttribute;
+import org.apache.camel.api.management.ManagedResource;
 import org.apache.camel.impl.DefaultEndpoint;
 import org.apache.camel.spi.UriEndpoint;
 import org.apache.camel.spi.UriParam;
 
 /**
- * This class represents a MQTT Paho end point definition.
+ * This class represents a MQTT Paho end point definition. The metrics of the
+ * producers and consumers of the end point are exposed as attributes of its
+ * JMX MBean and, if configured, handed to a
+ * {@link PahoMqttMetricsRegistry}.
  *
  * @author dennis.grewe [https://github.com/Anntex]
  * @version 0.9-SNAPSHOT March 04, 2015
  */
 @UriEndpoint(scheme = "mqtt", consumerClass = PahoMqttConsumer.class)
+@ManagedResource(description = "Paho MQTT Endpoint")
 public class PahoMqttEndpoint extends DefaultEndpoint
 {
     // --------------------------------------------------
@@ -44,6 +50,11 @@ public class PahoMqttEndpoint extends DefaultEndpoint
     @UriParam
     private final PahoMqttConfiguration mConfiguration;
 
+    /**
+     * Defines the metrics of the producers and consumers of this end point.
+     */
+    private final PahoMqttMetrics       mMetrics = new PahoMqttMetrics();
+
     // --------------------------------------------------
     // CONSTRUCTOR
     // --------------------------------------------------
@@ -80,6 +91,23 @@ public class PahoMqttEndpoint extends DefaultEndpoint
         return this.mConfiguration;
     }
 
+    /**
+     * @return the metrics of the producers and consumers of this end point.
+     */
+    public PahoMqttMetrics getMetrics()
+    {
+        return this.mMetrics;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PahoMqttComponent getComponent()
+    {
+        return (PahoMqttComponent) super.getComponent();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -106,4 +134,250 @@ public class PahoMqttEndpoint extends DefaultEndpoint
     {
         return true;
     }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.camel.impl.DefaultEndpoint#doStart()
+     */
+    @Override
+    protected void doStart() throws Exception
+    {
+        super.doStart();
+
+        PahoMqttMetricsRegistry registry = this.mConfiguration.getMetricsRegistry();
+        if (registry != null)
+        {
+            registry.register(this.getEndpointUri(), this.mMetrics);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.camel.impl.DefaultEndpoint#doStop()
+     */
+    @Override
+    protected void doStop() throws Exception
+    {
+        PahoMqttMetricsRegistry registry = this.mConfiguration.getMetricsRegistry();
+        if (registry != null)
+        {
+            registry.unregister(this.getEndpointUri(), this.mMetrics);
+        }
+
+        super.doStop();
+    }
+
+    // --------------------------------------------------
+    // MANAGED ATTRIBUTES
+    // --------------------------------------------------
+
+    @ManagedAttribute(description = "Number of messages received by consumers")
+    public long getMessagesIn()
+    {
+        return this.mMetrics.getMessagesIn();
+    }
+
+    @ManagedAttribute(description = "Messages per second received by consumers")
+    public double getMessagesInRate()
+    {
+        return this.mMetrics.getMessagesInRate();
+    }
+
+    @ManagedAttribute(description = "Number of messages published by producers")
+    public long getMessagesOut()
+    {
+        return this.mMetrics.getMessagesOut();
+    }
+
+    @ManagedAttribute(description = "Messages per second published by producers")
+    public double getMessagesOutRate()
+    {
+        return this.mMetrics.getMessagesOutRate();
+    }
+
+    @ManagedAttribute(description = "Number of payload bytes received by consumers")
+    public long getBytesIn()
+    {
+        return this.mMetrics.getBytesIn();
+    }
+
+    @ManagedAttribute(description = "Payload bytes per second received by consumers")
+    public double getBytesInRate()
+    {
+        return this.mMetrics.getBytesInRate();
+    }
+
+    @ManagedAttribute(description = "Number of payload bytes published by producers")
+    public long getBytesOut()
+    {
+        return this.mMetrics.getBytesOut();
+    }
+
+    @ManagedAttribute(description = "Payload bytes per second published by producers")
+    public double getBytesOutRate()
+    {
+        return this.mMetrics.getBytesOutRate();
+    }
+
+    @ManagedAttribute(description = "Number of publishes waiting for their acknowledgement")
+    public long getInFlight()
+    {
+        return this.mMetrics.getInFlight();
+    }
+
+    @ManagedAttribute(description = "Number of failed publishes")
+    public long getPublishFailures()
+    {
+        return this.mMetrics.getPublishFailures();
+    }
+
+    @ManagedAttribute(description = "Number of successful reconnects")
+    public long getReconnects()
+    {
+        return this.mMetrics.getReconnects();
+    }
+
+    @ManagedAttribute(description = "Total time in milliseconds connections were down")
+    public long getDisconnectedTime()
+    {
+        return this.mMetrics.getDisconnectedTime();
+    }
+
+    @ManagedAttribute(description = "Number of messages buffered by consumers and not processed yet")
+    public long getBufferDepth()
+    {
+        return this.mMetrics.getBufferDepth();
+    }
+
+    @ManagedAttribute(description = "Number of times consumers stopped reading at the high watermark")
+    public long getPauses()
+    {
+        return this.mMetrics.getPauses();
+    }
+
+    @ManagedAttribute(description = "Total time in milliseconds consumers were paused")
+    public long getPausedTime()
+    {
+        return this.mMetrics.getPausedTime();
+    }
+
+    @ManagedAttribute(description = "Number of received messages dropped as duplicates")
+    public long getDuplicateHits()
+    {
+        return this.mMetrics.getDuplicateHits();
+    }
+
+    @ManagedAttribute(description = "Number of received messages not found in the duplicate cache")
+    public long getDuplicateMisses()
+    {
+        return this.mMetrics.getDuplicateMisses();
+    }
+
+    @ManagedAttribute(description = "Number of received messages replaced by a newer message of their topic")
+    public long getConflated()
+    {
+        return this.mMetrics.getConflated();
+    }
+
+    @ManagedAttribute(description = "Number of received messages dropped by the filters of consumers")
+    public long getFiltered()
+    {
+        return this.mMetrics.getFiltered();
+    }
+
+    @ManagedAttribute(description = "Number of messages producers packed into envelopes")
+    public long getPacked()
+    {
+        return this.mMetrics.getPacked();
+    }
+
+    @ManagedAttribute(description = "Number of messages consumers unpacked from envelopes")
+    public long getUnpacked()
+    {
+        return this.mMetrics.getUnpacked();
+    }
+
+    @ManagedAttribute(description = "Number of payloads producers compressed")
+    public long getCompressed()
+    {
+        return this.mMetrics.getCompressed();
+    }
+
+    @ManagedAttribute(description = "Number of bytes producers saved by compressing payloads")
+    public long getCompressionSavedBytes()
+    {
+        return this.mMetrics.getCompressionSavedBytes();
+    }
+
+    @ManagedAttribute(description = "Number of transfers producers streamed in chunks")
+    public long getTransfersSent()
+    {
+        return this.mMetrics.getTransfersSent();
+    }
+
+    @ManagedAttribute(description = "Number of transfers consumers reassembled from chunks")
+    public long getTransfersReceived()
+    {
+        return this.mMetrics.getTransfersReceived();
+    }
+
+    @ManagedAttribute(description = "Number of incomplete or corrupt transfers consumers discarded")
+    public long getTransfersFailed()
+    {
+        return this.mMetrics.getTransfersFailed();
+    }
+
+    @ManagedAttribute(description = "Mean publish-to-acknowledgement latency in microseconds")
+    public double getPublishLatencyMean()
+    {
+        return this.mMetrics.getPublishLatency().getMean();
+    }
+
+    @ManagedAttribute(description = "Median publish-to-acknowledgement latency in microseconds")
+    public long getPublishLatency50thPercentile()
+    {
+        return this.mMetrics.getPublishLatency().getValueAtPercentile(50);
+    }
+
+    @ManagedAttribute(description = "99th percentile of the publish-to-acknowledgement latency in microseconds")
+    public long getPublishLatency99thPercentile()
+    {
+        return this.mMetrics.getPublishLatency().getValueAtPercentile(99);
+    }
+
+    @ManagedAttribute(description = "99.9th percentile of the publish-to-acknowledgement latency in microseconds")
+    public long getPublishLatency999thPercentile()
+    {
+        return this.mMetrics.getPublishLatency().getValueAtPercentile(99.9);
+    }
+
+    @ManagedAttribute(description = "Maximum publish-to-acknowledgement latency in microseconds")
+    public long getPublishLatencyMax()
+    {
+        return this.mMetrics.getPublishLatency().getMax();
+    }
+
+    @ManagedAttribute(description = "Mean processing time of consumed messages in microseconds")
+    public double getProcessingTimeMean()
+    {
+        return this.mMetrics.getProcessingTime().getMean();
+    }
+
+    @ManagedAttribute(description = "Median processing time of consumed messages in microseconds")
+    public long getProcessingTime50thPercentile()
+    {
+        return this.mMetrics.getProcessingTime().getValueAtPercentile(50);
+    }
+
+    @ManagedAttribute(description = "99th percentile of the processing time of consumed messages in microseconds")
+    public long getProcessingTime99thPercentile()
+    {
+        return this.mMetrics.getProcessingTime().getValueAtPercentile(99);
+    }
+
+    @ManagedAttribute(description = "Maximum processing time of consumed messages in microseconds")
+    public long getProcessingTimeMax()
+    {
+        return this.mMetrics.getProcessingTime().getMax();
+    }
 }
@@ -0,0 +1,188 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class packs several payloads into the payload of a single MQTT
+ * message and unpacks them again. An envelope starts with four marker bytes,
+ * the last of them the format version, followed by the number of payloads and
+ * every payload prefixed by its length. Counts and lengths are written as
+ * variable-length integers of seven bits per byte, so the framing of a small
+ * payload costs a single byte.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+final class PahoMqttEnvelope
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    /**
+     * Defines the marker every envelope starts with, see
+     * {@link PahoMqttPayloads#marker(char)}.
+     */
+    private static final byte[] MAGIC = PahoMqttPayloads.marker('M');
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    private PahoMqttEnvelope()
+    {
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * Packs the payloads into an envelope.
+     *
+     * @param payloads
+     *            The payloads in the order they are unpacked.
+     * @return the payload of the envelope.
+     */
+    static byte[] pack(List<byte[]> payloads)
+    {
+        int length = MAGIC.length + PahoMqttEnvelope.sizeOf(payloads.size());
+        for (int i = 0; i < payloads.size(); i++)
+        {
+            length += PahoMqttEnvelope.sizeOf(payloads.get(i).length) + payloads.get(i).length;
+        }
+
+        byte[] envelope = Arrays.copyOf(MAGIC, length);
+        int position = PahoMqttEnvelope.write(envelope, MAGIC.length, payloads.size());
+        for (int i = 0; i < payloads.size(); i++)
+        {
+            byte[] payload = payloads.get(i);
+            position = PahoMqttEnvelope.write(envelope, position, payload.length);
+            System.arraycopy(payload, 0, envelope, position, payload.length);
+            position += payload.length;
+        }
+        return envelope;
+    }
+
+    /**
+     * Unpacks the payloads of an envelope.
+     *
+     * @param envelope
+     *            The received payload.
+     * @return the payloads of the envelope, or <code>null</code> if the
+     *         payload is not a complete envelope.
+     */
+    static List<byte[]> unpack(byte[] envelope)
+    {
+        if (!PahoMqttEnvelope.isEnvelope(envelope))
+        {
+            return null;
+        }
+
+        int[] position = { MAGIC.length };
+        int count = PahoMqttEnvelope.read(envelope, position);
+        // every payload takes at least its length byte
+        if (count < 0 || count > envelope.length - position[0])
+        {
+            return null;
+        }
+
+        List<byte[]> payloads = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++)
+        {
+            int length = PahoMqttEnvelope.read(envelope, position);
+            if (length < 0 || length > envelope.length - position[0])
+            {
+                return null;
+            }
+            payloads.add(Arrays.copyOfRange(envelope, position[0], position[0] + length));
+            position[0] += length;
+        }
+        return position[0] == envelope.length ? payloads : null;
+    }
+
+    /**
+     * @param payload
+     *            The received payload.
+     * @return <code>true</code> if the payload starts like an envelope.
+     */
+    static boolean isEnvelope(byte[] payload)
+    {
+        if (payload.length < MAGIC.length + 1)
+        {
+            return false;
+        }
+        return PahoMqttPayloads.hasMarker(payload, MAGIC);
+    }
+
+    /**
+     * @return the number of bytes of a variable-length integer.
+     */
+    private static int sizeOf(int value)
+    {
+        int size = 1;
+        while ((value >>>= 7) != 0)
+        {
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Writes a variable-length integer.
+     *
+     * @return the position after the integer.
+     */
+    private static int write(byte[] buffer, int position, int value)
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            buffer[position++] = (byte) (value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * Reads a variable-length integer and advances the position.
+     *
+     * @return the integer, or -1 if it is truncated or too large.
+     */
+    private static int read(byte[] buffer, int[] position)
+    {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7)
+        {
+            if (position[0] >= buffer.length)
+            {
+                return -1;
+            }
+            int b = buffer[position[0]++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+        return -1;
+    }
+}
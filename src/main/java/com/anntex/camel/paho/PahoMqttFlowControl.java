@@ -0,0 +1,197 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class bounds the number of messages a consumer received but did not
+ * process yet. While the buffer holds the high watermark the receiving
+ * thread is blocked until the buffer drained to the low watermark. Blocking the callback
+ * thread of the Paho client stops it from reading the connection, so the
+ * broker and finally the publishers are slowed down instead of the consumer
+ * running out of memory.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+final class PahoMqttFlowControl
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private static final Logger   LOG = LoggerFactory.getLogger(PahoMqttFlowControl.class);
+
+    /**
+     * Defines the number of buffered messages pausing the receiver, or
+     * {@link Integer#MAX_VALUE} if the receiver is never paused.
+     */
+    private final int             mHighWatermark;
+
+    /**
+     * Defines the number of buffered messages resuming a paused receiver.
+     */
+    private final int             mLowWatermark;
+
+    /**
+     * Defines the metrics buffer depth and pauses are recorded to.
+     */
+    private final PahoMqttMetrics mMetrics;
+
+    /**
+     * Defines the number of buffered messages, guarded by <tt>this</tt>.
+     */
+    private int                   mDepth;
+
+    /**
+     * Defines if the receiver is paused, guarded by <tt>this</tt>.
+     */
+    private boolean               mPaused;
+
+    /**
+     * Defines the {@link System#nanoTime()} the receiver was paused at,
+     * guarded by <tt>this</tt>.
+     */
+    private long                  mPausedSince;
+
+    /**
+     * Defines if the consumer stopped and nobody waits for space any more,
+     * guarded by <tt>this</tt>.
+     */
+    private boolean               mClosed;
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    /**
+     * @param highWatermark
+     *            The number of buffered messages pausing the receiver. The
+     *            receiver is never paused with 0.
+     * @param lowWatermark
+     *            The number of buffered messages resuming the receiver. Half
+     *            of the high watermark is used if it is 0 or not below the
+     *            high watermark.
+     * @param metrics
+     *            The metrics to record buffer depth and pauses to.
+     */
+    PahoMqttFlowControl(int highWatermark, int lowWatermark, PahoMqttMetrics metrics)
+    {
+        this.mHighWatermark = highWatermark > 0 ? highWatermark : Integer.MAX_VALUE;
+        this.mLowWatermark = lowWatermark > 0 && lowWatermark < highWatermark ? lowWatermark : highWatermark / 2;
+        this.mMetrics = metrics;
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * Adds received messages to the buffer. While the buffer holds the high
+     * watermark the caller is blocked until the buffer drained to the low
+     * watermark or the flow control was closed. The added messages are not
+     * counted before, so a caller processing them itself never waits for
+     * them.
+     *
+     * @param count
+     *            The number of messages.
+     * @throws InterruptedException
+     *             if the caller was interrupted while paused.
+     */
+    synchronized void acquire(int count) throws InterruptedException
+    {
+        if (this.mDepth >= this.mHighWatermark && !this.mPaused && !this.mClosed)
+        {
+            this.mPaused = true;
+            this.mPausedSince = System.nanoTime();
+            this.mMetrics.consumerPaused();
+            PahoMqttFlowControl.LOG.debug("\t--> {} messages buffered, pause reading", this.mDepth);
+        }
+        while (this.mPaused && !this.mClosed)
+        {
+            this.wait();
+        }
+
+        if (!this.mClosed)
+        {
+            this.mDepth += count;
+            this.mMetrics.bufferChanged(count);
+        }
+    }
+
+    /**
+     * Removes processed messages from the buffer and resumes the receiver if
+     * the buffer drained to the low watermark.
+     *
+     * @param count
+     *            The number of messages.
+     */
+    synchronized void release(int count)
+    {
+        if (this.mClosed)
+        {
+            // the buffer was already emptied by close()
+            return;
+        }
+
+        this.mDepth -= count;
+        this.mMetrics.bufferChanged(-count);
+
+        if (this.mPaused && this.mDepth <= this.mLowWatermark)
+        {
+            this.resume();
+        }
+    }
+
+    /**
+     * Releases a paused receiver for good, e.g. because the consumer stops and
+     * the buffered messages are discarded.
+     */
+    synchronized void close()
+    {
+        this.mClosed = true;
+        if (this.mPaused)
+        {
+            this.resume();
+        }
+
+        // the discarded messages are never released
+        this.mMetrics.bufferChanged(-this.mDepth);
+        this.mDepth = 0;
+    }
+
+    /**
+     * @return the number of buffered messages.
+     */
+    synchronized int depth()
+    {
+        return this.mDepth;
+    }
+
+    /**
+     * Resumes the paused receiver. Needs to be called while holding the lock.
+     */
+    private void resume()
+    {
+        this.mPaused = false;
+        this.mMetrics.consumerResumed(System.nanoTime() - this.mPausedSince);
+        PahoMqttFlowControl.LOG.debug("\t--> {} messages buffered, resume reading", this.mDepth);
+        this.notifyAll();
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class defines a lock-free histogram of non-negative long values in the
+ * style of the HdrHistogram. Values are counted in logarithmic buckets, each
+ * power of two split into 16 linear sub-buckets, so every percentile is
+ * reported with a relative error below 7% while the whole value range fits
+ * into a fixed array. Recording a value does not allocate and does not lock.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttHistogram
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    /**
+     * Defines the number of values counted one by one, every larger value
+     * falls into a bucket of 16 sub-buckets per power of two.
+     */
+    private static final int     LINEAR_VALUES = 32;
+
+    private static final int     SUB_BUCKETS   = 16;
+
+    private static final int     BUCKETS       = LINEAR_VALUES + (63 - 5) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts       = new AtomicLongArray(BUCKETS);
+
+    private final LongAdder       mCount        = new LongAdder();
+
+    private final LongAdder       mSum          = new LongAdder();
+
+    private final AtomicLong      mMax          = new AtomicLong();
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * Records a value, negative values are recorded as 0.
+     *
+     * @param value
+     *            The value to record.
+     */
+    public void record(long value)
+    {
+        if (value < 0)
+        {
+            value = 0;
+        }
+
+        this.mCounts.incrementAndGet(PahoMqttHistogram.indexOf(value));
+        this.mCount.increment();
+        this.mSum.add(value);
+
+        long max = this.mMax.get();
+        while (value > max && !this.mMax.compareAndSet(max, value))
+        {
+            max = this.mMax.get();
+        }
+    }
+
+    /**
+     * @return the number of recorded values.
+     */
+    public long getCount()
+    {
+        return this.mCount.sum();
+    }
+
+    /**
+     * @return the largest recorded value.
+     */
+    public long getMax()
+    {
+        return this.mMax.get();
+    }
+
+    /**
+     * @return the mean of the recorded values, 0 if no value was recorded.
+     */
+    public double getMean()
+    {
+        long count = this.mCount.sum();
+        return count == 0 ? 0 : (double) this.mSum.sum() / count;
+    }
+
+    /**
+     * Returns the value below or equal to which the given percentage of the
+     * recorded values lie, as the upper bound of its bucket.
+     *
+     * @param percentile
+     *            The percentile between 0 and 100.
+     * @return the value at the percentile, 0 if no value was recorded.
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            total += this.mCounts.get(i);
+        }
+        if (total == 0)
+        {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += this.mCounts.get(i);
+            if (seen >= rank)
+            {
+                return Math.min(PahoMqttHistogram.upperBoundOf(i), this.mMax.get());
+            }
+        }
+        return this.mMax.get();
+    }
+
+    /**
+     * Clears all recorded values. Values recorded concurrently may get lost.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            this.mCounts.set(i, 0);
+        }
+        this.mCount.reset();
+        this.mSum.reset();
+        this.mMax.set(0);
+    }
+
+    /**
+     * @return the bucket of a value.
+     */
+    static int indexOf(long value)
+    {
+        if (value < LINEAR_VALUES)
+        {
+            return (int) value;
+        }
+
+        // keep the 5 most significant bits of the value
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 4;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return LINEAR_VALUES + (shift - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the largest value of a bucket.
+     */
+    static long upperBoundOf(int index)
+    {
+        if (index < LINEAR_VALUES)
+        {
+            return index;
+        }
+
+        int shift = (index - LINEAR_VALUES) / SUB_BUCKETS + 1;
+        long subBucket = (index - LINEAR_VALUES) % SUB_BUCKETS + SUB_BUCKETS;
+        long upper = ((subBucket + 1) << shift) - 1;
+        return upper < 0 ? Long.MAX_VALUE : upper;
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * This class keeps the newest message per topic delivered by the consumers of
+ * a component, so a producer can answer the current value of a topic locally
+ * instead of subscribing and waiting for the broker to replay its retained
+ * message. A value is the payload as its consumer delivers it, decompressed
+ * and unpacked if the consumer does so, chunks are never cached. The cache holds at most a fixed number of
+ * topics and drops the topic updated least recently when it is full. A
+ * message can expire after a time to live. A retained message with an empty
+ * payload clears the retained value of its topic on the broker and removes
+ * the topic from the cache as well.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+final class PahoMqttLastValueCache
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    /**
+     * Defines the newest message per topic, ordered from the least to the
+     * most recently updated topic, guarded by <tt>this</tt>.
+     */
+    private final Map<String, Value> mValues;
+
+    /**
+     * Defines the time in nanoseconds a message is kept, 0 to keep it until
+     * it is replaced or evicted.
+     */
+    private final long               mTtlNanos;
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    /**
+     * @param size
+     *            The maximum number of topics kept.
+     * @param ttlMillis
+     *            The time in milliseconds a message is kept, 0 to keep it
+     *            until it is replaced or evicted.
+     */
+    PahoMqttLastValueCache(final int size, long ttlMillis)
+    {
+        this.mTtlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(ttlMillis, 0));
+        this.mValues = new LinkedHashMap<String, Value>(16, 0.75f, false)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Value> eldest)
+            {
+                return this.size() > size;
+            }
+        };
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * Replaces the value of a topic by a delivered message.
+     *
+     * @param topic
+     *            The topic the message was published to.
+     * @param message
+     *            The received message.
+     */
+    void put(String topic, MqttMessage message)
+    {
+        byte[] payload = message.getPayload();
+        Value value = new Value(payload, message.getQos(), message.isRetained(), System.nanoTime());
+
+        synchronized (this)
+        {
+            // remove first, so an updated topic moves to the end of the
+            // eviction order
+            this.mValues.remove(topic);
+            if (!message.isRetained() || payload.length > 0)
+            {
+                this.mValues.put(topic, value);
+            }
+        }
+    }
+
+    /**
+     * @param topic
+     *            The topic to look up.
+     * @return the newest message of the topic, or <code>null</code> if the
+     *         topic is not cached or its message expired.
+     */
+    synchronized Value get(String topic)
+    {
+        Value value = this.mValues.get(topic);
+        if (value != null && this.mTtlNanos > 0 && System.nanoTime() - value.mReceivedAt >= this.mTtlNanos)
+        {
+            this.mValues.remove(topic);
+            return null;
+        }
+        return value;
+    }
+
+    /**
+     * @return the number of cached topics, including expired ones not looked
+     *         up since.
+     */
+    synchronized int size()
+    {
+        return this.mValues.size();
+    }
+
+    // --------------------------------------------------
+    // INNER CLASSES
+    // --------------------------------------------------
+
+    /**
+     * Defines the cached message of a topic.
+     */
+    static final class Value
+    {
+        private final byte[]  mPayload;
+        private final int     mQos;
+        private final boolean mRetained;
+        private final long    mReceivedAt;
+
+        private Value(byte[] payload, int qos, boolean retained, long receivedAt)
+        {
+            this.mPayload = payload;
+            this.mQos = qos;
+            this.mRetained = retained;
+            this.mReceivedAt = receivedAt;
+        }
+
+        /**
+         * @return the payload of the message, shared with every lookup.
+         */
+        byte[] getPayload()
+        {
+            return this.mPayload;
+        }
+
+        /**
+         * @return the QoS level the message was delivered with.
+         */
+        int getQos()
+        {
+            return this.mQos;
+        }
+
+        /**
+         * @return <code>true</code> if the message was retained by the
+         *         broker.
+         */
+        boolean isRetained()
+        {
+            return this.mRetained;
+        }
+    }
+}
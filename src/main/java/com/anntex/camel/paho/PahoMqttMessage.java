@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import java.util.Map;
+
+import org.apache.camel.impl.DefaultMessage;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * This class defines the in message of an exchange created for a received
+ * MQTT message. The headers describing the MQTT message are read from it
+ * only when the headers of the exchange are accessed for the first time, so
+ * a route never reading a header does not pay for the header map.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttMessage extends DefaultMessage
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private final String      mTopic;
+    private final MqttMessage mMessage;
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    /**
+     * @param topic
+     *            The topic the message was published to.
+     * @param message
+     *            The received message.
+     */
+    public PahoMqttMessage(String topic, MqttMessage message)
+    {
+        this.mTopic = topic;
+        this.mMessage = message;
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * @return the topic the message was published to.
+     */
+    public String getTopic()
+    {
+        return this.mTopic;
+    }
+
+    /**
+     * @return the received message.
+     */
+    public MqttMessage getMqttMessage()
+    {
+        return this.mMessage;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.camel.impl.DefaultMessage#newInstance()
+     */
+    @Override
+    public PahoMqttMessage newInstance()
+    {
+        return new PahoMqttMessage(this.mTopic, this.mMessage);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.camel.impl.DefaultMessage#populateInitialHeaders(java.util.Map)
+     */
+    @Override
+    protected void populateInitialHeaders(Map<String, Object> map)
+    {
+        map.put(PahoMqttConstants.RECEIVED_TOPIC, this.mTopic);
+        map.put(PahoMqttConstants.RECEIVED_QOS, this.mMessage.getQos());
+        map.put(PahoMqttConstants.RECEIVED_RETAINED, this.mMessage.isRetained());
+        map.put(PahoMqttConstants.DUPLICATE, this.mMessage.isDuplicate());
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+/**
+ * This interface defines a filter a consumer applies to every received
+ * message before an exchange is created for it. An implementation is
+ * referenced from the end point URI with the option
+ * <code>messageFilter=#beanName</code>. It is called on the receiving thread
+ * of the Paho client, so it should be fast and must not block.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public interface PahoMqttMessageFilter
+{
+    /**
+     * @param topic
+     *            The topic the message was published to.
+     * @param payload
+     *            The raw payload of the message, must not be modified.
+     * @return <code>true</code> to deliver the message to the route,
+     *         <code>false</code> to drop it.
+     */
+    boolean accept(String topic, byte[] payload);
+}
@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class counts events and reports their rate per second as an
+ * exponentially weighted moving average over about one minute. Marking events
+ * is lock-free, the average is brought up to date whenever it is read.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttMeter
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private static final long   TICK_SECONDS = 5;
+
+    private static final long   TICK_NANOS   = TimeUnit.SECONDS.toNanos(TICK_SECONDS);
+
+    /**
+     * Defines the weight of a tick for an average over one minute.
+     */
+    private static final double ALPHA        = 1 - Math.exp(-TICK_SECONDS / 60.0);
+
+    private final LongAdder     mCount       = new LongAdder();
+
+    private long                mLastTick    = System.nanoTime();
+
+    private long                mLastCount;
+
+    private double              mRate;
+
+    private boolean             mInitialized;
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * Counts a number of events.
+     *
+     * @param events
+     *            The number of events.
+     */
+    public void mark(long events)
+    {
+        this.mCount.add(events);
+    }
+
+    /**
+     * @return the total number of events.
+     */
+    public long getCount()
+    {
+        return this.mCount.sum();
+    }
+
+    /**
+     * @return the events per second averaged over about the last minute.
+     */
+    public synchronized double getRate()
+    {
+        long now = System.nanoTime();
+        long ticks = (now - this.mLastTick) / TICK_NANOS;
+        if (ticks > 0)
+        {
+            long count = this.mCount.sum();
+            double rate = (double) (count - this.mLastCount) / (ticks * TICK_SECONDS);
+            if (this.mInitialized)
+            {
+                this.mRate += (1 - Math.pow(1 - ALPHA, ticks)) * (rate - this.mRate);
+            }
+            else
+            {
+                this.mRate = rate;
+                this.mInitialized = true;
+            }
+            this.mLastCount = count;
+            this.mLastTick += ticks * TICK_NANOS;
+        }
+        return this.mRate;
+    }
+}
@@ -0,0 +1,528 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class collects the metrics of the producers and consumers of an end
+ * point. All recording methods are lock-free and do not allocate, so they can
+ * be called on every message. Durations are recorded in microseconds.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttMetrics
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private final PahoMqttMeter     mMessagesIn       = new PahoMqttMeter();
+
+    private final PahoMqttMeter     mMessagesOut      = new PahoMqttMeter();
+
+    private final PahoMqttMeter     mBytesIn          = new PahoMqttMeter();
+
+    private final PahoMqttMeter     mBytesOut         = new PahoMqttMeter();
+
+    private final LongAdder         mInFlight         = new LongAdder();
+
+    private final LongAdder         mPublishFailures  = new LongAdder();
+
+    private final LongAdder         mReconnects       = new LongAdder();
+
+    private final LongAdder         mDisconnectedTime = new LongAdder();
+
+    private final LongAdder         mBufferDepth      = new LongAdder();
+
+    private final LongAdder         mPauses           = new LongAdder();
+
+    private final LongAdder         mPausedTime       = new LongAdder();
+
+    private final LongAdder         mDuplicateHits    = new LongAdder();
+
+    private final LongAdder         mDuplicateMisses  = new LongAdder();
+
+    private final LongAdder         mConflated        = new LongAdder();
+
+    private final LongAdder         mFiltered         = new LongAdder();
+
+    private final LongAdder         mPacked           = new LongAdder();
+
+    private final LongAdder         mUnpacked         = new LongAdder();
+
+    private final LongAdder         mCompressed       = new LongAdder();
+
+    private final LongAdder         mCompressionSaved = new LongAdder();
+
+    private final LongAdder         mTransfersSent    = new LongAdder();
+
+    private final LongAdder         mTransfersIn      = new LongAdder();
+
+    private final LongAdder         mTransfersFailed  = new LongAdder();
+
+    /**
+     * Defines the time from handing a publish to the client until the broker
+     * acknowledged it according to its QoS level.
+     */
+    private final PahoMqttHistogram mPublishLatency   = new PahoMqttHistogram();
+
+    /**
+     * Defines the time the route of a consumer takes to process a message.
+     */
+    private final PahoMqttHistogram mProcessingTime   = new PahoMqttHistogram();
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * Records a publish handed to the client.
+     */
+    void publishStarted()
+    {
+        this.mInFlight.increment();
+    }
+
+    /**
+     * Records a publish taken back to be sent again after a reconnect.
+     */
+    void publishRequeued()
+    {
+        this.mInFlight.decrement();
+    }
+
+    /**
+     * Records the completion of a publish.
+     *
+     * @param bytes
+     *            The size of the payload.
+     * @param startNanos
+     *            The {@link System#nanoTime()} the publish was started at.
+     * @param success
+     *            <code>true</code> if the broker acknowledged the publish.
+     */
+    void publishCompleted(int bytes, long startNanos, boolean success)
+    {
+        this.mInFlight.decrement();
+        if (success)
+        {
+            this.mMessagesOut.mark(1);
+            this.mBytesOut.mark(bytes);
+            this.mPublishLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+        }
+        else
+        {
+            this.mPublishFailures.increment();
+        }
+    }
+
+    /**
+     * Records a message received by a consumer.
+     *
+     * @param bytes
+     *            The size of the payload.
+     */
+    void messageReceived(int bytes)
+    {
+        this.mMessagesIn.mark(1);
+        this.mBytesIn.mark(bytes);
+    }
+
+    /**
+     * Records the processing of an exchange by the route of a consumer.
+     *
+     * @param startNanos
+     *            The {@link System#nanoTime()} the processing was started at.
+     */
+    void exchangeProcessed(long startNanos)
+    {
+        this.mProcessingTime.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Records a successful reconnect.
+     *
+     * @param disconnectedNanos
+     *            The time in nanoseconds the connection was down.
+     */
+    void reconnected(long disconnectedNanos)
+    {
+        this.mReconnects.increment();
+        this.mDisconnectedTime.add(disconnectedNanos);
+    }
+
+    /**
+     * Records a change of the number of messages buffered by consumers.
+     *
+     * @param delta
+     *            The number of messages added, negative if messages were
+     *            processed.
+     */
+    void bufferChanged(int delta)
+    {
+        this.mBufferDepth.add(delta);
+    }
+
+    /**
+     * Records a consumer which stopped reading from its connection.
+     */
+    void consumerPaused()
+    {
+        this.mPauses.increment();
+    }
+
+    /**
+     * Records a paused consumer which reads from its connection again.
+     *
+     * @param pausedNanos
+     *            The time in nanoseconds the consumer was paused.
+     */
+    void consumerResumed(long pausedNanos)
+    {
+        this.mPausedTime.add(pausedNanos);
+    }
+
+    /**
+     * Records the result of a duplicate check of a received message.
+     *
+     * @param duplicate
+     *            <code>true</code> if the message was dropped as a duplicate.
+     */
+    void duplicateChecked(boolean duplicate)
+    {
+        if (duplicate)
+        {
+            this.mDuplicateHits.increment();
+        }
+        else
+        {
+            this.mDuplicateMisses.increment();
+        }
+    }
+
+    /**
+     * Records an undelivered message replaced by a newer message of its topic.
+     */
+    void messageConflated()
+    {
+        this.mConflated.increment();
+    }
+
+    /**
+     * Records a received message dropped by the filters of a consumer.
+     */
+    void messageFiltered()
+    {
+        this.mFiltered.increment();
+    }
+
+    /**
+     * Records messages a producer packed into a published envelope.
+     *
+     * @param count
+     *            The number of messages in the envelope.
+     */
+    void envelopePacked(int count)
+    {
+        this.mPacked.add(count);
+    }
+
+    /**
+     * Records messages a consumer unpacked from a received envelope.
+     *
+     * @param count
+     *            The number of messages in the envelope.
+     */
+    void envelopeUnpacked(int count)
+    {
+        this.mUnpacked.add(count);
+    }
+
+    /**
+     * Records a payload a producer compressed.
+     *
+     * @param length
+     *            The length of the original payload.
+     * @param compressedLength
+     *            The length of the compressed payload.
+     */
+    void payloadCompressed(int length, int compressedLength)
+    {
+        this.mCompressed.increment();
+        this.mCompressionSaved.add(length - compressedLength);
+    }
+
+    /**
+     * Records a transfer a producer streamed completely.
+     */
+    void transferSent()
+    {
+        this.mTransfersSent.increment();
+    }
+
+    /**
+     * Records a transfer a consumer reassembled completely.
+     */
+    void transferReceived()
+    {
+        this.mTransfersIn.increment();
+    }
+
+    /**
+     * Records a transfer a consumer discarded.
+     */
+    void transferFailed()
+    {
+        this.mTransfersFailed.increment();
+    }
+
+    /**
+     * @return the number of messages received by consumers.
+     */
+    public long getMessagesIn()
+    {
+        return this.mMessagesIn.getCount();
+    }
+
+    /**
+     * @return the messages per second received by consumers.
+     */
+    public double getMessagesInRate()
+    {
+        return this.mMessagesIn.getRate();
+    }
+
+    /**
+     * @return the number of messages published by producers.
+     */
+    public long getMessagesOut()
+    {
+        return this.mMessagesOut.getCount();
+    }
+
+    /**
+     * @return the messages per second published by producers.
+     */
+    public double getMessagesOutRate()
+    {
+        return this.mMessagesOut.getRate();
+    }
+
+    /**
+     * @return the number of payload bytes received by consumers.
+     */
+    public long getBytesIn()
+    {
+        return this.mBytesIn.getCount();
+    }
+
+    /**
+     * @return the payload bytes per second received by consumers.
+     */
+    public double getBytesInRate()
+    {
+        return this.mBytesIn.getRate();
+    }
+
+    /**
+     * @return the number of payload bytes published by producers.
+     */
+    public long getBytesOut()
+    {
+        return this.mBytesOut.getCount();
+    }
+
+    /**
+     * @return the payload bytes per second published by producers.
+     */
+    public double getBytesOutRate()
+    {
+        return this.mBytesOut.getRate();
+    }
+
+    /**
+     * @return the number of publishes waiting for their acknowledgement.
+     */
+    public long getInFlight()
+    {
+        return this.mInFlight.sum();
+    }
+
+    /**
+     * @return the number of failed publishes.
+     */
+    public long getPublishFailures()
+    {
+        return this.mPublishFailures.sum();
+    }
+
+    /**
+     * @return the number of successful reconnects.
+     */
+    public long getReconnects()
+    {
+        return this.mReconnects.sum();
+    }
+
+    /**
+     * @return the total time in milliseconds connections were down before
+     *         they were re-established.
+     */
+    public long getDisconnectedTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(this.mDisconnectedTime.sum());
+    }
+
+    /**
+     * @return the number of messages buffered by consumers and not processed
+     *         yet.
+     */
+    public long getBufferDepth()
+    {
+        return this.mBufferDepth.sum();
+    }
+
+    /**
+     * @return the number of times consumers stopped reading from their
+     *         connection because their buffer reached the high watermark.
+     */
+    public long getPauses()
+    {
+        return this.mPauses.sum();
+    }
+
+    /**
+     * @return the total time in milliseconds consumers were paused.
+     */
+    public long getPausedTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(this.mPausedTime.sum());
+    }
+
+    /**
+     * @return the number of received messages dropped as duplicates.
+     */
+    public long getDuplicateHits()
+    {
+        return this.mDuplicateHits.sum();
+    }
+
+    /**
+     * @return the number of received messages checked and not found in the
+     *         duplicate cache.
+     */
+    public long getDuplicateMisses()
+    {
+        return this.mDuplicateMisses.sum();
+    }
+
+    /**
+     * @return the number of received messages replaced by a newer message of
+     *         their topic before they were delivered.
+     */
+    public long getConflated()
+    {
+        return this.mConflated.sum();
+    }
+
+    /**
+     * @return the number of received messages dropped by the filters of
+     *         consumers.
+     */
+    public long getFiltered()
+    {
+        return this.mFiltered.sum();
+    }
+
+    /**
+     * @return the number of messages producers packed into envelopes.
+     */
+    public long getPacked()
+    {
+        return this.mPacked.sum();
+    }
+
+    /**
+     * @return the number of messages consumers unpacked from envelopes.
+     */
+    public long getUnpacked()
+    {
+        return this.mUnpacked.sum();
+    }
+
+    /**
+     * @return the number of payloads producers compressed.
+     */
+    public long getCompressed()
+    {
+        return this.mCompressed.sum();
+    }
+
+    /**
+     * @return the number of bytes producers saved by compressing payloads.
+     */
+    public long getCompressionSavedBytes()
+    {
+        return this.mCompressionSaved.sum();
+    }
+
+    /**
+     * @return the number of transfers producers streamed completely.
+     */
+    public long getTransfersSent()
+    {
+        return this.mTransfersSent.sum();
+    }
+
+    /**
+     * @return the number of transfers consumers reassembled completely.
+     */
+    public long getTransfersReceived()
+    {
+        return this.mTransfersIn.sum();
+    }
+
+    /**
+     * @return the number of incomplete or corrupt transfers consumers
+     *         discarded.
+     */
+    public long getTransfersFailed()
+    {
+        return this.mTransfersFailed.sum();
+    }
+
+    /**
+     * @return the histogram of the publish-to-acknowledgement latency in
+     *         microseconds.
+     */
+    public PahoMqttHistogram getPublishLatency()
+    {
+        return this.mPublishLatency;
+    }
+
+    /**
+     * @return the histogram of the processing time of consumed messages in
+     *         microseconds.
+     */
+    public PahoMqttHistogram getProcessingTime()
+    {
+        return this.mProcessingTime;
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+/**
+ * This interface defines a hook to bind the metrics of an end point to an
+ * external metrics registry, e.g. to publish them as gauges of a Micrometer or
+ * Dropwizard registry. An implementation is referenced from the end point URI
+ * with the option <code>metricsRegistry=#beanName</code>.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public interface PahoMqttMetricsRegistry
+{
+    /**
+     * Called when an end point starts. The metrics keep recording until the
+     * end point stops, so a registry can read them whenever it reports.
+     *
+     * @param endpointUri
+     *            The URI of the end point.
+     * @param metrics
+     *            The metrics of the end point.
+     */
+    void register(String endpointUri, PahoMqttMetrics metrics);
+
+    /**
+     * Called when an end point stops.
+     *
+     * @param endpointUri
+     *            The URI of the end point.
+     * @param metrics
+     *            The metrics of the end point.
+     */
+    void unregister(String endpointUri, PahoMqttMetrics metrics);
+}
@@ -0,0 +1,1132 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.anntex.camel.paho.config.PahoMqttConfiguration;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class defines a {@link PahoMqttClient} speaking MQTT 3.1.1 over a
+ * non-blocking socket channel on an event loop of a
+ * {@link PahoMqttNioTransport}, so it needs no threads of its own. The
+ * network state is only accessed by the thread of the loop. Listeners and the
+ * {@link MqttCallback} are called one after another on the shared callback
+ * executor of the transport, so a client keeps the order of its messages and
+ * a callback may block without stalling the loop.
+ * <p>
+ * Like the Paho client a received QoS 1 or 2 message is acknowledged after
+ * {@link MqttCallback#messageArrived(String, MqttMessage)} returned, and the
+ * connection is closed without acknowledging it if the callback throws. If
+ * the callbacks fall behind, the client stops reading from its connection
+ * until they caught up. Sessions are kept in memory only, a message in
+ * flight is failed if the connection is lost.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+final class PahoMqttNioClient implements PahoMqttClient
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private static final Logger                   LOG            = LoggerFactory.getLogger(PahoMqttNioClient.class);
+
+    private static final int                      DEFAULT_PORT   = 1883;
+
+    // states of the connection
+    private static final int                      DISCONNECTED   = 0;
+    private static final int                      CONNECTING     = 1;
+    private static final int                      CONNECTED      = 2;
+    private static final int                      DISCONNECTING  = 3;
+
+    /**
+     * Defines the number of received messages waiting for the callback which
+     * stops reading from the connection.
+     */
+    private static final int                      MAX_PENDING    = 1000;
+
+    /**
+     * Defines the number of callbacks run before the callback thread is
+     * handed to the next client.
+     */
+    private static final int                      CALLBACK_BATCH = 64;
+
+    /**
+     * Defines the time in milliseconds a disconnect waits for the DISCONNECT
+     * packet to be written.
+     */
+    private static final long                     QUIESCE_MILLIS = 5000;
+
+    private final String                          mClientId;
+    private final String                          mHost;
+    private final int                             mPort;
+    private final PahoMqttNioTransport.EventLoop  mLoop;
+    private final ExecutorService                 mCallbackExecutor;
+
+    /**
+     * Defines the state of the connection, changed by the loop and by the
+     * connect and disconnect calls.
+     */
+    private final AtomicInteger                   mState         = new AtomicInteger(DISCONNECTED);
+
+    /**
+     * Defines the number of connections opened so far. A task of a closed
+     * connection finds a newer generation and is dropped.
+     */
+    private volatile int                          mGeneration;
+
+    private volatile MqttCallback                 mCallback;
+
+    /**
+     * Defines the callbacks to run one after another.
+     */
+    private final Queue<Runnable>                 mCallbacks     = new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * Defines if a callback thread drains {@link #mCallbacks}.
+     */
+    private final AtomicBoolean                   mCallbacksBusy = new AtomicBoolean();
+
+    /**
+     * Defines the number of received messages waiting for the callback.
+     */
+    private final AtomicInteger                   mPending       = new AtomicInteger();
+
+    /**
+     * Defines the task draining {@link #mCallbacks} on the callback executor.
+     */
+    private final Runnable                        mCallbackDrain;
+
+    // the following fields are only accessed by the loop
+
+    private SocketChannel                         mChannel;
+    private SelectionKey                          mKey;
+    private ByteBuffer                            mIn;
+    private final Queue<ByteBuffer>               mOut           = new ArrayDeque<ByteBuffer>();
+
+    /**
+     * Defines the packets of a single gathering write.
+     */
+    private final ByteBuffer[]                    mWrite         = new ByteBuffer[64];
+    private boolean                               mDirty;
+    private boolean                               mReadPaused;
+
+    /**
+     * Defines the listeners of the sent packets waiting for their
+     * acknowledgement by packet id.
+     */
+    private final Map<Integer, IMqttActionListener> mInFlight    = new HashMap<Integer, IMqttActionListener>();
+
+    /**
+     * Defines the ids of the received QoS 2 messages not released yet.
+     */
+    private final Set<Integer>                    mIncoming      = new HashSet<Integer>();
+
+    private int                                   mNextPacketId;
+    private ByteBuffer                            mConnectPacket;
+    private IMqttActionListener                   mConnectListener;
+    private IMqttActionListener                   mDisconnectListener;
+    private boolean                               mDisconnectSent;
+    private long                                  mKeepAliveNanos;
+
+    /**
+     * Defines the {@link System#nanoTime()} a connect or disconnect in
+     * progress times out at, 0 for no timeout.
+     */
+    private long                                  mDeadline;
+    private long                                  mLastSent;
+    private long                                  mPingSent;
+    private boolean                               mPingOutstanding;
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    /**
+     * @param transport
+     *            The transport the client runs on.
+     * @param configuration
+     *            The configuration of the end point.
+     * @param clientId
+     *            The MQTT client id.
+     * @throws IllegalArgumentException
+     *             if the host is not a <code>tcp://</code> address.
+     */
+    PahoMqttNioClient(PahoMqttNioTransport transport, PahoMqttConfiguration configuration, String clientId)
+    {
+        URI uri;
+        try
+        {
+            uri = new URI(configuration.getHost());
+        } catch (URISyntaxException ex)
+        {
+            throw new IllegalArgumentException("Invalid host: " + configuration.getHost(), ex);
+        }
+        if (!"tcp".equals(uri.getScheme()) || uri.getHost() == null)
+        {
+            throw new IllegalArgumentException("The nio transport only supports tcp hosts: " + configuration.getHost());
+        }
+
+        this.mClientId = clientId;
+        this.mHost = uri.getHost();
+        this.mPort = uri.getPort() > 0 ? uri.getPort() : DEFAULT_PORT;
+        this.mLoop = transport.next();
+        this.mCallbackExecutor = transport.getCallbackExecutor();
+        this.mCallbackDrain = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                PahoMqttNioClient.this.drainCallbacks();
+            }
+        };
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getClientId()
+    {
+        return this.mClientId;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isConnected()
+    {
+        return this.mState.get() == CONNECTED;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setCallback(MqttCallback callback)
+    {
+        this.mCallback = callback;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void connect(MqttConnectOptions options, final IMqttActionListener listener) throws MqttException
+    {
+        if (!this.mState.compareAndSet(DISCONNECTED, CONNECTING))
+        {
+            throw new MqttException(MqttException.REASON_CODE_CLIENT_CONNECTED);
+        }
+
+        // resolve the address on the calling thread, the loop must not block
+        final InetSocketAddress address = new InetSocketAddress(this.mHost, this.mPort);
+        final ByteBuffer packet = PahoMqttCodec.connect(this.mClientId, options);
+        final long keepAlive = TimeUnit.SECONDS.toNanos(options.getKeepAliveInterval());
+        final long timeout = TimeUnit.SECONDS.toNanos(options.getConnectionTimeout());
+        this.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                PahoMqttNioClient.this.open(address, packet, keepAlive, timeout, listener);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void connectAndWait(MqttConnectOptions options) throws MqttException
+    {
+        Waiter waiter = new Waiter();
+        this.connect(options, waiter);
+        waiter.await(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void publish(String topic, byte[] payload, final int qos, boolean retained,
+            final IMqttActionListener listener) throws MqttException
+    {
+        this.checkConnected();
+
+        // encode on the calling thread, the loop only sets the packet id
+        final ByteBuffer packet;
+        try
+        {
+            packet = PahoMqttCodec.publish(topic, payload, qos, retained);
+        } catch (IllegalArgumentException ex)
+        {
+            throw new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, ex);
+        }
+
+        final int generation = this.mGeneration;
+        this.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (generation != PahoMqttNioClient.this.mGeneration
+                        || PahoMqttNioClient.this.mState.get() != CONNECTED)
+                {
+                    PahoMqttNioClient.this.notifyFailure(listener,
+                            new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED));
+                    return;
+                }
+
+                if (qos == 0)
+                {
+                    PahoMqttNioClient.this.send(packet);
+                    PahoMqttNioClient.this.notifySuccess(listener);
+                }
+                else
+                {
+                    int packetId = PahoMqttNioClient.this.nextPacketId();
+                    PahoMqttCodec.setPacketId(packet, packetId);
+                    PahoMqttNioClient.this.mInFlight.put(packetId, listener);
+                    PahoMqttNioClient.this.send(packet);
+                }
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void subscribe(final String[] topicFilters, final int[] qos) throws MqttException
+    {
+        this.checkConnected();
+        this.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (PahoMqttNioClient.this.mState.get() == CONNECTED)
+                {
+                    int packetId = PahoMqttNioClient.this.nextPacketId();
+                    PahoMqttNioClient.this.mInFlight.put(packetId, null);
+                    PahoMqttNioClient.this.send(PahoMqttCodec.subscribe(packetId, topicFilters, qos));
+                }
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void unsubscribe(final String[] topicFilters) throws MqttException
+    {
+        this.checkConnected();
+        this.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (PahoMqttNioClient.this.mState.get() == CONNECTED)
+                {
+                    int packetId = PahoMqttNioClient.this.nextPacketId();
+                    PahoMqttNioClient.this.mInFlight.put(packetId, null);
+                    PahoMqttNioClient.this.send(PahoMqttCodec.unsubscribe(packetId, topicFilters));
+                }
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void disconnect(final IMqttActionListener listener) throws MqttException
+    {
+        if (!this.mState.compareAndSet(CONNECTED, DISCONNECTING))
+        {
+            throw new MqttException(MqttException.REASON_CODE_CLIENT_ALREADY_DISCONNECTED);
+        }
+
+        try
+        {
+            this.mLoop.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (PahoMqttNioClient.this.mChannel == null)
+                    {
+                        // the connection was lost meanwhile
+                        PahoMqttNioClient.this.notifySuccess(listener);
+                        return;
+                    }
+                    PahoMqttNioClient.this.mDisconnectListener = listener;
+                    PahoMqttNioClient.this.mDisconnectSent = true;
+                    PahoMqttNioClient.this.mDeadline = System.nanoTime()
+                            + TimeUnit.MILLISECONDS.toNanos(QUIESCE_MILLIS);
+                    PahoMqttNioClient.this.send(PahoMqttCodec.disconnect());
+                }
+            });
+        } catch (RejectedExecutionException ex)
+        {
+            // the loop stopped and closed the connection already
+            this.mState.set(DISCONNECTED);
+            this.notifySuccess(listener);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void disconnectAndWait() throws MqttException
+    {
+        Waiter waiter = new Waiter();
+        this.disconnect(waiter);
+        waiter.await(QUIESCE_MILLIS + PahoMqttNioTransport.TICK_MILLIS * 2);
+    }
+
+    /**
+     * Opens the connection to the broker. Called by the loop.
+     */
+    private void open(InetSocketAddress address, ByteBuffer packet, long keepAlive, long timeout,
+            IMqttActionListener listener)
+    {
+        this.mGeneration++;
+        this.mConnectListener = listener;
+        this.mConnectPacket = packet;
+        this.mKeepAliveNanos = keepAlive;
+        this.mDeadline = timeout > 0 ? System.nanoTime() + timeout : 0;
+        this.mIn = ByteBuffer.allocate(8192);
+        this.mOut.clear();
+        this.mPingOutstanding = false;
+        this.mLoop.add(this);
+
+        try
+        {
+            this.mChannel = SocketChannel.open();
+            this.mChannel.configureBlocking(false);
+            this.mChannel.socket().setTcpNoDelay(true);
+            if (this.mChannel.connect(address))
+            {
+                this.mKey = this.mChannel.register(this.mLoop.selector(), SelectionKey.OP_READ, this);
+                this.onTcpConnected();
+            }
+            else
+            {
+                this.mKey = this.mChannel.register(this.mLoop.selector(), SelectionKey.OP_CONNECT, this);
+            }
+        } catch (IOException ex)
+        {
+            this.shutdown(new MqttException(MqttException.REASON_CODE_SERVER_CONNECT_ERROR, ex));
+        }
+    }
+
+    private void onTcpConnected()
+    {
+        ByteBuffer packet = this.mConnectPacket;
+        this.mConnectPacket = null;
+        this.send(packet);
+    }
+
+    /**
+     * Handles the ready operations of the key of the connection. Called by
+     * the loop.
+     */
+    void handle(SelectionKey key)
+    {
+        try
+        {
+            if (key.isConnectable())
+            {
+                this.mChannel.finishConnect();
+                this.updateInterest();
+                this.onTcpConnected();
+                return;
+            }
+            if (key.isReadable())
+            {
+                this.read();
+            }
+            if (key.isValid() && key.isWritable())
+            {
+                this.flush();
+            }
+        } catch (IOException ex)
+        {
+            int reason = this.mState.get() == CONNECTING ? MqttException.REASON_CODE_SERVER_CONNECT_ERROR
+                    : MqttException.REASON_CODE_CONNECTION_LOST;
+            this.shutdown(new MqttException(reason, ex));
+        } catch (RuntimeException ex)
+        {
+            // also closes connections receiving malformed packets
+            this.shutdown(new MqttException(MqttException.REASON_CODE_CONNECTION_LOST, ex));
+        }
+    }
+
+    /**
+     * Checks the timeouts and sends a ping if the connection was idle for the
+     * keep alive interval. Called by the loop.
+     */
+    void tick(long now)
+    {
+        int state = this.mState.get();
+        if (state != CONNECTED)
+        {
+            if (this.mDeadline != 0 && now - this.mDeadline > 0)
+            {
+                this.shutdown(new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT));
+            }
+            return;
+        }
+
+        if (this.mKeepAliveNanos <= 0)
+        {
+            return;
+        }
+        if (this.mPingOutstanding)
+        {
+            if (now - this.mPingSent > this.mKeepAliveNanos)
+            {
+                // the broker did not answer within the keep alive interval
+                this.shutdown(new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT));
+            }
+        }
+        else if (now - this.mLastSent >= this.mKeepAliveNanos)
+        {
+            this.mPingOutstanding = true;
+            this.mPingSent = now;
+            this.send(PahoMqttCodec.pingRequest());
+        }
+    }
+
+    /**
+     * Reads from the channel and handles all complete packets.
+     */
+    private void read() throws IOException
+    {
+        if (this.mChannel.read(this.mIn) < 0)
+        {
+            throw new EOFException("The broker closed the connection");
+        }
+
+        ByteBuffer in = this.mIn;
+        in.flip();
+        while (in.remaining() >= 2 && this.mChannel != null)
+        {
+            int start = in.position();
+            int header = in.get() & 0xFF;
+            int length = PahoMqttCodec.decodeLength(in);
+            if (length < 0 || in.remaining() < length)
+            {
+                in.position(start);
+                if (length >= 0 && in.capacity() < length + 5)
+                {
+                    // the packet does not fit, grow the buffer
+                    ByteBuffer grown = ByteBuffer.allocate(length + 5);
+                    grown.put(in);
+                    grown.flip();
+                    in = grown;
+                    this.mIn = grown;
+                }
+                break;
+            }
+
+            ByteBuffer body = in.slice();
+            body.limit(length);
+            in.position(in.position() + length);
+            this.dispatch(header, body);
+        }
+
+        if (this.mChannel != null)
+        {
+            in.compact();
+        }
+    }
+
+    /**
+     * Handles a single packet.
+     */
+    private void dispatch(int header, ByteBuffer body)
+    {
+        switch (header >> 4)
+        {
+            case PahoMqttCodec.CONNACK:
+                this.onConnack(body.get(1) & 0xFF);
+                break;
+            case PahoMqttCodec.PUBLISH:
+                this.onPublish(header, body);
+                break;
+            case PahoMqttCodec.PUBACK:
+            case PahoMqttCodec.PUBCOMP:
+                this.onAcknowledged(body.getShort() & 0xFFFF);
+                break;
+            case PahoMqttCodec.PUBREC:
+                this.send(PahoMqttCodec.ack(PahoMqttCodec.PUBREL, body.getShort() & 0xFFFF));
+                break;
+            case PahoMqttCodec.PUBREL:
+                int packetId = body.getShort() & 0xFFFF;
+                this.mIncoming.remove(packetId);
+                this.send(PahoMqttCodec.ack(PahoMqttCodec.PUBCOMP, packetId));
+                break;
+            case PahoMqttCodec.SUBACK:
+                packetId = body.getShort() & 0xFFFF;
+                this.mInFlight.remove(packetId);
+                while (body.hasRemaining())
+                {
+                    if ((body.get() & 0x80) != 0)
+                    {
+                        PahoMqttNioClient.LOG.warn("\t--> {} - the broker refused a subscription", this.mClientId);
+                    }
+                }
+                break;
+            case PahoMqttCodec.UNSUBACK:
+                this.mInFlight.remove(body.getShort() & 0xFFFF);
+                break;
+            case PahoMqttCodec.PINGRESP:
+                this.mPingOutstanding = false;
+                break;
+            default:
+                throw new IllegalStateException("Unexpected packet type " + (header >> 4));
+        }
+    }
+
+    private void onConnack(int returnCode)
+    {
+        if (returnCode != 0)
+        {
+            // the return codes match the reason codes of the Paho client
+            this.shutdown(new MqttException(returnCode));
+            return;
+        }
+
+        this.mDeadline = 0;
+        this.mLastSent = System.nanoTime();
+        IMqttActionListener listener = this.mConnectListener;
+        this.mConnectListener = null;
+        this.mState.set(CONNECTED);
+        PahoMqttNioClient.LOG.debug("\t--> {} connected to {}:{}", new Object[] { this.mClientId, this.mHost,
+                this.mPort });
+        this.notifySuccess(listener);
+    }
+
+    private void onPublish(int header, ByteBuffer body)
+    {
+        final int qos = (header >> 1) & 3;
+        final String topic = PahoMqttCodec.readString(body);
+        final int packetId = qos > 0 ? body.getShort() & 0xFFFF : 0;
+        byte[] payload = new byte[body.remaining()];
+        body.get(payload);
+
+        if (qos == 2 && !this.mIncoming.add(packetId))
+        {
+            // the broker sent the message again before it got the PUBREC
+            this.send(PahoMqttCodec.ack(PahoMqttCodec.PUBREC, packetId));
+            return;
+        }
+
+        final Message message = new Message(payload, qos, (header & 1) != 0, (header & 0x08) != 0);
+        final int generation = this.mGeneration;
+        if (this.mPending.incrementAndGet() >= MAX_PENDING && !this.mReadPaused)
+        {
+            // stop reading until the callbacks caught up
+            this.mReadPaused = true;
+            this.updateInterest();
+        }
+
+        this.callback(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                PahoMqttNioClient.this.deliver(generation, topic, packetId, message);
+            }
+        });
+    }
+
+    /**
+     * Passes a received message to the callback and acknowledges it on the
+     * loop afterwards. Called on the callback executor.
+     */
+    private void deliver(final int generation, String topic, final int packetId, final Message message)
+    {
+        Exception failure = null;
+        try
+        {
+            MqttCallback callback = this.mCallback;
+            if (callback != null)
+            {
+                callback.messageArrived(topic, message);
+            }
+        } catch (Exception ex)
+        {
+            failure = ex;
+        }
+
+        final Exception cause = failure;
+        final int pending = this.mPending.decrementAndGet();
+        try
+        {
+            this.mLoop.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    PahoMqttNioClient.this.onDelivered(generation, packetId, message.getQos(), pending, cause);
+                }
+            });
+        } catch (RejectedExecutionException ex)
+        {
+            // the loop stopped and closed the connection already
+            PahoMqttNioClient.LOG.debug("\t--> {} - no acknowledgement, the transport is stopping", this.mClientId);
+        }
+    }
+
+    /**
+     * Acknowledges a message passed to the callback. Called by the loop.
+     */
+    private void onDelivered(int generation, int packetId, int qos, int pending, Exception cause)
+    {
+        if (this.mReadPaused && pending <= MAX_PENDING / 2)
+        {
+            this.mReadPaused = false;
+            this.updateInterest();
+        }
+        if (generation != this.mGeneration || this.mChannel == null)
+        {
+            // the message belongs to a connection closed meanwhile
+            return;
+        }
+
+        if (cause != null)
+        {
+            // close the connection without acknowledging the message, the
+            // broker redelivers it
+            this.shutdown(new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, cause));
+        }
+        else if (qos == 1)
+        {
+            this.send(PahoMqttCodec.ack(PahoMqttCodec.PUBACK, packetId));
+        }
+        else if (qos == 2)
+        {
+            this.send(PahoMqttCodec.ack(PahoMqttCodec.PUBREC, packetId));
+        }
+    }
+
+    private void onAcknowledged(int packetId)
+    {
+        if (this.mInFlight.containsKey(packetId))
+        {
+            this.notifySuccess(this.mInFlight.remove(packetId));
+        }
+    }
+
+    /**
+     * Queues a packet to be written with the next flush of the loop.
+     */
+    private void send(ByteBuffer packet)
+    {
+        if (this.mChannel == null)
+        {
+            return;
+        }
+        this.mOut.add(packet);
+        this.mLastSent = System.nanoTime();
+        if (!this.mDirty)
+        {
+            this.mDirty = true;
+            this.mLoop.flushLater(this);
+        }
+    }
+
+    /**
+     * Writes as much of the queued packets as the channel accepts with a
+     * single gathering write. Called by the loop.
+     */
+    void flush()
+    {
+        this.mDirty = false;
+        if (this.mChannel == null || this.mKey == null || !this.mChannel.isConnected())
+        {
+            return;
+        }
+
+        try
+        {
+            while (!this.mOut.isEmpty())
+            {
+                int count = 0;
+                for (ByteBuffer packet : this.mOut)
+                {
+                    this.mWrite[count++] = packet;
+                    if (count == this.mWrite.length)
+                    {
+                        break;
+                    }
+                }
+                this.mChannel.write(this.mWrite, 0, count);
+
+                int written = 0;
+                while (written < count && !this.mWrite[written].hasRemaining())
+                {
+                    this.mOut.poll();
+                    written++;
+                }
+                Arrays.fill(this.mWrite, 0, count, null);
+                if (written < count)
+                {
+                    // the socket buffer is full, continue when it is writable
+                    break;
+                }
+            }
+        } catch (IOException ex)
+        {
+            this.shutdown(new MqttException(MqttException.REASON_CODE_CONNECTION_LOST, ex));
+            return;
+        }
+
+        if (this.mOut.isEmpty() && this.mDisconnectSent)
+        {
+            // the DISCONNECT packet was written
+            this.shutdown(null);
+            return;
+        }
+        this.updateInterest();
+    }
+
+    private void updateInterest()
+    {
+        if (this.mKey != null && this.mKey.isValid() && this.mChannel.isConnected())
+        {
+            this.mKey.interestOps((this.mReadPaused ? 0 : SelectionKey.OP_READ)
+                    | (this.mOut.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+        }
+    }
+
+    /**
+     * Closes the connection because the loop stops. Called by the loop.
+     */
+    void close()
+    {
+        this.shutdown(new MqttException(MqttException.REASON_CODE_CONNECTION_LOST));
+    }
+
+    /**
+     * Closes the connection, fails the operations in flight and notifies the
+     * listener or callback waiting for the outcome. Called by the loop.
+     *
+     * @param cause
+     *            The failure, <code>null</code> for a requested disconnect.
+     */
+    private void shutdown(MqttException cause)
+    {
+        if (this.mChannel == null)
+        {
+            return;
+        }
+
+        if (this.mKey != null)
+        {
+            this.mKey.cancel();
+            this.mKey = null;
+        }
+        try
+        {
+            this.mChannel.close();
+        } catch (IOException ex)
+        {
+            PahoMqttNioClient.LOG.debug("\t--> could not close connection: {}", ex);
+        }
+        this.mChannel = null;
+        this.mLoop.remove(this);
+        this.mOut.clear();
+        this.mIncoming.clear();
+        this.mDeadline = 0;
+        this.mConnectPacket = null;
+        this.mDisconnectSent = false;
+
+        MqttException failure = cause != null ? cause
+                : new MqttException(MqttException.REASON_CODE_CLIENT_DISCONNECTING);
+        for (IMqttActionListener listener : this.mInFlight.values())
+        {
+            this.notifyFailure(listener, failure);
+        }
+        this.mInFlight.clear();
+
+        IMqttActionListener connectListener = this.mConnectListener;
+        IMqttActionListener disconnectListener = this.mDisconnectListener;
+        this.mConnectListener = null;
+        this.mDisconnectListener = null;
+
+        int state = this.mState.getAndSet(DISCONNECTED);
+        if (state == CONNECTING)
+        {
+            this.notifyFailure(connectListener, failure);
+        }
+        else if (state == DISCONNECTING)
+        {
+            this.notifySuccess(disconnectListener);
+        }
+        else if (state == CONNECTED)
+        {
+            final MqttException lost = failure;
+            this.callback(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    MqttCallback callback = PahoMqttNioClient.this.mCallback;
+                    if (callback != null)
+                    {
+                        callback.connectionLost(lost);
+                    }
+                }
+            });
+        }
+    }
+
+    private int nextPacketId()
+    {
+        do
+        {
+            this.mNextPacketId = this.mNextPacketId % 65535 + 1;
+        } while (this.mInFlight.containsKey(this.mNextPacketId));
+        return this.mNextPacketId;
+    }
+
+    private void checkConnected() throws MqttException
+    {
+        if (this.mState.get() != CONNECTED)
+        {
+            throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+        }
+    }
+
+    /**
+     * Runs a task on the loop of the client.
+     *
+     * @throws MqttException
+     *             if the loop is stopped.
+     */
+    private void execute(Runnable task) throws MqttException
+    {
+        try
+        {
+            this.mLoop.execute(task);
+        } catch (RejectedExecutionException ex)
+        {
+            this.mState.set(DISCONNECTED);
+            throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED, ex);
+        }
+    }
+
+    private void notifySuccess(final IMqttActionListener listener)
+    {
+        if (listener != null)
+        {
+            this.callback(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    listener.onSuccess(null);
+                }
+            });
+        }
+    }
+
+    private void notifyFailure(final IMqttActionListener listener, final Throwable cause)
+    {
+        if (listener != null)
+        {
+            this.callback(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    listener.onFailure(null, cause);
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues a callback. The callbacks of a client run one after another on
+     * the callback executor.
+     */
+    private void callback(Runnable task)
+    {
+        this.mCallbacks.add(task);
+        this.scheduleCallbacks();
+    }
+
+    private void scheduleCallbacks()
+    {
+        if (!this.mCallbacks.isEmpty() && this.mCallbacksBusy.compareAndSet(false, true))
+        {
+            try
+            {
+                this.mCallbackExecutor.execute(this.mCallbackDrain);
+            } catch (RejectedExecutionException ex)
+            {
+                // the transport is stopping
+                this.mCallbacks.clear();
+                this.mCallbacksBusy.set(false);
+                PahoMqttNioClient.LOG.debug("\t--> dropped the callbacks of {}, the transport is stopping",
+                        this.mClientId);
+            }
+        }
+    }
+
+    /**
+     * Runs a batch of callbacks and hands the thread over to the next client
+     * afterwards. Called on the callback executor.
+     */
+    private void drainCallbacks()
+    {
+        for (int i = 0; i < CALLBACK_BATCH; i++)
+        {
+            Runnable task = this.mCallbacks.poll();
+            if (task == null)
+            {
+                break;
+            }
+            try
+            {
+                task.run();
+            } catch (RuntimeException ex)
+            {
+                PahoMqttNioClient.LOG.error("\t--> unexpected error in a callback of {}", this.mClientId, ex);
+            }
+        }
+
+        this.mCallbacksBusy.set(false);
+        this.scheduleCallbacks();
+    }
+
+    // --------------------------------------------------
+    // INNER CLASSES
+    // --------------------------------------------------
+
+    /**
+     * A received message, the duplicate flag can only be set by a subclass.
+     */
+    private static final class Message extends MqttMessage
+    {
+        private Message(byte[] payload, int qos, boolean retained, boolean duplicate)
+        {
+            super(payload);
+            this.setQos(qos);
+            this.setRetained(retained);
+            this.setDuplicate(duplicate);
+        }
+    }
+
+    /**
+     * Waits for the outcome of a connect or disconnect.
+     */
+    private static final class Waiter implements IMqttActionListener
+    {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile Throwable   mFailure;
+
+        @Override
+        public void onSuccess(IMqttToken asyncActionToken)
+        {
+            this.mDone.countDown();
+        }
+
+        @Override
+        public void onFailure(IMqttToken asyncActionToken, Throwable exception)
+        {
+            this.mFailure = exception;
+            this.mDone.countDown();
+        }
+
+        /**
+         * @param timeoutMillis
+         *            The time to wait in milliseconds, 0 to wait until the
+         *            outcome is known.
+         */
+        private void await(long timeoutMillis) throws MqttException
+        {
+            try
+            {
+                if (timeoutMillis <= 0)
+                {
+                    this.mDone.await();
+                }
+                else if (!this.mDone.await(timeoutMillis, TimeUnit.MILLISECONDS))
+                {
+                    throw new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT);
+                }
+            } catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, ex);
+            }
+
+            if (this.mFailure instanceof MqttException)
+            {
+                throw (MqttException) this.mFailure;
+            }
+            if (this.mFailure != null)
+            {
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, this.mFailure);
+            }
+        }
+    }
+}
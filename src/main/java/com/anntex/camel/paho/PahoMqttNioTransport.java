@@ -0,0 +1,326 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class runs the connections of {@link PahoMqttNioClient} instances on a
+ * fixed number of event loops. Every event loop is a single thread serving
+ * its connections with a {@link Selector}, a client is bound to one loop for
+ * its lifetime and the clients are spread over the loops round robin. The
+ * callbacks of the clients run on a separate shared executor, so a slow route
+ * never stalls the network IO of other connections. The number of threads is
+ * therefore independent of the number of connections.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+final class PahoMqttNioTransport
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private static final Logger   LOG         = LoggerFactory.getLogger(PahoMqttNioTransport.class);
+
+    /**
+     * Defines the interval in milliseconds every loop checks the keep alive
+     * and the timeouts of its clients at.
+     */
+    static final long             TICK_MILLIS = 250;
+
+    private final EventLoop[]     mLoops;
+
+    /**
+     * Defines the thread pool running the loops.
+     */
+    private final ExecutorService mLoopExecutor;
+
+    /**
+     * Defines the thread pool running the callbacks of the clients.
+     */
+    private final ExecutorService mCallbackExecutor;
+
+    private final AtomicInteger   mNextLoop   = new AtomicInteger();
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    /**
+     * @param loopExecutor
+     *            The thread pool to run the loops on. It needs one thread per
+     *            loop.
+     * @param loops
+     *            The number of loops.
+     * @param callbackExecutor
+     *            The thread pool to run the callbacks of the clients on.
+     * @throws IOException
+     *             if a selector can not be opened.
+     */
+    PahoMqttNioTransport(ExecutorService loopExecutor, int loops, ExecutorService callbackExecutor)
+            throws IOException
+    {
+        this.mLoopExecutor = loopExecutor;
+        this.mCallbackExecutor = callbackExecutor;
+        this.mLoops = new EventLoop[loops];
+        for (int i = 0; i < loops; i++)
+        {
+            this.mLoops[i] = new EventLoop(Selector.open());
+        }
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * Starts the loops.
+     */
+    void start()
+    {
+        for (EventLoop loop : this.mLoops)
+        {
+            loop.mRunning = true;
+            this.mLoopExecutor.execute(loop);
+        }
+        PahoMqttNioTransport.LOG.info("\t--> started {} nio event loops", this.mLoops.length);
+    }
+
+    /**
+     * Stops the loops. The connections still open are closed as if they
+     * were lost.
+     */
+    void stop()
+    {
+        for (EventLoop loop : this.mLoops)
+        {
+            loop.mRunning = false;
+            loop.mSelector.wakeup();
+        }
+    }
+
+    /**
+     * @return the loop the next client is bound to.
+     */
+    EventLoop next()
+    {
+        return this.mLoops[(this.mNextLoop.getAndIncrement() & Integer.MAX_VALUE) % this.mLoops.length];
+    }
+
+    /**
+     * @return the thread pool running the callbacks of the clients.
+     */
+    ExecutorService getCallbackExecutor()
+    {
+        return this.mCallbackExecutor;
+    }
+
+    // --------------------------------------------------
+    // INNER CLASSES
+    // --------------------------------------------------
+
+    /**
+     * A single event loop. The state of its clients is only accessed by its
+     * thread, other threads hand tasks over with {@link #execute(Runnable)}.
+     */
+    static final class EventLoop implements Runnable
+    {
+        private final Selector                 mSelector;
+
+        /**
+         * Defines the tasks handed to the loop by other threads.
+         */
+        private final Queue<Runnable>          mTasks   = new ConcurrentLinkedQueue<Runnable>();
+
+        /**
+         * Defines if a wakeup of the selector is pending, so a burst of tasks
+         * wakes the loop only once.
+         */
+        private final AtomicBoolean            mWakeup  = new AtomicBoolean();
+
+        /**
+         * Defines the clients with an open connection.
+         */
+        private final Set<PahoMqttNioClient>   mClients = new LinkedHashSet<PahoMqttNioClient>();
+
+        /**
+         * Defines the clients with packets queued since the last flush.
+         */
+        private final List<PahoMqttNioClient>  mDirty   = new ArrayList<PahoMqttNioClient>();
+
+        private volatile boolean               mRunning;
+
+        private volatile Thread                mThread;
+
+        private EventLoop(Selector selector)
+        {
+            this.mSelector = selector;
+        }
+
+        /**
+         * Runs a task on the loop.
+         *
+         * @param task
+         *            The task to run.
+         * @throws RejectedExecutionException
+         *             if the loop is stopped.
+         */
+        void execute(Runnable task)
+        {
+            if (!this.mRunning)
+            {
+                throw new RejectedExecutionException("The nio event loop is stopped");
+            }
+            this.mTasks.add(task);
+            if (Thread.currentThread() != this.mThread && this.mWakeup.compareAndSet(false, true))
+            {
+                this.mSelector.wakeup();
+            }
+        }
+
+        /**
+         * @return the selector of the loop.
+         */
+        Selector selector()
+        {
+            return this.mSelector;
+        }
+
+        /**
+         * Adds a client opening its connection. Only called by the loop.
+         */
+        void add(PahoMqttNioClient client)
+        {
+            this.mClients.add(client);
+        }
+
+        /**
+         * Removes a client closing its connection. Only called by the loop.
+         */
+        void remove(PahoMqttNioClient client)
+        {
+            this.mClients.remove(client);
+        }
+
+        /**
+         * Flushes a client after the current tasks and events. Only called
+         * by the loop.
+         */
+        void flushLater(PahoMqttNioClient client)
+        {
+            this.mDirty.add(client);
+        }
+
+        @Override
+        public void run()
+        {
+            this.mThread = Thread.currentThread();
+            long nextTick = System.nanoTime();
+            try
+            {
+                while (this.mRunning)
+                {
+                    this.mSelector.select(TICK_MILLIS);
+                    this.mWakeup.set(false);
+
+                    Runnable task;
+                    while ((task = this.mTasks.poll()) != null)
+                    {
+                        this.run(task);
+                    }
+
+                    Iterator<SelectionKey> keys = this.mSelector.selectedKeys().iterator();
+                    while (keys.hasNext())
+                    {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid())
+                        {
+                            ((PahoMqttNioClient) key.attachment()).handle(key);
+                        }
+                    }
+
+                    long now = System.nanoTime();
+                    if (now - nextTick >= 0)
+                    {
+                        nextTick = now + TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+                        for (PahoMqttNioClient client : new ArrayList<PahoMqttNioClient>(this.mClients))
+                        {
+                            client.tick(now);
+                        }
+                    }
+
+                    // write all packets queued by the tasks and events with
+                    // as few system calls as possible
+                    for (int i = 0; i < this.mDirty.size(); i++)
+                    {
+                        this.mDirty.get(i).flush();
+                    }
+                    this.mDirty.clear();
+                }
+            } catch (IOException ex)
+            {
+                PahoMqttNioTransport.LOG.error("\t--> nio event loop failed", ex);
+            } finally
+            {
+                this.mRunning = false;
+                for (PahoMqttNioClient client : new ArrayList<PahoMqttNioClient>(this.mClients))
+                {
+                    client.close();
+                }
+                this.mTasks.clear();
+                try
+                {
+                    this.mSelector.close();
+                } catch (IOException ex)
+                {
+                    PahoMqttNioTransport.LOG.warn("\t--> could not close the selector of a nio event loop: {}", ex);
+                }
+            }
+        }
+
+        private void run(Runnable task)
+        {
+            try
+            {
+                task.run();
+            } catch (RuntimeException ex)
+            {
+                PahoMqttNioTransport.LOG.error("\t--> unexpected error in a nio event loop", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.util.IOHelper;
+
+/**
+ * This class converts message bodies into the byte array published by the
+ * Paho client. The common body types are converted without the generic type
+ * converter lookup of Camel: byte arrays and heap buffers backed by a whole
+ * array are used as they are, other buffers are copied into a new array,
+ * streams are read through a scratch buffer of the calling thread and strings
+ * are encoded with a cached UTF-8 encoder. Like the type converter, a string
+ * is encoded with the charset of the exchange and falls back to the default
+ * charset of Camel, so only UTF-8 strings take the cached encoder.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+final class PahoMqttPayloads
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private static final Charset                    UTF_8              = Charset.forName("UTF-8");
+
+    /**
+     * Defines the initial size of the scratch buffer of every thread.
+     */
+    private static final int                        SCRATCH_SIZE       = 8 * 1024;
+
+    /**
+     * Defines the size up to which a grown scratch buffer is kept for the next
+     * conversion. Larger buffers are released to avoid pinning memory.
+     */
+    private static final int                        MAX_SCRATCH_SIZE   = 1024 * 1024;
+
+    private static final ThreadLocal<CharsetEncoder> ENCODER           = new ThreadLocal<CharsetEncoder>()
+    {
+        @Override
+        protected CharsetEncoder initialValue()
+        {
+            return UTF_8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+    };
+
+    private static final ThreadLocal<byte[]>        SCRATCH            = new ThreadLocal<byte[]>()
+    {
+        @Override
+        protected byte[] initialValue()
+        {
+            return new byte[SCRATCH_SIZE];
+        }
+    };
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    private PahoMqttPayloads()
+    {
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * Creates the marker the framed payloads of this component start with:
+     * envelopes ({@link PahoMqttEnvelope}), compressed payloads
+     * ({@link PahoMqttCompression}) and chunks ({@link PahoMqttChunks}). Every
+     * marker is <tt>0xE7 'P'</tt>, a byte naming the format and the version
+     * of the format. The formats differ only in their third byte, so every
+     * detection compares the whole marker.
+     * <p>
+     * 0xE7 itself is a valid UTF-8 lead byte, but it starts a three byte
+     * sequence whose next byte has to be in the range 0x80 to 0xBF. 'P' is
+     * outside of it, so no valid UTF-8 text starts with a marker. Binary
+     * payloads can start with one.
+     *
+     * @param format
+     *            The byte naming the format.
+     * @return the four bytes of the marker.
+     */
+    static byte[] marker(char format)
+    {
+        return new byte[] { (byte) 0xE7, 'P', (byte) format, 1 };
+    }
+
+    /**
+     * @param payload
+     *            The payload to check, at least as long as the marker.
+     * @param marker
+     *            The marker created by {@link #marker(char)}.
+     * @return <code>true</code> if the payload starts with the marker.
+     */
+    static boolean hasMarker(byte[] payload, byte[] marker)
+    {
+        for (int i = 0; i < marker.length; i++)
+        {
+            if (payload[i] != marker[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Converts the body of the in message of an exchange into a byte array.
+     *
+     * @param exchange
+     *            The exchange to convert the body of.
+     * @return the payload or <code>null</code> if the body can not be
+     *         converted.
+     * @throws IOException
+     *             if a stream body can not be read.
+     */
+    static byte[] toBytes(Exchange exchange) throws IOException
+    {
+        Object body = exchange.getIn().getBody();
+
+        if (body instanceof byte[])
+        {
+            return (byte[]) body;
+        }
+        else if (body instanceof String && UTF_8.name().equalsIgnoreCase(IOHelper.getCharsetName(exchange)))
+        {
+            return PahoMqttPayloads.encode((String) body);
+        }
+        else if (body instanceof ByteBuffer)
+        {
+            return PahoMqttPayloads.copyOf((ByteBuffer) body);
+        }
+        else if (body instanceof InputStream)
+        {
+            InputStream stream = (InputStream) body;
+            try
+            {
+                return PahoMqttPayloads.read(stream);
+            } finally
+            {
+                IOHelper.close(stream);
+            }
+        }
+
+        // leave any other type to the type converters
+        return exchange.getIn().getBody(byte[].class);
+    }
+
+    /**
+     * Returns the remaining bytes of a buffer without changing its position.
+     * The backing array of a heap buffer is returned as it is if the buffer
+     * spans the whole array.
+     *
+     * @param buffer
+     *            The buffer to read.
+     * @return the remaining bytes of the buffer.
+     */
+    static byte[] copyOf(ByteBuffer buffer)
+    {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+                && buffer.remaining() == buffer.array().length)
+        {
+            return buffer.array();
+        }
+
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Encodes a string as UTF-8 with the cached encoder of the calling thread.
+     *
+     * @param value
+     *            The string to encode.
+     * @return the encoded bytes.
+     */
+    static byte[] encode(String value)
+    {
+        CharsetEncoder encoder = ENCODER.get();
+        int maxLength = (int) Math.min(Integer.MAX_VALUE, (long) value.length() * 3);
+        ByteBuffer out = ByteBuffer.wrap(PahoMqttPayloads.scratch(maxLength));
+
+        encoder.reset();
+        CharBuffer in = CharBuffer.wrap(value);
+        CoderResult result = encoder.encode(in, out, true);
+        if (result.isUnderflow())
+        {
+            result = encoder.flush(out);
+        }
+        if (!result.isUnderflow())
+        {
+            // can not happen with the replace actions and the worst case size
+            try
+            {
+                result.throwException();
+            } catch (CharacterCodingException ex)
+            {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    /**
+     * Reads a stream to its end through the scratch buffer of the calling
+     * thread.
+     *
+     * @param stream
+     *            The stream to read.
+     * @return the read bytes.
+     * @throws IOException
+     *             if the stream can not be read.
+     */
+    static byte[] read(InputStream stream) throws IOException
+    {
+        byte[] buffer = SCRATCH.get();
+        int length = 0;
+        int read;
+        while ((read = stream.read(buffer, length, buffer.length - length)) >= 0)
+        {
+            length += read;
+            if (length == buffer.length)
+            {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                if (buffer.length <= MAX_SCRATCH_SIZE)
+                {
+                    SCRATCH.set(buffer);
+                }
+            }
+        }
+
+        return Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * @return a scratch array of at least the given size. The array of the
+     *         calling thread is returned if it is large enough.
+     */
+    static byte[] scratch(int size)
+    {
+        byte[] scratch = SCRATCH.get();
+        if (scratch.length >= size)
+        {
+            return scratch;
+        }
+
+        byte[] grown = new byte[size];
+        if (size <= MAX_SCRATCH_SIZE)
+        {
+            SCRATCH.set(grown);
+        }
+        return grown;
+    }
+}
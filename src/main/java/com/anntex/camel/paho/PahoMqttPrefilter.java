@@ -0,0 +1,209 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import java.nio.charset.Charset;
+
+import com.anntex.camel.paho.config.PahoMqttConfiguration;
+
+/**
+ * This class decides if a received message is delivered to the route of a
+ * consumer before an exchange is created for it. A message is delivered if
+ * its topic matches one of the include filters, if any, and none of the
+ * exclude filters, if its payload starts with the configured prefix and if
+ * the configured {@link PahoMqttMessageFilter} accepts it. The cheap checks
+ * run first.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+final class PahoMqttPrefilter
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    /**
+     * Defines the marker of a payload prefix given as hexadecimal bytes.
+     */
+    static final String                     HEX_PREFIX = "hex:";
+
+    private static final Charset            UTF_8      = Charset.forName("UTF-8");
+
+    /**
+     * Defines the topic filters a topic has to match, or <code>null</code> if
+     * all topics are included.
+     */
+    private final PahoMqttTopicTrie<Boolean> mIncludes;
+
+    /**
+     * Defines the topic filters a topic must not match, or <code>null</code>
+     * if no topic is excluded.
+     */
+    private final PahoMqttTopicTrie<Boolean> mExcludes;
+
+    /**
+     * Defines the bytes a payload has to start with, or <code>null</code>.
+     */
+    private final byte[]                    mPayloadPrefix;
+
+    /**
+     * Defines the filter of the application, or <code>null</code>.
+     */
+    private final PahoMqttMessageFilter     mFilter;
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    private PahoMqttPrefilter(PahoMqttTopicTrie<Boolean> includes, PahoMqttTopicTrie<Boolean> excludes,
+            byte[] payloadPrefix, PahoMqttMessageFilter filter)
+    {
+        this.mIncludes = includes;
+        this.mExcludes = excludes;
+        this.mPayloadPrefix = payloadPrefix;
+        this.mFilter = filter;
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * Creates the prefilter of a consumer.
+     *
+     * @param configuration
+     *            The configuration of the consumer.
+     * @return the prefilter, or <code>null</code> if no filter option is set.
+     * @throws IllegalArgumentException
+     *             if the payload prefix is not valid hexadecimal.
+     */
+    static PahoMqttPrefilter create(PahoMqttConfiguration configuration)
+    {
+        PahoMqttTopicTrie<Boolean> includes = PahoMqttPrefilter.parseFilters(configuration.getIncludeTopics());
+        PahoMqttTopicTrie<Boolean> excludes = PahoMqttPrefilter.parseFilters(configuration.getExcludeTopics());
+        byte[] payloadPrefix = PahoMqttPrefilter.parsePrefix(configuration.getPayloadPrefix());
+        PahoMqttMessageFilter filter = configuration.getMessageFilter();
+
+        if (includes == null && excludes == null && payloadPrefix == null && filter == null)
+        {
+            return null;
+        }
+        return new PahoMqttPrefilter(includes, excludes, payloadPrefix, filter);
+    }
+
+    /**
+     * @param topic
+     *            The topic the message was published to.
+     * @param payload
+     *            The payload of the message.
+     * @return <code>true</code> if the message is delivered to the route.
+     */
+    boolean accept(String topic, byte[] payload)
+    {
+        if (this.mPayloadPrefix != null && !PahoMqttPrefilter.startsWith(payload, this.mPayloadPrefix))
+        {
+            return false;
+        }
+        if (this.mIncludes != null && !this.mIncludes.matches(topic))
+        {
+            return false;
+        }
+        if (this.mExcludes != null && this.mExcludes.matches(topic))
+        {
+            return false;
+        }
+        return this.mFilter == null || this.mFilter.accept(topic, payload);
+    }
+
+    /**
+     * Parses a comma separated list of topic filters.
+     *
+     * @return the trie of the filters, or <code>null</code> if the list is
+     *         empty.
+     */
+    private static PahoMqttTopicTrie<Boolean> parseFilters(String filters)
+    {
+        if (filters == null || filters.trim().isEmpty())
+        {
+            return null;
+        }
+
+        PahoMqttTopicTrie<Boolean> trie = new PahoMqttTopicTrie<Boolean>();
+        for (String filter : filters.split(","))
+        {
+            filter = filter.trim();
+            if (!filter.isEmpty())
+            {
+                trie.add(filter, Boolean.TRUE);
+            }
+        }
+        return trie.isEmpty() ? null : trie;
+    }
+
+    /**
+     * Parses a payload prefix, either as UTF-8 text or, starting with
+     * {@link #HEX_PREFIX}, as hexadecimal bytes.
+     *
+     * @return the bytes of the prefix, or <code>null</code> if it is empty.
+     */
+    static byte[] parsePrefix(String prefix)
+    {
+        if (prefix == null || prefix.isEmpty())
+        {
+            return null;
+        }
+        if (!prefix.startsWith(HEX_PREFIX))
+        {
+            return prefix.getBytes(PahoMqttPrefilter.UTF_8);
+        }
+
+        String hex = prefix.substring(HEX_PREFIX.length());
+        if (hex.isEmpty() || hex.length() % 2 != 0)
+        {
+            throw new IllegalArgumentException("Invalid hexadecimal payload prefix: " + prefix);
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0)
+            {
+                throw new IllegalArgumentException("Invalid hexadecimal payload prefix: " + prefix);
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+
+    private static boolean startsWith(byte[] payload, byte[] prefix)
+    {
+        if (payload.length < prefix.length)
+        {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++)
+        {
+            if (payload[i] != prefix[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
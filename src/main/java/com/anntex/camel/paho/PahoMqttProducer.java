@@ -17,48 +17,103 @@
 package com.anntex.camel.paho;
 
 import com.anntex.camel.paho.config.PahoMqttConfiguration;
+import org.apache.camel.AsyncCallback;
 import org.apache.camel.Exchange;
-import org.apache.camel.impl.DefaultProducer;
-import org.eclipse.paho.client.mqttv3.MqttClient;
-import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.apache.camel.InvalidPayloadException;
+import org.apache.camel.Message;
+import org.apache.camel.impl.DefaultAsyncProducer;
+import org.apache.camel.util.IOHelper;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.NotActiveException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
 /**
  * The producer class is responsible to process content and transform
  * this into MQTT messages to be able to publish these information to a MQTT
  * broker instance. Publishing information is realized by calling the Eclipse
  * Paho MQTT client implementation of the component.
+ * <p>
+ * The producer works asynchronously: the Camel {@link AsyncCallback} of an
+ * exchange is completed by the delivery token listener of the Paho client, so
+ * a single route thread can keep up to
+ * {@link PahoMqttConfiguration#getMaxInFlight()} publishes pipelined per
+ * connection. With a {@link PahoMqttConfiguration#getConnectionPoolSize()}
+ * greater than one, exchanges are spread across several client connections,
+ * either by a hash of the topic (keeping the order per topic) or round-robin.
+ * Lost connections are re-established in the background, see
+ * {@link PahoMqttProducerConnection}.
+ * <p>
+ * The headers {@link PahoMqttConstants#TOPIC}, {@link PahoMqttConstants#QOS}
+ * and {@link PahoMqttConstants#RETAINED} override the topic, QoS level and
+ * retain flag of the end point per exchange. With the header
+ * {@link PahoMqttConstants#OPERATION} set to
+ * {@link PahoMqttConstants#OPERATION_GET} nothing is published, the body is
+ * replaced by the newest message of the topic in the last value cache of the
+ * component instead.
+ * <p>
+ * With an {@link PahoMqttConfiguration#getEnvelopeSize()} greater than one,
+ * small publishes to the same topic are packed into envelopes, see
+ * {@link PahoMqttCoalescer} and {@link PahoMqttEnvelope}, so the broker
+ * handles one MQTT message and one acknowledgement per envelope. With a
+ * {@link PahoMqttConfiguration#getChunkSize()} the body is streamed as a
+ * transfer of chunks instead, see {@link PahoMqttChunks}.
  *
  * @author dennis.grewe [https://github.com/Anntex]
  * @version 0.9-SNAPSHOT March 04, 2015
  */
-public class PahoMqttProducer extends DefaultProducer
+public class PahoMqttProducer extends DefaultAsyncProducer
 {
     // --------------------------------------------------
     // PROPERTIES
     // --------------------------------------------------
 
-    private static final Logger         LOG = LoggerFactory.getLogger(PahoMqttProducer.class);
+    private static final Logger                LOG = LoggerFactory.getLogger(PahoMqttProducer.class);
 
     /**
-     * Defines a MQTT client based on the Paho implementation.
+     * Defines the MQTT client connections of this producer.
      */
-    private final MqttClient            mMqttClient;
+    private final PahoMqttProducerConnection[] mConnections;
 
     /**
-     * Defines the MQTT connection options for the end point client.
+     * Defines a reference to a {@link PahoMqttConfiguration} configuration used
+     * by this end point.
      */
-    private final MqttConnectOptions    mConnectOptions;
+    private final PahoMqttConfiguration        mConfiguration;
 
     /**
-     * Defines a reference to a {@link PahoMqttConfiguration} configuration used
-     * by this end point.
+     * Defines the next connection index used by the round-robin strategy.
+     */
+    private final AtomicInteger                mNextConnection = new AtomicInteger();
+
+    /**
+     * Defines the executor running the reconnect attempts of the connections.
+     */
+    private ScheduledExecutorService           mScheduler;
+
+    /**
+     * Defines the cache of validated topics this producer publishes to.
      */
-    private final PahoMqttConfiguration mConfiguration;
+    private final PahoMqttTopicCache           mTopics;
+
+    /**
+     * Defines the coalescer packing publishes into envelopes, or
+     * <code>null</code> if packing is disabled.
+     */
+    private PahoMqttCoalescer                  mCoalescer;
+
+    /**
+     * Defines the timer publishing incomplete envelopes.
+     */
+    private ScheduledExecutorService           mEnvelopeTimer;
 
 // --------------------------------------------------
     // CONSTRUCTOR
@@ -72,24 +127,30 @@ public class PahoMqttProducer extends DefaultProducer
      *            end point definition.
      * @throws NotActiveException
      *             if the end point can not create an instance of
-     *             {@link MqttClient}.
+     *             {@link org.eclipse.paho.client.mqttv3.MqttAsyncClient}.
      */
     public PahoMqttProducer(PahoMqttEndpoint endpoint, PahoMqttConfiguration configuration) throws NotActiveException
     {
         super(endpoint);
         this.mConfiguration = configuration;
+        this.mTopics = new PahoMqttTopicCache(configuration.getTopicCacheSize());
+
+        int poolSize = configuration.getConnectionPoolSize();
+        this.mConnections = new PahoMqttProducerConnection[poolSize];
 
         try
         {
             PahoMqttProducer.LOG
                     .info("\t--> create mqtt client and connection options based on the end point configurations");
-            // create a new instance of a MQTT client
-            this.mMqttClient = new MqttClient(configuration.getHost(), configuration.getEndPointName(), null);
-            // create new instance of MqttConnectOptions and fill in
-            // configuration options
-            this.mConnectOptions = new MqttConnectOptions();
-            this.mConnectOptions.setCleanSession(configuration.isCleanSession());
-            this.mConnectOptions.setConnectionTimeout(configuration.getConnectionTimeout());
+            for (int i = 0; i < poolSize; i++)
+            {
+                // the client id has to be unique per connection, so derive
+                // one per pooled connection
+                String clientId = poolSize == 1 ? configuration.getEndPointName()
+                        : configuration.getEndPointName() + "-" + i;
+                this.mConnections[i] = new PahoMqttProducerConnection(configuration,
+                        endpoint.getComponent().createClient(configuration, clientId), endpoint.getMetrics());
+            }
         } catch (MqttException ex)
         {
             PahoMqttProducer.LOG.error("An error occurred while creating a MQTT client: {}", ex);
@@ -110,59 +171,359 @@ public class PahoMqttProducer extends DefaultProducer
     {
         super.doStart();
 
-        // connect the client to the broker
-        this.mMqttClient.connect(this.mConnectOptions);
-        PahoMqttProducer.LOG.info("\t--> connected to {}",
-                PahoMqttProducer.this.mConfiguration.getHost());
+        // the scheduler runs the reconnect attempts of all connections,
+        // connections of the nio transport share the timer of the component
+        if (PahoMqttConfiguration.TRANSPORT_NIO.equals(this.mConfiguration.getTransport()))
+        {
+            this.mScheduler = ((PahoMqttEndpoint) this.getEndpoint()).getComponent().reconnectTimer();
+        }
+        else
+        {
+            this.mScheduler = this.getEndpoint().getCamelContext().getExecutorServiceManager()
+                    .newSingleThreadScheduledExecutor(this, "PahoMqttReconnect");
+        }
+
+        // connect the clients to the broker
+        for (PahoMqttProducerConnection connection : this.mConnections)
+        {
+            connection.connect(this.mScheduler);
+        }
+
+        // pack publishes into envelopes if configured
+        if (this.mConfiguration.getEnvelopeSize() > 1)
+        {
+            this.mEnvelopeTimer = this.getEndpoint().getCamelContext().getExecutorServiceManager()
+                    .newSingleThreadScheduledExecutor(this, "PahoMqttEnvelopeTimer");
+            this.mCoalescer = new PahoMqttCoalescer(this.mConfiguration.getEnvelopeSize(),
+                    this.mConfiguration.getEnvelopeTimeoutMillis(), this.mEnvelopeTimer,
+                    new PahoMqttCoalescer.Listener()
+                    {
+                        @Override
+                        public void onEnvelope(PahoMqttCoalescer.Envelope envelope)
+                        {
+                            PahoMqttProducer.this.publishEnvelope(envelope);
+                        }
+                    });
+        }
     }
 
     /*
      * (non-Javadoc)
-     * @see org.apache.camel.Processor#process(org.apache.camel.Exchange)
+     * @see org.apache.camel.AsyncProcessor#process(org.apache.camel.Exchange, org.apache.camel.AsyncCallback)
      */
     @Override
-    public void process(Exchange exchange) throws Exception
+    public boolean process(final Exchange exchange, final AsyncCallback callback)
     {
-        if (this.mMqttClient.isConnected())
-        {
-            // get configuration from this endpoint
-            PahoMqttConfiguration configuration = this.mConfiguration;
-
-            // extract the payload from message
-            byte[] payload = exchange.getIn().getBody(byte[].class);
+        // get configuration from this endpoint
+        PahoMqttConfiguration configuration = this.mConfiguration;
 
-            if (payload != null)
+        String operation = exchange.getIn().getHeader(PahoMqttConstants.OPERATION, String.class);
+        if (operation != null && !PahoMqttConstants.OPERATION_PUBLISH.equals(operation))
+        {
+            if (PahoMqttConstants.OPERATION_GET.equals(operation))
             {
-                final String pubTopic = configuration.getPubTopicName();
-                int qosLevel = configuration.getQosLevel();
-                boolean retained = configuration.isRetained();
-
-                this.mMqttClient.publish(pubTopic, payload, qosLevel, retained);
+                this.lookup(exchange);
             }
             else
             {
-                // no data was in the message body, so finish processing
-                PahoMqttProducer.LOG
-                        .info("\t--> No valid data to publish! Is your data really convertable into a byte array required by MQTT?");
+                exchange.setException(new IllegalArgumentException("Invalid operation: " + operation));
             }
+            callback.done(true);
+            return true;
         }
-        else
+
+        // headers override the topic, QoS and retain flag of the end point
+        Message in = exchange.getIn();
+        String pubTopic;
+        int qosLevel;
+        boolean retained;
+        try
+        {
+            pubTopic = this.mTopics.resolve(in.getHeader(PahoMqttConstants.TOPIC, configuration.getPubTopicName(),
+                    String.class));
+            qosLevel = in.getHeader(PahoMqttConstants.QOS, configuration.getQosLevel(), Integer.class);
+            retained = in.getHeader(PahoMqttConstants.RETAINED, configuration.isRetained(), Boolean.class);
+        } catch (RuntimeException ex)
         {
-            // client is not connected or lost connection --> reconnect and call
-            // method again
-            PahoMqttProducer.LOG.info("Client is not connected: --> so reconnect!");
+            exchange.setException(ex);
+            callback.done(true);
+            return true;
+        }
+
+        if (qosLevel < 0 || qosLevel > 2)
+        {
+            exchange.setException(new IllegalArgumentException("Invalid QoS level: " + qosLevel));
+            callback.done(true);
+            return true;
+        }
+
+        if (configuration.getChunkSize() > 0)
+        {
+            // the body is streamed, so it is never held in memory as a whole
+            this.publishChunked(exchange, pubTopic, qosLevel);
+            callback.done(true);
+            return true;
+        }
+
+        // extract the payload from message
+        byte[] payload;
+        try
+        {
+            payload = PahoMqttPayloads.toBytes(exchange);
+        } catch (IOException ex)
+        {
+            exchange.setException(ex);
+            callback.done(true);
+            return true;
+        }
+
+        if (payload == null)
+        {
+            // no data was in the message body, so finish processing
+            PahoMqttProducer.LOG
+                    .info("\t--> No valid data to publish! Is your data really convertable into a byte array required by MQTT?");
+            callback.done(true);
+            return true;
+        }
+
+        PahoMqttCoalescer coalescer = this.mCoalescer;
+        if (coalescer != null)
+        {
+            // the callback is completed once the envelope was published, the
+            // envelope is compressed as a whole
+            coalescer.add(exchange, callback, pubTopic, payload, qosLevel, retained);
+            return false;
+        }
 
-            // reconnect the client to the broker
-            this.mMqttClient.connect(this.mConnectOptions);
-            try
+        return this.selectConnection(pubTopic).publish(exchange, callback, pubTopic, this.compress(payload),
+                qosLevel, retained);
+    }
+
+    /**
+     * Streams the body of an exchange as a transfer of chunks, all of them
+     * published through the same connection to keep their order. At most
+     * {@link PahoMqttConfiguration#getMaxInFlight()} chunks are published
+     * but not completed at the same time, so the memory used is bounded by
+     * the chunk size regardless of the size of the body. The calling thread
+     * returns once all chunks were completed.
+     *
+     * @param exchange
+     *            The exchange to stream the body of.
+     * @param topic
+     *            The topic to publish to.
+     * @param qosLevel
+     *            The QoS level of the chunks.
+     */
+    private void publishChunked(Exchange exchange, String topic, int qosLevel)
+    {
+        InputStream stream;
+        try
+        {
+            stream = exchange.getIn().getMandatoryBody(InputStream.class);
+        } catch (InvalidPayloadException ex)
+        {
+            exchange.setException(ex);
+            return;
+        }
+
+        final int window = PahoMqttProducerConnection.inFlightWindow(this.mConfiguration);
+        final Semaphore inFlight = new Semaphore(window);
+        AsyncCallback completed = new AsyncCallback()
+        {
+            @Override
+            public void done(boolean doneSync)
             {
-                PahoMqttProducer.this.process(exchange);
-            } catch (Exception ex)
+                inFlight.release();
+            }
+        };
+
+        PahoMqttProducerConnection connection = this.selectConnection(topic);
+        long transferId = ThreadLocalRandom.current().nextLong();
+        byte[] buffer = new byte[this.mConfiguration.getChunkSize()];
+        CRC32 checksum = new CRC32();
+        long length = 0;
+        try
+        {
+            for (int sequence = 0; exchange.getException() == null; sequence++)
+            {
+                int read = PahoMqttProducer.readFully(stream, buffer);
+                checksum.update(buffer, 0, read);
+                length += read;
+
+                // a short read ends the transfer, possibly with an empty chunk
+                boolean last = read < buffer.length;
+                byte[] chunk = last
+                        ? PahoMqttChunks.lastChunk(transferId, sequence, buffer, read, length,
+                                (int) checksum.getValue())
+                        : PahoMqttChunks.chunk(transferId, sequence, buffer, read);
+
+                inFlight.acquire();
+                connection.publish(exchange, completed, topic, chunk, qosLevel, false);
+                if (last)
+                {
+                    break;
+                }
+            }
+
+            // wait for the chunks still in flight
+            inFlight.acquire(window);
+        } catch (IOException ex)
+        {
+            exchange.setException(ex);
+        } catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            exchange.setException(ex);
+        } finally
+        {
+            IOHelper.close(stream);
+        }
+
+        if (exchange.getException() == null)
+        {
+            ((PahoMqttEndpoint) this.getEndpoint()).getMetrics().transferSent();
+        }
+    }
+
+    /**
+     * Reads from a stream until the buffer is full or the stream ended.
+     *
+     * @return the number of bytes read.
+     */
+    private static int readFully(InputStream stream, byte[] buffer) throws IOException
+    {
+        int length = 0;
+        int read;
+        while (length < buffer.length && (read = stream.read(buffer, length, buffer.length - length)) >= 0)
+        {
+            length += read;
+        }
+        return length;
+    }
+
+    /**
+     * Publishes an envelope with the first of its exchanges and completes
+     * the callbacks of all of them with the outcome.
+     *
+     * @param envelope
+     *            The completed envelope.
+     */
+    private void publishEnvelope(final PahoMqttCoalescer.Envelope envelope)
+    {
+        ((PahoMqttEndpoint) this.getEndpoint()).getMetrics().envelopePacked(envelope.size());
+
+        this.selectConnection(envelope.getTopic()).publish(envelope.getExchange(), new AsyncCallback()
+        {
+            @Override
+            public void done(boolean doneSync)
             {
-                PahoMqttProducer.LOG.error(
-                        "Paho MQTT Producer - failed to call process method again after reconnection: ", ex);
+                envelope.complete();
             }
+        }, envelope.getTopic(), this.compress(PahoMqttEnvelope.pack(envelope.getPayloads())),
+                envelope.getQosLevel(), envelope.isRetained());
+    }
+
+    /**
+     * Compresses a payload if compression is configured and the payload
+     * reaches the threshold and gets smaller.
+     *
+     * @param payload
+     *            The payload to publish.
+     * @return the payload to publish.
+     */
+    private byte[] compress(byte[] payload)
+    {
+        if (!PahoMqttConfiguration.COMPRESSION_DEFLATE.equals(this.mConfiguration.getCompression())
+                || payload.length < this.mConfiguration.getCompressionThreshold())
+        {
+            return payload;
         }
+
+        byte[] compressed = PahoMqttCompression.compress(payload);
+        if (compressed == null)
+        {
+            return payload;
+        }
+        ((PahoMqttEndpoint) this.getEndpoint()).getMetrics().payloadCompressed(payload.length, compressed.length);
+        return compressed;
+    }
+
+    /**
+     * Replaces the body of the exchange by the payload of the newest message
+     * of its topic in the last value cache, or by <code>null</code> if the
+     * topic is not cached. The topic, QoS level and retain flag of a cached
+     * message are set as the headers a consumer sets.
+     *
+     * @param exchange
+     *            The exchange to answer.
+     */
+    private void lookup(Exchange exchange)
+    {
+        PahoMqttLastValueCache cache = ((PahoMqttEndpoint) this.getEndpoint()).getComponent().lastValueCache();
+        if (cache == null)
+        {
+            exchange.setException(new IllegalStateException(
+                    "The last value cache is disabled, set lastValueCacheSize on the component"));
+            return;
+        }
+
+        Message in = exchange.getIn();
+        String topic;
+        try
+        {
+            topic = this.mTopics.resolve(in.getHeader(PahoMqttConstants.TOPIC, this.mConfiguration.getPubTopicName(),
+                    String.class));
+        } catch (RuntimeException ex)
+        {
+            exchange.setException(ex);
+            return;
+        }
+
+        PahoMqttLastValueCache.Value value = cache.get(topic);
+        if (value == null)
+        {
+            in.setBody(null);
+            in.removeHeaders("PahoMqttReceived*");
+            return;
+        }
+
+        // the cached payload is shared by all lookups
+        in.setBody(value.getPayload().clone());
+        in.setHeader(PahoMqttConstants.RECEIVED_TOPIC, topic);
+        in.setHeader(PahoMqttConstants.RECEIVED_QOS, value.getQos());
+        in.setHeader(PahoMqttConstants.RECEIVED_RETAINED, value.isRetained());
+    }
+
+    /**
+     * Selects the connection used to publish to the given topic. The topic
+     * strategy always maps a topic to the same connection, so messages of one
+     * topic keep their order.
+     *
+     * @param topic
+     *            The topic to publish to.
+     * @return the {@link PahoMqttProducerConnection} to use.
+     */
+    private PahoMqttProducerConnection selectConnection(String topic)
+    {
+        PahoMqttProducerConnection[] connections = this.mConnections;
+        if (connections.length == 1)
+        {
+            return connections[0];
+        }
+
+        int index;
+        if (PahoMqttConfiguration.POOL_STRATEGY_ROUND_ROBIN.equals(this.mConfiguration.getConnectionPoolStrategy()))
+        {
+            index = this.mNextConnection.getAndIncrement();
+        }
+        else
+        {
+            // spread the hash bits, String.hashCode() is weak in the low bits
+            int hash = topic.hashCode();
+            index = hash ^ (hash >>> 16);
+        }
+
+        return connections[(index & Integer.MAX_VALUE) % connections.length];
     }
 
     /*
@@ -172,14 +533,27 @@ public class PahoMqttProducer extends DefaultProducer
     @Override
     protected void doStop() throws Exception
     {
-        if (this.mMqttClient.isConnected())
+        if (this.mCoalescer != null)
         {
-            PahoMqttProducer.LOG.info("\t--> try to disconnect MQTT client from {}",
-                    PahoMqttProducer.this.mConfiguration.getHost());
+            // publish the envelopes gathered so far
+            this.mCoalescer.flush();
+            this.mCoalescer = null;
+            this.getEndpoint().getCamelContext().getExecutorServiceManager().shutdown(this.mEnvelopeTimer);
+            this.mEnvelopeTimer = null;
+        }
 
-            this.mMqttClient.disconnect();
-            PahoMqttProducer.LOG.info("\t--> disconnected from {}",
-                    PahoMqttProducer.this.mConfiguration.getHost());
+        for (PahoMqttProducerConnection connection : this.mConnections)
+        {
+            connection.disconnect();
+        }
+
+        if (this.mScheduler != null)
+        {
+            if (!PahoMqttConfiguration.TRANSPORT_NIO.equals(this.mConfiguration.getTransport()))
+            {
+                this.getEndpoint().getCamelContext().getExecutorServiceManager().shutdown(this.mScheduler);
+            }
+            this.mScheduler = null;
         }
 
         super.doStop();
@@ -0,0 +1,796 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.anntex.camel.paho.config.PahoMqttConfiguration;
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.CamelExchangeException;
+import org.apache.camel.Exchange;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class wraps a single MQTT client connection used by a
+ * {@link PahoMqttProducer}. Every connection owns its own in-flight window, so
+ * a producer with several connections can pipeline several windows at once.
+ * <p>
+ * If the connection is lost, a background task reconnects with exponential
+ * backoff and jitter. Meanwhile publishes are kept in a bounded buffer which is
+ * drained as soon as the connection is back. The
+ * {@link PahoMqttConfiguration#getOfflineBufferPolicy()} defines what happens
+ * if the buffer is full.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+class PahoMqttProducerConnection implements MqttCallback
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private static final Logger                LOG = LoggerFactory.getLogger(PahoMqttProducerConnection.class);
+
+    /**
+     * Defines how often a publish is retried while the Paho client has no
+     * free slot, one millisecond apart.
+     */
+    private static final int                   MAX_IN_FLIGHT_RETRIES = 1000;
+
+    /**
+     * Defines the MQTT client of the connection.
+     */
+    private final PahoMqttClient               mMqttClient;
+
+    /**
+     * Defines the MQTT connection options for the end point client.
+     */
+    private final MqttConnectOptions           mConnectOptions;
+
+    /**
+     * Defines a reference to a {@link PahoMqttConfiguration} configuration used
+     * by this end point.
+     */
+    private final PahoMqttConfiguration        mConfiguration;
+
+    /**
+     * Limits the number of publishes waiting for their delivery token.
+     */
+    private final Semaphore                    mInFlight;
+
+    /**
+     * Defines the delays between reconnect attempts.
+     */
+    private final PahoMqttBackoff              mBackoff;
+
+    /**
+     * Defines the metrics of the end point.
+     */
+    private final PahoMqttMetrics              mMetrics;
+
+    /**
+     * Defines the publishes waiting for the connection in their order,
+     * guarded by {@link #mLock}. A publish put back while draining may exceed
+     * the capacity by one.
+     */
+    private final Deque<Publish>               mOfflineBuffer;
+
+    /**
+     * Defines the number of publishes the offline buffer takes.
+     */
+    private final int                          mOfflineCapacity;
+
+    /**
+     * Guards the offline buffer and the online state.
+     */
+    private final ReentrantLock                mLock = new ReentrantLock();
+
+    /**
+     * Signals free space in the offline buffer.
+     */
+    private final Condition                    mNotFull = this.mLock.newCondition();
+
+    /**
+     * Defines the executor running the reconnect attempts.
+     */
+    private ScheduledExecutorService           mScheduler;
+
+    /**
+     * Defines if publishes are sent directly, guarded by {@link #mLock}. The
+     * connection only goes online after the offline buffer was drained, so the
+     * order of publishes is kept.
+     */
+    private boolean                            mOnline;
+
+    /**
+     * Defines if a reconnect is scheduled or in progress, guarded by
+     * {@link #mLock}.
+     */
+    private boolean                            mReconnecting;
+
+    /**
+     * Defines if the offline buffer is drained after a reconnect, guarded by
+     * {@link #mLock}.
+     */
+    private boolean                            mDraining;
+
+    /**
+     * Defines if the connection was stopped, guarded by {@link #mLock}.
+     */
+    private boolean                            mStopped;
+
+    /**
+     * Defines if the connection was lost and since when, guarded by
+     * {@link #mLock}.
+     */
+    private boolean                            mDisconnected;
+    private long                               mDisconnectedSince;
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    /**
+     * @param configuration
+     *            The {@link PahoMqttConfiguration} configuration used by this
+     *            end point definition.
+     * @param client
+     *            The MQTT client of this connection, not connected yet.
+     * @param metrics
+     *            The metrics of the end point.
+     */
+    PahoMqttProducerConnection(PahoMqttConfiguration configuration, PahoMqttClient client, PahoMqttMetrics metrics)
+    {
+        this.mConfiguration = configuration;
+        this.mMetrics = metrics;
+        this.mInFlight = new Semaphore(PahoMqttProducerConnection.inFlightWindow(configuration));
+        this.mBackoff = new PahoMqttBackoff(configuration.getReconnectDelay(), configuration.getReconnectMaxDelay());
+        this.mOfflineBuffer = new ArrayDeque<Publish>();
+        this.mOfflineCapacity = configuration.getOfflineBufferSize();
+
+        this.mMqttClient = client;
+        this.mMqttClient.setCallback(this);
+        // create new instance of MqttConnectOptions and fill in
+        // configuration options
+        this.mConnectOptions = new MqttConnectOptions();
+        this.mConnectOptions.setCleanSession(configuration.isCleanSession());
+        this.mConnectOptions.setConnectionTimeout(configuration.getConnectionTimeout());
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * @param configuration
+     *            The configuration of the end point.
+     * @return the number of publishes a connection of the end point keeps in
+     *         flight, <tt>maxInFlight</tt> limited to what the Paho client
+     *         accepts unless the nio transport is used.
+     */
+    static int inFlightWindow(PahoMqttConfiguration configuration)
+    {
+        if (PahoMqttConfiguration.TRANSPORT_NIO.equals(configuration.getTransport()))
+        {
+            return configuration.getMaxInFlight();
+        }
+        return Math.min(configuration.getMaxInFlight(), PahoMqttDefaultClient.MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Connects the client to the broker and waits for the connection to be
+     * established.
+     *
+     * @param scheduler
+     *            The executor running later reconnect attempts.
+     * @throws MqttException
+     *             if the connection can not be established.
+     */
+    void connect(ScheduledExecutorService scheduler) throws MqttException
+    {
+        this.mLock.lock();
+        try
+        {
+            this.mScheduler = scheduler;
+            this.mStopped = false;
+        } finally
+        {
+            this.mLock.unlock();
+        }
+
+        this.mMqttClient.connectAndWait(this.mConnectOptions);
+        PahoMqttProducerConnection.LOG.info("\t--> {} connected to {}", this.mMqttClient.getClientId(),
+                this.mConfiguration.getHost());
+
+        this.mLock.lock();
+        try
+        {
+            this.mOnline = true;
+        } finally
+        {
+            this.mLock.unlock();
+        }
+    }
+
+    /**
+     * Publishes the payload and completes the callback as soon as the delivery
+     * token of the publish is completed. While the connection is down, the
+     * publish is kept in the offline buffer.
+     *
+     * @param exchange
+     *            The exchange to publish.
+     * @param callback
+     *            The callback to complete.
+     * @param topic
+     *            The topic to publish to.
+     * @param payload
+     *            The payload to publish.
+     * @param qosLevel
+     *            The QoS level of the publish.
+     * @param retained
+     *            The retained flag of the publish.
+     * @return <tt>true</tt> if the callback was completed synchronously.
+     */
+    boolean publish(Exchange exchange, AsyncCallback callback, String topic, byte[] payload, int qosLevel,
+            boolean retained)
+    {
+        Publish publish = new Publish(exchange, callback, topic, payload, qosLevel, retained);
+
+        this.mLock.lock();
+        try
+        {
+            if (!this.mOnline)
+            {
+                return this.buffer(publish);
+            }
+        } finally
+        {
+            this.mLock.unlock();
+        }
+
+        return this.send(publish, true);
+    }
+
+    /**
+     * Keeps a publish in the offline buffer according to the configured
+     * overflow policy. Needs to be called while holding the lock.
+     *
+     * @return <tt>true</tt> if the callback was completed synchronously.
+     */
+    private boolean buffer(Publish publish)
+    {
+        if (this.mStopped)
+        {
+            publish.fail(new CamelExchangeException("Paho MQTT Producer is stopped", publish.mExchange), true);
+            return true;
+        }
+
+        if (!this.mDraining)
+        {
+            // while draining the connection is up, a loss of it schedules
+            // the next reconnect
+            this.scheduleReconnect(0);
+        }
+
+        String policy = this.mConfiguration.getOfflineBufferPolicy();
+        while (this.mOfflineBuffer.size() >= this.mOfflineCapacity)
+        {
+            if (PahoMqttConfiguration.OFFLINE_POLICY_FAIL_FAST.equals(policy))
+            {
+                publish.fail(new CamelExchangeException("Paho MQTT Producer - offline buffer is full",
+                        publish.mExchange), true);
+                return true;
+            }
+            else if (PahoMqttConfiguration.OFFLINE_POLICY_DROP_OLDEST.equals(policy))
+            {
+                final Publish oldest = this.mOfflineBuffer.poll();
+                if (oldest != null)
+                {
+                    // complete the dropped exchange outside of the lock, its
+                    // route continues on the completing thread
+                    Runnable drop = new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            oldest.fail(new CamelExchangeException(
+                                    "Paho MQTT Producer - dropped from the full offline buffer", oldest.mExchange),
+                                    false);
+                        }
+                    };
+                    try
+                    {
+                        this.mScheduler.execute(drop);
+                    } catch (RejectedExecutionException ex)
+                    {
+                        // the producer is stopping, complete it right here
+                        drop.run();
+                    }
+                }
+            }
+            else
+            {
+                try
+                {
+                    this.mNotFull.await();
+                } catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    publish.fail(ex, true);
+                    return true;
+                }
+
+                if (this.mOnline || this.mStopped)
+                {
+                    // the state changed while waiting for space
+                    this.mLock.unlock();
+                    try
+                    {
+                        return this.publish(publish.mExchange, publish.mCallback, publish.mTopic,
+                                publish.mPayload, publish.mQosLevel, publish.mRetained);
+                    } finally
+                    {
+                        this.mLock.lock();
+                    }
+                }
+            }
+        }
+
+        this.mOfflineBuffer.addLast(publish);
+        return false;
+    }
+
+    /**
+     * Sends a publish to the broker.
+     *
+     * @param publish
+     *            The publish to send.
+     * @param sync
+     *            <tt>true</tt> if called by the thread processing the
+     *            exchange, <tt>false</tt> if called while draining the
+     *            offline buffer.
+     * @return <tt>true</tt> if the callback was completed synchronously.
+     *         While draining, <tt>true</tt> means the connection was lost
+     *         again and the publish was put back at the head of the offline
+     *         buffer.
+     */
+    private boolean send(final Publish publish, boolean sync)
+    {
+        try
+        {
+            // wait for a free slot in the in-flight window
+            this.mInFlight.acquire();
+        } catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            publish.fail(ex, sync);
+            return sync;
+        }
+
+        final long start = System.nanoTime();
+        this.mMetrics.publishStarted();
+        try
+        {
+            this.publishWhenFree(publish, new IMqttActionListener()
+            {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken)
+                {
+                    PahoMqttProducerConnection.this.mInFlight.release();
+                    PahoMqttProducerConnection.this.mMetrics.publishCompleted(publish.mPayload.length, start,
+                            true);
+                    publish.mCallback.done(false);
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception)
+                {
+                    PahoMqttProducerConnection.this.mInFlight.release();
+                    PahoMqttProducerConnection.this.mMetrics.publishCompleted(publish.mPayload.length, start,
+                            false);
+                    publish.mExchange.setException(exception);
+                    publish.mCallback.done(false);
+                }
+            });
+        } catch (MqttException ex)
+        {
+            this.mInFlight.release();
+            if (ex.getReasonCode() == MqttException.REASON_CODE_CLIENT_NOT_CONNECTED)
+            {
+                // the connection was lost in the meantime, wait for the
+                // reconnect
+                this.mMetrics.publishRequeued();
+                this.mLock.lock();
+                try
+                {
+                    this.mOnline = false;
+                    return sync ? this.buffer(publish) : this.requeue(publish);
+                } finally
+                {
+                    this.mLock.unlock();
+                }
+            }
+
+            this.mMetrics.publishCompleted(publish.mPayload.length, start, false);
+            publish.fail(ex, sync);
+            return sync;
+        }
+
+        // the delivery token listener completes the exchange
+        return false;
+    }
+
+    /**
+     * Hands a publish over to the client. The Paho client frees the slot of
+     * an acknowledged publish only after the listener of its token returned,
+     * so a slot already released by the in-flight window may still be taken
+     * for a moment. Such a publish is retried instead of failed.
+     *
+     * @param publish
+     *            The publish to send.
+     * @param listener
+     *            The listener of the delivery token.
+     * @throws MqttException
+     *             if the client refuses the publish.
+     */
+    private void publishWhenFree(Publish publish, IMqttActionListener listener) throws MqttException
+    {
+        for (int attempt = 1;; attempt++)
+        {
+            try
+            {
+                this.mMqttClient.publish(publish.mTopic, publish.mPayload, publish.mQosLevel, publish.mRetained,
+                        listener);
+                return;
+            } catch (MqttException ex)
+            {
+                if (ex.getReasonCode() != MqttException.REASON_CODE_MAX_INFLIGHT || attempt >= MAX_IN_FLIGHT_RETRIES)
+                {
+                    throw ex;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+    }
+
+    /**
+     * Schedules a reconnect attempt unless one is pending. Needs to be called
+     * while holding the lock.
+     *
+     * @param delay
+     *            The delay of the attempt in milliseconds.
+     */
+    private void scheduleReconnect(long delay)
+    {
+        if (this.mReconnecting || this.mStopped || this.mScheduler == null)
+        {
+            return;
+        }
+
+        this.mReconnecting = true;
+        try
+        {
+            this.mScheduler.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    PahoMqttProducerConnection.this.reconnect();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex)
+        {
+            // the producer is stopping
+            this.mReconnecting = false;
+        }
+    }
+
+    /**
+     * Tries to reconnect the client. On success the offline buffer is drained,
+     * otherwise the next attempt is scheduled.
+     */
+    private void reconnect()
+    {
+        try
+        {
+            PahoMqttProducerConnection.LOG.info("Client is not connected: --> so reconnect!");
+            this.mMqttClient.connect(this.mConnectOptions, new IMqttActionListener()
+            {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken)
+                {
+                    PahoMqttProducerConnection.LOG.info("\t--> {} reconnected to {}",
+                            PahoMqttProducerConnection.this.mMqttClient.getClientId(),
+                            PahoMqttProducerConnection.this.mConfiguration.getHost());
+                    PahoMqttProducerConnection.this.mBackoff.reset();
+                    PahoMqttProducerConnection.this.recordReconnect();
+
+                    // drain on the scheduler, the Paho callback thread has to
+                    // stay free to complete the delivery tokens
+                    PahoMqttProducerConnection.this.mScheduler.execute(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            PahoMqttProducerConnection.this.drain();
+                        }
+                    });
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception)
+                {
+                    PahoMqttProducerConnection.this.retry(exception);
+                }
+            });
+        } catch (MqttException ex)
+        {
+            this.retry(ex);
+        }
+    }
+
+    /**
+     * Records the time the connection was down after a successful reconnect.
+     */
+    private void recordReconnect()
+    {
+        this.mLock.lock();
+        try
+        {
+            if (this.mDisconnected)
+            {
+                this.mDisconnected = false;
+                this.mMetrics.reconnected(System.nanoTime() - this.mDisconnectedSince);
+            }
+        } finally
+        {
+            this.mLock.unlock();
+        }
+    }
+
+    /**
+     * Schedules the next reconnect attempt after a failed one.
+     */
+    private void retry(Throwable cause)
+    {
+        long delay = this.mBackoff.nextDelay();
+        PahoMqttProducerConnection.LOG.warn("Paho MQTT Producer - failed to reconnect to {}, retry in {} ms: {}",
+                new Object[] { this.mConfiguration.getHost(), delay, cause.getMessage() });
+
+        this.mLock.lock();
+        try
+        {
+            this.mReconnecting = false;
+            this.scheduleReconnect(delay);
+        } finally
+        {
+            this.mLock.unlock();
+        }
+    }
+
+    /**
+     * Puts a publish the drain could not send back at the head of the offline
+     * buffer, so it keeps its order, and ends the drain. Needs to be called
+     * while holding the lock.
+     *
+     * @return always <tt>true</tt>.
+     */
+    private boolean requeue(Publish publish)
+    {
+        this.mDraining = false;
+        if (this.mStopped)
+        {
+            publish.fail(new CamelExchangeException("Paho MQTT Producer is stopped", publish.mExchange), false);
+            return true;
+        }
+
+        this.mOfflineBuffer.addFirst(publish);
+        this.scheduleReconnect(0);
+        return true;
+    }
+
+    /**
+     * Sends all buffered publishes in their order and goes online afterwards.
+     * If the connection is lost again the drain stops and the rest of the
+     * buffer waits for the next reconnect.
+     */
+    private void drain()
+    {
+        this.mLock.lock();
+        try
+        {
+            // the connection is up, a loss of it while draining has to
+            // schedule the next reconnect
+            this.mReconnecting = false;
+            this.mDraining = true;
+        } finally
+        {
+            this.mLock.unlock();
+        }
+
+        while (true)
+        {
+            Publish publish;
+            this.mLock.lock();
+            try
+            {
+                publish = this.mOfflineBuffer.pollFirst();
+                if (publish == null)
+                {
+                    this.mDraining = false;
+                    this.mOnline = !this.mStopped;
+                    this.mNotFull.signalAll();
+                    return;
+                }
+                this.mNotFull.signal();
+            } finally
+            {
+                this.mLock.unlock();
+            }
+
+            if (this.send(publish, false))
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Disconnects the client from the broker if it is connected. Publishes
+     * still waiting in the offline buffer fail.
+     *
+     * @throws MqttException
+     *             if the client fails to disconnect.
+     */
+    void disconnect() throws MqttException
+    {
+        List<Publish> pending = new ArrayList<Publish>();
+        this.mLock.lock();
+        try
+        {
+            this.mStopped = true;
+            this.mOnline = false;
+            this.mNotFull.signalAll();
+            pending.addAll(this.mOfflineBuffer);
+            this.mOfflineBuffer.clear();
+        } finally
+        {
+            this.mLock.unlock();
+        }
+
+        for (Publish publish : pending)
+        {
+            publish.fail(new CamelExchangeException("Paho MQTT Producer is stopped", publish.mExchange), false);
+        }
+
+        if (this.mMqttClient.isConnected())
+        {
+            PahoMqttProducerConnection.LOG.info("\t--> try to disconnect MQTT client {} from {}",
+                    this.mMqttClient.getClientId(), this.mConfiguration.getHost());
+
+            this.mMqttClient.disconnectAndWait();
+            PahoMqttProducerConnection.LOG.info("\t--> disconnected from {}", this.mConfiguration.getHost());
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.eclipse.paho.client.mqttv3.MqttCallback#connectionLost(java.lang.Throwable)
+     */
+    @Override
+    public void connectionLost(Throwable cause)
+    {
+        PahoMqttProducerConnection.LOG.warn("\t--> lost connection to the server! Reason: {}", cause.getMessage());
+
+        this.mLock.lock();
+        try
+        {
+            this.mOnline = false;
+            if (!this.mDisconnected)
+            {
+                this.mDisconnected = true;
+                this.mDisconnectedSince = System.nanoTime();
+            }
+            this.scheduleReconnect(this.mBackoff.nextDelay());
+        } finally
+        {
+            this.mLock.unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.eclipse.paho.client.mqttv3.MqttCallback#messageArrived(java.lang.String, org.eclipse.paho.client.mqttv3.MqttMessage)
+     */
+    @Override
+    public void messageArrived(String topic, MqttMessage message) throws Exception
+    {
+        // the producer connection does not subscribe to topics
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.eclipse.paho.client.mqttv3.MqttCallback#deliveryComplete(org.eclipse.paho.client.mqttv3.IMqttDeliveryToken)
+     */
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token)
+    {
+        // the delivery token listener of every publish completes its exchange
+    }
+
+    // --------------------------------------------------
+    // INNER CLASSES
+    // --------------------------------------------------
+
+    /**
+     * Holds a publish together with the exchange and callback to complete.
+     */
+    private static final class Publish
+    {
+        private final Exchange      mExchange;
+        private final AsyncCallback mCallback;
+        private final String        mTopic;
+        private final byte[]        mPayload;
+        private final int           mQosLevel;
+        private final boolean       mRetained;
+
+        private Publish(Exchange exchange, AsyncCallback callback, String topic, byte[] payload, int qosLevel,
+                boolean retained)
+        {
+            this.mExchange = exchange;
+            this.mCallback = callback;
+            this.mTopic = topic;
+            this.mPayload = payload;
+            this.mQosLevel = qosLevel;
+            this.mRetained = retained;
+        }
+
+        /**
+         * Fails the exchange of the publish.
+         *
+         * @param cause
+         *            The failure to set on the exchange.
+         * @param sync
+         *            <tt>true</tt> if called by the thread processing the
+         *            exchange before the publish was handed over.
+         */
+        private void fail(Throwable cause, boolean sync)
+        {
+            this.mExchange.setException(cause);
+            this.mCallback.done(sync);
+        }
+    }
+}
\ No newline at end of file
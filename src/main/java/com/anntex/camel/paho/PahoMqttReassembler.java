@@ -0,0 +1,323 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.camel.util.IOHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class reassembles the chunks of streamed transfers into temporary
+ * files, so a transfer takes no more memory than a single chunk. The chunks
+ * of a transfer have to arrive in order, which MQTT guarantees for the
+ * messages of one publisher to one topic. A chunk delivered again is
+ * ignored, also after its transfer completed, a missing chunk, a wrong
+ * checksum or a transfer not continued within the timeout discards the
+ * transfer and its file. The consumer calls {@link #expire()} periodically,
+ * so a stalled transfer does not keep its file open until the next chunk.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+final class PahoMqttReassembler
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private static final Logger         LOG        = LoggerFactory.getLogger(PahoMqttReassembler.class);
+
+    /**
+     * Defines the transfers in progress by topic and transfer id, guarded by
+     * <tt>this</tt>.
+     */
+    private final Map<String, Transfer> mTransfers = new HashMap<String, Transfer>();
+
+    /**
+     * Defines the time in nanoseconds a transfer completed by topic and
+     * transfer id, kept for the timeout, guarded by <tt>this</tt>.
+     */
+    private final Map<String, Long>     mCompleted = new HashMap<String, Long>();
+
+    private final File                  mDirectory;
+    private final long                  mTimeoutNanos;
+    private final PahoMqttMetrics       mMetrics;
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    /**
+     * @param directory
+     *            The directory the temporary files are created in.
+     * @param timeoutMillis
+     *            The time in milliseconds a transfer may wait for its next
+     *            chunk.
+     * @param metrics
+     *            The metrics completed and failed transfers are recorded to.
+     */
+    PahoMqttReassembler(File directory, long timeoutMillis, PahoMqttMetrics metrics)
+    {
+        this.mDirectory = directory;
+        this.mTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.mMetrics = metrics;
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * Appends a chunk to its transfer.
+     *
+     * @param topic
+     *            The topic the chunk was published to.
+     * @param chunk
+     *            The received chunk.
+     * @return the transfer if the chunk completed it, otherwise
+     *         <code>null</code>.
+     * @throws IOException
+     *             if the temporary file can not be written.
+     */
+    synchronized Transfer accept(String topic, byte[] chunk) throws IOException
+    {
+        long now = System.nanoTime();
+        this.expire(now);
+
+        long transferId = PahoMqttChunks.transferId(chunk);
+        int sequence = PahoMqttChunks.sequence(chunk);
+        String key = topic + '\u0000' + transferId;
+
+        Transfer transfer = this.mTransfers.get(key);
+        if (transfer == null)
+        {
+            if (this.mCompleted.containsKey(key))
+            {
+                // redelivered by the broker after the transfer completed
+                return null;
+            }
+            if (sequence != 0)
+            {
+                // the start of the transfer was missed or it was discarded
+                PahoMqttReassembler.LOG.debug("\t--> dropped chunk {} of unknown transfer {} from {}",
+                        new Object[] { sequence, transferId, topic });
+                return null;
+            }
+            transfer = new Transfer(transferId, File.createTempFile("paho-", ".transfer", this.mDirectory));
+            this.mTransfers.put(key, transfer);
+        }
+        else if (sequence < transfer.mNextSequence)
+        {
+            // redelivered by the broker
+            return null;
+        }
+        else if (sequence > transfer.mNextSequence)
+        {
+            this.mTransfers.remove(key);
+            this.fail(transfer, "chunk " + transfer.mNextSequence + " is missing");
+            return null;
+        }
+
+        boolean last = PahoMqttChunks.isLast(chunk);
+        int offset = PahoMqttChunks.dataOffset(chunk);
+        try
+        {
+            transfer.append(chunk, offset, chunk.length - offset);
+            if (last)
+            {
+                this.mTransfers.remove(key);
+                this.mCompleted.put(key, now);
+                transfer.close();
+            }
+        } catch (IOException ex)
+        {
+            this.mTransfers.remove(key);
+            this.fail(transfer, ex.getMessage());
+            throw ex;
+        }
+        transfer.mUpdatedAt = now;
+
+        if (!last)
+        {
+            return null;
+        }
+        if (transfer.mLength != PahoMqttChunks.totalLength(chunk)
+                || (int) transfer.mChecksum.getValue() != PahoMqttChunks.checksum(chunk))
+        {
+            this.fail(transfer, "length or checksum does not match");
+            return null;
+        }
+
+        this.mMetrics.transferReceived();
+        return transfer;
+    }
+
+    /**
+     * @return the number of transfers in progress.
+     */
+    synchronized int size()
+    {
+        return this.mTransfers.size();
+    }
+
+    /**
+     * Discards all transfers in progress, e.g. while stopping.
+     */
+    synchronized void close()
+    {
+        for (Transfer transfer : this.mTransfers.values())
+        {
+            transfer.discard();
+        }
+        this.mTransfers.clear();
+        this.mCompleted.clear();
+    }
+
+    /**
+     * Discards the transfers not continued within the timeout and forgets
+     * the transfers completed before the timeout.
+     */
+    synchronized void expire()
+    {
+        this.expire(System.nanoTime());
+    }
+
+    /**
+     * Discards the transfers not continued within the timeout. Needs to be
+     * called while holding the lock.
+     */
+    private void expire(long now)
+    {
+        Iterator<Transfer> transfers = this.mTransfers.values().iterator();
+        while (transfers.hasNext())
+        {
+            Transfer transfer = transfers.next();
+            if (now - transfer.mUpdatedAt > this.mTimeoutNanos)
+            {
+                transfers.remove();
+                this.fail(transfer, "no chunk within the timeout");
+            }
+        }
+
+        Iterator<Long> completed = this.mCompleted.values().iterator();
+        while (completed.hasNext())
+        {
+            if (now - completed.next() > this.mTimeoutNanos)
+            {
+                completed.remove();
+            }
+        }
+    }
+
+    /**
+     * Discards a transfer already removed from the transfers in progress.
+     */
+    private void fail(Transfer transfer, String reason)
+    {
+        transfer.discard();
+        this.mMetrics.transferFailed();
+        PahoMqttReassembler.LOG.warn("\t--> discarded transfer {}: {}", transfer.mId, reason);
+    }
+
+    // --------------------------------------------------
+    // INNER CLASSES
+    // --------------------------------------------------
+
+    /**
+     * Holds the temporary file of a transfer together with its running
+     * length and checksum.
+     */
+    static final class Transfer
+    {
+        private final long   mId;
+        private final File   mFile;
+        private final CRC32  mChecksum = new CRC32();
+        private OutputStream mOut;
+        private int          mNextSequence;
+        private long         mLength;
+        private long         mUpdatedAt;
+
+        private Transfer(long id, File file) throws IOException
+        {
+            this.mId = id;
+            this.mFile = file;
+            this.mOut = new FileOutputStream(file);
+            this.mUpdatedAt = System.nanoTime();
+        }
+
+        private void append(byte[] data, int offset, int length) throws IOException
+        {
+            this.mOut.write(data, offset, length);
+            this.mChecksum.update(data, offset, length);
+            this.mLength += length;
+            this.mNextSequence++;
+        }
+
+        private void close() throws IOException
+        {
+            this.mOut.close();
+            this.mOut = null;
+        }
+
+        private void discard()
+        {
+            if (this.mOut != null)
+            {
+                IOHelper.close(this.mOut);
+                this.mOut = null;
+            }
+            if (!this.mFile.delete())
+            {
+                PahoMqttReassembler.LOG.warn("\t--> could not delete {}", this.mFile);
+            }
+        }
+
+        /**
+         * @return the id of the transfer.
+         */
+        long getId()
+        {
+            return this.mId;
+        }
+
+        /**
+         * @return the file holding the data of the transfer.
+         */
+        File getFile()
+        {
+            return this.mFile;
+        }
+
+        /**
+         * @return the length of the transfer in bytes.
+         */
+        long getLength()
+        {
+            return this.mLength;
+        }
+    }
+}
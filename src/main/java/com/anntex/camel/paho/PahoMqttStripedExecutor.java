@@ -0,0 +1,248 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class dispatches tasks to a fixed number of stripes. Every stripe is
+ * served by exactly one worker thread and has its own bounded queue, so tasks
+ * with the same key are executed in submission order while tasks of different
+ * keys run in parallel. Submitting to a full stripe blocks the caller. A
+ * stopped executor runs the tasks still queued before its workers end.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+class PahoMqttStripedExecutor
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private static final Logger                 LOG          = LoggerFactory.getLogger(PahoMqttStripedExecutor.class);
+
+    /**
+     * Defines how long an idle worker waits for a task before it checks if the
+     * executor is still running.
+     */
+    private static final long                   POLL_TIMEOUT = 100;
+
+    /**
+     * Defines the bounded task queue of every stripe.
+     */
+    private final List<BlockingQueue<Runnable>> mQueues;
+
+    /**
+     * Defines the workers which did not end yet.
+     */
+    private final CountDownLatch                mWorkers;
+
+    /**
+     * Defines the thread pool running the stripe workers.
+     */
+    private final ExecutorService               mExecutor;
+
+    /**
+     * Defines if the workers should keep on taking tasks.
+     */
+    private volatile boolean                    mRunning;
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    /**
+     * @param executor
+     *            The thread pool to run the workers on. It needs at least one
+     *            thread per stripe.
+     * @param stripes
+     *            The number of stripes.
+     * @param queueSize
+     *            The capacity of the task queue of every stripe.
+     */
+    PahoMqttStripedExecutor(ExecutorService executor, int stripes, int queueSize)
+    {
+        this.mExecutor = executor;
+        this.mWorkers = new CountDownLatch(stripes);
+        this.mQueues = new ArrayList<BlockingQueue<Runnable>>(stripes);
+        for (int i = 0; i < stripes; i++)
+        {
+            this.mQueues.add(new ArrayBlockingQueue<Runnable>(queueSize));
+        }
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * Starts one worker per stripe.
+     */
+    void start()
+    {
+        this.mRunning = true;
+        for (BlockingQueue<Runnable> queue : this.mQueues)
+        {
+            this.mExecutor.execute(new Worker(queue));
+        }
+    }
+
+    /**
+     * Stops accepting tasks and waits for the workers to run the tasks still
+     * queued. Tasks submitted afterwards run on the calling thread. Tasks not
+     * started within the timeout are discarded.
+     *
+     * @param timeoutMillis
+     *            The time in milliseconds to wait for the queued tasks.
+     */
+    void stop(long timeoutMillis)
+    {
+        this.mRunning = false;
+
+        boolean drained = false;
+        try
+        {
+            drained = this.mWorkers.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        if (drained)
+        {
+            return;
+        }
+
+        int discarded = 0;
+        for (BlockingQueue<Runnable> queue : this.mQueues)
+        {
+            discarded += queue.size();
+            queue.clear();
+        }
+        if (discarded > 0)
+        {
+            PahoMqttStripedExecutor.LOG.warn("\t--> discarded {} pending messages while stopping", discarded);
+        }
+    }
+
+    /**
+     * Submits a task to the stripe of the given key and blocks while the queue
+     * of the stripe is full.
+     *
+     * @param key
+     *            The key selecting the stripe, e.g. the topic of a message.
+     * @param task
+     *            The task to execute.
+     * @throws InterruptedException
+     *             if the caller was interrupted while waiting for space.
+     */
+    void execute(Object key, Runnable task) throws InterruptedException
+    {
+        int hash = key == null ? 0 : key.hashCode();
+        // spread the hash bits, String.hashCode() is weak in the low bits
+        hash ^= hash >>> 16;
+        BlockingQueue<Runnable> queue = this.mQueues.get((hash & Integer.MAX_VALUE) % this.mQueues.size());
+        if (!this.mRunning)
+        {
+            task.run();
+            return;
+        }
+
+        queue.put(task);
+        // the workers may have ended meanwhile, a task they did not take runs
+        // here
+        if (!this.mRunning && queue.remove(task))
+        {
+            task.run();
+        }
+    }
+
+    /**
+     * @return the number of tasks waiting in all stripes.
+     */
+    int size()
+    {
+        int size = 0;
+        for (BlockingQueue<Runnable> queue : this.mQueues)
+        {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    // --------------------------------------------------
+    // INNER CLASSES
+    // --------------------------------------------------
+
+    /**
+     * Takes the tasks of one stripe and runs them one after another.
+     */
+    private final class Worker implements Runnable
+    {
+        private final BlockingQueue<Runnable> mQueue;
+
+        private Worker(BlockingQueue<Runnable> queue)
+        {
+            this.mQueue = queue;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (true)
+                {
+                    try
+                    {
+                        // a stopped executor ends its workers once their
+                        // queues are empty
+                        Runnable task = PahoMqttStripedExecutor.this.mRunning
+                                ? this.mQueue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS) : this.mQueue.poll();
+                        if (task != null)
+                        {
+                            task.run();
+                        }
+                        else if (!PahoMqttStripedExecutor.this.mRunning)
+                        {
+                            return;
+                        }
+                    } catch (InterruptedException ex)
+                    {
+                        Thread.currentThread().interrupt();
+                        return;
+                    } catch (RuntimeException ex)
+                    {
+                        PahoMqttStripedExecutor.LOG.error("\t--> unexpected error while dispatching a message", ex);
+                    }
+                }
+            } finally
+            {
+                PahoMqttStripedExecutor.this.mWorkers.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import org.apache.camel.util.LRUCache;
+
+/**
+ * This class validates the topic names a producer publishes to. Validated
+ * topics are kept in a bounded LRU cache, so a hot topic is checked only once
+ * and every exchange publishing to it shares the same string instance.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+final class PahoMqttTopicCache
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private static final Charset      UTF_8            = Charset.forName("UTF-8");
+
+    /**
+     * Defines the maximum length of a topic name in UTF-8 bytes.
+     */
+    private static final int          MAX_TOPIC_LENGTH = 65535;
+
+    /**
+     * Defines the validated topics, <code>null</code> if caching is disabled.
+     */
+    private final Map<String, String> mTopics;
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    /**
+     * @param size
+     *            The maximum number of cached topics, 0 disables the cache.
+     */
+    PahoMqttTopicCache(int size)
+    {
+        this.mTopics = size > 0 ? new LRUCache<String, String>(Math.min(size, 16), size) : null;
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * Returns the cached instance of a topic name, validating the name if it
+     * is not cached yet.
+     *
+     * @param topic
+     *            The topic name to publish to.
+     * @return the validated topic name.
+     * @throws IllegalArgumentException
+     *             if the topic name is not a valid MQTT topic to publish to.
+     */
+    String resolve(String topic)
+    {
+        if (topic == null)
+        {
+            throw new IllegalArgumentException("No topic to publish to");
+        }
+
+        Map<String, String> topics = this.mTopics;
+        if (topics == null)
+        {
+            PahoMqttTopicCache.validate(topic);
+            return topic;
+        }
+
+        String cached = topics.get(topic);
+        if (cached == null)
+        {
+            PahoMqttTopicCache.validate(topic);
+            topics.put(topic, topic);
+            cached = topic;
+        }
+        return cached;
+    }
+
+    /**
+     * @return the number of cached topics.
+     */
+    int size()
+    {
+        return this.mTopics == null ? 0 : this.mTopics.size();
+    }
+
+    /**
+     * Validates a topic name to publish to: it must not be empty, must not
+     * contain wildcards or the null character and must not exceed 65535 bytes
+     * in UTF-8.
+     */
+    private static void validate(String topic)
+    {
+        int length = topic.length();
+        if (length == 0)
+        {
+            throw new IllegalArgumentException("The topic to publish to must not be empty");
+        }
+
+        for (int i = 0; i < length; i++)
+        {
+            char c = topic.charAt(i);
+            if (c == '+' || c == '#')
+            {
+                throw new IllegalArgumentException("The topic to publish to must not contain wildcards: " + topic);
+            }
+            if (c == '\u0000')
+            {
+                throw new IllegalArgumentException("The topic to publish to must not contain the null character");
+            }
+        }
+
+        // only encode topics which may exceed the limit
+        if (length > MAX_TOPIC_LENGTH / 3 && topic.getBytes(UTF_8).length > MAX_TOPIC_LENGTH)
+        {
+            throw new IllegalArgumentException("The topic to publish to exceeds " + MAX_TOPIC_LENGTH + " bytes");
+        }
+    }
+}
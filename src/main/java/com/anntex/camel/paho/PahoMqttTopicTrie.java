@@ -0,0 +1,275 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This class stores values by MQTT topic filter and finds all values whose
+ * filter matches a topic. Every topic level is a node of the trie, the
+ * wildcards <tt>+</tt> and <tt>#</tt> are nodes of their own. Matching a topic
+ * therefore depends on the number of its levels and not on the number of
+ * stored filters.
+ * <p>
+ * Lookups are lock free and may run concurrently to modifications, which are
+ * serialized.
+ *
+ * @param <T>
+ *            The type of the stored values.
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttTopicTrie<T>
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    public static final String SINGLE_LEVEL_WILDCARD = "+";
+    public static final String MULTI_LEVEL_WILDCARD  = "#";
+    public static final char   LEVEL_SEPARATOR       = '/';
+
+    /**
+     * Defines the root node of the trie, its children are the first topic
+     * levels.
+     */
+    private final Node<T>      mRoot                 = new Node<T>(null, null);
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * Stores a value for a topic filter.
+     *
+     * @param topicFilter
+     *            The topic filter, may contain wildcards.
+     * @param value
+     *            The value to store.
+     */
+    public synchronized void add(String topicFilter, T value)
+    {
+        Node<T> node = this.mRoot;
+        int start = 0;
+        while (true)
+        {
+            int end = topicFilter.indexOf(LEVEL_SEPARATOR, start);
+            String level = end < 0 ? topicFilter.substring(start) : topicFilter.substring(start, end);
+
+            Node<T> child = node.mChildren.get(level);
+            if (child == null)
+            {
+                child = new Node<T>(node, level);
+                node.mChildren.put(level, child);
+            }
+            node = child;
+
+            if (end < 0)
+            {
+                break;
+            }
+            start = end + 1;
+        }
+
+        node.mValues.add(value);
+    }
+
+    /**
+     * Removes a value stored for a topic filter.
+     *
+     * @param topicFilter
+     *            The topic filter the value was stored for.
+     * @param value
+     *            The value to remove.
+     * @return <tt>true</tt> if the value was stored for the filter.
+     */
+    public synchronized boolean remove(String topicFilter, T value)
+    {
+        Node<T> node = this.mRoot;
+        int start = 0;
+        while (node != null)
+        {
+            int end = topicFilter.indexOf(LEVEL_SEPARATOR, start);
+            String level = end < 0 ? topicFilter.substring(start) : topicFilter.substring(start, end);
+            node = node.mChildren.get(level);
+
+            if (end < 0)
+            {
+                break;
+            }
+            start = end + 1;
+        }
+
+        if (node == null || !node.mValues.remove(value))
+        {
+            return false;
+        }
+
+        // prune the nodes which lead to no value anymore
+        while (node.mParent != null && node.mValues.isEmpty() && node.mChildren.isEmpty())
+        {
+            node.mParent.mChildren.remove(node.mLevel, node);
+            node = node.mParent;
+        }
+        return true;
+    }
+
+    /**
+     * Collects all values whose topic filter matches the topic. A value stored
+     * for several matching filters is collected once per filter.
+     *
+     * @param topic
+     *            The topic of a message, must not contain wildcards.
+     * @param result
+     *            The collection to add the matching values to.
+     */
+    public void match(String topic, Collection<? super T> result)
+    {
+        // wildcards at the first level must not match topics starting with $,
+        // those are reserved for the broker
+        boolean system = !topic.isEmpty() && topic.charAt(0) == '$';
+        PahoMqttTopicTrie.match(this.mRoot, topic, 0, system, result);
+    }
+
+    /**
+     * Checks if any stored filter matches a topic, without collecting the
+     * values of the matching filters.
+     *
+     * @param topic
+     *            The topic of a message, must not contain wildcards.
+     * @return <tt>true</tt> if at least one filter matches the topic.
+     */
+    public boolean matches(String topic)
+    {
+        boolean system = !topic.isEmpty() && topic.charAt(0) == '$';
+        return PahoMqttTopicTrie.matches(this.mRoot, topic, 0, system);
+    }
+
+    /**
+     * @return <tt>true</tt> if no value is stored.
+     */
+    public boolean isEmpty()
+    {
+        return this.mRoot.mChildren.isEmpty();
+    }
+
+    private static <T> void match(Node<T> node, String topic, int start, boolean system,
+            Collection<? super T> result)
+    {
+        if (!system)
+        {
+            // a multi level wildcard matches the remaining levels as well as
+            // the parent level itself
+            Node<T> multi = node.mChildren.get(MULTI_LEVEL_WILDCARD);
+            if (multi != null)
+            {
+                result.addAll(multi.mValues);
+            }
+        }
+
+        if (start > topic.length())
+        {
+            // all levels are consumed
+            result.addAll(node.mValues);
+            return;
+        }
+
+        int end = topic.indexOf(LEVEL_SEPARATOR, start);
+        if (end < 0)
+        {
+            end = topic.length();
+        }
+
+        Node<T> exact = node.mChildren.get(topic.substring(start, end));
+        if (exact != null)
+        {
+            PahoMqttTopicTrie.match(exact, topic, end + 1, false, result);
+        }
+
+        if (!system)
+        {
+            Node<T> single = node.mChildren.get(SINGLE_LEVEL_WILDCARD);
+            if (single != null)
+            {
+                PahoMqttTopicTrie.match(single, topic, end + 1, false, result);
+            }
+        }
+    }
+
+    private static <T> boolean matches(Node<T> node, String topic, int start, boolean system)
+    {
+        if (!system)
+        {
+            Node<T> multi = node.mChildren.get(MULTI_LEVEL_WILDCARD);
+            if (multi != null && !multi.mValues.isEmpty())
+            {
+                return true;
+            }
+        }
+
+        if (start > topic.length())
+        {
+            return !node.mValues.isEmpty();
+        }
+
+        int end = topic.indexOf(LEVEL_SEPARATOR, start);
+        if (end < 0)
+        {
+            end = topic.length();
+        }
+
+        Node<T> exact = node.mChildren.get(topic.substring(start, end));
+        if (exact != null && PahoMqttTopicTrie.matches(exact, topic, end + 1, false))
+        {
+            return true;
+        }
+
+        if (!system)
+        {
+            Node<T> single = node.mChildren.get(SINGLE_LEVEL_WILDCARD);
+            if (single != null)
+            {
+                return PahoMqttTopicTrie.matches(single, topic, end + 1, false);
+            }
+        }
+        return false;
+    }
+
+    // --------------------------------------------------
+    // INNER CLASSES
+    // --------------------------------------------------
+
+    /**
+     * Defines a single level of the trie.
+     */
+    private static final class Node<T>
+    {
+        private final Node<T>                      mParent;
+        private final String                       mLevel;
+        private final ConcurrentMap<String, Node<T>> mChildren = new ConcurrentHashMap<String, Node<T>>();
+        private final Collection<T>                mValues   = new CopyOnWriteArrayList<T>();
+
+        private Node(Node<T> parent, String level)
+        {
+            this.mParent = parent;
+            this.mLevel = level;
+        }
+    }
+}
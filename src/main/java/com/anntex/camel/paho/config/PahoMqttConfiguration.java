@@ -16,6 +16,10 @@
  */
 package com.anntex.camel.paho.config;
 
+import java.util.List;
+
+import com.anntex.camel.paho.PahoMqttMessageFilter;
+import com.anntex.camel.paho.PahoMqttMetricsRegistry;
 import org.apache.camel.spi.UriParam;
 import org.apache.camel.spi.UriParams;
 
@@ -41,6 +45,63 @@ public class PahoMqttConfiguration
     public static final String DEFAULT_IS_RETAINED_NAME        = "retained";
     public static final String DEFAULT_IS_CLEAN_SESSION_NAME   = "cleanSession";
     public static final String DEFAULT_CONNECTION_TIMEOUT_NAME = "connectionTimeout";
+    public static final String DEFAULT_MAX_IN_FLIGHT_NAME      = "maxInFlight";
+    public static final String DEFAULT_POOL_SIZE_NAME          = "connectionPoolSize";
+    public static final String DEFAULT_POOL_STRATEGY_NAME      = "connectionPoolStrategy";
+    public static final String DEFAULT_CONSUMER_THREADS_NAME   = "consumerThreads";
+    public static final String DEFAULT_CONSUMER_QUEUE_NAME     = "consumerQueueSize";
+    public static final String DEFAULT_HIGH_WATERMARK_NAME     = "consumerHighWatermark";
+    public static final String DEFAULT_LOW_WATERMARK_NAME      = "consumerLowWatermark";
+    public static final String DEFAULT_SYNCHRONOUS_ACK_NAME    = "synchronousAck";
+    public static final String DEFAULT_DEDUP_CACHE_NAME        = "dedupCacheSize";
+    public static final String DEFAULT_DEDUP_WINDOW_NAME       = "dedupWindowMillis";
+    public static final String DEFAULT_DEDUP_ID_LENGTH_NAME    = "dedupIdLength";
+    public static final String DEFAULT_CONFLATE_NAME           = "conflate";
+    public static final String DEFAULT_CONFLATE_INTERVAL_NAME  = "conflateIntervalMillis";
+    public static final String DEFAULT_INCLUDE_TOPICS_NAME     = "includeTopics";
+    public static final String DEFAULT_EXCLUDE_TOPICS_NAME     = "excludeTopics";
+    public static final String DEFAULT_PAYLOAD_PREFIX_NAME     = "payloadPrefix";
+    public static final String DEFAULT_MESSAGE_FILTER_NAME     = "messageFilter";
+    public static final String DEFAULT_BATCH_SIZE_NAME         = "batchSize";
+    public static final String DEFAULT_BATCH_TIMEOUT_NAME      = "batchTimeoutMillis";
+    public static final String DEFAULT_ENVELOPE_SIZE_NAME      = "envelopeSize";
+    public static final String DEFAULT_ENVELOPE_TIMEOUT_NAME   = "envelopeTimeoutMillis";
+    public static final String DEFAULT_UNPACK_ENVELOPES_NAME   = "unpackEnvelopes";
+    public static final String DEFAULT_COMPRESSION_NAME        = "compression";
+    public static final String DEFAULT_COMPRESSION_MIN_NAME    = "compressionThreshold";
+    public static final String DEFAULT_MAX_DECOMPRESSED_NAME   = "maxDecompressedSize";
+    public static final String DEFAULT_CHUNK_SIZE_NAME         = "chunkSize";
+    public static final String DEFAULT_REASSEMBLE_CHUNKS_NAME  = "reassembleChunks";
+    public static final String DEFAULT_CHUNK_DIR_NAME          = "chunkDirectory";
+    public static final String DEFAULT_CHUNK_TIMEOUT_NAME      = "chunkTimeoutMillis";
+    public static final String DEFAULT_TRANSPORT_NAME          = "transport";
+    public static final String DEFAULT_SHARED_CONNECTION_NAME  = "sharedConnection";
+    public static final String DEFAULT_RECONNECT_DELAY_NAME    = "reconnectDelay";
+    public static final String DEFAULT_RECONNECT_MAX_NAME      = "reconnectMaxDelay";
+    public static final String DEFAULT_OFFLINE_BUFFER_NAME     = "offlineBufferSize";
+    public static final String DEFAULT_OFFLINE_POLICY_NAME     = "offlineBufferPolicy";
+    public static final String DEFAULT_PERSISTENCE_NAME        = "persistence";
+    public static final String DEFAULT_PERSISTENCE_DIR_NAME    = "persistenceDirectory";
+    public static final String DEFAULT_BYTE_BUFFER_NAME        = "byteBufferPayload";
+    public static final String DEFAULT_TOPIC_CACHE_NAME        = "topicCacheSize";
+    public static final String DEFAULT_METRICS_REGISTRY_NAME   = "metricsRegistry";
+
+    public static final String POOL_STRATEGY_TOPIC             = "topic";
+    public static final String POOL_STRATEGY_ROUND_ROBIN       = "roundRobin";
+
+    public static final String OFFLINE_POLICY_BLOCK            = "block";
+    public static final String OFFLINE_POLICY_DROP_OLDEST      = "dropOldest";
+    public static final String OFFLINE_POLICY_FAIL_FAST        = "failFast";
+
+    public static final String PERSISTENCE_MEMORY              = "memory";
+    public static final String PERSISTENCE_FILE                = "file";
+    public static final String PERSISTENCE_MMAP                = "mmap";
+
+    public static final String COMPRESSION_NONE                = "none";
+    public static final String COMPRESSION_DEFLATE             = "deflate";
+
+    public static final String TRANSPORT_PAHO                  = "paho";
+    public static final String TRANSPORT_NIO                   = "nio";
 
     @UriParam
     private String             endPointName                    = "camel-paho-mqtt";
@@ -63,6 +124,279 @@ public class PahoMqttConfiguration
     @UriParam
     private boolean            retained                        = false;
 
+    /**
+     * Defines the maximum number of publishes a producer keeps waiting for
+     * the broker acknowledgement at the same time.
+     */
+    @UriParam
+    private int                maxInFlight                     = 10;
+
+    /**
+     * Defines the number of client connections a producer opens to the broker.
+     */
+    @UriParam
+    private int                connectionPoolSize              = 1;
+
+    /**
+     * Defines how a producer spreads exchanges across its connections, either
+     * by a hash of the topic or round-robin.
+     */
+    @UriParam
+    private String             connectionPoolStrategy          = POOL_STRATEGY_TOPIC;
+
+    /**
+     * Defines the number of worker threads a consumer dispatches incoming
+     * messages to. With 0 the messages are processed on the Paho callback
+     * thread.
+     */
+    @UriParam
+    private int                consumerThreads                 = 0;
+
+    /**
+     * Defines the capacity of the message queue of every consumer worker
+     * thread.
+     */
+    @UriParam
+    private int                consumerQueueSize               = 1000;
+
+    /**
+     * Defines the number of received messages a consumer buffers before it
+     * stops reading from the connection. Disabled with a value of 0.
+     */
+    @UriParam
+    private int                consumerHighWatermark           = 0;
+
+    /**
+     * Defines the number of buffered messages below which a paused consumer
+     * reads from the connection again. With 0 half of the high watermark is
+     * used.
+     */
+    @UriParam
+    private int                consumerLowWatermark            = 0;
+
+    /**
+     * Defines if a consumer processes every message synchronously on the
+     * receiving thread and acknowledges a QoS 1 or 2 message only after its
+     * route completed the exchange successfully.
+     */
+    @UriParam
+    private boolean            synchronousAck                  = false;
+
+    /**
+     * Defines the number of message keys a consumer remembers to drop
+     * duplicates. Disabled with a value of 0.
+     */
+    @UriParam
+    private int                dedupCacheSize                  = 0;
+
+    /**
+     * Defines the time in milliseconds a message key is remembered.
+     */
+    @UriParam
+    private long               dedupWindowMillis               = 60000;
+
+    /**
+     * Defines the number of leading payload bytes holding the id of a message.
+     * With 0 the whole payload is used.
+     */
+    @UriParam
+    private int                dedupIdLength                   = 0;
+
+    /**
+     * Defines if a consumer delivers only the newest message per topic.
+     */
+    @UriParam
+    private boolean            conflate                        = false;
+
+    /**
+     * Defines the interval in milliseconds a conflating consumer delivers its
+     * pending messages at. With 0 they are delivered as fast as the route
+     * takes them.
+     */
+    @UriParam
+    private long               conflateIntervalMillis          = 0;
+
+    /**
+     * Defines a comma separated list of topic filters a consumer delivers
+     * messages of. With no filter all messages are delivered.
+     */
+    @UriParam
+    private String             includeTopics;
+
+    /**
+     * Defines a comma separated list of topic filters a consumer drops
+     * messages of.
+     */
+    @UriParam
+    private String             excludeTopics;
+
+    /**
+     * Defines the bytes the payload of a delivered message has to start with,
+     * as UTF-8 text or as hexadecimal bytes after <code>hex:</code>.
+     */
+    @UriParam
+    private String             payloadPrefix;
+
+    /**
+     * Defines the number of messages a consumer gathers into a single
+     * exchange. Batching is disabled with a value of 0 or 1.
+     */
+    @UriParam
+    private int                batchSize                       = 0;
+
+    /**
+     * Defines the time in milliseconds after which an incomplete batch is
+     * flushed.
+     */
+    @UriParam
+    private long               batchTimeoutMillis              = 1000;
+
+    /**
+     * Defines the number of messages to the same topic a producer packs into
+     * a single envelope. Packing is disabled with a value of 0 or 1.
+     */
+    @UriParam
+    private int                envelopeSize                    = 0;
+
+    /**
+     * Defines the time in milliseconds after which an incomplete envelope is
+     * published.
+     */
+    @UriParam
+    private long               envelopeTimeoutMillis           = 10;
+
+    /**
+     * Defines if a consumer unpacks envelopes into the messages they hold.
+     */
+    @UriParam
+    private boolean            unpackEnvelopes                 = false;
+
+    /**
+     * Defines the codec a producer compresses payloads with and a consumer
+     * decompresses received frames with.
+     */
+    @UriParam
+    private String             compression                     = COMPRESSION_NONE;
+
+    /**
+     * Defines the size in bytes from which a producer compresses a payload.
+     */
+    @UriParam
+    private int                compressionThreshold            = 256;
+
+    /**
+     * Defines the largest payload in bytes a consumer decompresses a frame
+     * into, larger frames are delivered as they are.
+     */
+    @UriParam
+    private int                maxDecompressedSize             = 1048576;
+
+    /**
+     * Defines the number of bytes per chunk a producer streams a body in.
+     * Chunking is disabled with a value of 0.
+     */
+    @UriParam
+    private int                chunkSize                       = 0;
+
+    /**
+     * Defines if a consumer reassembles streamed transfers into files.
+     */
+    @UriParam
+    private boolean            reassembleChunks                = false;
+
+    /**
+     * Defines the directory a consumer reassembles transfers in.
+     */
+    @UriParam
+    private String             chunkDirectory                  = System.getProperty("java.io.tmpdir");
+
+    /**
+     * Defines the time in milliseconds a transfer may wait for its next
+     * chunk before it is discarded.
+     */
+    @UriParam
+    private long               chunkTimeoutMillis              = 60000;
+
+    /**
+     * Defines the client connections are made with, a Paho client with its
+     * own threads per connection or a client on the shared event loops of
+     * the component.
+     */
+    @UriParam
+    private String             transport                       = TRANSPORT_PAHO;
+
+    /**
+     * Defines if a consumer shares the connection of all consumers with the
+     * same host and endPointName.
+     */
+    @UriParam
+    private boolean            sharedConnection                = false;
+
+    /**
+     * Defines the upper bound in milliseconds of the delay before the first
+     * reconnect attempt. The bound doubles with every failed attempt.
+     */
+    @UriParam
+    private long               reconnectDelay                  = 1000;
+
+    /**
+     * Defines the maximum delay in milliseconds between reconnect attempts.
+     */
+    @UriParam
+    private long               reconnectMaxDelay               = 30000;
+
+    /**
+     * Defines the number of publishes a producer connection keeps while it is
+     * disconnected.
+     */
+    @UriParam
+    private int                offlineBufferSize               = 1000;
+
+    /**
+     * Defines what happens to a publish if the offline buffer is full.
+     */
+    @UriParam
+    private String             offlineBufferPolicy             = OFFLINE_POLICY_BLOCK;
+
+    /**
+     * Defines where the clients keep the state of QoS 1/2 messages in flight,
+     * either in memory, in one file per message or in a memory-mapped log.
+     */
+    @UriParam
+    private String             persistence                     = PERSISTENCE_MEMORY;
+
+    /**
+     * Defines the directory of the file and memory-mapped persistence.
+     */
+    @UriParam
+    private String             persistenceDirectory            = System.getProperty("user.dir");
+
+    /**
+     * Defines if a consumer delivers the payload as a read-only ByteBuffer
+     * view instead of a byte array.
+     */
+    @UriParam
+    private boolean            byteBufferPayload               = false;
+
+    /**
+     * Defines the number of validated topics a producer caches.
+     */
+    @UriParam
+    private int                topicCacheSize                  = 1000;
+
+    /**
+     * Defines the registry the metrics of the end point are bound to.
+     */
+    @UriParam
+    private PahoMqttMetricsRegistry    metricsRegistry;
+
+    /**
+     * Defines the filter a consumer applies to every message before an
+     * exchange is created.
+     */
+    @UriParam
+    private PahoMqttMessageFilter      messageFilter;
+
     // --------------------------------------------------
     // METHODS
     // --------------------------------------------------
@@ -118,6 +452,15 @@ public class PahoMqttConfiguration
         this.subTopicName = subTopicName;
     }
 
+    /**
+     * @return the subscriptions parsed from the subTopicName, see
+     *         {@link PahoMqttSubscription#parse(String, int)}
+     */
+    public List<PahoMqttSubscription> getSubscriptions()
+    {
+        return PahoMqttSubscription.parse(this.subTopicName, this.qosLevel);
+    }
+
     /**
      * @return the qosLevel
      */
@@ -205,4 +548,799 @@ public class PahoMqttConfiguration
     {
         this.endPointName = endPointName;
     }
+
+    /**
+     * @return the maxInFlight
+     */
+    public int getMaxInFlight()
+    {
+        return this.maxInFlight;
+    }
+
+    /**
+     * @param maxInFlight
+     *            the maxInFlight to set
+     */
+    public void setMaxInFlight(int maxInFlight)
+    {
+        if (maxInFlight > 0)
+        {
+            this.maxInFlight = maxInFlight;
+        }
+    }
+
+    /**
+     * @return the connectionPoolSize
+     */
+    public int getConnectionPoolSize()
+    {
+        return this.connectionPoolSize;
+    }
+
+    /**
+     * @param connectionPoolSize
+     *            the connectionPoolSize to set
+     */
+    public void setConnectionPoolSize(int connectionPoolSize)
+    {
+        if (connectionPoolSize > 0)
+        {
+            this.connectionPoolSize = connectionPoolSize;
+        }
+    }
+
+    /**
+     * @return the connectionPoolStrategy
+     */
+    public String getConnectionPoolStrategy()
+    {
+        return this.connectionPoolStrategy;
+    }
+
+    /**
+     * @param connectionPoolStrategy
+     *            the connectionPoolStrategy to set, either
+     *            {@link #POOL_STRATEGY_TOPIC} or
+     *            {@link #POOL_STRATEGY_ROUND_ROBIN}
+     */
+    public void setConnectionPoolStrategy(String connectionPoolStrategy)
+    {
+        if (POOL_STRATEGY_TOPIC.equalsIgnoreCase(connectionPoolStrategy))
+        {
+            this.connectionPoolStrategy = POOL_STRATEGY_TOPIC;
+        }
+        else if (POOL_STRATEGY_ROUND_ROBIN.equalsIgnoreCase(connectionPoolStrategy))
+        {
+            this.connectionPoolStrategy = POOL_STRATEGY_ROUND_ROBIN;
+        }
+    }
+
+    /**
+     * @return the consumerThreads
+     */
+    public int getConsumerThreads()
+    {
+        return this.consumerThreads;
+    }
+
+    /**
+     * @param consumerThreads
+     *            the consumerThreads to set
+     */
+    public void setConsumerThreads(int consumerThreads)
+    {
+        if (consumerThreads >= 0)
+        {
+            this.consumerThreads = consumerThreads;
+        }
+    }
+
+    /**
+     * @return the consumerQueueSize
+     */
+    public int getConsumerQueueSize()
+    {
+        return this.consumerQueueSize;
+    }
+
+    /**
+     * @param consumerQueueSize
+     *            the consumerQueueSize to set
+     */
+    public void setConsumerQueueSize(int consumerQueueSize)
+    {
+        if (consumerQueueSize > 0)
+        {
+            this.consumerQueueSize = consumerQueueSize;
+        }
+    }
+
+    /**
+     * @return the consumerHighWatermark
+     */
+    public int getConsumerHighWatermark()
+    {
+        return this.consumerHighWatermark;
+    }
+
+    /**
+     * @param consumerHighWatermark
+     *            the consumerHighWatermark to set
+     */
+    public void setConsumerHighWatermark(int consumerHighWatermark)
+    {
+        if (consumerHighWatermark >= 0)
+        {
+            this.consumerHighWatermark = consumerHighWatermark;
+        }
+    }
+
+    /**
+     * @return the consumerLowWatermark
+     */
+    public int getConsumerLowWatermark()
+    {
+        return this.consumerLowWatermark;
+    }
+
+    /**
+     * @param consumerLowWatermark
+     *            the consumerLowWatermark to set
+     */
+    public void setConsumerLowWatermark(int consumerLowWatermark)
+    {
+        if (consumerLowWatermark >= 0)
+        {
+            this.consumerLowWatermark = consumerLowWatermark;
+        }
+    }
+
+    /**
+     * @return the synchronousAck
+     */
+    public boolean isSynchronousAck()
+    {
+        return this.synchronousAck;
+    }
+
+    /**
+     * @param synchronousAck
+     *            the synchronousAck to set
+     */
+    public void setSynchronousAck(boolean synchronousAck)
+    {
+        this.synchronousAck = synchronousAck;
+    }
+
+    /**
+     * @return the dedupCacheSize
+     */
+    public int getDedupCacheSize()
+    {
+        return this.dedupCacheSize;
+    }
+
+    /**
+     * @param dedupCacheSize
+     *            the dedupCacheSize to set
+     */
+    public void setDedupCacheSize(int dedupCacheSize)
+    {
+        if (dedupCacheSize >= 0)
+        {
+            this.dedupCacheSize = dedupCacheSize;
+        }
+    }
+
+    /**
+     * @return the dedupWindowMillis
+     */
+    public long getDedupWindowMillis()
+    {
+        return this.dedupWindowMillis;
+    }
+
+    /**
+     * @param dedupWindowMillis
+     *            the dedupWindowMillis to set
+     */
+    public void setDedupWindowMillis(long dedupWindowMillis)
+    {
+        if (dedupWindowMillis > 0)
+        {
+            this.dedupWindowMillis = dedupWindowMillis;
+        }
+    }
+
+    /**
+     * @return the dedupIdLength
+     */
+    public int getDedupIdLength()
+    {
+        return this.dedupIdLength;
+    }
+
+    /**
+     * @param dedupIdLength
+     *            the dedupIdLength to set
+     */
+    public void setDedupIdLength(int dedupIdLength)
+    {
+        if (dedupIdLength >= 0)
+        {
+            this.dedupIdLength = dedupIdLength;
+        }
+    }
+
+    /**
+     * @return the conflate
+     */
+    public boolean isConflate()
+    {
+        return this.conflate;
+    }
+
+    /**
+     * @param conflate
+     *            the conflate to set
+     */
+    public void setConflate(boolean conflate)
+    {
+        this.conflate = conflate;
+    }
+
+    /**
+     * @return the conflateIntervalMillis
+     */
+    public long getConflateIntervalMillis()
+    {
+        return this.conflateIntervalMillis;
+    }
+
+    /**
+     * @param conflateIntervalMillis
+     *            the conflateIntervalMillis to set
+     */
+    public void setConflateIntervalMillis(long conflateIntervalMillis)
+    {
+        if (conflateIntervalMillis >= 0)
+        {
+            this.conflateIntervalMillis = conflateIntervalMillis;
+        }
+    }
+
+    /**
+     * @return the includeTopics
+     */
+    public String getIncludeTopics()
+    {
+        return this.includeTopics;
+    }
+
+    /**
+     * @param includeTopics
+     *            the includeTopics to set
+     */
+    public void setIncludeTopics(String includeTopics)
+    {
+        this.includeTopics = includeTopics;
+    }
+
+    /**
+     * @return the excludeTopics
+     */
+    public String getExcludeTopics()
+    {
+        return this.excludeTopics;
+    }
+
+    /**
+     * @param excludeTopics
+     *            the excludeTopics to set
+     */
+    public void setExcludeTopics(String excludeTopics)
+    {
+        this.excludeTopics = excludeTopics;
+    }
+
+    /**
+     * @return the payloadPrefix
+     */
+    public String getPayloadPrefix()
+    {
+        return this.payloadPrefix;
+    }
+
+    /**
+     * @param payloadPrefix
+     *            the payloadPrefix to set
+     */
+    public void setPayloadPrefix(String payloadPrefix)
+    {
+        this.payloadPrefix = payloadPrefix;
+    }
+
+    /**
+     * @return the batchSize
+     */
+    public int getBatchSize()
+    {
+        return this.batchSize;
+    }
+
+    /**
+     * @param batchSize
+     *            the batchSize to set
+     */
+    public void setBatchSize(int batchSize)
+    {
+        if (batchSize >= 0)
+        {
+            this.batchSize = batchSize;
+        }
+    }
+
+    /**
+     * @return the batchTimeoutMillis
+     */
+    public long getBatchTimeoutMillis()
+    {
+        return this.batchTimeoutMillis;
+    }
+
+    /**
+     * @param batchTimeoutMillis
+     *            the batchTimeoutMillis to set
+     */
+    public void setBatchTimeoutMillis(long batchTimeoutMillis)
+    {
+        if (batchTimeoutMillis > 0)
+        {
+            this.batchTimeoutMillis = batchTimeoutMillis;
+        }
+    }
+
+    /**
+     * @return the envelopeSize
+     */
+    public int getEnvelopeSize()
+    {
+        return this.envelopeSize;
+    }
+
+    /**
+     * @param envelopeSize
+     *            the envelopeSize to set
+     */
+    public void setEnvelopeSize(int envelopeSize)
+    {
+        if (envelopeSize >= 0)
+        {
+            this.envelopeSize = envelopeSize;
+        }
+    }
+
+    /**
+     * @return the envelopeTimeoutMillis
+     */
+    public long getEnvelopeTimeoutMillis()
+    {
+        return this.envelopeTimeoutMillis;
+    }
+
+    /**
+     * @param envelopeTimeoutMillis
+     *            the envelopeTimeoutMillis to set
+     */
+    public void setEnvelopeTimeoutMillis(long envelopeTimeoutMillis)
+    {
+        if (envelopeTimeoutMillis > 0)
+        {
+            this.envelopeTimeoutMillis = envelopeTimeoutMillis;
+        }
+    }
+
+    /**
+     * @return the unpackEnvelopes
+     */
+    public boolean isUnpackEnvelopes()
+    {
+        return this.unpackEnvelopes;
+    }
+
+    /**
+     * @param unpackEnvelopes
+     *            the unpackEnvelopes to set
+     */
+    public void setUnpackEnvelopes(boolean unpackEnvelopes)
+    {
+        this.unpackEnvelopes = unpackEnvelopes;
+    }
+
+    /**
+     * @return the compression
+     */
+    public String getCompression()
+    {
+        return this.compression;
+    }
+
+    /**
+     * @param compression
+     *            the compression to set
+     */
+    public void setCompression(String compression)
+    {
+        if (COMPRESSION_NONE.equalsIgnoreCase(compression))
+        {
+            this.compression = COMPRESSION_NONE;
+        }
+        else if (COMPRESSION_DEFLATE.equalsIgnoreCase(compression))
+        {
+            this.compression = COMPRESSION_DEFLATE;
+        }
+    }
+
+    /**
+     * @return the compressionThreshold
+     */
+    public int getCompressionThreshold()
+    {
+        return this.compressionThreshold;
+    }
+
+    /**
+     * @param compressionThreshold
+     *            the compressionThreshold to set
+     */
+    public void setCompressionThreshold(int compressionThreshold)
+    {
+        if (compressionThreshold >= 0)
+        {
+            this.compressionThreshold = compressionThreshold;
+        }
+    }
+
+    /**
+     * @return the maxDecompressedSize
+     */
+    public int getMaxDecompressedSize()
+    {
+        return this.maxDecompressedSize;
+    }
+
+    /**
+     * @param maxDecompressedSize
+     *            the maxDecompressedSize to set
+     */
+    public void setMaxDecompressedSize(int maxDecompressedSize)
+    {
+        if (maxDecompressedSize > 0)
+        {
+            this.maxDecompressedSize = maxDecompressedSize;
+        }
+    }
+
+    /**
+     * @return the chunkSize
+     */
+    public int getChunkSize()
+    {
+        return this.chunkSize;
+    }
+
+    /**
+     * @param chunkSize
+     *            the chunkSize to set
+     */
+    public void setChunkSize(int chunkSize)
+    {
+        if (chunkSize >= 0)
+        {
+            this.chunkSize = chunkSize;
+        }
+    }
+
+    /**
+     * @return the reassembleChunks
+     */
+    public boolean isReassembleChunks()
+    {
+        return this.reassembleChunks;
+    }
+
+    /**
+     * @param reassembleChunks
+     *            the reassembleChunks to set
+     */
+    public void setReassembleChunks(boolean reassembleChunks)
+    {
+        this.reassembleChunks = reassembleChunks;
+    }
+
+    /**
+     * @return the chunkDirectory
+     */
+    public String getChunkDirectory()
+    {
+        return this.chunkDirectory;
+    }
+
+    /**
+     * @param chunkDirectory
+     *            the chunkDirectory to set
+     */
+    public void setChunkDirectory(String chunkDirectory)
+    {
+        this.chunkDirectory = chunkDirectory;
+    }
+
+    /**
+     * @return the chunkTimeoutMillis
+     */
+    public long getChunkTimeoutMillis()
+    {
+        return this.chunkTimeoutMillis;
+    }
+
+    /**
+     * @param chunkTimeoutMillis
+     *            the chunkTimeoutMillis to set
+     */
+    public void setChunkTimeoutMillis(long chunkTimeoutMillis)
+    {
+        if (chunkTimeoutMillis > 0)
+        {
+            this.chunkTimeoutMillis = chunkTimeoutMillis;
+        }
+    }
+
+    /**
+     * @return the transport
+     */
+    public String getTransport()
+    {
+        return this.transport;
+    }
+
+    /**
+     * @param transport
+     *            the transport to set
+     */
+    public void setTransport(String transport)
+    {
+        if (TRANSPORT_PAHO.equalsIgnoreCase(transport))
+        {
+            this.transport = TRANSPORT_PAHO;
+        }
+        else if (TRANSPORT_NIO.equalsIgnoreCase(transport))
+        {
+            this.transport = TRANSPORT_NIO;
+        }
+    }
+
+    /**
+     * @return the sharedConnection
+     */
+    public boolean isSharedConnection()
+    {
+        return this.sharedConnection;
+    }
+
+    /**
+     * @param sharedConnection
+     *            the sharedConnection to set
+     */
+    public void setSharedConnection(boolean sharedConnection)
+    {
+        this.sharedConnection = sharedConnection;
+    }
+
+    /**
+     * @return the reconnectDelay
+     */
+    public long getReconnectDelay()
+    {
+        return this.reconnectDelay;
+    }
+
+    /**
+     * @param reconnectDelay
+     *            the reconnectDelay to set
+     */
+    public void setReconnectDelay(long reconnectDelay)
+    {
+        if (reconnectDelay > 0)
+        {
+            this.reconnectDelay = reconnectDelay;
+        }
+    }
+
+    /**
+     * @return the reconnectMaxDelay
+     */
+    public long getReconnectMaxDelay()
+    {
+        return this.reconnectMaxDelay;
+    }
+
+    /**
+     * @param reconnectMaxDelay
+     *            the reconnectMaxDelay to set
+     */
+    public void setReconnectMaxDelay(long reconnectMaxDelay)
+    {
+        if (reconnectMaxDelay > 0)
+        {
+            this.reconnectMaxDelay = reconnectMaxDelay;
+        }
+    }
+
+    /**
+     * @return the offlineBufferSize
+     */
+    public int getOfflineBufferSize()
+    {
+        return this.offlineBufferSize;
+    }
+
+    /**
+     * @param offlineBufferSize
+     *            the offlineBufferSize to set
+     */
+    public void setOfflineBufferSize(int offlineBufferSize)
+    {
+        if (offlineBufferSize > 0)
+        {
+            this.offlineBufferSize = offlineBufferSize;
+        }
+    }
+
+    /**
+     * @return the offlineBufferPolicy
+     */
+    public String getOfflineBufferPolicy()
+    {
+        return this.offlineBufferPolicy;
+    }
+
+    /**
+     * @param offlineBufferPolicy
+     *            the offlineBufferPolicy to set, either
+     *            {@link #OFFLINE_POLICY_BLOCK},
+     *            {@link #OFFLINE_POLICY_DROP_OLDEST} or
+     *            {@link #OFFLINE_POLICY_FAIL_FAST}
+     */
+    public void setOfflineBufferPolicy(String offlineBufferPolicy)
+    {
+        if (OFFLINE_POLICY_BLOCK.equalsIgnoreCase(offlineBufferPolicy))
+        {
+            this.offlineBufferPolicy = OFFLINE_POLICY_BLOCK;
+        }
+        else if (OFFLINE_POLICY_DROP_OLDEST.equalsIgnoreCase(offlineBufferPolicy))
+        {
+            this.offlineBufferPolicy = OFFLINE_POLICY_DROP_OLDEST;
+        }
+        else if (OFFLINE_POLICY_FAIL_FAST.equalsIgnoreCase(offlineBufferPolicy))
+        {
+            this.offlineBufferPolicy = OFFLINE_POLICY_FAIL_FAST;
+        }
+    }
+
+    /**
+     * @return the persistence
+     */
+    public String getPersistence()
+    {
+        return this.persistence;
+    }
+
+    /**
+     * @param persistence
+     *            the persistence to set, either {@link #PERSISTENCE_MEMORY},
+     *            {@link #PERSISTENCE_FILE} or {@link #PERSISTENCE_MMAP}
+     */
+    public void setPersistence(String persistence)
+    {
+        if (PERSISTENCE_MEMORY.equalsIgnoreCase(persistence))
+        {
+            this.persistence = PERSISTENCE_MEMORY;
+        }
+        else if (PERSISTENCE_FILE.equalsIgnoreCase(persistence))
+        {
+            this.persistence = PERSISTENCE_FILE;
+        }
+        else if (PERSISTENCE_MMAP.equalsIgnoreCase(persistence))
+        {
+            this.persistence = PERSISTENCE_MMAP;
+        }
+    }
+
+    /**
+     * @return the persistenceDirectory
+     */
+    public String getPersistenceDirectory()
+    {
+        return this.persistenceDirectory;
+    }
+
+    /**
+     * @param persistenceDirectory
+     *            the persistenceDirectory to set
+     */
+    public void setPersistenceDirectory(String persistenceDirectory)
+    {
+        this.persistenceDirectory = persistenceDirectory;
+    }
+
+    /**
+     * @return the byteBufferPayload
+     */
+    public boolean isByteBufferPayload()
+    {
+        return this.byteBufferPayload;
+    }
+
+    /**
+     * @param byteBufferPayload
+     *            the byteBufferPayload to set
+     */
+    public void setByteBufferPayload(boolean byteBufferPayload)
+    {
+        this.byteBufferPayload = byteBufferPayload;
+    }
+
+    /**
+     * @return the topicCacheSize
+     */
+    public int getTopicCacheSize()
+    {
+        return this.topicCacheSize;
+    }
+
+    /**
+     * @param topicCacheSize
+     *            the topicCacheSize to set
+     */
+    public void setTopicCacheSize(int topicCacheSize)
+    {
+        if (topicCacheSize >= 0)
+        {
+            this.topicCacheSize = topicCacheSize;
+        }
+    }
+
+    /**
+     * @return the metricsRegistry
+     */
+    public PahoMqttMetricsRegistry getMetricsRegistry()
+    {
+        return this.metricsRegistry;
+    }
+
+    /**
+     * @param metricsRegistry
+     *            the metricsRegistry to set
+     */
+    public void setMetricsRegistry(PahoMqttMetricsRegistry metricsRegistry)
+    {
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    /**
+     * @return the messageFilter
+     */
+    public PahoMqttMessageFilter getMessageFilter()
+    {
+        return this.messageFilter;
+    }
+
+    /**
+     * @param messageFilter
+     *            the messageFilter to set
+     */
+    public void setMessageFilter(PahoMqttMessageFilter messageFilter)
+    {
+        this.messageFilter = messageFilter;
+    }
 }
\ No newline at end of file
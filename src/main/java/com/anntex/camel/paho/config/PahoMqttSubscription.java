@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho.config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class describes a single topic filter a consumer subscribes to together
+ * with the QoS level requested for it.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public final class PahoMqttSubscription
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    /**
+     * Separates the topic filters of a subscription list.
+     */
+    public static final String TOPIC_SEPARATOR = ",";
+
+    /**
+     * Separates a topic filter from its optional QoS level.
+     */
+    public static final char   QOS_SEPARATOR   = ':';
+
+    private final String       topicFilter;
+    private final int          qosLevel;
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    /**
+     * @param topicFilter
+     *            The topic filter, may contain the wildcards <tt>+</tt> and
+     *            <tt>#</tt>.
+     * @param qosLevel
+     *            The QoS level requested for the topic filter.
+     */
+    public PahoMqttSubscription(String topicFilter, int qosLevel)
+    {
+        this.topicFilter = topicFilter;
+        this.qosLevel = qosLevel;
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * Parses a comma separated list of topic filters. Every filter may end
+     * with <tt>:0</tt>, <tt>:1</tt> or <tt>:2</tt> to request a QoS level for
+     * this filter, e.g. <tt>a/b:1,c/#:0</tt>. Filters without QoS level use
+     * the given default level. Empty entries are ignored.
+     *
+     * @param topics
+     *            The list of topic filters.
+     * @param defaultQosLevel
+     *            The QoS level of filters without an explicit level.
+     * @return the parsed subscriptions in the order of the list.
+     */
+    public static List<PahoMqttSubscription> parse(String topics, int defaultQosLevel)
+    {
+        List<PahoMqttSubscription> subscriptions = new ArrayList<PahoMqttSubscription>();
+        if (topics == null)
+        {
+            return subscriptions;
+        }
+
+        for (String entry : topics.split(TOPIC_SEPARATOR))
+        {
+            String topic = entry.trim();
+            int qos = defaultQosLevel;
+
+            // only a trailing digit from 0 to 2 is a QoS level, any other
+            // colon belongs to the topic filter itself
+            int index = topic.lastIndexOf(QOS_SEPARATOR);
+            if (index >= 0 && index == topic.length() - 2)
+            {
+                char level = topic.charAt(index + 1);
+                if (level >= '0' && level <= '2')
+                {
+                    qos = level - '0';
+                    topic = topic.substring(0, index).trim();
+                }
+            }
+
+            if (!topic.isEmpty())
+            {
+                subscriptions.add(new PahoMqttSubscription(topic, qos));
+            }
+        }
+
+        return subscriptions;
+    }
+
+    /**
+     * @return the topicFilter
+     */
+    public String getTopicFilter()
+    {
+        return this.topicFilter;
+    }
+
+    /**
+     * @return the qosLevel
+     */
+    public int getQosLevel()
+    {
+        return this.qosLevel;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return this.topicFilter + QOS_SEPARATOR + this.qosLevel;
+    }
+}
@@ -0,0 +1,421 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho.persist;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+/**
+ * This class implements a {@link MqttClientPersistence} backed by an append
+ * only log in a memory-mapped file. Every put and remove appends a record to
+ * the mapped segment, so persisting the in-flight state of a QoS 1/2 message
+ * costs a memory copy instead of creating, syncing and deleting a file. The
+ * live entries are kept in memory as well and written into a fresh segment
+ * whenever the segment is full; an empty persistence simply restarts the log
+ * at its beginning.
+ * <p>
+ * The segment is not forced to disk on every write, the operating system
+ * writes it back in the background. The state therefore survives a restart or
+ * crash of the JVM, but not necessarily a crash of the operating system.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttMappedPersistence implements MqttClientPersistence
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    /**
+     * Defines the default size of a segment in bytes.
+     */
+    public static final int                    DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final Charset               UTF_8                = Charset.forName("UTF-8");
+    private static final String                SEGMENT_SUFFIX       = ".mlog";
+    private static final String                COMPACT_SUFFIX       = ".compact";
+
+    private static final byte                  RECORD_PUT           = 1;
+    private static final byte                  RECORD_REMOVE        = 2;
+
+    /**
+     * Defines the size of the length prefix of a record.
+     */
+    private static final int                   LENGTH_SIZE          = 4;
+
+    private final File                         mDirectory;
+    private final int                          mInitialSegmentSize;
+
+    /**
+     * Defines the live entries in the order they were put.
+     */
+    private final Map<String, PahoMqttPersistentData> mEntries    =
+            new LinkedHashMap<String, PahoMqttPersistentData>();
+
+    private File                               mSegmentFile;
+    private MappedByteBuffer                   mSegment;
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    /**
+     * @param directory
+     *            The directory to keep the segments in.
+     */
+    public PahoMqttMappedPersistence(String directory)
+    {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param directory
+     *            The directory to keep the segments in.
+     * @param segmentSize
+     *            The initial size of a segment in bytes. A segment grows if
+     *            its live entries do not fit anymore.
+     */
+    public PahoMqttMappedPersistence(String directory, int segmentSize)
+    {
+        this.mDirectory = new File(directory);
+        this.mInitialSegmentSize = segmentSize;
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void open(String clientId, String serverURI) throws MqttPersistenceException
+    {
+        if (!this.mDirectory.isDirectory() && !this.mDirectory.mkdirs())
+        {
+            throw new MqttPersistenceException(new IOException("Can not create directory " + this.mDirectory));
+        }
+
+        String name = PahoMqttMappedPersistence.sanitize(clientId + "-" + serverURI);
+        this.mSegmentFile = new File(this.mDirectory, name + SEGMENT_SUFFIX);
+
+        // a compaction interrupted before the rename leaves an incomplete
+        // segment behind, the old segment is still valid
+        File compact = new File(this.mDirectory, name + SEGMENT_SUFFIX + COMPACT_SUFFIX);
+        if (compact.exists() && !compact.delete())
+        {
+            throw new MqttPersistenceException(new IOException("Can not delete " + compact));
+        }
+
+        try
+        {
+            int size = (int) Math.max(this.mSegmentFile.length(), this.mInitialSegmentSize);
+            this.mSegment = PahoMqttMappedPersistence.map(this.mSegmentFile, size);
+        } catch (IOException ex)
+        {
+            throw new MqttPersistenceException(ex);
+        }
+
+        this.mEntries.clear();
+        this.replay();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void close() throws MqttPersistenceException
+    {
+        this.checkOpen();
+        this.mSegment.force();
+        this.mSegment = null;
+        this.mEntries.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void put(String key, MqttPersistable persistable) throws MqttPersistenceException
+    {
+        this.checkOpen();
+
+        PahoMqttPersistentData data = PahoMqttPersistentData.copyOf(persistable);
+        byte[] keyBytes = key.getBytes(UTF_8);
+        int length = 1 + 2 + keyBytes.length + 4 + data.getHeaderLength() + 4 + data.getPayloadLength();
+
+        this.mEntries.remove(key);
+        this.ensureCapacity(length);
+        this.append(this.mSegment, RECORD_PUT, keyBytes, data);
+        this.mEntries.put(key, data);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized MqttPersistable get(String key) throws MqttPersistenceException
+    {
+        this.checkOpen();
+        return this.mEntries.get(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void remove(String key) throws MqttPersistenceException
+    {
+        this.checkOpen();
+        if (this.mEntries.remove(key) == null)
+        {
+            return;
+        }
+
+        if (this.mEntries.isEmpty())
+        {
+            // nothing is alive anymore, so the log can start from scratch
+            this.reset();
+            return;
+        }
+
+        byte[] keyBytes = key.getBytes(UTF_8);
+        this.ensureCapacity(1 + 2 + keyBytes.length);
+        this.append(this.mSegment, RECORD_REMOVE, keyBytes, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized Enumeration<String> keys() throws MqttPersistenceException
+    {
+        this.checkOpen();
+        return Collections.enumeration(new ArrayList<String>(this.mEntries.keySet()));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void clear() throws MqttPersistenceException
+    {
+        this.checkOpen();
+        this.mEntries.clear();
+        this.reset();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean containsKey(String key) throws MqttPersistenceException
+    {
+        this.checkOpen();
+        return this.mEntries.containsKey(key);
+    }
+
+    /**
+     * Reads all complete records of the segment and positions the segment
+     * behind the last one.
+     */
+    private void replay()
+    {
+        MappedByteBuffer segment = this.mSegment;
+        segment.position(0);
+
+        while (segment.remaining() >= LENGTH_SIZE)
+        {
+            int start = segment.position();
+            int length = segment.getInt();
+            if (length <= 0 || length > segment.remaining())
+            {
+                // end of the log or a record torn by a crash
+                segment.position(start);
+                break;
+            }
+
+            byte type = segment.get();
+            byte[] key = new byte[segment.getShort() & 0xFFFF];
+            segment.get(key);
+
+            if (type == RECORD_PUT)
+            {
+                byte[] header = new byte[segment.getInt()];
+                segment.get(header);
+                byte[] payload = new byte[segment.getInt()];
+                segment.get(payload);
+                this.mEntries.put(new String(key, UTF_8), new PahoMqttPersistentData(header, payload));
+            }
+            else
+            {
+                this.mEntries.remove(new String(key, UTF_8));
+            }
+
+            segment.position(start + LENGTH_SIZE + length);
+        }
+    }
+
+    /**
+     * Appends a record and terminates the log behind it. The length prefix is
+     * written last, so a record torn by a crash is not replayed.
+     */
+    private void append(MappedByteBuffer segment, byte type, byte[] key, PahoMqttPersistentData data)
+    {
+        int start = segment.position();
+        segment.position(start + LENGTH_SIZE);
+        segment.put(type);
+        segment.putShort((short) key.length);
+        segment.put(key);
+        if (data != null)
+        {
+            segment.putInt(data.getHeaderLength());
+            segment.put(data.getHeaderBytes(), data.getHeaderOffset(), data.getHeaderLength());
+            segment.putInt(data.getPayloadLength());
+            if (data.getPayloadLength() > 0)
+            {
+                segment.put(data.getPayloadBytes(), data.getPayloadOffset(), data.getPayloadLength());
+            }
+        }
+
+        int end = segment.position();
+        if (segment.remaining() >= LENGTH_SIZE)
+        {
+            segment.putInt(end, 0);
+        }
+        segment.putInt(start, end - start - LENGTH_SIZE);
+    }
+
+    /**
+     * Makes sure a record of the given length plus the terminator fits into
+     * the segment, compacting the segment if necessary.
+     */
+    private void ensureCapacity(int length) throws MqttPersistenceException
+    {
+        if (this.mSegment.remaining() >= LENGTH_SIZE + length + LENGTH_SIZE)
+        {
+            return;
+        }
+
+        // calculate the space of all live entries plus the new record
+        long required = LENGTH_SIZE + length + LENGTH_SIZE;
+        for (Map.Entry<String, PahoMqttPersistentData> entry : this.mEntries.entrySet())
+        {
+            required += LENGTH_SIZE + 1 + 2 + entry.getKey().getBytes(UTF_8).length + 4
+                    + entry.getValue().getHeaderLength() + 4 + entry.getValue().getPayloadLength();
+        }
+
+        int size = this.mSegment.capacity();
+        while (size < required * 2 && size < Integer.MAX_VALUE / 2)
+        {
+            size *= 2;
+        }
+        this.compact(size);
+    }
+
+    /**
+     * Writes all live entries into a new segment of the given size, which
+     * replaces the current segment.
+     */
+    private void compact(int size) throws MqttPersistenceException
+    {
+        File compact = new File(this.mSegmentFile.getPath() + COMPACT_SUFFIX);
+        try
+        {
+            MappedByteBuffer segment = PahoMqttMappedPersistence.map(compact, size);
+            for (Map.Entry<String, PahoMqttPersistentData> entry : this.mEntries.entrySet())
+            {
+                this.append(segment, RECORD_PUT, entry.getKey().getBytes(UTF_8), entry.getValue());
+            }
+            segment.force();
+
+            // the rename replaces the old segment atomically on POSIX file
+            // systems, others need to delete it first
+            if (!compact.renameTo(this.mSegmentFile)
+                    && (!this.mSegmentFile.delete() || !compact.renameTo(this.mSegmentFile)))
+            {
+                throw new IOException("Can not replace " + this.mSegmentFile);
+            }
+            this.mSegment = segment;
+        } catch (IOException ex)
+        {
+            throw new MqttPersistenceException(ex);
+        }
+    }
+
+    /**
+     * Restarts the log at the beginning of the segment.
+     */
+    private void reset()
+    {
+        this.mSegment.putInt(0, 0);
+        this.mSegment.position(0);
+    }
+
+    private void checkOpen() throws MqttPersistenceException
+    {
+        if (this.mSegment == null)
+        {
+            throw new MqttPersistenceException(new IllegalStateException("Persistence is not open"));
+        }
+    }
+
+    /**
+     * Maps the given file with the given size into memory.
+     */
+    private static MappedByteBuffer map(File file, int size) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Replaces all characters not allowed in file names.
+     */
+    private static String sanitize(String name)
+    {
+        StringBuilder builder = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++)
+        {
+            char c = name.charAt(i);
+            builder.append(Character.isLetterOrDigit(c) || c == '-' || c == '.' ? c : '_');
+        }
+        return builder.toString();
+    }
+}
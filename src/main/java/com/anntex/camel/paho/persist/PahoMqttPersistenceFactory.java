@@ -0,0 +1,64 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho.persist;
+
+import com.anntex.camel.paho.config.PahoMqttConfiguration;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+
+/**
+ * This class creates the {@link MqttClientPersistence} selected by the
+ * {@link PahoMqttConfiguration#getPersistence()} option. Every Paho client
+ * needs its own persistence instance.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public final class PahoMqttPersistenceFactory
+{
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    private PahoMqttPersistenceFactory()
+    {
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * @param configuration
+     *            The configuration of the end point.
+     * @return a new {@link MqttClientPersistence} for a single client.
+     */
+    public static MqttClientPersistence create(PahoMqttConfiguration configuration)
+    {
+        String persistence = configuration.getPersistence();
+        if (PahoMqttConfiguration.PERSISTENCE_FILE.equals(persistence))
+        {
+            return new MqttDefaultFilePersistence(configuration.getPersistenceDirectory());
+        }
+        else if (PahoMqttConfiguration.PERSISTENCE_MMAP.equals(persistence))
+        {
+            return new PahoMqttMappedPersistence(configuration.getPersistenceDirectory());
+        }
+        return new MemoryPersistence();
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho.persist;
+
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+/**
+ * This class holds a copy of the header and payload of a persisted MQTT
+ * message.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+final class PahoMqttPersistentData implements MqttPersistable
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final byte[]        mHeader;
+    private final byte[]        mPayload;
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    PahoMqttPersistentData(byte[] header, byte[] payload)
+    {
+        this.mHeader = header;
+        this.mPayload = payload;
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * Copies the header and payload of a persistable, the Paho client may
+     * reuse their arrays after the put.
+     *
+     * @param persistable
+     *            The persistable to copy.
+     * @return the copy.
+     * @throws MqttPersistenceException
+     *             if the persistable can not be read.
+     */
+    static PahoMqttPersistentData copyOf(MqttPersistable persistable) throws MqttPersistenceException
+    {
+        byte[] header = new byte[persistable.getHeaderLength()];
+        System.arraycopy(persistable.getHeaderBytes(), persistable.getHeaderOffset(), header, 0, header.length);
+
+        byte[] payload = EMPTY;
+        if (persistable.getPayloadBytes() != null && persistable.getPayloadLength() > 0)
+        {
+            payload = new byte[persistable.getPayloadLength()];
+            System.arraycopy(persistable.getPayloadBytes(), persistable.getPayloadOffset(), payload, 0,
+                    payload.length);
+        }
+
+        return new PahoMqttPersistentData(header, payload);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] getHeaderBytes()
+    {
+        return this.mHeader;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getHeaderLength()
+    {
+        return this.mHeader.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getHeaderOffset()
+    {
+        return 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] getPayloadBytes()
+    {
+        return this.mPayload;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getPayloadLength()
+    {
+        return this.mPayload.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getPayloadOffset()
+    {
+        return 0;
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * This class defines unit tests for the reconnect delays of the {@link PahoMqttBackoff}.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttBackoffTest
+{
+    // --------------------------------------------------
+    // TESTS
+    // --------------------------------------------------
+
+    @Test
+    public void testDelaysStayWithinTheGrowingBound()
+    {
+        PahoMqttBackoff backoff = new PahoMqttBackoff(100, 1000);
+
+        long bound = 100;
+        for (int i = 0; i < 100; i++)
+        {
+            long delay = backoff.nextDelay();
+            assertTrue(delay >= 0 && delay <= bound);
+            bound = Math.min(bound * 2, 1000);
+        }
+    }
+
+    @Test
+    public void testResetStartsWithTheInitialBound()
+    {
+        PahoMqttBackoff backoff = new PahoMqttBackoff(10, 100000);
+        for (int i = 0; i < 20; i++)
+        {
+            backoff.nextDelay();
+        }
+
+        backoff.reset();
+        for (int i = 0; i < 100; i++)
+        {
+            backoff.reset();
+            assertTrue(backoff.nextDelay() <= 10);
+        }
+    }
+}
@@ -16,12 +16,19 @@
  */
 package com.anntex.camel.paho;
 
+import java.io.IOException;
+
+import com.anntex.camel.paho.broker.PahoMqttEmbeddedBroker;
 import org.apache.camel.test.junit4.CamelTestSupport;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * This class defines a base class for all Paho Mqtt test cases.
+ * This class defines a base class for all Paho Mqtt test cases. The tests of
+ * a class run against a {@link PahoMqttEmbeddedBroker} started on an ephemeral
+ * port, its address is available as {@link #DEFAULT_HOST}.
  *
  * @author dennis.grewe [https://github.com/Anntex]
  * @version 0.9-SNAPSHOT March 04, 2015
@@ -48,7 +55,15 @@ public class PahoMqttBaseTest extends CamelTestSupport
     protected static final int    TEST_QOS_LEVEL        = 1;
     // --------------------------------------------------
 
-    protected static final String DEFAULT_HOST          = "127.0.0.1:1883";
+    /**
+     * The embedded broker the tests of a class run against.
+     */
+    protected static PahoMqttEmbeddedBroker BROKER;
+
+    /**
+     * The address of the embedded broker in the format of the host option.
+     */
+    protected static String       DEFAULT_HOST;
 
 
     // --------------------------------------------------
@@ -61,6 +76,20 @@ public class PahoMqttBaseTest extends CamelTestSupport
     // METHOD
     // -------------------------------------------------
 
+    @BeforeClass
+    public static void startBroker() throws IOException
+    {
+        BROKER = new PahoMqttEmbeddedBroker();
+        BROKER.start();
+        DEFAULT_HOST = BROKER.getHost();
+    }
+
+    @AfterClass
+    public static void stopBroker()
+    {
+        BROKER.stop();
+    }
+
     /**
      * The method creates an endpoint definition based on the given route information.
      *
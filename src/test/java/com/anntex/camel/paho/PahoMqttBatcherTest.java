@@ -0,0 +1,169 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class defines unit tests for the {@link PahoMqttBatcher} used by the consumer to gather messages.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttBatcherTest
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private final BlockingQueue<PahoMqttBatcher.Batch> mBatches = new LinkedBlockingQueue<PahoMqttBatcher.Batch>();
+
+    private ScheduledExecutorService                   mTimer;
+
+    // --------------------------------------------------
+    // SETUP
+    // --------------------------------------------------
+
+    @Before
+    public void setUp()
+    {
+        this.mTimer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.mTimer.shutdownNow();
+    }
+
+    // --------------------------------------------------
+    // TESTS
+    // --------------------------------------------------
+
+    @Test(timeout = 60000)
+    public void testFlushOnSize() throws Exception
+    {
+        PahoMqttBatcher batcher = this.createBatcher(3, 60000);
+
+        batcher.add("a", this.createMessage("1", 0));
+        batcher.add("b", this.createMessage("2", 1));
+        assertNull(this.mBatches.poll());
+
+        batcher.add("c", this.createMessage("3", 2));
+        PahoMqttBatcher.Batch batch = this.mBatches.poll();
+
+        assertNotNull(batch);
+        assertEquals(3, batch.size());
+        assertArrayEquals("2".getBytes(), batch.getPayloads().get(1));
+        assertEquals("c", batch.getTopics().get(2));
+        assertEquals(Integer.valueOf(2), batch.getQosLevels().get(2));
+    }
+
+    @Test(timeout = 60000)
+    public void testFlushOnTimeout() throws Exception
+    {
+        PahoMqttBatcher batcher = this.createBatcher(100, 50);
+
+        batcher.add("a", this.createMessage("1", 1));
+        PahoMqttBatcher.Batch batch = this.mBatches.poll(10, TimeUnit.SECONDS);
+
+        assertNotNull(batch);
+        assertEquals(1, batch.size());
+        assertEquals("a", batch.getTopics().get(0));
+    }
+
+    @Test(timeout = 60000)
+    public void testDeliverBatchesOneAtATime() throws Exception
+    {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        PahoMqttBatcher batcher = new PahoMqttBatcher(2, 50, this.mTimer, new PahoMqttBatcher.Listener()
+        {
+            @Override
+            public void onBatch(PahoMqttBatcher.Batch batch)
+            {
+                maxActive.set(Math.max(maxActive.get(), active.incrementAndGet()));
+                PahoMqttBatcherTest.this.mBatches.add(batch);
+                entered.countDown();
+                try
+                {
+                    release.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                active.decrementAndGet();
+            }
+        });
+
+        // the timer flushes the first batch and blocks in the listener
+        batcher.add("a", this.createMessage("1", 0));
+        entered.await(10, TimeUnit.SECONDS);
+
+        // the full batch is left to the timer thread instead of being
+        // delivered beside the first one
+        batcher.add("b", this.createMessage("2", 0));
+        batcher.add("c", this.createMessage("3", 0));
+        assertEquals(1, this.mBatches.size());
+
+        release.countDown();
+        assertEquals("a", this.mBatches.poll(10, TimeUnit.SECONDS).getTopics().get(0));
+        assertEquals("b", this.mBatches.poll(10, TimeUnit.SECONDS).getTopics().get(0));
+        assertEquals(1, maxActive.get());
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    private PahoMqttBatcher createBatcher(int batchSize, long timeoutMillis)
+    {
+        return new PahoMqttBatcher(batchSize, timeoutMillis, this.mTimer, new PahoMqttBatcher.Listener()
+        {
+            @Override
+            public void onBatch(PahoMqttBatcher.Batch batch)
+            {
+                PahoMqttBatcherTest.this.mBatches.add(batch);
+            }
+        });
+    }
+
+    private MqttMessage createMessage(String payload, int qos)
+    {
+        MqttMessage message = new MqttMessage(payload.getBytes());
+        message.setQos(qos);
+        return message;
+    }
+}
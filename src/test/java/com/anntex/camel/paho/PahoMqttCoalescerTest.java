@@ -0,0 +1,179 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class defines unit tests for the {@link PahoMqttCoalescer} used by the producer to pack envelopes.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttCoalescerTest
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private final BlockingQueue<PahoMqttCoalescer.Envelope> mEnvelopes =
+            new LinkedBlockingQueue<PahoMqttCoalescer.Envelope>();
+
+    private final DefaultCamelContext                       mContext   = new DefaultCamelContext();
+
+    private final AtomicInteger                             mCompleted = new AtomicInteger();
+
+    private final AsyncCallback                             mCallback  = new AsyncCallback()
+    {
+        @Override
+        public void done(boolean doneSync)
+        {
+            PahoMqttCoalescerTest.this.mCompleted.incrementAndGet();
+        }
+    };
+
+    private ScheduledExecutorService                        mTimer;
+
+    // --------------------------------------------------
+    // SETUP
+    // --------------------------------------------------
+
+    @Before
+    public void setUp()
+    {
+        this.mTimer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.mTimer.shutdownNow();
+    }
+
+    // --------------------------------------------------
+    // TESTS
+    // --------------------------------------------------
+
+    @Test(timeout = 60000)
+    public void testPublishOnSizePerTopic() throws Exception
+    {
+        PahoMqttCoalescer coalescer = this.createCoalescer(2, 60000);
+
+        coalescer.add(this.createExchange(), this.mCallback, "a", "1".getBytes(), 1, false);
+        coalescer.add(this.createExchange(), this.mCallback, "b", "2".getBytes(), 1, false);
+        assertNull(this.mEnvelopes.poll());
+
+        coalescer.add(this.createExchange(), this.mCallback, "a", "3".getBytes(), 1, false);
+        PahoMqttCoalescer.Envelope envelope = this.mEnvelopes.poll();
+
+        assertNotNull(envelope);
+        assertEquals("a", envelope.getTopic());
+        assertEquals(2, envelope.size());
+        assertArrayEquals("3".getBytes(), envelope.getPayloads().get(1));
+
+        coalescer.flush();
+        assertEquals("b", this.mEnvelopes.poll().getTopic());
+    }
+
+    @Test(timeout = 60000)
+    public void testPublishOnTimeout() throws Exception
+    {
+        PahoMqttCoalescer coalescer = this.createCoalescer(100, 50);
+
+        coalescer.add(this.createExchange(), this.mCallback, "a", "1".getBytes(), 0, false);
+        PahoMqttCoalescer.Envelope envelope = this.mEnvelopes.poll(10, TimeUnit.SECONDS);
+
+        assertNotNull(envelope);
+        assertEquals(1, envelope.size());
+    }
+
+    @Test(timeout = 60000)
+    public void testChangedQosPublishesPendingEnvelopeFirst() throws Exception
+    {
+        PahoMqttCoalescer coalescer = this.createCoalescer(100, 60000);
+
+        coalescer.add(this.createExchange(), this.mCallback, "a", "1".getBytes(), 0, false);
+        coalescer.add(this.createExchange(), this.mCallback, "a", "2".getBytes(), 1, false);
+
+        PahoMqttCoalescer.Envelope envelope = this.mEnvelopes.poll();
+        assertEquals(0, envelope.getQosLevel());
+        assertArrayEquals("1".getBytes(), envelope.getPayloads().get(0));
+
+        coalescer.flush();
+        assertEquals(1, this.mEnvelopes.poll().getQosLevel());
+    }
+
+    @Test(timeout = 60000)
+    public void testCompletePassesFailureToAllExchanges() throws Exception
+    {
+        PahoMqttCoalescer coalescer = this.createCoalescer(2, 60000);
+        Exchange first = this.createExchange();
+        Exchange second = this.createExchange();
+
+        coalescer.add(first, this.mCallback, "a", "1".getBytes(), 1, false);
+        coalescer.add(second, this.mCallback, "a", "2".getBytes(), 1, false);
+        PahoMqttCoalescer.Envelope envelope = this.mEnvelopes.poll();
+        assertSame(first, envelope.getExchange());
+
+        IllegalStateException failure = new IllegalStateException("not published");
+        first.setException(failure);
+        envelope.complete();
+
+        assertEquals(2, this.mCompleted.get());
+        assertSame(failure, second.getException());
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    private PahoMqttCoalescer createCoalescer(int envelopeSize, long timeoutMillis)
+    {
+        return new PahoMqttCoalescer(envelopeSize, timeoutMillis, this.mTimer, new PahoMqttCoalescer.Listener()
+        {
+            @Override
+            public void onEnvelope(PahoMqttCoalescer.Envelope envelope)
+            {
+                PahoMqttCoalescerTest.this.mEnvelopes.add(envelope);
+            }
+        });
+    }
+
+    private Exchange createExchange()
+    {
+        return new DefaultExchange(this.mContext);
+    }
+}
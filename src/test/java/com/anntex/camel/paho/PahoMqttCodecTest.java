@@ -0,0 +1,139 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.junit.Test;
+
+/**
+ * This class defines unit tests for the {@link PahoMqttCodec} encoding and decoding the MQTT packets of the nio
+ * transport.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttCodecTest
+{
+    // --------------------------------------------------
+    // TESTS
+    // --------------------------------------------------
+
+    @Test
+    public void testRemainingLength() throws Exception
+    {
+        int[] lengths = { 0, 127, 128, 16383, 16384, 2097151, 2097152, PahoMqttCodec.MAX_LENGTH };
+        for (int length : lengths)
+        {
+            // encode the length as specified by MQTT and read it back
+            ByteBuffer encoded = ByteBuffer.allocate(PahoMqttCodec.lengthSize(length));
+            int value = length;
+            do
+            {
+                int digit = value % 128;
+                value /= 128;
+                encoded.put((byte) (value > 0 ? digit | 0x80 : digit));
+            } while (value > 0);
+            encoded.flip();
+
+            assertEquals(length, PahoMqttCodec.decodeLength(encoded));
+            assertEquals(0, encoded.remaining());
+        }
+    }
+
+    @Test
+    public void testIncompleteAndMalformedLength() throws Exception
+    {
+        assertEquals(-1, PahoMqttCodec.decodeLength(ByteBuffer.wrap(new byte[] { (byte) 0x80 })));
+        assertEquals(-1, PahoMqttCodec.decodeLength(ByteBuffer.allocate(0)));
+
+        try
+        {
+            PahoMqttCodec.decodeLength(ByteBuffer.wrap(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                    (byte) 0xFF, 0x01 }));
+            fail("a length of more than four bytes is malformed");
+        } catch (IllegalArgumentException ex)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPublishWithPacketId() throws Exception
+    {
+        ByteBuffer packet = PahoMqttCodec.publish("a/b", new byte[] { 1, 2, 3 }, 1, true);
+        PahoMqttCodec.setPacketId(packet, 0x1234);
+
+        assertEquals(0, packet.position());
+        assertEquals(PahoMqttCodec.PUBLISH << 4 | 1 << 1 | 0x01, packet.get() & 0xFF);
+        assertEquals(2 + 3 + 2 + 3, PahoMqttCodec.decodeLength(packet));
+        assertEquals("a/b", PahoMqttCodec.readString(packet));
+        assertEquals(0x1234, packet.getShort() & 0xFFFF);
+
+        byte[] payload = new byte[packet.remaining()];
+        packet.get(payload);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, payload);
+    }
+
+    @Test
+    public void testConnect() throws Exception
+    {
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        options.setKeepAliveInterval(30);
+        options.setUserName("user");
+        options.setPassword("secret".toCharArray());
+
+        ByteBuffer packet = PahoMqttCodec.connect("client", options);
+        assertEquals(PahoMqttCodec.CONNECT << 4, packet.get() & 0xFF);
+        int length = PahoMqttCodec.decodeLength(packet);
+        assertEquals(packet.remaining(), length);
+        assertEquals("MQTT", PahoMqttCodec.readString(packet));
+        assertEquals(4, packet.get());
+        assertEquals(0x80 | 0x40 | 0x02, packet.get() & 0xFF);
+        assertEquals(30, packet.getShort());
+        assertEquals("client", PahoMqttCodec.readString(packet));
+        assertEquals("user", PahoMqttCodec.readString(packet));
+        assertEquals("secret", PahoMqttCodec.readString(packet));
+        assertEquals(0, packet.remaining());
+    }
+
+    @Test
+    public void testSubscribeAndAck() throws Exception
+    {
+        ByteBuffer packet = PahoMqttCodec.subscribe(7, new String[] { "a/#", "b/+" }, new int[] { 1, 2 });
+        assertEquals(PahoMqttCodec.SUBSCRIBE << 4 | 0x02, packet.get() & 0xFF);
+        int length = PahoMqttCodec.decodeLength(packet);
+        assertEquals(packet.remaining(), length);
+        assertEquals(7, packet.getShort());
+        assertEquals("a/#", PahoMqttCodec.readString(packet));
+        assertEquals(1, packet.get());
+        assertEquals("b/+", PahoMqttCodec.readString(packet));
+        assertEquals(2, packet.get());
+
+        // only the release of a QoS 2 message carries header flags
+        ByteBuffer release = PahoMqttCodec.ack(PahoMqttCodec.PUBREL, 9);
+        assertArrayEquals(new byte[] { (byte) (PahoMqttCodec.PUBREL << 4 | 0x02), 2, 0, 9 }, release.array());
+        ByteBuffer ack = PahoMqttCodec.ack(PahoMqttCodec.PUBACK, 9);
+        assertArrayEquals(new byte[] { (byte) (PahoMqttCodec.PUBACK << 4), 2, 0, 9 }, ack.array());
+    }
+}
@@ -41,7 +41,7 @@ public class PahoMqttComponentTest extends PahoMqttBaseTest
             @Override
             public void configure()
             {
-                this.from("mqtt://testNode").to(MOCK_RESULT);
+                this.from("mqtt://testNode?host=" + DEFAULT_HOST).to(MOCK_RESULT);
             }
         };
     }
@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * This class defines unit tests for the deflate frames of the {@link PahoMqttCompression}.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttCompressionTest
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private static final int MAX_LENGTH = 1048576;
+
+    // --------------------------------------------------
+    // TESTS
+    // --------------------------------------------------
+
+    @Test
+    public void testCompressAndDecompress()
+    {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 50; i++)
+        {
+            json.append("{\"sensor\":\"kitchen\",\"temperature\":21.").append(i % 10).append("},");
+        }
+        byte[] payload = json.append("{}]").toString().getBytes();
+
+        // the codecs of the thread are reused for every payload
+        for (int i = 0; i < 3; i++)
+        {
+            byte[] frame = PahoMqttCompression.compress(payload);
+            assertNotNull(frame);
+            assertTrue(frame.length * 5 < payload.length);
+            assertTrue(PahoMqttCompression.isCompressed(frame));
+            assertArrayEquals(payload, PahoMqttCompression.decompress(frame, MAX_LENGTH));
+        }
+    }
+
+    @Test
+    public void testIncompressiblePayloadIsKept()
+    {
+        byte[] payload = new byte[1024];
+        new Random(42).nextBytes(payload);
+
+        assertNull(PahoMqttCompression.compress(payload));
+        assertNull(PahoMqttCompression.compress("tiny".getBytes()));
+    }
+
+    @Test
+    public void testPlainAndCorruptPayloadsAreNotDecompressed()
+    {
+        byte[] plain = "{\"temperature\":21.5}".getBytes();
+        assertNull(PahoMqttCompression.decompress(plain, MAX_LENGTH));
+
+        byte[] payload = new byte[4096];
+        byte[] frame = PahoMqttCompression.compress(payload);
+        assertNull(PahoMqttCompression.decompress(Arrays.copyOf(frame, frame.length - 2), MAX_LENGTH));
+
+        // a frame announcing another length than it holds is corrupt
+        frame[6]--;
+        assertNull(PahoMqttCompression.decompress(frame, MAX_LENGTH));
+        frame[6] += 2;
+        assertNull(PahoMqttCompression.decompress(frame, MAX_LENGTH));
+    }
+
+    @Test
+    public void testOversizedFramesAreNotDecompressed()
+    {
+        // a payload inflating far beyond its frame is reached by growing
+        byte[] payload = new byte[65536];
+        byte[] frame = PahoMqttCompression.compress(payload);
+        assertTrue(frame.length * 100 < payload.length);
+        assertArrayEquals(payload, PahoMqttCompression.decompress(frame, payload.length));
+        assertNull(PahoMqttCompression.decompress(frame, payload.length - 1));
+
+        // the announced length is checked before anything is allocated
+        byte[] forged = Arrays.copyOf(frame, frame.length);
+        forged[4] = 0x0F;
+        forged[5] = (byte) 0xFF;
+        forged[6] = (byte) 0xFF;
+        forged[7] = (byte) 0xFF;
+        assertNull(PahoMqttCompression.decompress(forged, MAX_LENGTH));
+        assertNull(PahoMqttCompression.decompress(forged, Integer.MAX_VALUE));
+    }
+}
@@ -16,7 +16,10 @@
  */
 package com.anntex.camel.paho;
 
+import java.util.List;
+
 import com.anntex.camel.paho.config.PahoMqttConfiguration;
+import com.anntex.camel.paho.config.PahoMqttSubscription;
 import org.junit.Test;
 
 /**
@@ -86,12 +89,36 @@ public class PahoMqttConfigurationTest extends PahoMqttBaseTest
         assertEquals(endpoint.getConfiguration().getSubTopicName(), TEST_TOPIC_2);
     }
 
-// TODO next version
-//    @Test
-//    public void testMultipleSubscribeTopicDefinition() throws Exception
-//    {
-//        assertTrue(false);
-//    }
+    @Test
+    public void testMultipleSubscribeTopicDefinition() throws Exception
+    {
+        PahoMqttEndpoint endpoint = this.createEndpointDefinition("qosLevel=" + TEST_QOS_LEVEL + "&subTopicName="
+                + TEST_TOPICS + "," + TEST_WILDCARD_TOPIC_2 + ":0," + TEST_WILDCARD_TOPIC_1 + ":2");
+
+        List<PahoMqttSubscription> subscriptions = endpoint.getConfiguration().getSubscriptions();
+
+        assertEquals(subscriptions.size(), 4);
+        assertEquals(subscriptions.get(0).getTopicFilter(), TEST_TOPIC_1);
+        assertEquals(subscriptions.get(0).getQosLevel(), TEST_QOS_LEVEL);
+        assertEquals(subscriptions.get(1).getTopicFilter(), TEST_TOPIC_2);
+        assertEquals(subscriptions.get(1).getQosLevel(), TEST_QOS_LEVEL);
+        assertEquals(subscriptions.get(2).getTopicFilter(), TEST_WILDCARD_TOPIC_2);
+        assertEquals(subscriptions.get(2).getQosLevel(), 0);
+        assertEquals(subscriptions.get(3).getTopicFilter(), TEST_WILDCARD_TOPIC_1);
+        assertEquals(subscriptions.get(3).getQosLevel(), 2);
+    }
+
+    @Test
+    public void testSubscribeTopicWithColonDefinition() throws Exception
+    {
+        List<PahoMqttSubscription> subscriptions = PahoMqttSubscription.parse("a:b/c, d/e:7 ,,", 1);
+
+        assertEquals(subscriptions.size(), 2);
+        assertEquals(subscriptions.get(0).getTopicFilter(), "a:b/c");
+        assertEquals(subscriptions.get(0).getQosLevel(), 1);
+        assertEquals(subscriptions.get(1).getTopicFilter(), "d/e:7");
+        assertEquals(subscriptions.get(1).getQosLevel(), 1);
+    }
 
     @Test
     public void testQoSLevelDefinition() throws Exception
@@ -118,4 +145,206 @@ public class PahoMqttConfigurationTest extends PahoMqttBaseTest
 
         assertEquals(endpoint.getConfiguration().isCleanSession(), false);
     }
+
+    @Test
+    public void testMaxInFlightDefinition() throws Exception
+    {
+        PahoMqttEndpoint endpoint = this.createEndpointDefinition(PahoMqttConfiguration.DEFAULT_MAX_IN_FLIGHT_NAME + "=100");
+
+        assertEquals(endpoint.getConfiguration().getMaxInFlight(), 100);
+    }
+
+    @Test
+    public void testConnectionPoolDefinition() throws Exception
+    {
+        PahoMqttEndpoint endpoint = this.createEndpointDefinition(PahoMqttConfiguration.DEFAULT_POOL_SIZE_NAME + "=4&"
+                + PahoMqttConfiguration.DEFAULT_POOL_STRATEGY_NAME + "=roundrobin");
+
+        assertEquals(endpoint.getConfiguration().getConnectionPoolSize(), 4);
+        assertEquals(endpoint.getConfiguration().getConnectionPoolStrategy(),
+                PahoMqttConfiguration.POOL_STRATEGY_ROUND_ROBIN);
+    }
+
+    @Test
+    public void testConsumerThreadsDefinition() throws Exception
+    {
+        PahoMqttEndpoint endpoint = this.createEndpointDefinition(PahoMqttConfiguration.DEFAULT_CONSUMER_THREADS_NAME
+                + "=8&" + PahoMqttConfiguration.DEFAULT_CONSUMER_QUEUE_NAME + "=50");
+
+        assertEquals(endpoint.getConfiguration().getConsumerThreads(), 8);
+        assertEquals(endpoint.getConfiguration().getConsumerQueueSize(), 50);
+    }
+
+    @Test
+    public void testWatermarkDefinition() throws Exception
+    {
+        PahoMqttEndpoint endpoint = this.createEndpointDefinition(PahoMqttConfiguration.DEFAULT_HIGH_WATERMARK_NAME
+                + "=1000&" + PahoMqttConfiguration.DEFAULT_LOW_WATERMARK_NAME + "=100");
+
+        assertEquals(endpoint.getConfiguration().getConsumerHighWatermark(), 1000);
+        assertEquals(endpoint.getConfiguration().getConsumerLowWatermark(), 100);
+    }
+
+    @Test
+    public void testDedupDefinition() throws Exception
+    {
+        PahoMqttEndpoint endpoint = this.createEndpointDefinition(PahoMqttConfiguration.DEFAULT_DEDUP_CACHE_NAME
+                + "=4096&" + PahoMqttConfiguration.DEFAULT_DEDUP_WINDOW_NAME + "=5000&"
+                + PahoMqttConfiguration.DEFAULT_DEDUP_ID_LENGTH_NAME + "=16");
+
+        assertEquals(endpoint.getConfiguration().getDedupCacheSize(), 4096);
+        assertEquals(endpoint.getConfiguration().getDedupWindowMillis(), 5000);
+        assertEquals(endpoint.getConfiguration().getDedupIdLength(), 16);
+    }
+
+    @Test
+    public void testConflateDefinition() throws Exception
+    {
+        PahoMqttEndpoint endpoint = this.createEndpointDefinition(PahoMqttConfiguration.DEFAULT_CONFLATE_NAME
+                + "=true&" + PahoMqttConfiguration.DEFAULT_CONFLATE_INTERVAL_NAME + "=250");
+
+        assertTrue(endpoint.getConfiguration().isConflate());
+        assertEquals(endpoint.getConfiguration().getConflateIntervalMillis(), 250);
+    }
+
+    @Test
+    public void testEnvelopeDefinition() throws Exception
+    {
+        PahoMqttEndpoint endpoint = this.createEndpointDefinition(PahoMqttConfiguration.DEFAULT_ENVELOPE_SIZE_NAME
+                + "=50&" + PahoMqttConfiguration.DEFAULT_ENVELOPE_TIMEOUT_NAME + "=20&"
+                + PahoMqttConfiguration.DEFAULT_UNPACK_ENVELOPES_NAME + "=true");
+
+        assertEquals(endpoint.getConfiguration().getEnvelopeSize(), 50);
+        assertEquals(endpoint.getConfiguration().getEnvelopeTimeoutMillis(), 20);
+        assertTrue(endpoint.getConfiguration().isUnpackEnvelopes());
+    }
+
+    @Test
+    public void testCompressionDefinition() throws Exception
+    {
+        PahoMqttEndpoint endpoint = this.createEndpointDefinition(PahoMqttConfiguration.DEFAULT_COMPRESSION_NAME
+                + "=DEFLATE&" + PahoMqttConfiguration.DEFAULT_COMPRESSION_MIN_NAME + "=64&"
+                + PahoMqttConfiguration.DEFAULT_MAX_DECOMPRESSED_NAME + "=4096");
+
+        assertEquals(endpoint.getConfiguration().getCompression(), PahoMqttConfiguration.COMPRESSION_DEFLATE);
+        assertEquals(endpoint.getConfiguration().getCompressionThreshold(), 64);
+        assertEquals(endpoint.getConfiguration().getMaxDecompressedSize(), 4096);
+
+        // sizes below 1 are ignored
+        endpoint.getConfiguration().setMaxDecompressedSize(0);
+        assertEquals(endpoint.getConfiguration().getMaxDecompressedSize(), 4096);
+
+        // unknown codecs are ignored
+        endpoint.getConfiguration().setCompression("lz4");
+        assertEquals(endpoint.getConfiguration().getCompression(), PahoMqttConfiguration.COMPRESSION_DEFLATE);
+    }
+
+    @Test
+    public void testChunkDefinition() throws Exception
+    {
+        PahoMqttEndpoint endpoint = this.createEndpointDefinition(PahoMqttConfiguration.DEFAULT_CHUNK_SIZE_NAME
+                + "=65536&" + PahoMqttConfiguration.DEFAULT_REASSEMBLE_CHUNKS_NAME + "=true&"
+                + PahoMqttConfiguration.DEFAULT_CHUNK_DIR_NAME + "=target&"
+                + PahoMqttConfiguration.DEFAULT_CHUNK_TIMEOUT_NAME + "=5000");
+
+        assertEquals(endpoint.getConfiguration().getChunkSize(), 65536);
+        assertTrue(endpoint.getConfiguration().isReassembleChunks());
+        assertEquals(endpoint.getConfiguration().getChunkDirectory(), "target");
+        assertEquals(endpoint.getConfiguration().getChunkTimeoutMillis(), 5000);
+
+        // invalid values are ignored
+        endpoint.getConfiguration().setChunkSize(-1);
+        endpoint.getConfiguration().setChunkTimeoutMillis(0);
+        assertEquals(endpoint.getConfiguration().getChunkSize(), 65536);
+        assertEquals(endpoint.getConfiguration().getChunkTimeoutMillis(), 5000);
+    }
+
+    @Test
+    public void testTransportDefinition() throws Exception
+    {
+        PahoMqttEndpoint endpoint = this.createEndpointDefinition(PahoMqttConfiguration.DEFAULT_TRANSPORT_NAME
+                + "=NIO");
+
+        assertEquals(endpoint.getConfiguration().getTransport(), PahoMqttConfiguration.TRANSPORT_NIO);
+
+        // unknown transports are ignored
+        endpoint.getConfiguration().setTransport("netty");
+        assertEquals(endpoint.getConfiguration().getTransport(), PahoMqttConfiguration.TRANSPORT_NIO);
+        endpoint.getConfiguration().setTransport(PahoMqttConfiguration.TRANSPORT_PAHO);
+        assertEquals(endpoint.getConfiguration().getTransport(), PahoMqttConfiguration.TRANSPORT_PAHO);
+    }
+
+    @Test
+    public void testFilterDefinition() throws Exception
+    {
+        PahoMqttEndpoint endpoint = this.createEndpointDefinition(PahoMqttConfiguration.DEFAULT_INCLUDE_TOPICS_NAME
+                + "=a/+,b&" + PahoMqttConfiguration.DEFAULT_EXCLUDE_TOPICS_NAME + "=a/x&"
+                + PahoMqttConfiguration.DEFAULT_PAYLOAD_PREFIX_NAME + "=hex:1f8b");
+
+        assertEquals(endpoint.getConfiguration().getIncludeTopics(), "a/+,b");
+        assertEquals(endpoint.getConfiguration().getExcludeTopics(), "a/x");
+        assertEquals(endpoint.getConfiguration().getPayloadPrefix(), "hex:1f8b");
+    }
+
+    @Test
+    public void testSynchronousAckDefinition() throws Exception
+    {
+        PahoMqttEndpoint endpoint = this.createEndpointDefinition(PahoMqttConfiguration.DEFAULT_SYNCHRONOUS_ACK_NAME
+                + "=true");
+
+        assertTrue(endpoint.getConfiguration().isSynchronousAck());
+    }
+
+    @Test
+    public void testBatchDefinition() throws Exception
+    {
+        PahoMqttEndpoint endpoint = this.createEndpointDefinition(PahoMqttConfiguration.DEFAULT_BATCH_SIZE_NAME
+                + "=500&" + PahoMqttConfiguration.DEFAULT_BATCH_TIMEOUT_NAME + "=250");
+
+        assertEquals(endpoint.getConfiguration().getBatchSize(), 500);
+        assertEquals(endpoint.getConfiguration().getBatchTimeoutMillis(), 250);
+    }
+
+    @Test
+    public void testOfflineBufferDefinition() throws Exception
+    {
+        PahoMqttEndpoint endpoint = this.createEndpointDefinition(PahoMqttConfiguration.DEFAULT_OFFLINE_BUFFER_NAME
+                + "=50&" + PahoMqttConfiguration.DEFAULT_OFFLINE_POLICY_NAME + "=DROPOLDEST&"
+                + PahoMqttConfiguration.DEFAULT_RECONNECT_DELAY_NAME + "=100&"
+                + PahoMqttConfiguration.DEFAULT_RECONNECT_MAX_NAME + "=5000");
+
+        assertEquals(endpoint.getConfiguration().getOfflineBufferSize(), 50);
+        assertEquals(endpoint.getConfiguration().getOfflineBufferPolicy(),
+                PahoMqttConfiguration.OFFLINE_POLICY_DROP_OLDEST);
+        assertEquals(endpoint.getConfiguration().getReconnectDelay(), 100);
+        assertEquals(endpoint.getConfiguration().getReconnectMaxDelay(), 5000);
+    }
+
+    @Test
+    public void testPersistenceDefinition() throws Exception
+    {
+        PahoMqttEndpoint endpoint = this.createEndpointDefinition(PahoMqttConfiguration.DEFAULT_PERSISTENCE_NAME
+                + "=mmap&" + PahoMqttConfiguration.DEFAULT_PERSISTENCE_DIR_NAME + "=target");
+
+        assertEquals(endpoint.getConfiguration().getPersistence(), PahoMqttConfiguration.PERSISTENCE_MMAP);
+        assertEquals(endpoint.getConfiguration().getPersistenceDirectory(), "target");
+    }
+
+    @Test
+    public void testByteBufferPayloadDefinition() throws Exception
+    {
+        PahoMqttEndpoint endpoint = this.createEndpointDefinition(PahoMqttConfiguration.DEFAULT_BYTE_BUFFER_NAME
+                + "=true");
+
+        assertTrue(endpoint.getConfiguration().isByteBufferPayload());
+    }
+
+    @Test
+    public void testTopicCacheSizeDefinition() throws Exception
+    {
+        PahoMqttEndpoint endpoint = this.createEndpointDefinition(PahoMqttConfiguration.DEFAULT_TOPIC_CACHE_NAME
+                + "=50000");
+
+        assertEquals(endpoint.getConfiguration().getTopicCacheSize(), 50000);
+    }
 }
@@ -0,0 +1,170 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class defines unit tests for the {@link PahoMqttConflator} keeping the newest message per topic.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttConflatorTest
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private final BlockingQueue<String> mDelivered = new LinkedBlockingQueue<String>();
+
+    private final PahoMqttMetrics       mMetrics   = new PahoMqttMetrics();
+
+    private ScheduledExecutorService    mExecutor;
+
+    // --------------------------------------------------
+    // SETUP
+    // --------------------------------------------------
+
+    @Before
+    public void setUp()
+    {
+        this.mExecutor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.mExecutor.shutdownNow();
+    }
+
+    // --------------------------------------------------
+    // TESTS
+    // --------------------------------------------------
+
+    @Test(timeout = 60000)
+    public void testConflateWhileListenerIsBusy() throws Exception
+    {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        PahoMqttConflator conflator = new PahoMqttConflator(0, this.mExecutor, new PahoMqttConflator.Listener()
+        {
+            @Override
+            public void onMessage(String topic, MqttMessage message)
+            {
+                entered.countDown();
+                try
+                {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                PahoMqttConflatorTest.this.mDelivered.add(topic + "=" + new String(message.getPayload()));
+            }
+        }, this.mMetrics);
+        conflator.start();
+
+        // the listener is busy with the first message of a
+        conflator.offer("a", this.createMessage("1"));
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+        conflator.offer("a", this.createMessage("2"));
+        conflator.offer("b", this.createMessage("1"));
+        conflator.offer("a", this.createMessage("3"));
+        assertEquals(2, conflator.size());
+        release.countDown();
+
+        assertEquals("a=1", this.mDelivered.poll(10, TimeUnit.SECONDS));
+        assertEquals("a=3", this.mDelivered.poll(10, TimeUnit.SECONDS));
+        assertEquals("b=1", this.mDelivered.poll(10, TimeUnit.SECONDS));
+        assertNull(this.mDelivered.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(1, this.mMetrics.getConflated());
+
+        conflator.stop();
+    }
+
+    @Test(timeout = 60000)
+    public void testDeliverAtInterval() throws Exception
+    {
+        PahoMqttConflator conflator = new PahoMqttConflator(200, this.mExecutor, new PahoMqttConflator.Listener()
+        {
+            @Override
+            public void onMessage(String topic, MqttMessage message)
+            {
+                PahoMqttConflatorTest.this.mDelivered.add(topic + "=" + new String(message.getPayload()));
+            }
+        }, this.mMetrics);
+        conflator.start();
+
+        for (int i = 1; i <= 100; i++)
+        {
+            conflator.offer("a", this.createMessage(Integer.toString(i)));
+        }
+
+        assertEquals("a=100", this.mDelivered.poll(10, TimeUnit.SECONDS));
+        assertNull(this.mDelivered.poll(300, TimeUnit.MILLISECONDS));
+        assertEquals(99, this.mMetrics.getConflated());
+
+        conflator.stop();
+    }
+
+    @Test
+    public void testStopDiscardsPendingMessages() throws Exception
+    {
+        PahoMqttConflator conflator = new PahoMqttConflator(60000, this.mExecutor, new PahoMqttConflator.Listener()
+        {
+            @Override
+            public void onMessage(String topic, MqttMessage message)
+            {
+                PahoMqttConflatorTest.this.mDelivered.add(topic);
+            }
+        }, this.mMetrics);
+        conflator.start();
+
+        conflator.offer("a", this.createMessage("1"));
+        conflator.offer("b", this.createMessage("1"));
+        conflator.stop();
+
+        assertEquals(0, conflator.size());
+        conflator.drain();
+        assertTrue(this.mDelivered.isEmpty());
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    private MqttMessage createMessage(String payload)
+    {
+        return new MqttMessage(payload.getBytes());
+    }
+}
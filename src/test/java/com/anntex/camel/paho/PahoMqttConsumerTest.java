@@ -16,9 +16,17 @@
  */
 package com.anntex.camel.paho;
 
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import com.anntex.camel.paho.config.PahoMqttConfiguration;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
 import org.apache.camel.builder.RouteBuilder;
 import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.camel.util.ObjectHelper;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
@@ -26,8 +34,7 @@ import org.junit.Test;
 
 /**
  * This class defines an integration test for testing the MQTT Apache Camel
- * gateway by consuming data from a MQTT server. <b>Please make sure your
- * environment has running a MQTT server to test against it.</b>
+ * gateway by consuming data from the embedded MQTT server.
  *
  * @author dennis.grewe [https://github.com/Anntex]
  * @version 0.9-SNAPSHOT March 04, 2015
@@ -56,10 +63,13 @@ public class PahoMqttConsumerTest extends PahoMqttBaseTest
             {
                 // create a new route to test end point creation for certain
                 // host url
-                this.from("mqtt:testMessageFromDefaultTopic").to(mock);
+                this.from("mqtt:testMessageFromDefaultTopic?host=" + DEFAULT_HOST).to(mock);
             }
         });
 
+        // sleep some time to wait for the subscription of the consumer
+        Thread.sleep(2000);
+
         // publish a test message to the default topic to a mqtt server to
         // trigger the consumer component of the gateway
         PahoMqttConfiguration defaultConfig = new PahoMqttConfiguration();
@@ -79,7 +89,8 @@ public class PahoMqttConsumerTest extends PahoMqttBaseTest
     public void testSubscribeMqttMessageFromSpecificTopic() throws Exception
     {
         final MockEndpoint mock = this.getMockEndpoint("mock:result");
-        final String subscription = PahoMqttConfiguration.DEFAULT_SUB_TOPIC_NAME + "=" + TEST_TOPIC_1;
+        final String subscription = "host=" + DEFAULT_HOST + "&" + PahoMqttConfiguration.DEFAULT_SUB_TOPIC_NAME + "="
+                + TEST_TOPIC_1;
 
         this.context.addRoutes(new RouteBuilder()
         {
@@ -92,6 +103,9 @@ public class PahoMqttConsumerTest extends PahoMqttBaseTest
             }
         });
 
+        // sleep some time to wait for the subscription of the consumer
+        Thread.sleep(2000);
+
         // publish a test message to the default topic to a mqtt server to
         // trigger the consumer component of the gateway
         this.publishSomeTestMessageToMqttServer(TEST_TOPIC_1);
@@ -106,6 +120,458 @@ public class PahoMqttConsumerTest extends PahoMqttBaseTest
         this.assertMockEndpointsSatisfied();
     }
 
+    @Test(timeout = 60000)
+    public void testSubscribeMqttMessageWithSharedConnection() throws Exception
+    {
+        final MockEndpoint exact = this.getMockEndpoint("mock:exact");
+        final MockEndpoint wildcard = this.getMockEndpoint("mock:wildcard");
+        final String shared = "host=" + DEFAULT_HOST + "&" + PahoMqttConfiguration.DEFAULT_SHARED_CONNECTION_NAME
+                + "=true&endPointName=shared&" + PahoMqttConfiguration.DEFAULT_SUB_TOPIC_NAME + "=";
+
+        this.context.addRoutes(new RouteBuilder()
+        {
+            @Override
+            public void configure() throws Exception
+            {
+                // both routes share a single connection to the mqtt server
+                this.from("mqtt:testSharedExact?" + shared + TEST_TOPIC_1).to(exact);
+                this.from("mqtt:testSharedWildcard?" + shared + TEST_WILDCARD_TOPIC_3).to(wildcard);
+            }
+        });
+
+        // sleep some time to wait for the subscriptions of the shared
+        // connection
+        Thread.sleep(2000);
+
+        this.publishSomeTestMessageToMqttServer(TEST_TOPIC_1);
+
+        // the message matches the filters of both routes
+        exact.expectedMessageCount(1);
+        wildcard.expectedMessageCount(1);
+
+        this.assertMockEndpointsSatisfied();
+    }
+
+    @Test(timeout = 60000)
+    public void testRejectSharedConnectionWithDifferentOptions() throws Exception
+    {
+        final String shared = "host=" + DEFAULT_HOST + "&" + PahoMqttConfiguration.DEFAULT_SHARED_CONNECTION_NAME
+                + "=true&endPointName=sharedMismatch&" + PahoMqttConfiguration.DEFAULT_SUB_TOPIC_NAME + "=";
+
+        try
+        {
+            this.context.addRoutes(new RouteBuilder()
+            {
+                @Override
+                public void configure() throws Exception
+                {
+                    // the second route asks for a session the shared
+                    // connection does not have
+                    this.from("mqtt:testSharedFirst?" + shared + TEST_TOPIC_1).to(MOCK_RESULT);
+                    this.from("mqtt:testSharedSecond?" + shared + TEST_TOPIC_2 + "&"
+                            + PahoMqttConfiguration.DEFAULT_IS_CLEAN_SESSION_NAME + "=false").to(MOCK_RESULT);
+                }
+            });
+            fail("the second route must not start on the shared connection");
+        } catch (Exception ex)
+        {
+            assertNotNull(ObjectHelper.getException(IllegalArgumentException.class, ex));
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testSubscribeMqttMessageAfterDroppedConnection() throws Exception
+    {
+        final MockEndpoint mock = this.getMockEndpoint("mock:result");
+        this.context.addRoutes(new RouteBuilder()
+        {
+            @Override
+            public void configure() throws Exception
+            {
+                this.from("mqtt:testMessageAfterDrop?host=" + DEFAULT_HOST + "&endPointName=dropConsumer"
+                        + "&reconnectDelay=100&" + PahoMqttConfiguration.DEFAULT_SUB_TOPIC_NAME + "=" + TEST_TOPIC_2)
+                        .to(mock);
+            }
+        });
+
+        PahoMqttEndpoint endpoint = this.context.getEndpoint("mqtt:testMessageAfterDrop?host=" + DEFAULT_HOST
+                + "&endPointName=dropConsumer&reconnectDelay=100&" + PahoMqttConfiguration.DEFAULT_SUB_TOPIC_NAME
+                + "=" + TEST_TOPIC_2, PahoMqttEndpoint.class);
+
+        // sleep some time to wait for the subscription of the consumer, then
+        // drop the connection and wait until the consumer is back
+        Thread.sleep(2000);
+        BROKER.dropConnections();
+        while (endpoint.getReconnects() == 0)
+        {
+            Thread.sleep(10);
+        }
+
+        // the consumer reconnects and subscribes again, publish until it
+        // received a message
+        mock.expectedMinimumMessageCount(1);
+        while (mock.getReceivedCounter() == 0)
+        {
+            BROKER.publish(TEST_TOPIC_2, PahoMqttConsumerTest.TEST_PAYLOAD.getBytes(), 0);
+            Thread.sleep(100);
+        }
+
+        this.assertMockEndpointsSatisfied();
+    }
+
+    @Test(timeout = 60000)
+    public void testUnsubscribeFilterRemovedWhileDisconnected() throws Exception
+    {
+        final String shared = "host=" + DEFAULT_HOST + "&" + PahoMqttConfiguration.DEFAULT_SHARED_CONNECTION_NAME
+                + "=true&endPointName=staleConsumer&reconnectDelay=100&"
+                + PahoMqttConfiguration.DEFAULT_IS_CLEAN_SESSION_NAME + "=false&"
+                + PahoMqttConfiguration.DEFAULT_SUB_TOPIC_NAME + "=";
+
+        this.context.addRoutes(new RouteBuilder()
+        {
+            @Override
+            public void configure() throws Exception
+            {
+                // both routes share a connection with a session kept by the
+                // broker
+                this.from("mqtt:testStaleRemoved?" + shared + "test/stale/removed").routeId("staleRemoved")
+                        .to(MOCK_RESULT);
+                this.from("mqtt:testStaleKept?" + shared + "test/stale/kept").routeId("staleKept")
+                        .to(MOCK_RESULT);
+            }
+        });
+
+        PahoMqttEndpoint endpoint = this.context.getEndpoint("mqtt:testStaleKept?" + shared + "test/stale/kept",
+                PahoMqttEndpoint.class);
+
+        // sleep some time to wait for the subscriptions of the shared
+        // connection
+        Thread.sleep(2000);
+        assertEquals(1, BROKER.getSubscriptionCount("test/stale/removed"));
+
+        // stop one route while the connection is down
+        BROKER.setRefuseConnections(true);
+        try
+        {
+            BROKER.dropConnections();
+            Thread.sleep(500);
+            this.context.stopRoute("staleRemoved");
+        } finally
+        {
+            BROKER.setRefuseConnections(false);
+        }
+        while (endpoint.getReconnects() == 0)
+        {
+            Thread.sleep(10);
+        }
+
+        // the resumed session must not keep the filter of the stopped route
+        for (int i = 0; i < 100 && BROKER.getSubscriptionCount("test/stale/removed") > 0; i++)
+        {
+            Thread.sleep(50);
+        }
+        assertEquals(0, BROKER.getSubscriptionCount("test/stale/removed"));
+        assertEquals(1, BROKER.getSubscriptionCount("test/stale/kept"));
+    }
+
+    @Test(timeout = 60000)
+    public void testConsumeMqttMessageHeaders() throws Exception
+    {
+        final MockEndpoint mock = this.getMockEndpoint("mock:result");
+        this.context.addRoutes(new RouteBuilder()
+        {
+            @Override
+            public void configure() throws Exception
+            {
+                this.from("mqtt:testHeaders?host=" + DEFAULT_HOST + "&endPointName=headerConsumer&"
+                        + PahoMqttConfiguration.DEFAULT_QOS_LEVEL_NAME + "=1&"
+                        + PahoMqttConfiguration.DEFAULT_SUB_TOPIC_NAME + "=test/headers/#").to(mock);
+            }
+        });
+
+        // sleep some time to wait for the subscription of the consumer
+        Thread.sleep(2000);
+
+        mock.expectedMessageCount(1);
+        mock.expectedHeaderReceived(PahoMqttConstants.RECEIVED_TOPIC, "test/headers/kitchen");
+        mock.expectedHeaderReceived(PahoMqttConstants.RECEIVED_QOS, 1);
+        mock.expectedHeaderReceived(PahoMqttConstants.RECEIVED_RETAINED, false);
+        mock.expectedHeaderReceived(PahoMqttConstants.DUPLICATE, false);
+
+        BROKER.publish("test/headers/kitchen", "21.5".getBytes(), 1);
+        this.assertMockEndpointsSatisfied();
+    }
+
+    @Test(timeout = 60000)
+    public void testDropDuplicateMqttMessage() throws Exception
+    {
+        final MockEndpoint mock = this.getMockEndpoint("mock:result");
+        this.context.addRoutes(new RouteBuilder()
+        {
+            @Override
+            public void configure() throws Exception
+            {
+                this.from("mqtt:testDropDuplicate?host=" + DEFAULT_HOST + "&endPointName=dedupConsumer&"
+                        + PahoMqttConfiguration.DEFAULT_DEDUP_CACHE_NAME + "=1000&"
+                        + PahoMqttConfiguration.DEFAULT_SUB_TOPIC_NAME + "=" + TEST_TOPIC_2).to(mock);
+            }
+        });
+
+        // sleep some time to wait for the subscription of the consumer
+        Thread.sleep(2000);
+
+        mock.expectedBodiesReceived("first".getBytes(), "second".getBytes());
+
+        BROKER.publish(TEST_TOPIC_2, "first".getBytes(), 0);
+        BROKER.publish(TEST_TOPIC_2, "first".getBytes(), 0);
+        BROKER.publish(TEST_TOPIC_2, "second".getBytes(), 0);
+        this.assertMockEndpointsSatisfied();
+
+        PahoMqttEndpoint endpoint = (PahoMqttEndpoint) this.context.getRoutes().get(0).getEndpoint();
+        assertEquals(1, endpoint.getDuplicateHits());
+        assertEquals(2, endpoint.getDuplicateMisses());
+    }
+
+    @Test(timeout = 60000)
+    public void testAcknowledgeMqttMessageAfterProcessing() throws Exception
+    {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        this.context.addRoutes(new RouteBuilder()
+        {
+            @Override
+            public void configure() throws Exception
+            {
+                this.from("mqtt:testSynchronousAck?host=" + DEFAULT_HOST + "&endPointName=ackConsumer&qosLevel=1"
+                        + "&" + PahoMqttConfiguration.DEFAULT_SYNCHRONOUS_ACK_NAME + "=true&"
+                        + PahoMqttConfiguration.DEFAULT_IS_CLEAN_SESSION_NAME + "=false&"
+                        + PahoMqttConfiguration.DEFAULT_SUB_TOPIC_NAME + "=" + TEST_TOPIC_2).process(new Processor()
+                {
+                    @Override
+                    public void process(Exchange exchange) throws Exception
+                    {
+                        entered.countDown();
+                        release.await(30, TimeUnit.SECONDS);
+                    }
+                });
+            }
+        });
+
+        // sleep some time to wait for the subscription of the consumer
+        Thread.sleep(2000);
+
+        int unacknowledged = BROKER.getUnacknowledgedCount();
+        BROKER.publish(TEST_TOPIC_2, PahoMqttConsumerTest.TEST_PAYLOAD.getBytes(), 1);
+        assertTrue(entered.await(30, TimeUnit.SECONDS));
+
+        // the message is acknowledged only after the route completed
+        Thread.sleep(500);
+        assertEquals(unacknowledged + 1, BROKER.getUnacknowledgedCount());
+
+        release.countDown();
+        while (BROKER.getUnacknowledgedCount() > unacknowledged)
+        {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testRedeliverFailedMqttMessageFromSession() throws Exception
+    {
+        final MockEndpoint mock = this.getMockEndpoint("mock:result");
+        final AtomicInteger attempts = new AtomicInteger();
+        this.context.addRoutes(new RouteBuilder()
+        {
+            @Override
+            public void configure() throws Exception
+            {
+                this.from("mqtt:testRedeliver?host=" + DEFAULT_HOST + "&endPointName=redeliverConsumer&qosLevel=1"
+                        + "&reconnectDelay=100&" + PahoMqttConfiguration.DEFAULT_SYNCHRONOUS_ACK_NAME + "=true&"
+                        + PahoMqttConfiguration.DEFAULT_IS_CLEAN_SESSION_NAME + "=false&"
+                        + PahoMqttConfiguration.DEFAULT_SUB_TOPIC_NAME + "=test/redeliver").process(new Processor()
+                {
+                    @Override
+                    public void process(Exchange exchange) throws Exception
+                    {
+                        if (attempts.incrementAndGet() == 1)
+                        {
+                            throw new IllegalStateException("the first attempt fails");
+                        }
+                    }
+                }).to(mock);
+            }
+        });
+
+        // sleep some time to wait for the subscription of the consumer
+        Thread.sleep(2000);
+
+        // the failed attempt closes the connection without acknowledging the
+        // message, the broker sends it again to the resumed session
+        int unacknowledged = BROKER.getUnacknowledgedCount();
+        mock.expectedBodiesReceived(PahoMqttConsumerTest.TEST_PAYLOAD.getBytes());
+        mock.expectedHeaderReceived(PahoMqttConstants.DUPLICATE, true);
+
+        BROKER.publish("test/redeliver", PahoMqttConsumerTest.TEST_PAYLOAD.getBytes(), 1);
+        this.assertMockEndpointsSatisfied();
+        assertEquals(2, attempts.get());
+
+        while (BROKER.getUnacknowledgedCount() > unacknowledged)
+        {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testRejectSynchronousAckWithoutSession() throws Exception
+    {
+        final String ack = "host=" + DEFAULT_HOST + "&qosLevel=1&"
+                + PahoMqttConfiguration.DEFAULT_SYNCHRONOUS_ACK_NAME + "=true&";
+
+        // the broker drops the message together with a clean session
+        try
+        {
+            this.context.addRoutes(new RouteBuilder()
+            {
+                @Override
+                public void configure() throws Exception
+                {
+                    this.from("mqtt:testAckClean?" + ack + "endPointName=ackClean").to(MOCK_RESULT);
+                }
+            });
+            fail("synchronousAck requires a persistent session");
+        } catch (Exception ex)
+        {
+            assertNotNull(ObjectHelper.getException(IllegalArgumentException.class, ex));
+        }
+
+        // a failed exchange would close the connection of all consumers
+        try
+        {
+            this.context.addRoutes(new RouteBuilder()
+            {
+                @Override
+                public void configure() throws Exception
+                {
+                    this.from("mqtt:testAckShared?" + ack + "endPointName=ackShared&"
+                            + PahoMqttConfiguration.DEFAULT_IS_CLEAN_SESSION_NAME + "=false&"
+                            + PahoMqttConfiguration.DEFAULT_SHARED_CONNECTION_NAME + "=true").to(MOCK_RESULT);
+                }
+            });
+            fail("synchronousAck can not share a connection");
+        } catch (Exception ex)
+        {
+            assertNotNull(ObjectHelper.getException(IllegalArgumentException.class, ex));
+        }
+
+        // worker threads would acknowledge the message on hand over
+        try
+        {
+            this.context.addRoutes(new RouteBuilder()
+            {
+                @Override
+                public void configure() throws Exception
+                {
+                    this.from("mqtt:testAckThreads?" + ack + "endPointName=ackThreads&"
+                            + PahoMqttConfiguration.DEFAULT_IS_CLEAN_SESSION_NAME + "=false&"
+                            + PahoMqttConfiguration.DEFAULT_CONSUMER_THREADS_NAME + "=2").to(MOCK_RESULT);
+                }
+            });
+            fail("synchronousAck can not use worker threads");
+        } catch (Exception ex)
+        {
+            assertNotNull(ObjectHelper.getException(IllegalArgumentException.class, ex));
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testProcessQueuedMqttMessagesWhenStopped() throws Exception
+    {
+        final String uri = "mqtt:testStopQueued?host=" + DEFAULT_HOST + "&endPointName=stopQueuedConsumer&"
+                + PahoMqttConfiguration.DEFAULT_CONSUMER_THREADS_NAME + "=1&"
+                + PahoMqttConfiguration.DEFAULT_SUB_TOPIC_NAME + "=test/stop/queued";
+        final AtomicInteger processed = new AtomicInteger();
+        this.context.addRoutes(new RouteBuilder()
+        {
+            @Override
+            public void configure() throws Exception
+            {
+                this.from(uri).routeId("stopQueued").process(new Processor()
+                {
+                    @Override
+                    public void process(Exchange exchange) throws Exception
+                    {
+                        Thread.sleep(50);
+                        processed.incrementAndGet();
+                    }
+                });
+            }
+        });
+        PahoMqttEndpoint endpoint = this.context.getEndpoint(uri, PahoMqttEndpoint.class);
+
+        // sleep some time to wait for the subscription of the consumer
+        Thread.sleep(2000);
+
+        // the slow route keeps the received messages queued for the worker
+        for (int i = 0; i < 20; i++)
+        {
+            BROKER.publish("test/stop/queued", PahoMqttConsumerTest.TEST_PAYLOAD.getBytes(), 1);
+        }
+        while (endpoint.getMessagesIn() < 20)
+        {
+            Thread.sleep(10);
+        }
+        assertTrue(processed.get() < 20);
+
+        // the messages were acknowledged already, stopping the consumer
+        // processes them
+        this.context.getRoute("stopQueued").getConsumer().stop();
+        assertEquals(20, processed.get());
+    }
+
+    @Test(timeout = 60000)
+    public void testDeliverLastBatchWhenStopped() throws Exception
+    {
+        final String uri = "mqtt:testStopBatch?host=" + DEFAULT_HOST + "&endPointName=stopBatchConsumer&"
+                + PahoMqttConfiguration.DEFAULT_CONSUMER_THREADS_NAME + "=1&"
+                + PahoMqttConfiguration.DEFAULT_BATCH_SIZE_NAME + "=100&"
+                + PahoMqttConfiguration.DEFAULT_BATCH_TIMEOUT_NAME + "=60000&"
+                + PahoMqttConfiguration.DEFAULT_SUB_TOPIC_NAME + "=test/stop/batch";
+        final AtomicInteger batched = new AtomicInteger();
+        this.context.addRoutes(new RouteBuilder()
+        {
+            @Override
+            public void configure() throws Exception
+            {
+                this.from(uri).routeId("stopBatch").process(new Processor()
+                {
+                    @Override
+                    public void process(Exchange exchange) throws Exception
+                    {
+                        batched.addAndGet(exchange.getIn().getBody(List.class).size());
+                    }
+                });
+            }
+        });
+        PahoMqttEndpoint endpoint = this.context.getEndpoint(uri, PahoMqttEndpoint.class);
+
+        // sleep some time to wait for the subscription of the consumer
+        Thread.sleep(2000);
+
+        // neither the size nor the timeout completes the batch
+        for (int i = 0; i < 5; i++)
+        {
+            BROKER.publish("test/stop/batch", PahoMqttConsumerTest.TEST_PAYLOAD.getBytes(), 1);
+        }
+        while (endpoint.getMessagesIn() < 5)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(0, batched.get());
+
+        this.context.getRoute("stopBatch").getConsumer().stop();
+        assertEquals(5, batched.get());
+    }
+
     // --------------------------------------------------
     // METHODS
     // --------------------------------------------------
@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * This class defines unit tests for the {@link PahoMqttDeduplicator} dropping duplicate messages of a consumer.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttDeduplicatorTest
+{
+    // --------------------------------------------------
+    // TESTS
+    // --------------------------------------------------
+
+    @Test
+    public void testDuplicateWithinWindow() throws Exception
+    {
+        PahoMqttDeduplicator deduplicator = new PahoMqttDeduplicator(1000, 60000, 0);
+
+        assertEquals(1024, deduplicator.capacity());
+        assertFalse(deduplicator.isDuplicate("a/b", "payload".getBytes()));
+        assertTrue(deduplicator.isDuplicate("a/b", "payload".getBytes()));
+
+        // the topic is part of the key
+        assertFalse(deduplicator.isDuplicate("a/c", "payload".getBytes()));
+        assertFalse(deduplicator.isDuplicate("a/b", "payload2".getBytes()));
+    }
+
+    @Test
+    public void testDuplicateExpiresAfterWindow() throws Exception
+    {
+        PahoMqttDeduplicator deduplicator = new PahoMqttDeduplicator(16, 50, 0);
+
+        assertFalse(deduplicator.isDuplicate("a/b", "payload".getBytes()));
+        Thread.sleep(100);
+        assertFalse(deduplicator.isDuplicate("a/b", "payload".getBytes()));
+        assertTrue(deduplicator.isDuplicate("a/b", "payload".getBytes()));
+    }
+
+    @Test
+    public void testDuplicateByPayloadId() throws Exception
+    {
+        PahoMqttDeduplicator deduplicator = new PahoMqttDeduplicator(16, 60000, 4);
+
+        assertFalse(deduplicator.isDuplicate("a/b", "0001 first".getBytes()));
+        assertTrue(deduplicator.isDuplicate("a/b", "0001 second".getBytes()));
+        assertFalse(deduplicator.isDuplicate("a/b", "0002 first".getBytes()));
+    }
+
+    @Test
+    public void testFixedCapacity() throws Exception
+    {
+        PahoMqttDeduplicator deduplicator = new PahoMqttDeduplicator(64, 60000, 0);
+
+        // a full cache replaces old keys instead of growing
+        for (int i = 0; i < 10000; i++)
+        {
+            assertFalse(deduplicator.isDuplicate("a/b", Integer.toString(i).getBytes()));
+        }
+        assertEquals(64, deduplicator.capacity());
+        assertTrue(deduplicator.isDuplicate("a/b", "9999".getBytes()));
+    }
+
+    @Test
+    public void testHashUsesAllPayloadBytes() throws Exception
+    {
+        byte[] payload = new byte[17];
+        long hash = PahoMqttDeduplicator.hash("a", payload, payload.length);
+        for (int i = 0; i < payload.length; i++)
+        {
+            payload[i] = 1;
+            assertNotEquals(hash, PahoMqttDeduplicator.hash("a", payload, payload.length));
+            payload[i] = 0;
+        }
+    }
+}
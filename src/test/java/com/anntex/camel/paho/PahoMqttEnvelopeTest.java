@@ -0,0 +1,79 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * This class defines unit tests for packing and unpacking the {@link PahoMqttEnvelope}.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttEnvelopeTest
+{
+    // --------------------------------------------------
+    // TESTS
+    // --------------------------------------------------
+
+    @Test
+    public void testPackAndUnpack()
+    {
+        byte[] large = new byte[300];
+        Arrays.fill(large, (byte) 7);
+        List<byte[]> payloads = Arrays.asList("first".getBytes(), new byte[0], large);
+
+        byte[] envelope = PahoMqttEnvelope.pack(payloads);
+        // marker, count and one or two length bytes per payload
+        assertEquals(4 + 1 + 1 + 5 + 1 + 0 + 2 + 300, envelope.length);
+
+        List<byte[]> unpacked = PahoMqttEnvelope.unpack(envelope);
+        assertEquals(3, unpacked.size());
+        assertArrayEquals("first".getBytes(), unpacked.get(0));
+        assertArrayEquals(new byte[0], unpacked.get(1));
+        assertArrayEquals(large, unpacked.get(2));
+    }
+
+    @Test
+    public void testPlainPayloadIsNoEnvelope()
+    {
+        assertNull(PahoMqttEnvelope.unpack("{\"value\":1}".getBytes()));
+        assertNull(PahoMqttEnvelope.unpack(new byte[0]));
+        assertEquals(0, PahoMqttEnvelope.unpack(PahoMqttEnvelope.pack(Collections.<byte[]> emptyList())).size());
+    }
+
+    @Test
+    public void testTruncatedEnvelopeIsRejected()
+    {
+        List<byte[]> payloads = new ArrayList<byte[]>();
+        payloads.add("first".getBytes());
+        payloads.add("second".getBytes());
+        byte[] envelope = PahoMqttEnvelope.pack(payloads);
+
+        assertNull(PahoMqttEnvelope.unpack(Arrays.copyOf(envelope, envelope.length - 1)));
+        assertNull(PahoMqttEnvelope.unpack(Arrays.copyOf(envelope, envelope.length + 1)));
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * This class defines unit tests for the {@link PahoMqttFlowControl} pausing a consumer at its high watermark.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttFlowControlTest
+{
+    // --------------------------------------------------
+    // TESTS
+    // --------------------------------------------------
+
+    @Test(timeout = 60000)
+    public void testPauseAndResumeAtWatermarks() throws Exception
+    {
+        PahoMqttMetrics metrics = new PahoMqttMetrics();
+        final PahoMqttFlowControl flowControl = new PahoMqttFlowControl(4, 1, metrics);
+
+        for (int i = 0; i < 4; i++)
+        {
+            flowControl.acquire(1);
+        }
+        assertEquals(4, metrics.getBufferDepth());
+
+        // the buffer holds the high watermark, the next message has to wait
+        CountDownLatch acquired = this.acquireAsync(flowControl);
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(1, metrics.getPauses());
+
+        // draining to the low watermark resumes the receiver
+        flowControl.release(2);
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        flowControl.release(1);
+        assertTrue(acquired.await(10, TimeUnit.SECONDS));
+
+        assertEquals(2, flowControl.depth());
+        assertEquals(2, metrics.getBufferDepth());
+        assertEquals(1, metrics.getPauses());
+    }
+
+    @Test(timeout = 60000)
+    public void testCloseReleasesPausedReceiver() throws Exception
+    {
+        PahoMqttMetrics metrics = new PahoMqttMetrics();
+        PahoMqttFlowControl flowControl = new PahoMqttFlowControl(2, 0, metrics);
+
+        flowControl.acquire(2);
+        CountDownLatch acquired = this.acquireAsync(flowControl);
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+
+        flowControl.close();
+        assertTrue(acquired.await(10, TimeUnit.SECONDS));
+
+        // the discarded messages do not count any more
+        flowControl.release(2);
+        assertEquals(0, flowControl.depth());
+        assertEquals(0, metrics.getBufferDepth());
+    }
+
+    @Test(timeout = 60000)
+    public void testDisabledWatermarkNeverPauses() throws Exception
+    {
+        PahoMqttMetrics metrics = new PahoMqttMetrics();
+        PahoMqttFlowControl flowControl = new PahoMqttFlowControl(0, 0, metrics);
+
+        flowControl.acquire(100000);
+        flowControl.acquire(1);
+
+        assertEquals(100001, metrics.getBufferDepth());
+        assertEquals(0, metrics.getPauses());
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * Acquires a single message on a new thread.
+     *
+     * @param flowControl
+     *            The flow control to acquire from.
+     * @return a latch counted down after the message was acquired.
+     */
+    private CountDownLatch acquireAsync(final PahoMqttFlowControl flowControl)
+    {
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    flowControl.acquire(1);
+                    acquired.countDown();
+                } catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return acquired;
+    }
+}
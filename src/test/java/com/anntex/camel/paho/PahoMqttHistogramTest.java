@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * This class defines unit tests for the buckets and percentiles of the {@link PahoMqttHistogram}.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttHistogramTest
+{
+    // --------------------------------------------------
+    // TESTS
+    // --------------------------------------------------
+
+    @Test
+    public void testBucketsAreContiguousAndPrecise()
+    {
+        long previous = -1;
+        for (long value = 0; value < 1000000; value++)
+        {
+            int index = PahoMqttHistogram.indexOf(value);
+            long upper = PahoMqttHistogram.upperBoundOf(index);
+            assertTrue(upper >= value);
+            assertTrue(upper - value <= value / 16 + 1);
+            if (upper != previous)
+            {
+                // a new bucket starts right after the previous one
+                assertEquals(previous + 1, value);
+                previous = upper;
+            }
+        }
+
+        assertEquals(Long.MAX_VALUE, PahoMqttHistogram.upperBoundOf(PahoMqttHistogram.indexOf(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testPercentiles()
+    {
+        PahoMqttHistogram histogram = new PahoMqttHistogram();
+        for (int value = 1; value <= 1000; value++)
+        {
+            histogram.record(value);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean(), 0.001);
+        assertWithin(500, histogram.getValueAtPercentile(50));
+        assertWithin(990, histogram.getValueAtPercentile(99));
+        assertEquals(1000, histogram.getValueAtPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+
+    private static void assertWithin(long expected, long actual)
+    {
+        assertTrue(actual + " is not close to " + expected, actual >= expected && actual <= expected * 17 / 16);
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Test;
+
+/**
+ * This class defines unit tests for the eviction of the {@link PahoMqttLastValueCache}.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttLastValueCacheTest
+{
+    // --------------------------------------------------
+    // TESTS
+    // --------------------------------------------------
+
+    @Test
+    public void testNewestMessageReplacesValue()
+    {
+        PahoMqttLastValueCache cache = new PahoMqttLastValueCache(10, 0);
+        cache.put("a", this.message("1", 1, true));
+        cache.put("a", this.message("2", 0, false));
+
+        PahoMqttLastValueCache.Value value = cache.get("a");
+        assertArrayEquals("2".getBytes(), value.getPayload());
+        assertEquals(0, value.getQos());
+        assertFalse(value.isRetained());
+        assertNull(cache.get("b"));
+    }
+
+    @Test
+    public void testLeastRecentlyUpdatedTopicIsEvicted()
+    {
+        PahoMqttLastValueCache cache = new PahoMqttLastValueCache(2, 0);
+        cache.put("a", this.message("1", 0, false));
+        cache.put("b", this.message("1", 0, false));
+        cache.put("a", this.message("2", 0, false));
+        cache.put("c", this.message("1", 0, false));
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+
+    @Test
+    public void testValueExpires() throws InterruptedException
+    {
+        PahoMqttLastValueCache cache = new PahoMqttLastValueCache(10, 50);
+        cache.put("a", this.message("1", 0, false));
+        assertNotNull(cache.get("a"));
+
+        Thread.sleep(100);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testEmptyRetainedMessageClearsValue()
+    {
+        PahoMqttLastValueCache cache = new PahoMqttLastValueCache(10, 0);
+        cache.put("a", this.message("1", 1, true));
+        cache.put("a", this.message("", 1, true));
+        assertNull(cache.get("a"));
+
+        // an empty message which is not retained is a value of its own
+        cache.put("a", this.message("", 0, false));
+        assertTrue(cache.get("a").getPayload().length == 0);
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    private MqttMessage message(String payload, int qos, boolean retained)
+    {
+        MqttMessage message = new MqttMessage(payload.getBytes());
+        message.setQos(qos);
+        message.setRetained(retained);
+        return message;
+    }
+}
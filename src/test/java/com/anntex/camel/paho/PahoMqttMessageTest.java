@@ -0,0 +1,78 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Test;
+
+/**
+ * This class defines unit tests for the lazily populated headers of the {@link PahoMqttMessage}.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttMessageTest
+{
+    // --------------------------------------------------
+    // TESTS
+    // --------------------------------------------------
+
+    @Test
+    public void testHeadersArePopulatedOnFirstAccess()
+    {
+        final AtomicInteger reads = new AtomicInteger();
+        MqttMessage message = new MqttMessage("payload".getBytes())
+        {
+            @Override
+            public int getQos()
+            {
+                reads.incrementAndGet();
+                return super.getQos();
+            }
+        };
+        message.setQos(2);
+        message.setRetained(true);
+        PahoMqttMessage in = new PahoMqttMessage("test/paho", message);
+        in.setBody(message.getPayload());
+        assertEquals(0, reads.get());
+
+        assertEquals("test/paho", in.getHeader(PahoMqttConstants.RECEIVED_TOPIC));
+        assertEquals(2, in.getHeader(PahoMqttConstants.RECEIVED_QOS));
+        assertEquals(Boolean.TRUE, in.getHeader(PahoMqttConstants.RECEIVED_RETAINED));
+        assertEquals(Boolean.FALSE, in.getHeader(PahoMqttConstants.DUPLICATE));
+        in.getHeaders();
+        assertEquals(1, reads.get());
+    }
+
+    @Test
+    public void testCopyKeepsChangedHeaders()
+    {
+        PahoMqttMessage in = new PahoMqttMessage("test/paho", new MqttMessage("payload".getBytes()));
+        in.removeHeader(PahoMqttConstants.DUPLICATE);
+        in.setHeader("custom", "value");
+
+        PahoMqttMessage copy = (PahoMqttMessage) in.copy();
+        assertEquals("test/paho", copy.getTopic());
+        assertEquals("value", copy.getHeader("custom"));
+        assertNull(copy.getHeader(PahoMqttConstants.DUPLICATE));
+    }
+}
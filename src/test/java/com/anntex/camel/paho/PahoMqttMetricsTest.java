@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.JndiRegistry;
+import org.junit.Test;
+
+/**
+ * This class defines tests for the metrics of an end point, read from its JMX
+ * MBean and from a {@link PahoMqttMetricsRegistry}.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttMetricsTest extends PahoMqttBaseTest
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private static final String                METRICS_URI = "mqtt:testMetrics?endPointName=metricsProducer"
+                                                               + "&qosLevel=1&metricsRegistry=#metricsRegistry&host=";
+
+    private final Map<String, PahoMqttMetrics> mRegistered = new HashMap<String, PahoMqttMetrics>();
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    @Override
+    protected boolean useJmx()
+    {
+        return true;
+    }
+
+    @Override
+    protected JndiRegistry createRegistry() throws Exception
+    {
+        JndiRegistry registry = super.createRegistry();
+        registry.bind("metricsRegistry", new PahoMqttMetricsRegistry()
+        {
+            @Override
+            public void register(String endpointUri, PahoMqttMetrics metrics)
+            {
+                PahoMqttMetricsTest.this.mRegistered.put(endpointUri, metrics);
+            }
+
+            @Override
+            public void unregister(String endpointUri, PahoMqttMetrics metrics)
+            {
+                PahoMqttMetricsTest.this.mRegistered.remove(endpointUri);
+            }
+        });
+        return registry;
+    }
+
+    @Override
+    protected RouteBuilder createRouteBuilder() throws Exception
+    {
+        return new RouteBuilder()
+        {
+            @Override
+            public void configure()
+            {
+                // end points of routes are registered in JMX on start
+                this.from(DIRECT_START).to(PahoMqttMetricsTest.METRICS_URI + DEFAULT_HOST);
+            }
+        };
+    }
+
+    // --------------------------------------------------
+    // TESTS
+    // --------------------------------------------------
+
+    @Test(timeout = 60000)
+    public void testPublishMetrics() throws Exception
+    {
+        PahoMqttEndpoint endpoint = (PahoMqttEndpoint) this.context.getEndpoint(PahoMqttMetricsTest.METRICS_URI
+                + DEFAULT_HOST);
+
+        for (int i = 0; i < 3; i++)
+        {
+            this.template.sendBody(DIRECT_START, new byte[10]);
+        }
+
+        // the registry received the metrics of the started end point
+        PahoMqttMetrics metrics = this.mRegistered.get(endpoint.getEndpointUri());
+        assertSame(endpoint.getMetrics(), metrics);
+        assertEquals(3, metrics.getMessagesOut());
+        assertEquals(30, metrics.getBytesOut());
+        assertEquals(0, metrics.getInFlight());
+        assertEquals(3, metrics.getPublishLatency().getCount());
+
+        // the same metrics are attributes of the end point MBean
+        MBeanServer server = this.context.getManagementStrategy().getManagementAgent().getMBeanServer();
+        Set<ObjectName> names = server.queryNames(new ObjectName("org.apache.camel:type=endpoints,*"), null);
+        ObjectName name = null;
+        for (ObjectName candidate : names)
+        {
+            if (candidate.getKeyProperty("name").contains("testMetrics"))
+            {
+                name = candidate;
+            }
+        }
+        assertNotNull("No MBean of the end point in " + names, name);
+        assertEquals(3L, server.getAttribute(name, "MessagesOut"));
+        assertEquals(30L, server.getAttribute(name, "BytesOut"));
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import java.lang.management.ManagementFactory;
+
+import com.anntex.camel.paho.config.PahoMqttConfiguration;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.junit.Test;
+
+/**
+ * This class defines test cases for end points using the selector based nio
+ * transport.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttNioTransportTest extends PahoMqttBaseTest
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private static final String NIO_TOPIC   = "test/nio";
+    private static final String NIO_OPTION  = "&" + PahoMqttConfiguration.DEFAULT_TRANSPORT_NAME + "="
+                                                    + PahoMqttConfiguration.TRANSPORT_NIO;
+    private static final String NIO_PAYLOAD = "Hello nio transport!";
+
+    // --------------------------------------------------
+    // TESTS
+    // --------------------------------------------------
+
+    @Test(timeout = 60000)
+    public void testPublishAndSubscribeWithAllQosLevels() throws Exception
+    {
+        final MockEndpoint mock = this.getMockEndpoint(MOCK_RESULT);
+        this.context.addRoutes(new RouteBuilder()
+        {
+            @Override
+            public void configure() throws Exception
+            {
+                this.from("mqtt:testNioConsumer?host=" + DEFAULT_HOST + "&endPointName=nioConsumer" + NIO_OPTION
+                        + "&" + PahoMqttConfiguration.DEFAULT_QOS_LEVEL_NAME + "=2&"
+                        + PahoMqttConfiguration.DEFAULT_SUB_TOPIC_NAME + "=" + NIO_TOPIC).to(mock);
+            }
+        });
+
+        // sleep some time to wait for the subscription of the consumer
+        Thread.sleep(2000);
+
+        mock.expectedMessageCount(3);
+        mock.expectedBodiesReceivedInAnyOrder(NIO_PAYLOAD + 0, NIO_PAYLOAD + 1, NIO_PAYLOAD + 2);
+        for (int qos = 0; qos <= 2; qos++)
+        {
+            this.template.sendBody("mqtt:testNioProducer" + qos + "?host=" + DEFAULT_HOST
+                    + "&endPointName=nioProducer" + qos + NIO_OPTION + "&"
+                    + PahoMqttConfiguration.DEFAULT_QOS_LEVEL_NAME + "=" + qos + "&"
+                    + PahoMqttConfiguration.DEFAULT_PUB_TOPIC_NAME + "=" + NIO_TOPIC, NIO_PAYLOAD + qos);
+        }
+
+        this.assertMockEndpointsSatisfied();
+    }
+
+    @Test(timeout = 60000)
+    public void testSubscribeAfterDroppedConnection() throws Exception
+    {
+        final MockEndpoint mock = this.getMockEndpoint(MOCK_RESULT);
+        this.context.addRoutes(new RouteBuilder()
+        {
+            @Override
+            public void configure() throws Exception
+            {
+                this.from("mqtt:testNioDrop?host=" + DEFAULT_HOST + "&endPointName=nioDropConsumer" + NIO_OPTION
+                        + "&reconnectDelay=100&" + PahoMqttConfiguration.DEFAULT_SUB_TOPIC_NAME + "=" + NIO_TOPIC)
+                        .to(mock);
+            }
+        });
+
+        PahoMqttEndpoint endpoint = this.context.getEndpoint("mqtt:testNioDrop?host=" + DEFAULT_HOST
+                + "&endPointName=nioDropConsumer" + NIO_OPTION + "&reconnectDelay=100&"
+                + PahoMqttConfiguration.DEFAULT_SUB_TOPIC_NAME + "=" + NIO_TOPIC, PahoMqttEndpoint.class);
+
+        // sleep some time to wait for the subscription of the consumer, then
+        // drop the connection and wait until the consumer is back
+        Thread.sleep(2000);
+        BROKER.dropConnections();
+        while (endpoint.getReconnects() == 0)
+        {
+            Thread.sleep(10);
+        }
+
+        mock.expectedMinimumMessageCount(1);
+        while (mock.getReceivedCounter() == 0)
+        {
+            BROKER.publish(NIO_TOPIC, NIO_PAYLOAD.getBytes(), 0);
+            Thread.sleep(100);
+        }
+
+        this.assertMockEndpointsSatisfied();
+    }
+
+    @Test(timeout = 60000)
+    public void testThreadCountIndependentOfConnections() throws Exception
+    {
+        PahoMqttComponent component = this.context.getComponent("mqtt", PahoMqttComponent.class);
+        component.setNioThreads(2);
+        component.setNioCallbackThreads(2);
+
+        // the first connection starts the event loops
+        this.sendQos1("nioWarmUp");
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        long received = BROKER.getReceivedCount();
+
+        int connections = 50;
+        for (int i = 0; i < connections; i++)
+        {
+            this.sendQos1("nioProducer" + i);
+        }
+
+        // every connection of the Paho client owns at least three threads
+        int added = ManagementFactory.getThreadMXBean().getThreadCount() - threads;
+        LOG.info("\t--> {} threads added for {} connections", added, connections);
+        assertTrue("added " + added + " threads", added < 10);
+        assertTrue(BROKER.getConnectionCount() >= connections + 1);
+        assertEquals(received + connections, BROKER.getReceivedCount());
+    }
+
+    private void sendQos1(String name)
+    {
+        this.template.sendBody("mqtt:" + name + "?host=" + DEFAULT_HOST + "&endPointName=" + name + NIO_OPTION
+                + "&" + PahoMqttConfiguration.DEFAULT_QOS_LEVEL_NAME + "=1&"
+                + PahoMqttConfiguration.DEFAULT_PUB_TOPIC_NAME + "=" + NIO_TOPIC + "/" + name, NIO_PAYLOAD);
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.Test;
+
+/**
+ * This class defines unit tests for the payload conversions of the {@link PahoMqttPayloads}.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttPayloadsTest
+{
+    // --------------------------------------------------
+    // TESTS
+    // --------------------------------------------------
+
+    @Test
+    public void testWholeHeapBufferIsNotCopied()
+    {
+        byte[] bytes = new byte[] { 1, 2, 3 };
+
+        assertSame(bytes, PahoMqttPayloads.copyOf(ByteBuffer.wrap(bytes)));
+    }
+
+    @Test
+    public void testPartialAndDirectBuffersAreCopied()
+    {
+        ByteBuffer heap = ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 });
+        heap.position(1);
+        byte[] copy = PahoMqttPayloads.copyOf(heap);
+        assertArrayEquals(new byte[] { 2, 3, 4 }, copy);
+        assertNotSame(heap.array(), copy);
+        assertEquals(1, heap.position());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(3);
+        direct.put(new byte[] { 5, 6, 7 }).flip();
+        assertArrayEquals(new byte[] { 5, 6, 7 }, PahoMqttPayloads.copyOf(direct));
+        assertEquals(0, direct.position());
+    }
+
+    @Test
+    public void testStringsAreEncodedAsUtf8() throws Exception
+    {
+        String value = "MQTT \u00e4\u00f6\u00fc \u20ac \ud83d\ude00";
+
+        assertArrayEquals(value.getBytes("UTF-8"), PahoMqttPayloads.encode(value));
+        assertArrayEquals(new byte[0], PahoMqttPayloads.encode(""));
+    }
+
+    @Test
+    public void testStringsAreEncodedWithTheCharsetOfTheExchange() throws Exception
+    {
+        String value = "MQTT \u00e4\u00f6\u00fc";
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.getIn().setBody(value);
+
+        assertArrayEquals(value.getBytes("UTF-8"), PahoMqttPayloads.toBytes(exchange));
+
+        exchange.getIn().setHeader(Exchange.CHARSET_NAME, "ISO-8859-1");
+        assertArrayEquals(value.getBytes("ISO-8859-1"), PahoMqttPayloads.toBytes(exchange));
+
+        exchange.getIn().removeHeader(Exchange.CHARSET_NAME);
+        exchange.setProperty(Exchange.CHARSET_NAME, "UTF-16");
+        assertArrayEquals(value.getBytes("UTF-16"), PahoMqttPayloads.toBytes(exchange));
+    }
+
+    @Test
+    public void testStreamsLargerThanTheScratchBufferAreReadCompletely() throws Exception
+    {
+        byte[] bytes = new byte[100 * 1024 + 7];
+        new Random(42).nextBytes(bytes);
+
+        assertArrayEquals(bytes, PahoMqttPayloads.read(new ByteArrayInputStream(bytes)));
+        assertArrayEquals(new byte[] { 1 }, PahoMqttPayloads.read(new ByteArrayInputStream(new byte[] { 1 })));
+    }
+}
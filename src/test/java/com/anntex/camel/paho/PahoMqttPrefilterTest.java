@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.anntex.camel.paho.config.PahoMqttConfiguration;
+import org.junit.Test;
+
+/**
+ * This class defines unit tests for the {@link PahoMqttPrefilter} dropping messages before an exchange is created.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttPrefilterTest
+{
+    // --------------------------------------------------
+    // TESTS
+    // --------------------------------------------------
+
+    @Test
+    public void testNoFilterConfigured()
+    {
+        assertNull(PahoMqttPrefilter.create(new PahoMqttConfiguration()));
+    }
+
+    @Test
+    public void testIncludeAndExcludeTopics()
+    {
+        PahoMqttConfiguration configuration = new PahoMqttConfiguration();
+        configuration.setIncludeTopics("sensors/+/temperature, alerts/#");
+        configuration.setExcludeTopics("sensors/lab/#");
+        PahoMqttPrefilter prefilter = PahoMqttPrefilter.create(configuration);
+
+        assertTrue(prefilter.accept("sensors/kitchen/temperature", new byte[0]));
+        assertTrue(prefilter.accept("alerts/fire", new byte[0]));
+        assertFalse(prefilter.accept("sensors/kitchen/humidity", new byte[0]));
+        assertFalse(prefilter.accept("sensors/lab/temperature", new byte[0]));
+    }
+
+    @Test
+    public void testPayloadPrefix()
+    {
+        PahoMqttConfiguration configuration = new PahoMqttConfiguration();
+        configuration.setPayloadPrefix("hex:1F8b");
+        PahoMqttPrefilter prefilter = PahoMqttPrefilter.create(configuration);
+
+        assertTrue(prefilter.accept("a", new byte[] { 0x1F, (byte) 0x8B, 8 }));
+        assertFalse(prefilter.accept("a", new byte[] { 0x1F }));
+        assertFalse(prefilter.accept("a", "{}".getBytes()));
+
+        assertArrayEquals("{\"".getBytes(), PahoMqttPrefilter.parsePrefix("{\""));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidHexPrefix()
+    {
+        PahoMqttPrefilter.parsePrefix("hex:1g");
+    }
+
+    @Test
+    public void testMessageFilter()
+    {
+        PahoMqttConfiguration configuration = new PahoMqttConfiguration();
+        configuration.setExcludeTopics("b");
+        configuration.setMessageFilter(new PahoMqttMessageFilter()
+        {
+            @Override
+            public boolean accept(String topic, byte[] payload)
+            {
+                return payload.length > 1;
+            }
+        });
+        PahoMqttPrefilter prefilter = PahoMqttPrefilter.create(configuration);
+
+        assertTrue(prefilter.accept("a", new byte[2]));
+        assertFalse(prefilter.accept("a", new byte[1]));
+        assertFalse(prefilter.accept("b", new byte[2]));
+    }
+}
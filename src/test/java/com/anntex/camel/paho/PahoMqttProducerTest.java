@@ -16,8 +16,22 @@
  */
 package com.anntex.camel.paho;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.anntex.camel.paho.config.PahoMqttConfiguration;
 import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
 import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.component.mock.MockEndpoint;
 import org.junit.Test;
 
 /**
@@ -42,16 +56,361 @@ public class PahoMqttProducerTest extends PahoMqttBaseTest
             public void configure() throws Exception
             {
                 // create a new route to test end point creation for certain host url
-                this.from("direct:start").to(
-                        "mqtt:testMessageToDefaultTopic?pubTopicName=" + PahoMqttProducerTest.TEST_TOPIC_1);
+                this.from("direct:start").to("mqtt:testMessageToDefaultTopic?host=" + DEFAULT_HOST
+                        + "&pubTopicName=" + PahoMqttProducerTest.TEST_TOPIC_1);
             }
         });
 
-        this.template.sendBodyAndHeader("mqtt:testMessageToDefaultTopic?pubTopicName="
+        this.template.sendBodyAndHeader("mqtt:testMessageToDefaultTopic?host=" + DEFAULT_HOST + "&pubTopicName="
                 + PahoMqttProducerTest.TEST_TOPIC_1, payload, Exchange.TO_ENDPOINT, PahoMqttProducerTest.TEST_TOPIC_1);
 
         Thread.sleep(3000);
 
         this.assertMockEndpointsSatisfied();
     }
+
+    @Test(timeout = 60000)
+    public void testPublishMqttMessageToHeaderTopic() throws Exception
+    {
+        byte[] payload = "Hello Camel mqtt example".getBytes();
+
+        final MockEndpoint mock = this.getMockEndpoint(MOCK_RESULT);
+        this.context.addRoutes(new RouteBuilder()
+        {
+            @Override
+            public void configure() throws Exception
+            {
+                // receive the messages of the topic set by the header
+                this.from("mqtt:testHeaderTopicConsumer?host=" + DEFAULT_HOST
+                        + "&endPointName=headerTopicConsumer&subTopicName=" + PahoMqttProducerTest.TEST_TOPIC_2)
+                        .to(mock);
+            }
+        });
+        mock.expectedBodiesReceived(payload);
+
+        // the header overrides the topic of the end point
+        this.template.sendBodyAndHeader("mqtt:testMessageToHeaderTopic?host=" + DEFAULT_HOST + "&pubTopicName="
+                + PahoMqttProducerTest.TEST_TOPIC_1, payload, PahoMqttConstants.TOPIC, PahoMqttProducerTest.TEST_TOPIC_2);
+
+        this.assertMockEndpointsSatisfied();
+    }
+
+    @Test(timeout = 60000)
+    public void testPublishMoreMqttMessagesThanPahoKeepsInFlight() throws Exception
+    {
+        String uri = "mqtt:testInFlightProducer?host=" + DEFAULT_HOST
+                + "&endPointName=inFlightProducer&pubTopicName=test/inflight&qosLevel=1&"
+                + PahoMqttConfiguration.DEFAULT_MAX_IN_FLIGHT_NAME + "=50";
+        this.template.sendBody(uri, "connect".getBytes());
+        long received = BROKER.getReceivedCount();
+
+        // slow acknowledgements fill the window of the Paho client, further
+        // publishes have to wait instead of failing
+        BROKER.setAckDelay(100);
+        try
+        {
+            List<Future<Object>> sent = new ArrayList<Future<Object>>();
+            for (int i = 0; i < 40; i++)
+            {
+                sent.add(this.template.asyncSendBody(uri, ("message " + i).getBytes()));
+            }
+            for (Future<Object> future : sent)
+            {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally
+        {
+            BROKER.setAckDelay(0);
+        }
+
+        assertEquals(received + 40, BROKER.getReceivedCount());
+    }
+
+    @Test(timeout = 60000)
+    public void testPublishMqttMessagesInEnvelopes() throws Exception
+    {
+        final MockEndpoint mock = this.getMockEndpoint(MOCK_RESULT);
+        this.context.addRoutes(new RouteBuilder()
+        {
+            @Override
+            public void configure() throws Exception
+            {
+                this.from("mqtt:testEnvelopeConsumer?host=" + DEFAULT_HOST
+                        + "&endPointName=envelopeConsumer&subTopicName=test/envelope&"
+                        + PahoMqttConfiguration.DEFAULT_UNPACK_ENVELOPES_NAME + "=true").to(mock);
+            }
+        });
+
+        // sleep some time to wait for the subscription of the consumer
+        Thread.sleep(2000);
+
+        String uri = "mqtt:testEnvelopeProducer?host=" + DEFAULT_HOST
+                + "&endPointName=envelopeProducer&pubTopicName=test/envelope&qosLevel=1&"
+                + PahoMqttConfiguration.DEFAULT_ENVELOPE_SIZE_NAME + "=10&"
+                + PahoMqttConfiguration.DEFAULT_ENVELOPE_TIMEOUT_NAME + "=5000";
+        PahoMqttEndpoint producer = (PahoMqttEndpoint) this.context.getEndpoint(uri);
+
+        long published = BROKER.getReceivedCount();
+        List<Future<Object>> sent = new ArrayList<Future<Object>>();
+        for (int i = 0; i < 20; i++)
+        {
+            sent.add(this.template.asyncSendBody(producer, ("message " + i).getBytes()));
+        }
+        for (Future<Object> future : sent)
+        {
+            future.get();
+        }
+
+        mock.expectedMessageCount(20);
+        this.assertMockEndpointsSatisfied();
+
+        // two envelopes of ten messages each
+        assertEquals(2, BROKER.getReceivedCount() - published);
+        assertEquals(20, producer.getPacked());
+        assertEquals(20, ((PahoMqttEndpoint) this.context.getRoutes().get(0).getEndpoint()).getUnpacked());
+    }
+
+    @Test(timeout = 60000)
+    public void testPublishCompressedMqttMessage() throws Exception
+    {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+        {
+            json.append("{\"sensor\":\"kitchen\",\"temperature\":21.5}");
+        }
+        byte[] payload = json.toString().getBytes();
+
+        final MockEndpoint mock = this.getMockEndpoint(MOCK_RESULT);
+        this.context.addRoutes(new RouteBuilder()
+        {
+            @Override
+            public void configure() throws Exception
+            {
+                this.from("mqtt:testCompressionConsumer?host=" + DEFAULT_HOST
+                        + "&endPointName=compressionConsumer&subTopicName=test/compression&compression=deflate")
+                        .to(mock);
+            }
+        });
+        mock.expectedBodiesReceived(payload, "small".getBytes());
+
+        // sleep some time to wait for the subscription of the consumer
+        Thread.sleep(2000);
+
+        String uri = "mqtt:testCompressionProducer?host=" + DEFAULT_HOST
+                + "&endPointName=compressionProducer&pubTopicName=test/compression&"
+                + PahoMqttConfiguration.DEFAULT_COMPRESSION_NAME + "=" + PahoMqttConfiguration.COMPRESSION_DEFLATE;
+        this.template.sendBody(uri, payload);
+        this.template.sendBody(uri, "small".getBytes());
+
+        this.assertMockEndpointsSatisfied();
+
+        // the small payload is below the threshold
+        PahoMqttEndpoint producer = (PahoMqttEndpoint) this.context.getEndpoint(uri);
+        assertEquals(1, producer.getCompressed());
+        assertTrue(producer.getCompressionSavedBytes() > payload.length / 2);
+    }
+
+    @Test(timeout = 60000)
+    public void testStreamBodyInChunks() throws Exception
+    {
+        byte[] payload = new byte[100 * 1024];
+        new Random(42).nextBytes(payload);
+
+        // the file of the transfer is converted before the exchange completes
+        // and deletes it
+        final AtomicReference<File> file = new AtomicReference<File>();
+        final MockEndpoint mock = this.getMockEndpoint(MOCK_RESULT);
+        this.context.addRoutes(new RouteBuilder()
+        {
+            @Override
+            public void configure() throws Exception
+            {
+                this.from("mqtt:testChunkConsumer?host=" + DEFAULT_HOST
+                        + "&endPointName=chunkConsumer&subTopicName=test/chunks&"
+                        + PahoMqttConfiguration.DEFAULT_REASSEMBLE_CHUNKS_NAME + "=true").process(new Processor()
+                {
+                    @Override
+                    public void process(Exchange exchange) throws Exception
+                    {
+                        file.set(exchange.getIn().getBody(File.class));
+                    }
+                }).convertBodyTo(byte[].class).to(mock);
+            }
+        });
+        mock.expectedBodiesReceived(payload);
+        mock.expectedHeaderReceived(PahoMqttConstants.TRANSFER_LENGTH, (long) payload.length);
+
+        // sleep some time to wait for the subscription of the consumer
+        Thread.sleep(2000);
+
+        String uri = "mqtt:testChunkProducer?host=" + DEFAULT_HOST
+                + "&endPointName=chunkProducer&pubTopicName=test/chunks&"
+                + PahoMqttConfiguration.DEFAULT_CHUNK_SIZE_NAME + "=1024";
+        this.template.sendBody(uri, new ByteArrayInputStream(payload));
+
+        this.assertMockEndpointsSatisfied();
+
+        PahoMqttEndpoint producer = (PahoMqttEndpoint) this.context.getEndpoint(uri);
+        assertEquals(1, producer.getTransfersSent());
+        assertNotNull(file.get());
+        for (int i = 0; i < 50 && file.get().exists(); i++)
+        {
+            Thread.sleep(100);
+        }
+        assertFalse(file.get().exists());
+    }
+
+    @Test(timeout = 60000)
+    public void testGetLastValueOfTopic() throws Exception
+    {
+        this.context.getComponent("mqtt", PahoMqttComponent.class).setLastValueCacheSize(100);
+        BROKER.publish("test/lastvalue/kitchen", "21.5".getBytes(), 1, true);
+
+        // the consumer feeds the cache of the component, starting with the
+        // retained message replayed on subscription
+        final MockEndpoint mock = this.getMockEndpoint(MOCK_RESULT);
+        this.context.addRoutes(new RouteBuilder()
+        {
+            @Override
+            public void configure() throws Exception
+            {
+                this.from("mqtt:testLastValueConsumer?host=" + DEFAULT_HOST
+                        + "&endPointName=lastValueConsumer&subTopicName=test/lastvalue/#").to(mock);
+            }
+        });
+        mock.expectedMessageCount(1);
+        this.assertMockEndpointsSatisfied();
+
+        String uri = "mqtt:testLastValueProducer?host=" + DEFAULT_HOST + "&endPointName=lastValueProducer";
+        Exchange exchange = this.template.request(uri, new Processor()
+        {
+            @Override
+            public void process(Exchange exchange) throws Exception
+            {
+                exchange.getIn().setHeader(PahoMqttConstants.OPERATION, PahoMqttConstants.OPERATION_GET);
+                exchange.getIn().setHeader(PahoMqttConstants.TOPIC, "test/lastvalue/kitchen");
+            }
+        });
+        assertArrayEquals("21.5".getBytes(), exchange.getIn().getBody(byte[].class));
+        assertEquals(Boolean.TRUE, exchange.getIn().getHeader(PahoMqttConstants.RECEIVED_RETAINED));
+
+        // chunks are never cached, an envelope is cached as the consumer
+        // delivers it, which does not unpack envelopes
+        byte[] envelope = PahoMqttEnvelope.pack(Arrays.asList("1".getBytes(), "2".getBytes()));
+        mock.reset();
+        mock.expectedMessageCount(2);
+        BROKER.publish("test/lastvalue/kitchen", PahoMqttChunks.chunk(1L, 0, "22".getBytes(), 2), 1, false);
+        BROKER.publish("test/lastvalue/garden", envelope, 1, false);
+        this.assertMockEndpointsSatisfied();
+
+        Object kitchen = this.template.requestBodyAndHeader(uri + "&pubTopicName=test/lastvalue/kitchen", null,
+                PahoMqttConstants.OPERATION, PahoMqttConstants.OPERATION_GET);
+        assertArrayEquals("21.5".getBytes(), (byte[]) kitchen);
+        Object garden = this.template.requestBodyAndHeader(uri + "&pubTopicName=test/lastvalue/garden", null,
+                PahoMqttConstants.OPERATION, PahoMqttConstants.OPERATION_GET);
+        assertArrayEquals(envelope, (byte[]) garden);
+
+        Object missing = this.template.requestBodyAndHeader(uri + "&pubTopicName=test/lastvalue/hall", null,
+                PahoMqttConstants.OPERATION, PahoMqttConstants.OPERATION_GET);
+        assertNull(missing);
+
+        // the lookup does not publish
+        assertEquals(2, mock.getReceivedCounter());
+    }
+
+    @Test(timeout = 60000)
+    public void testPublishMqttMessageAfterDroppedConnection() throws Exception
+    {
+        byte[] payload = "Hello Camel mqtt example".getBytes();
+        String uri = "mqtt:testMessageAfterDrop?host=" + DEFAULT_HOST + "&endPointName=dropProducer&qosLevel=1";
+
+        long received = BROKER.getReceivedCount();
+        this.template.sendBody(uri, payload);
+
+        // drop the connection and keep the producer offline until it noticed
+        // the lost connection
+        this.dropConnectionsAndRefuse(500);
+
+        // the publish is buffered until the producer reconnected
+        this.template.sendBody(uri, payload);
+
+        assertEquals(received + 2, BROKER.getReceivedCount());
+    }
+
+    @Test(timeout = 60000)
+    public void testKeepBufferedMessagesWhenConnectionDropsWhileDraining() throws Exception
+    {
+        String uri = "mqtt:testDrainAfterDrop?host=" + DEFAULT_HOST + "&endPointName=drainProducer&qosLevel=1&"
+                + PahoMqttConfiguration.DEFAULT_MAX_IN_FLIGHT_NAME + "=1&"
+                + PahoMqttConfiguration.DEFAULT_RECONNECT_DELAY_NAME + "=100";
+        this.template.sendBody(uri, "connect".getBytes());
+        long received = BROKER.getReceivedCount();
+
+        // buffer some publishes while the producer is offline
+        BROKER.setRefuseConnections(true);
+        BROKER.dropConnections();
+        while (BROKER.getConnectionCount() > 0)
+        {
+            Thread.sleep(10);
+        }
+        Thread.sleep(500);
+        List<Future<Object>> replies = new ArrayList<Future<Object>>();
+        for (int i = 0; i < 10; i++)
+        {
+            replies.add(this.template.asyncSendBody(uri, ("buffered " + i).getBytes()));
+        }
+
+        // slow acknowledgements keep the producer draining, drop the
+        // connection again as soon as the first buffered publish arrived
+        BROKER.setAckDelay(300);
+        try
+        {
+            BROKER.setRefuseConnections(false);
+            while (BROKER.getReceivedCount() == received)
+            {
+                Thread.sleep(10);
+            }
+            this.dropConnectionsAndRefuse(300);
+        } finally
+        {
+            BROKER.setAckDelay(0);
+        }
+
+        // only the publishes in flight while dropping fail, the rest is kept
+        // for the next reconnect
+        int failed = 0;
+        for (Future<Object> reply : replies)
+        {
+            try
+            {
+                reply.get(30, TimeUnit.SECONDS);
+            } catch (ExecutionException ex)
+            {
+                failed++;
+            }
+        }
+        assertTrue(failed + " buffered publishes failed", failed <= 2);
+    }
+
+    /**
+     * Drops all client connections and refuses new ones until the given time
+     * passed after the last connection was closed, so the producers notice
+     * the lost connection.
+     */
+    private void dropConnectionsAndRefuse(long offlineMillis) throws InterruptedException
+    {
+        BROKER.setRefuseConnections(true);
+        try
+        {
+            BROKER.dropConnections();
+            while (BROKER.getConnectionCount() > 0)
+            {
+                Thread.sleep(10);
+            }
+            Thread.sleep(offlineMillis);
+        } finally
+        {
+            BROKER.setRefuseConnections(false);
+        }
+    }
 }
@@ -0,0 +1,237 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class defines unit tests for the {@link PahoMqttReassembler} and the
+ * frames of the {@link PahoMqttChunks}.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttReassemblerTest
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private static final int      CHUNK_SIZE = 1000;
+
+    private final PahoMqttMetrics mMetrics   = new PahoMqttMetrics();
+
+    private File                  mDirectory;
+
+    // --------------------------------------------------
+    // TESTS
+    // --------------------------------------------------
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.mDirectory = Files.createTempDirectory("paho-chunks").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        for (File file : this.mDirectory.listFiles())
+        {
+            file.delete();
+        }
+        this.mDirectory.delete();
+    }
+
+    @Test
+    public void testChunkFrames()
+    {
+        byte[] data = "chunk".getBytes();
+        byte[] chunk = PahoMqttChunks.chunk(7L, 3, data, 4);
+        assertTrue(PahoMqttChunks.isChunk(chunk));
+        assertFalse(PahoMqttChunks.isLast(chunk));
+        assertEquals(7L, PahoMqttChunks.transferId(chunk));
+        assertEquals(3, PahoMqttChunks.sequence(chunk));
+        assertEquals(PahoMqttChunks.HEADER_SIZE + 4, chunk.length);
+
+        byte[] last = PahoMqttChunks.lastChunk(-1L, 4, data, data.length, 1L << 40, 0xCAFEBABE);
+        assertTrue(PahoMqttChunks.isChunk(last));
+        assertTrue(PahoMqttChunks.isLast(last));
+        assertEquals(-1L, PahoMqttChunks.transferId(last));
+        assertEquals(1L << 40, PahoMqttChunks.totalLength(last));
+        assertEquals(0xCAFEBABE, PahoMqttChunks.checksum(last));
+        assertEquals(PahoMqttChunks.LAST_HEADER_SIZE, PahoMqttChunks.dataOffset(last));
+
+        assertFalse(PahoMqttChunks.isChunk("{\"temperature\":21.5}".getBytes()));
+        assertFalse(PahoMqttChunks.isChunk(new byte[PahoMqttChunks.HEADER_SIZE]));
+    }
+
+    @Test
+    public void testReassembleTransfer() throws Exception
+    {
+        byte[] data = new byte[3500];
+        new Random(42).nextBytes(data);
+        List<byte[]> chunks = PahoMqttReassemblerTest.split(1L, data, data.length, PahoMqttReassemblerTest.crc(data));
+        PahoMqttReassembler reassembler = new PahoMqttReassembler(this.mDirectory, 60000, this.mMetrics);
+
+        PahoMqttReassembler.Transfer transfer = null;
+        for (int i = 0; i < chunks.size(); i++)
+        {
+            transfer = reassembler.accept("test/chunks", chunks.get(i));
+            if (i > 0)
+            {
+                // a chunk redelivered by the broker is ignored
+                assertNull(reassembler.accept("test/chunks", chunks.get(i - 1)));
+            }
+        }
+
+        assertNotNull(transfer);
+        assertEquals(1L, transfer.getId());
+        assertEquals(data.length, transfer.getLength());
+        assertArrayEquals(data, Files.readAllBytes(transfer.getFile().toPath()));
+        assertEquals(0, reassembler.size());
+        assertEquals(1, this.mMetrics.getTransfersReceived());
+
+        // the first chunk redelivered after the transfer completed does not
+        // start it again
+        assertNull(reassembler.accept("test/chunks", chunks.get(0)));
+        assertEquals(0, reassembler.size());
+        assertEquals(1, this.mDirectory.listFiles().length);
+    }
+
+    @Test
+    public void testMissingChunkFailsTransfer() throws Exception
+    {
+        byte[] data = new byte[3500];
+        List<byte[]> chunks = PahoMqttReassemblerTest.split(2L, data, data.length, PahoMqttReassemblerTest.crc(data));
+        PahoMqttReassembler reassembler = new PahoMqttReassembler(this.mDirectory, 60000, this.mMetrics);
+
+        assertNull(reassembler.accept("test/chunks", chunks.get(0)));
+        assertNull(reassembler.accept("test/chunks", chunks.get(2)));
+        assertNull(reassembler.accept("test/chunks", chunks.get(3)));
+
+        assertEquals(0, reassembler.size());
+        assertEquals(1, this.mMetrics.getTransfersFailed());
+        assertEquals(0, this.mDirectory.listFiles().length);
+    }
+
+    @Test
+    public void testWrongChecksumFailsTransfer() throws Exception
+    {
+        byte[] data = new byte[2500];
+        new Random(42).nextBytes(data);
+        PahoMqttReassembler reassembler = new PahoMqttReassembler(this.mDirectory, 60000, this.mMetrics);
+
+        PahoMqttReassembler.Transfer transfer = null;
+        for (byte[] chunk : PahoMqttReassemblerTest.split(3L, data, data.length, PahoMqttReassemblerTest.crc(data) + 1))
+        {
+            transfer = reassembler.accept("test/chunks", chunk);
+        }
+        for (byte[] chunk : PahoMqttReassemblerTest.split(4L, data, data.length + 1, PahoMqttReassemblerTest.crc(data)))
+        {
+            transfer = reassembler.accept("test/chunks", chunk);
+        }
+
+        assertNull(transfer);
+        assertEquals(2, this.mMetrics.getTransfersFailed());
+        assertEquals(0, this.mDirectory.listFiles().length);
+    }
+
+    @Test
+    public void testExpiredTransferIsDiscarded() throws Exception
+    {
+        byte[] data = new byte[2500];
+        List<byte[]> chunks = PahoMqttReassemblerTest.split(5L, data, data.length, PahoMqttReassemblerTest.crc(data));
+        PahoMqttReassembler reassembler = new PahoMqttReassembler(this.mDirectory, 50, this.mMetrics);
+
+        assertNull(reassembler.accept("test/chunks", chunks.get(0)));
+        assertEquals(1, reassembler.size());
+        Thread.sleep(100);
+
+        // the next chunk finds its transfer expired and is dropped
+        assertNull(reassembler.accept("test/chunks", chunks.get(1)));
+        assertEquals(0, reassembler.size());
+        assertEquals(1, this.mMetrics.getTransfersFailed());
+        assertEquals(0, this.mDirectory.listFiles().length);
+
+        // a transfer restarting on another topic is independent
+        assertNull(reassembler.accept("test/other", chunks.get(0)));
+        reassembler.close();
+        assertEquals(0, this.mDirectory.listFiles().length);
+    }
+
+    @Test
+    public void testStalledTransferExpiresWithoutNextChunk() throws Exception
+    {
+        byte[] data = new byte[2500];
+        List<byte[]> chunks = PahoMqttReassemblerTest.split(6L, data, data.length, PahoMqttReassemblerTest.crc(data));
+        PahoMqttReassembler reassembler = new PahoMqttReassembler(this.mDirectory, 50, this.mMetrics);
+
+        assertNull(reassembler.accept("test/chunks", chunks.get(0)));
+        reassembler.expire();
+        assertEquals(1, reassembler.size());
+
+        // the periodic expiry discards the transfer and deletes its file
+        Thread.sleep(100);
+        reassembler.expire();
+        assertEquals(0, reassembler.size());
+        assertEquals(1, this.mMetrics.getTransfersFailed());
+        assertEquals(0, this.mDirectory.listFiles().length);
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    private static List<byte[]> split(long transferId, byte[] data, long totalLength, int checksum)
+    {
+        List<byte[]> chunks = new ArrayList<byte[]>();
+        byte[] buffer = new byte[CHUNK_SIZE];
+        int sequence = 0;
+        for (int offset = 0; offset < data.length; offset += CHUNK_SIZE, sequence++)
+        {
+            int length = Math.min(CHUNK_SIZE, data.length - offset);
+            System.arraycopy(data, offset, buffer, 0, length);
+            chunks.add(offset + length < data.length ? PahoMqttChunks.chunk(transferId, sequence, buffer, length)
+                    : PahoMqttChunks.lastChunk(transferId, sequence, buffer, length, totalLength, checksum));
+        }
+        return chunks;
+    }
+
+    private static int crc(byte[] data)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * This class defines unit tests for the {@link PahoMqttStripedExecutor} used by the consumer to dispatch messages.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttStripedExecutorTest
+{
+    // --------------------------------------------------
+    // TESTS
+    // --------------------------------------------------
+
+    @Test(timeout = 60000)
+    public void testKeepsOrderPerKey() throws Exception
+    {
+        final int messages = 1000;
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        PahoMqttStripedExecutor executor = new PahoMqttStripedExecutor(pool, 4, 16);
+        executor.start();
+
+        final CountDownLatch latch = new CountDownLatch(2 * messages);
+        final List<Integer> first = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> second = Collections.synchronizedList(new ArrayList<Integer>());
+
+        for (int i = 0; i < messages; i++)
+        {
+            final int value = i;
+            executor.execute("test/camel/paho", new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    first.add(value);
+                    latch.countDown();
+                }
+            });
+            executor.execute("test/paho", new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    second.add(value);
+                    latch.countDown();
+                }
+            });
+        }
+
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        executor.stop(1000);
+        pool.shutdown();
+
+        for (int i = 0; i < messages; i++)
+        {
+            assertEquals(i, first.get(i).intValue());
+            assertEquals(i, second.get(i).intValue());
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testRunsQueuedTasksWhenStopped() throws Exception
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        PahoMqttStripedExecutor executor = new PahoMqttStripedExecutor(pool, 2, 100);
+        executor.start();
+
+        // block both workers, so the following tasks stay queued
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final AtomicInteger executed = new AtomicInteger();
+        for (String key : new String[] { "a", "b" })
+        {
+            executor.execute(key, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        blocked.await();
+                    } catch (InterruptedException ex)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < 50; i++)
+        {
+            executor.execute(i % 2 == 0 ? "a" : "b", new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    executed.incrementAndGet();
+                }
+            });
+        }
+
+        // stop while the tasks are queued and release the workers meanwhile
+        new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(200);
+                } catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                blocked.countDown();
+            }
+        }.start();
+        executor.stop(10000);
+        assertEquals(50, executed.get());
+        assertEquals(0, executor.size());
+
+        // a task submitted after stopping runs on the calling thread
+        executor.execute("a", new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                executed.incrementAndGet();
+            }
+        });
+        assertEquals(51, executed.get());
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * This class defines unit tests for the topic validation of the {@link PahoMqttTopicCache}.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttTopicCacheTest
+{
+    // --------------------------------------------------
+    // TESTS
+    // --------------------------------------------------
+
+    @Test
+    public void testCachedTopicsShareOneInstance()
+    {
+        PahoMqttTopicCache cache = new PahoMqttTopicCache(10);
+
+        String topic = cache.resolve("devices/4711/state");
+        assertSame(topic, cache.resolve(new String("devices/4711/state")));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testCacheIsBounded()
+    {
+        PahoMqttTopicCache cache = new PahoMqttTopicCache(10);
+        for (int i = 0; i < 100; i++)
+        {
+            cache.resolve("devices/" + i);
+        }
+
+        assertEquals(10, cache.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWildcardTopicIsRejected()
+    {
+        new PahoMqttTopicCache(10).resolve("devices/+/state");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyTopicIsRejected()
+    {
+        new PahoMqttTopicCache(0).resolve("");
+    }
+}
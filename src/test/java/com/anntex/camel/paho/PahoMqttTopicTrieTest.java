@@ -0,0 +1,135 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * This class defines unit tests for the topic filter matching of the {@link PahoMqttTopicTrie}.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttTopicTrieTest
+{
+    // --------------------------------------------------
+    // TESTS
+    // --------------------------------------------------
+
+    @Test
+    public void testExactMatch()
+    {
+        PahoMqttTopicTrie<String> trie = new PahoMqttTopicTrie<String>();
+        trie.add("test/camel/paho", "exact");
+
+        assertEquals(Arrays.asList("exact"), this.match(trie, "test/camel/paho"));
+        assertEquals(Collections.emptyList(), this.match(trie, "test/camel"));
+        assertEquals(Collections.emptyList(), this.match(trie, "test/camel/paho/1"));
+    }
+
+    @Test
+    public void testSingleLevelWildcard()
+    {
+        PahoMqttTopicTrie<String> trie = new PahoMqttTopicTrie<String>();
+        trie.add("test/paho/+", "plus");
+        trie.add("+/+/paho", "plus2");
+
+        assertEquals(Arrays.asList("plus"), this.match(trie, "test/paho/1"));
+        assertEquals(Arrays.asList("plus"), this.match(trie, "test/paho/"));
+        assertEquals(Arrays.asList("plus2"), this.match(trie, "test/camel/paho"));
+        assertEquals(Collections.emptyList(), this.match(trie, "test/paho"));
+        assertEquals(Collections.emptyList(), this.match(trie, "test/paho/1/2"));
+    }
+
+    @Test
+    public void testMultiLevelWildcard()
+    {
+        PahoMqttTopicTrie<String> trie = new PahoMqttTopicTrie<String>();
+        trie.add("test/paho/#", "hash");
+        trie.add("test/+/#", "plushash");
+        trie.add("#", "all");
+
+        assertEquals(Arrays.asList("all", "hash", "plushash"), this.match(trie, "test/paho"));
+        assertEquals(Arrays.asList("all", "hash", "plushash"), this.match(trie, "test/paho/1/2"));
+        assertEquals(Arrays.asList("all", "plushash"), this.match(trie, "test/camel"));
+        assertEquals(Arrays.asList("all"), this.match(trie, "other"));
+    }
+
+    @Test
+    public void testSystemTopicsAreNotMatchedByLeadingWildcards()
+    {
+        PahoMqttTopicTrie<String> trie = new PahoMqttTopicTrie<String>();
+        trie.add("#", "all");
+        trie.add("+/broker/#", "plus");
+        trie.add("$SYS/#", "sys");
+
+        assertEquals(Arrays.asList("sys"), this.match(trie, "$SYS/broker/load"));
+    }
+
+    @Test
+    public void testRemove()
+    {
+        PahoMqttTopicTrie<String> trie = new PahoMqttTopicTrie<String>();
+        trie.add("test/paho/+", "first");
+        trie.add("test/paho/+", "second");
+
+        assertTrue(trie.remove("test/paho/+", "first"));
+        assertFalse(trie.remove("test/paho/+", "first"));
+        assertEquals(Arrays.asList("second"), this.match(trie, "test/paho/1"));
+
+        assertTrue(trie.remove("test/paho/+", "second"));
+        assertTrue(trie.isEmpty());
+    }
+
+    @Test
+    public void testMatches()
+    {
+        PahoMqttTopicTrie<String> trie = new PahoMqttTopicTrie<String>();
+        trie.add("test/+/paho", "plus");
+        trie.add("other/#", "hash");
+
+        assertTrue(trie.matches("test/camel/paho"));
+        assertTrue(trie.matches("other"));
+        assertTrue(trie.matches("other/1/2"));
+        assertFalse(trie.matches("test/camel"));
+        assertFalse(trie.matches("$SYS/other"));
+
+        trie.remove("other/#", "hash");
+        assertFalse(trie.matches("other/1"));
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    private List<String> match(PahoMqttTopicTrie<String> trie, String topic)
+    {
+        List<String> result = new ArrayList<String>();
+        trie.match(topic, result);
+        Collections.sort(result);
+        return result;
+    }
+}
@@ -0,0 +1,1150 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho.broker;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.anntex.camel.paho.PahoMqttTopicTrie;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class defines a lightweight MQTT broker running in the same process as
+ * the tests and benchmarks, so they do not depend on an external broker. A
+ * single thread serves all connections with non-blocking IO. The broker
+ * accepts MQTT 3.1 and 3.1.1 clients and supports the CONNECT, PUBLISH,
+ * SUBSCRIBE and UNSUBSCRIBE flows including the QoS 1 and 2 handshakes, topic
+ * filters with wildcards and retained messages. A client connecting without
+ * a clean session resumes the subscriptions of its previous connection and
+ * gets the QoS 1 and 2 messages it did not acknowledge redelivered with the
+ * DUP flag. Messages published while it is offline are not queued and no
+ * session survives a restart of the broker.
+ * <p>
+ * Faults can be injected to test the behavior of clients under bad network
+ * conditions: a latency added to every packet sent by the broker, an
+ * additional delay of the acknowledgements of published messages, dropping
+ * all connections at once and refusing new connections.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttEmbeddedBroker
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private static final Logger                   LOG          = LoggerFactory.getLogger(PahoMqttEmbeddedBroker.class);
+
+    private static final Charset                  UTF_8        = Charset.forName("UTF-8");
+
+    private static final String                   BIND_ADDRESS = "127.0.0.1";
+
+    // packet types of the fixed header
+    private static final int                      CONNECT      = 1;
+    private static final int                      PUBLISH      = 3;
+    private static final int                      PUBACK       = 4;
+    private static final int                      PUBREC       = 5;
+    private static final int                      PUBREL       = 6;
+    private static final int                      PUBCOMP      = 7;
+    private static final int                      SUBSCRIBE    = 8;
+    private static final int                      UNSUBSCRIBE  = 10;
+    private static final int                      PINGREQ      = 12;
+    private static final int                      DISCONNECT   = 14;
+
+    /**
+     * Defines the port requested on start, 0 for an ephemeral port.
+     */
+    private final int                             mRequestedPort;
+
+    /**
+     * Defines the subscriptions of all sessions by topic filter.
+     */
+    private final PahoMqttTopicTrie<Subscription> mSubscriptions = new PahoMqttTopicTrie<Subscription>();
+
+    /**
+     * Defines the connected sessions by client id.
+     */
+    private final Map<String, Session>            mSessions      = new HashMap<String, Session>();
+
+    /**
+     * Defines the sessions of disconnected clients without a clean session by
+     * client id.
+     */
+    private final Map<String, Session>            mStored        = new HashMap<String, Session>();
+
+    /**
+     * Defines the retained messages by topic.
+     */
+    private final Map<String, Retained>           mRetained      = new HashMap<String, Retained>();
+
+    /**
+     * Defines the tasks handed to the IO thread by other threads.
+     */
+    private final Queue<Runnable>                 mTasks         = new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * Defines the number of messages published by clients.
+     */
+    private final AtomicLong                      mReceived      = new AtomicLong();
+
+    /**
+     * Defines the number of open client connections.
+     */
+    private final AtomicInteger                   mConnections   = new AtomicInteger();
+
+    /**
+     * Defines the number of QoS 1 and 2 messages sent to subscribers and not
+     * acknowledged by them yet.
+     */
+    private final AtomicInteger                   mUnacknowledged = new AtomicInteger();
+
+    /**
+     * Defines the latency in milliseconds added to every packet sent.
+     */
+    private volatile long                         mLatency;
+
+    /**
+     * Defines the delay in milliseconds added to the acknowledgements of
+     * published messages.
+     */
+    private volatile long                         mAckDelay;
+
+    /**
+     * Defines if new connections are refused.
+     */
+    private volatile boolean                      mRefuseConnections;
+
+    /**
+     * Defines the executor delaying packets if faults are injected.
+     */
+    private ScheduledExecutorService              mDelayer;
+
+    private Selector                              mSelector;
+
+    private ServerSocketChannel                   mServer;
+
+    private Thread                                mThread;
+
+    private volatile boolean                      mRunning;
+
+    // --------------------------------------------------
+    // CONSTRUCTOR
+    // --------------------------------------------------
+
+    /**
+     * Creates a broker listening on an ephemeral port.
+     */
+    public PahoMqttEmbeddedBroker()
+    {
+        this(0);
+    }
+
+    /**
+     * @param port
+     *            The port to listen on, 0 for an ephemeral port.
+     */
+    public PahoMqttEmbeddedBroker(int port)
+    {
+        this.mRequestedPort = port;
+    }
+
+    // --------------------------------------------------
+    // METHODS
+    // --------------------------------------------------
+
+    /**
+     * Binds the broker to its port and starts the IO thread.
+     *
+     * @throws IOException
+     *             if the port can not be bound.
+     */
+    public synchronized void start() throws IOException
+    {
+        if (this.mRunning)
+        {
+            return;
+        }
+
+        this.mSelector = Selector.open();
+        this.mServer = ServerSocketChannel.open();
+        this.mServer.configureBlocking(false);
+        this.mServer.bind(new InetSocketAddress(PahoMqttEmbeddedBroker.BIND_ADDRESS, this.mRequestedPort));
+        this.mServer.register(this.mSelector, SelectionKey.OP_ACCEPT);
+
+        this.mDelayer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "PahoMqttEmbeddedBroker-delay");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        this.mRunning = true;
+        this.mThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                PahoMqttEmbeddedBroker.this.loop();
+            }
+        }, "PahoMqttEmbeddedBroker-" + this.getPort());
+        this.mThread.setDaemon(true);
+        this.mThread.start();
+
+        PahoMqttEmbeddedBroker.LOG.info("\t--> embedded broker listening on {}", this.getHost());
+    }
+
+    /**
+     * Closes all connections and stops the IO thread.
+     */
+    public synchronized void stop()
+    {
+        if (!this.mRunning)
+        {
+            return;
+        }
+
+        this.mRunning = false;
+        this.mDelayer.shutdownNow();
+        this.mSelector.wakeup();
+        try
+        {
+            this.mThread.join(5000);
+        } catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        PahoMqttEmbeddedBroker.LOG.info("\t--> embedded broker on {} stopped", this.getHost());
+    }
+
+    /**
+     * @return the port the broker listens on.
+     */
+    public int getPort()
+    {
+        return this.mServer.socket().getLocalPort();
+    }
+
+    /**
+     * @return the address of the broker in the format of the host option of
+     *         the component.
+     */
+    public String getHost()
+    {
+        return PahoMqttEmbeddedBroker.BIND_ADDRESS + ":" + this.getPort();
+    }
+
+    /**
+     * @return the number of messages published by clients so far.
+     */
+    public long getReceivedCount()
+    {
+        return this.mReceived.get();
+    }
+
+    /**
+     * @return the number of open client connections.
+     */
+    public int getConnectionCount()
+    {
+        return this.mConnections.get();
+    }
+
+    /**
+     * @return the number of QoS 1 and 2 messages sent to subscribers which did
+     *         not acknowledge them yet.
+     */
+    public int getUnacknowledgedCount()
+    {
+        return this.mUnacknowledged.get();
+    }
+
+    /**
+     * @param topicFilter
+     *            The topic filter to look up.
+     * @return the number of connected and stored sessions subscribed to the
+     *         given topic filter.
+     * @throws Exception
+     *             if the IO thread did not count the sessions.
+     */
+    public int getSubscriptionCount(final String topicFilter) throws Exception
+    {
+        FutureTask<Integer> count = new FutureTask<Integer>(new Callable<Integer>()
+        {
+            @Override
+            public Integer call()
+            {
+                int count = 0;
+                for (Session session : PahoMqttEmbeddedBroker.this.mSessions.values())
+                {
+                    count += session.mFilters.containsKey(topicFilter) ? 1 : 0;
+                }
+                for (Session session : PahoMqttEmbeddedBroker.this.mStored.values())
+                {
+                    count += session.mFilters.containsKey(topicFilter) ? 1 : 0;
+                }
+                return count;
+            }
+        });
+        this.execute(count);
+        return count.get(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Publishes a message to all matching subscribers as if a client had
+     * published it.
+     *
+     * @param topic
+     *            The topic of the message.
+     * @param payload
+     *            The payload of the message.
+     * @param qos
+     *            The QoS level of the message.
+     */
+    public void publish(String topic, byte[] payload, int qos)
+    {
+        this.publish(topic, payload, qos, false);
+    }
+
+    /**
+     * Publishes a message to all matching subscribers as if a client had
+     * published it.
+     *
+     * @param topic
+     *            The topic of the message.
+     * @param payload
+     *            The payload of the message.
+     * @param qos
+     *            The QoS level of the message.
+     * @param retained
+     *            <code>true</code> if the broker retains the message for
+     *            future subscribers.
+     */
+    public void publish(final String topic, final byte[] payload, final int qos, final boolean retained)
+    {
+        this.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (retained)
+                {
+                    PahoMqttEmbeddedBroker.this.retain(topic, payload, qos);
+                }
+                PahoMqttEmbeddedBroker.this.route(topic, payload, qos);
+            }
+        });
+    }
+
+    /**
+     * @param latency
+     *            The latency in milliseconds added to every packet the broker
+     *            sends, 0 to send packets immediately.
+     */
+    public void setLatency(long latency)
+    {
+        this.mLatency = Math.max(0, latency);
+    }
+
+    /**
+     * @param ackDelay
+     *            The delay in milliseconds added to the PUBACK, PUBREC and
+     *            PUBCOMP packets acknowledging published messages.
+     */
+    public void setAckDelay(long ackDelay)
+    {
+        this.mAckDelay = Math.max(0, ackDelay);
+    }
+
+    /**
+     * @param refuseConnections
+     *            <code>true</code> to answer new connections with a CONNACK
+     *            refusing them as server unavailable.
+     */
+    public void setRefuseConnections(boolean refuseConnections)
+    {
+        this.mRefuseConnections = refuseConnections;
+    }
+
+    /**
+     * Drops the connections of all clients without a DISCONNECT, as a failing
+     * network or a crashing broker would do.
+     */
+    public void dropConnections()
+    {
+        this.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (SelectionKey key : PahoMqttEmbeddedBroker.this.mSelector.keys())
+                {
+                    if (key.attachment() instanceof Session)
+                    {
+                        PahoMqttEmbeddedBroker.this.close((Session) key.attachment());
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs a task on the IO thread.
+     */
+    private void execute(Runnable task)
+    {
+        this.mTasks.add(task);
+        this.mSelector.wakeup();
+    }
+
+    /**
+     * The loop of the IO thread.
+     */
+    private void loop()
+    {
+        try
+        {
+            while (this.mRunning)
+            {
+                this.mSelector.select();
+
+                Runnable task;
+                while ((task = this.mTasks.poll()) != null)
+                {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = this.mSelector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    this.handle(key);
+                }
+            }
+        } catch (IOException ex)
+        {
+            PahoMqttEmbeddedBroker.LOG.error("\t--> embedded broker failed: {}", ex);
+        } finally
+        {
+            for (SelectionKey key : this.mSelector.keys())
+            {
+                if (key.attachment() instanceof Session)
+                {
+                    this.close((Session) key.attachment());
+                }
+            }
+            try
+            {
+                this.mServer.close();
+                this.mSelector.close();
+            } catch (IOException ex)
+            {
+                PahoMqttEmbeddedBroker.LOG.warn("\t--> could not close the embedded broker: {}", ex);
+            }
+        }
+    }
+
+    /**
+     * Handles the ready operations of a key.
+     */
+    private void handle(SelectionKey key) throws IOException
+    {
+        if (!key.isValid())
+        {
+            return;
+        }
+
+        if (key.isAcceptable())
+        {
+            SocketChannel channel = this.mServer.accept();
+            if (channel != null)
+            {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                Session session = new Session(channel);
+                session.mKey = channel.register(this.mSelector, SelectionKey.OP_READ, session);
+                this.mConnections.incrementAndGet();
+            }
+            return;
+        }
+
+        Session session = (Session) key.attachment();
+        try
+        {
+            if (key.isReadable())
+            {
+                this.read(session);
+            }
+            if (key.isValid() && key.isWritable())
+            {
+                this.flush(session);
+            }
+        } catch (IOException | RuntimeException ex)
+        {
+            // also closes connections sending malformed packets
+            this.close(session);
+        }
+    }
+
+    /**
+     * Reads from the channel of a session and handles all complete packets.
+     */
+    private void read(Session session) throws IOException
+    {
+        if (session.mChannel.read(session.mIn) < 0)
+        {
+            this.close(session);
+            return;
+        }
+
+        ByteBuffer in = session.mIn;
+        in.flip();
+        while (session.mChannel.isOpen() && in.remaining() >= 2)
+        {
+            int start = in.position();
+            int header = in.get() & 0xFF;
+
+            // decode the variable length of the remaining packet
+            int length = 0;
+            int multiplier = 1;
+            int digit;
+            boolean complete = false;
+            for (int i = 0; i < 4 && in.hasRemaining(); i++)
+            {
+                digit = in.get() & 0xFF;
+                length += (digit & 0x7F) * multiplier;
+                multiplier *= 128;
+                if ((digit & 0x80) == 0)
+                {
+                    complete = true;
+                    break;
+                }
+            }
+
+            if (!complete || in.remaining() < length)
+            {
+                in.position(start);
+                if (complete && in.capacity() < length + 5)
+                {
+                    // the packet does not fit, grow the buffer
+                    ByteBuffer grown = ByteBuffer.allocate(length + 5);
+                    grown.put(in);
+                    grown.flip();
+                    in = grown;
+                    session.mIn = grown;
+                }
+                break;
+            }
+
+            ByteBuffer body = in.slice();
+            body.limit(length);
+            in.position(in.position() + length);
+            this.dispatch(session, header, body);
+        }
+
+        if (session.mChannel.isOpen())
+        {
+            in.compact();
+        }
+    }
+
+    /**
+     * Handles a single packet.
+     */
+    private void dispatch(Session session, int header, ByteBuffer body) throws IOException
+    {
+        switch (header >> 4)
+        {
+            case CONNECT:
+                this.onConnect(session, body);
+                break;
+            case PUBLISH:
+                this.onPublish(session, header, body);
+                break;
+            case PUBACK:
+            case PUBCOMP:
+                // the packet is only retransmitted to a resumed session
+                if (session.mOutgoing.remove(body.getShort() & 0xFFFF) != null)
+                {
+                    this.mUnacknowledged.decrementAndGet();
+                }
+                break;
+            case PUBREC:
+                int receivedId = body.getShort() & 0xFFFF;
+                ByteBuffer release = PahoMqttEmbeddedBroker.ack(0x62, receivedId);
+                if (session.mOutgoing.containsKey(receivedId))
+                {
+                    // a resumed session continues with the release
+                    session.mOutgoing.put(receivedId, release.duplicate());
+                }
+                this.send(session, release);
+                break;
+            case PUBREL:
+                int packetId = body.getShort() & 0xFFFF;
+                session.mIncoming.remove(packetId);
+                this.acknowledge(session, PahoMqttEmbeddedBroker.ack(0x70, packetId));
+                break;
+            case SUBSCRIBE:
+                this.onSubscribe(session, body);
+                break;
+            case UNSUBSCRIBE:
+                this.onUnsubscribe(session, body);
+                break;
+            case PINGREQ:
+                this.send(session, ByteBuffer.wrap(new byte[] { (byte) 0xD0, 0 }));
+                break;
+            case DISCONNECT:
+                this.close(session);
+                break;
+            default:
+                PahoMqttEmbeddedBroker.LOG.warn("\t--> unsupported packet type {}, closing connection", header >> 4);
+                this.close(session);
+        }
+    }
+
+    private void onConnect(Session session, ByteBuffer body) throws IOException
+    {
+        PahoMqttEmbeddedBroker.readString(body); // protocol name
+        int level = body.get(); // protocol level
+        int flags = body.get(); // connect flags
+        body.getShort(); // keep alive
+        session.mClientId = PahoMqttEmbeddedBroker.readString(body);
+
+        if (this.mRefuseConnections)
+        {
+            // the return code 3 refuses the connection as server unavailable
+            this.send(session, ByteBuffer.wrap(new byte[] { 0x20, 2, 0, 3 }));
+            return;
+        }
+
+        // a new connection with the same client id takes over the session
+        session.mPersistent = (flags & 0x02) == 0;
+        Session previous = this.mSessions.put(session.mClientId, session);
+        if (previous != null && previous != session)
+        {
+            this.close(previous);
+        }
+
+        Session stored = this.mStored.remove(session.mClientId);
+        if (stored != null && !session.mPersistent)
+        {
+            // a clean session discards the messages of the stored one
+            this.mUnacknowledged.addAndGet(-stored.mOutgoing.size());
+            stored = null;
+        }
+
+        // only MQTT 3.1.1 knows the session present flag
+        byte present = (byte) (stored != null && level >= 4 ? 1 : 0);
+        this.send(session, ByteBuffer.wrap(new byte[] { 0x20, 2, present, 0 }));
+        if (stored != null)
+        {
+            this.resume(session, stored);
+        }
+    }
+
+    /**
+     * Restores the subscriptions of a stored session and sends its
+     * unacknowledged packets again.
+     */
+    private void resume(Session session, Session stored) throws IOException
+    {
+        for (Map.Entry<String, Subscription> filter : stored.mFilters.entrySet())
+        {
+            Subscription subscription = new Subscription(session, filter.getValue().mQos);
+            session.mFilters.put(filter.getKey(), subscription);
+            this.mSubscriptions.add(filter.getKey(), subscription);
+        }
+
+        session.mNextPacketId = stored.mNextPacketId;
+        for (Map.Entry<Integer, ByteBuffer> outgoing : stored.mOutgoing.entrySet())
+        {
+            session.mOutgoing.put(outgoing.getKey(), outgoing.getValue());
+
+            ByteBuffer packet = ByteBuffer.allocate(outgoing.getValue().limit());
+            packet.put(outgoing.getValue().duplicate());
+            if ((packet.get(0) & 0xF0) == PUBLISH << 4)
+            {
+                packet.put(0, (byte) (packet.get(0) | 0x08));
+            }
+            packet.flip();
+            this.send(session, packet);
+        }
+    }
+
+    private void onPublish(Session session, int header, ByteBuffer body) throws IOException
+    {
+        int qos = (header >> 1) & 3;
+        boolean retained = (header & 1) != 0;
+        String topic = PahoMqttEmbeddedBroker.readString(body);
+        int packetId = qos > 0 ? body.getShort() & 0xFFFF : 0;
+        byte[] payload = new byte[body.remaining()];
+        body.get(payload);
+
+        // a resent QoS 2 message is acknowledged again, but not routed
+        if (qos < 2 || session.mIncoming.add(packetId))
+        {
+            this.mReceived.incrementAndGet();
+            if (retained)
+            {
+                this.retain(topic, payload, qos);
+            }
+            this.route(topic, payload, qos);
+        }
+
+        if (qos == 1)
+        {
+            this.acknowledge(session, PahoMqttEmbeddedBroker.ack(0x40, packetId));
+        }
+        else if (qos == 2)
+        {
+            this.acknowledge(session, PahoMqttEmbeddedBroker.ack(0x50, packetId));
+        }
+    }
+
+    /**
+     * Stores a retained message, an empty payload deletes the retained message
+     * of the topic.
+     */
+    private void retain(String topic, byte[] payload, int qos)
+    {
+        if (payload.length == 0)
+        {
+            this.mRetained.remove(topic);
+        }
+        else
+        {
+            this.mRetained.put(topic, new Retained(payload, qos));
+        }
+    }
+
+    private void onSubscribe(Session session, ByteBuffer body) throws IOException
+    {
+        int packetId = body.getShort() & 0xFFFF;
+        List<Integer> granted = new ArrayList<Integer>();
+        List<String> filters = new ArrayList<String>();
+        while (body.hasRemaining())
+        {
+            String filter = PahoMqttEmbeddedBroker.readString(body);
+            int qos = Math.min(body.get() & 3, 2);
+
+            Subscription subscription = new Subscription(session, qos);
+            Subscription previous = session.mFilters.put(filter, subscription);
+            if (previous != null)
+            {
+                this.mSubscriptions.remove(filter, previous);
+            }
+            this.mSubscriptions.add(filter, subscription);
+            granted.add(qos);
+            filters.add(filter);
+        }
+
+        ByteBuffer suback = ByteBuffer.allocate(4 + granted.size());
+        suback.put((byte) 0x90).put((byte) (2 + granted.size())).putShort((short) packetId);
+        for (Integer qos : granted)
+        {
+            suback.put(qos.byteValue());
+        }
+        suback.flip();
+        this.send(session, suback);
+
+        // retained messages follow the SUBACK with the retain flag set
+        for (int i = 0; i < filters.size(); i++)
+        {
+            for (Map.Entry<String, Retained> retained : this.mRetained.entrySet())
+            {
+                if (PahoMqttEmbeddedBroker.matches(filters.get(i), retained.getKey()))
+                {
+                    Retained message = retained.getValue();
+                    this.deliver(session, retained.getKey(), message.mPayload,
+                            Math.min(message.mQos, granted.get(i)), true);
+                }
+            }
+        }
+    }
+
+    private void onUnsubscribe(Session session, ByteBuffer body) throws IOException
+    {
+        int packetId = body.getShort() & 0xFFFF;
+        while (body.hasRemaining())
+        {
+            String filter = PahoMqttEmbeddedBroker.readString(body);
+            Subscription subscription = session.mFilters.remove(filter);
+            if (subscription != null)
+            {
+                this.mSubscriptions.remove(filter, subscription);
+            }
+        }
+
+        this.send(session, PahoMqttEmbeddedBroker.ack(0xB0, packetId));
+    }
+
+    /**
+     * Sends a message to every session with a matching subscription, once per
+     * session with the highest QoS level of its matching subscriptions.
+     */
+    private void route(String topic, byte[] payload, int qos)
+    {
+        List<Subscription> matches = new ArrayList<Subscription>();
+        this.mSubscriptions.match(topic, matches);
+        if (matches.isEmpty())
+        {
+            return;
+        }
+
+        Map<Session, Integer> targets = new LinkedHashMap<Session, Integer>();
+        for (Subscription subscription : matches)
+        {
+            Integer current = targets.get(subscription.mSession);
+            if (current == null || current < subscription.mQos)
+            {
+                targets.put(subscription.mSession, subscription.mQos);
+            }
+        }
+
+        for (Map.Entry<Session, Integer> target : targets.entrySet())
+        {
+            this.deliver(target.getKey(), topic, payload, Math.min(qos, target.getValue()), false);
+        }
+    }
+
+    /**
+     * Sends a PUBLISH packet to a session.
+     */
+    private void deliver(Session session, String topic, byte[] payload, int qos, boolean retained)
+    {
+        byte[] topicBytes = topic.getBytes(PahoMqttEmbeddedBroker.UTF_8);
+        int length = 2 + topicBytes.length + (qos > 0 ? 2 : 0) + payload.length;
+        ByteBuffer packet = ByteBuffer.allocate(5 + length);
+        packet.put((byte) (0x30 | (qos << 1) | (retained ? 1 : 0)));
+        PahoMqttEmbeddedBroker.writeLength(packet, length);
+        packet.putShort((short) topicBytes.length).put(topicBytes);
+        int packetId = 0;
+        if (qos > 0)
+        {
+            packetId = session.nextPacketId();
+            packet.putShort((short) packetId);
+        }
+        packet.put(payload);
+        packet.flip();
+
+        if (qos > 0 && session.mOutgoing.put(packetId, packet.duplicate()) == null)
+        {
+            this.mUnacknowledged.incrementAndGet();
+        }
+
+        try
+        {
+            this.send(session, packet);
+        } catch (IOException ex)
+        {
+            this.close(session);
+        }
+    }
+
+    /**
+     * Sends the acknowledgement of a published message, delayed by the
+     * injected ACK delay.
+     */
+    private void acknowledge(Session session, ByteBuffer packet) throws IOException
+    {
+        this.send(session, packet, this.mAckDelay);
+    }
+
+    /**
+     * Queues a packet and writes as much of the queue as the channel accepts.
+     */
+    private void send(Session session, ByteBuffer packet) throws IOException
+    {
+        this.send(session, packet, 0);
+    }
+
+    /**
+     * Queues a packet after the injected latency and the given delay.
+     */
+    private void send(final Session session, final ByteBuffer packet, long delay) throws IOException
+    {
+        long total = delay + this.mLatency;
+        if (total <= 0)
+        {
+            this.enqueue(session, packet);
+            return;
+        }
+
+        // hand the packet back to the IO thread after the delay
+        this.mDelayer.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                PahoMqttEmbeddedBroker.this.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            PahoMqttEmbeddedBroker.this.enqueue(session, packet);
+                        } catch (IOException ex)
+                        {
+                            PahoMqttEmbeddedBroker.this.close(session);
+                        }
+                    }
+                });
+            }
+        }, total, TimeUnit.MILLISECONDS);
+    }
+
+    private void enqueue(Session session, ByteBuffer packet) throws IOException
+    {
+        if (!session.mChannel.isOpen())
+        {
+            return;
+        }
+        session.mOut.add(packet);
+        this.flush(session);
+    }
+
+    private void flush(Session session) throws IOException
+    {
+        ByteBuffer head;
+        while ((head = session.mOut.peek()) != null)
+        {
+            session.mChannel.write(head);
+            if (head.hasRemaining())
+            {
+                // the socket buffer is full, continue when it is writable
+                session.mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            session.mOut.poll();
+        }
+        session.mKey.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Closes the connection of a session and drops its subscriptions. The
+     * session of a client without a clean session is stored until the client
+     * connects again.
+     */
+    private void close(Session session)
+    {
+        if (session.mKey != null)
+        {
+            session.mKey.cancel();
+        }
+        boolean open = session.mChannel.isOpen();
+        if (open)
+        {
+            this.mConnections.decrementAndGet();
+        }
+        try
+        {
+            session.mChannel.close();
+        } catch (IOException ex)
+        {
+            PahoMqttEmbeddedBroker.LOG.debug("\t--> could not close connection: {}", ex);
+        }
+
+        for (Map.Entry<String, Subscription> filter : session.mFilters.entrySet())
+        {
+            this.mSubscriptions.remove(filter.getKey(), filter.getValue());
+        }
+
+        if (session.mClientId != null && this.mSessions.get(session.mClientId) == session)
+        {
+            this.mSessions.remove(session.mClientId);
+        }
+
+        if (session.mPersistent)
+        {
+            // the unacknowledged messages are redelivered on resume
+            if (open)
+            {
+                this.mStored.put(session.mClientId, session);
+            }
+            return;
+        }
+        session.mFilters.clear();
+        this.mUnacknowledged.addAndGet(-session.mOutgoing.size());
+        session.mOutgoing.clear();
+    }
+
+    private static ByteBuffer ack(int header, int packetId)
+    {
+        return ByteBuffer.wrap(new byte[] { (byte) header, 2, (byte) (packetId >> 8), (byte) packetId });
+    }
+
+    /**
+     * @return <code>true</code> if the topic filter matches the topic.
+     */
+    static boolean matches(String filter, String topic)
+    {
+        String[] filterLevels = filter.split("/", -1);
+        String[] topicLevels = topic.split("/", -1);
+
+        // wildcards at the first level do not match system topics
+        if (topic.startsWith("$") && (filter.startsWith("+") || filter.startsWith("#")))
+        {
+            return false;
+        }
+
+        for (int i = 0; i < filterLevels.length; i++)
+        {
+            if ("#".equals(filterLevels[i]))
+            {
+                return true;
+            }
+            if (i >= topicLevels.length || !("+".equals(filterLevels[i]) || filterLevels[i].equals(topicLevels[i])))
+            {
+                return false;
+            }
+        }
+        return filterLevels.length == topicLevels.length;
+    }
+
+    private static String readString(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, PahoMqttEmbeddedBroker.UTF_8);
+    }
+
+    private static void writeLength(ByteBuffer buffer, int length)
+    {
+        do
+        {
+            int digit = length % 128;
+            length /= 128;
+            buffer.put((byte) (length > 0 ? digit | 0x80 : digit));
+        } while (length > 0);
+    }
+
+    // --------------------------------------------------
+    // INNER CLASSES
+    // --------------------------------------------------
+
+    /**
+     * The state of a single client connection, only accessed by the IO thread.
+     */
+    private static final class Session
+    {
+        private final SocketChannel             mChannel;
+
+        private final Queue<ByteBuffer>         mOut      = new ArrayDeque<ByteBuffer>();
+
+        private final Map<String, Subscription> mFilters  = new HashMap<String, Subscription>();
+
+        /**
+         * Defines the ids of QoS 2 messages received but not released yet.
+         */
+        private final Set<Integer>              mIncoming = new HashSet<Integer>();
+
+        /**
+         * Defines the QoS 1 and 2 packets sent but not acknowledged yet by
+         * their id, in the order they were sent.
+         */
+        private final Map<Integer, ByteBuffer>  mOutgoing = new LinkedHashMap<Integer, ByteBuffer>();
+
+        private ByteBuffer                      mIn       = ByteBuffer.allocate(8192);
+
+        private SelectionKey                    mKey;
+
+        private String                          mClientId;
+
+        /**
+         * Defines if the client connected without a clean session.
+         */
+        private boolean                         mPersistent;
+
+        private int                             mNextPacketId;
+
+        private Session(SocketChannel channel)
+        {
+            this.mChannel = channel;
+        }
+
+        private int nextPacketId()
+        {
+            this.mNextPacketId = this.mNextPacketId % 65535 + 1;
+            return this.mNextPacketId;
+        }
+    }
+
+    /**
+     * A message retained for future subscribers.
+     */
+    private static final class Retained
+    {
+        private final byte[] mPayload;
+
+        private final int    mQos;
+
+        private Retained(byte[] payload, int qos)
+        {
+            this.mPayload = payload;
+            this.mQos = qos;
+        }
+    }
+
+    /**
+     * A topic filter subscription of a session.
+     */
+    private static final class Subscription
+    {
+        private final Session mSession;
+
+        private final int     mQos;
+
+        private Subscription(Session session, int qos)
+        {
+            this.mSession = session;
+            this.mQos = qos;
+        }
+    }
+}
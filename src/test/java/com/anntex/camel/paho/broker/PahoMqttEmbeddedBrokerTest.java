@@ -0,0 +1,245 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho.broker;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class defines unit tests for the message flows of the {@link PahoMqttEmbeddedBroker}.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttEmbeddedBrokerTest
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private PahoMqttEmbeddedBroker     mBroker;
+
+    private MqttClient                 mSubscriber;
+
+    private MqttClient                 mPublisher;
+
+    private final BlockingQueue<MqttMessage> mReceived = new LinkedBlockingQueue<MqttMessage>();
+
+    // --------------------------------------------------
+    // TESTS
+    // --------------------------------------------------
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.mBroker = new PahoMqttEmbeddedBroker();
+        this.mBroker.start();
+
+        this.mSubscriber = new MqttClient("tcp://" + this.mBroker.getHost(), "subscriber", null);
+        this.mSubscriber.setCallback(new MqttCallback()
+        {
+            @Override
+            public void messageArrived(String topic, MqttMessage message)
+            {
+                PahoMqttEmbeddedBrokerTest.this.mReceived.add(message);
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token)
+            {
+            }
+
+            @Override
+            public void connectionLost(Throwable cause)
+            {
+            }
+        });
+        this.mSubscriber.connect();
+
+        this.mPublisher = new MqttClient("tcp://" + this.mBroker.getHost(), "publisher", null);
+        this.mPublisher.connect();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        // clients dropped by a test are not connected anymore
+        if (this.mPublisher.isConnected())
+        {
+            this.mPublisher.disconnect();
+        }
+        if (this.mSubscriber.isConnected())
+        {
+            this.mSubscriber.disconnect();
+        }
+        this.mBroker.stop();
+    }
+
+    @Test(timeout = 10000)
+    public void testMessagesAreRoutedWithAllQosLevels() throws Exception
+    {
+        this.mSubscriber.subscribe("devices/+/state", 2);
+
+        for (int qos = 0; qos <= 2; qos++)
+        {
+            byte[] payload = new byte[] { (byte) qos };
+            this.mPublisher.publish("devices/4711/state", payload, qos, false);
+
+            MqttMessage message = this.mReceived.poll(5, TimeUnit.SECONDS);
+            assertNotNull(message);
+            assertArrayEquals(payload, message.getPayload());
+            assertEquals(qos, message.getQos());
+        }
+
+        assertEquals(3, this.mBroker.getReceivedCount());
+    }
+
+    @Test(timeout = 10000)
+    public void testDeliveryQosIsLimitedBySubscription() throws Exception
+    {
+        this.mSubscriber.subscribe("devices/#", 1);
+        this.mPublisher.publish("devices/4711/state", new byte[] { 1 }, 2, false);
+
+        assertEquals(1, this.mReceived.poll(5, TimeUnit.SECONDS).getQos());
+    }
+
+    @Test(timeout = 10000)
+    public void testUnsubscribedFiltersReceiveNothing() throws Exception
+    {
+        this.mSubscriber.subscribe("devices/#", 1);
+        this.mSubscriber.unsubscribe("devices/#");
+        this.mPublisher.publish("devices/4711/state", new byte[] { 1 }, 1, false);
+
+        assertNull(this.mReceived.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void testLargeMessagesAreRouted() throws Exception
+    {
+        this.mSubscriber.subscribe("large", 1);
+        byte[] payload = new byte[256 * 1024];
+        payload[payload.length - 1] = 42;
+        this.mBroker.publish("large", payload, 1);
+
+        assertArrayEquals(payload, this.mReceived.poll(5, TimeUnit.SECONDS).getPayload());
+    }
+
+    @Test(timeout = 10000)
+    public void testRetainedMessagesAreSentToNewSubscribers() throws Exception
+    {
+        this.mPublisher.publish("devices/4711/state", new byte[] { 1 }, 1, true);
+        this.mPublisher.publish("devices/4712/state", new byte[] { 2 }, 1, true);
+        // an empty retained message deletes the retained message of its topic
+        this.mPublisher.publish("devices/4712/state", new byte[0], 1, true);
+
+        this.mSubscriber.subscribe("devices/+/state", 1);
+
+        MqttMessage message = this.mReceived.poll(5, TimeUnit.SECONDS);
+        assertArrayEquals(new byte[] { 1 }, message.getPayload());
+        assertTrue(message.isRetained());
+        assertNull(this.mReceived.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void testAcknowledgementsAreDelayed() throws Exception
+    {
+        this.mBroker.setAckDelay(500);
+
+        long start = System.currentTimeMillis();
+        this.mPublisher.publish("devices/4711/state", new byte[] { 1 }, 1, false);
+
+        assertTrue(System.currentTimeMillis() - start >= 500);
+    }
+
+    @Test(timeout = 10000)
+    public void testDroppedConnectionsAreReported() throws Exception
+    {
+        final CountDownLatch lost = new CountDownLatch(1);
+        this.mPublisher.setCallback(new MqttCallback()
+        {
+            @Override
+            public void messageArrived(String topic, MqttMessage message)
+            {
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token)
+            {
+            }
+
+            @Override
+            public void connectionLost(Throwable cause)
+            {
+                lost.countDown();
+            }
+        });
+
+        this.mBroker.dropConnections();
+
+        assertTrue(lost.await(5, TimeUnit.SECONDS));
+        assertFalse(this.mPublisher.isConnected());
+
+        // the broker still accepts new connections
+        this.mPublisher.connect();
+        assertTrue(this.mPublisher.isConnected());
+    }
+
+    @Test(timeout = 10000)
+    public void testRefusedConnectionsFail() throws Exception
+    {
+        this.mBroker.setRefuseConnections(true);
+
+        MqttClient client = new MqttClient("tcp://" + this.mBroker.getHost(), "refused", null);
+        try
+        {
+            client.connect();
+            fail("The connection should have been refused");
+        } catch (MqttException ex)
+        {
+            assertEquals(MqttException.REASON_CODE_BROKER_UNAVAILABLE, ex.getReasonCode());
+        }
+    }
+
+    @Test
+    public void testTopicFilterMatching()
+    {
+        assertTrue(PahoMqttEmbeddedBroker.matches("a/+/c", "a/b/c"));
+        assertTrue(PahoMqttEmbeddedBroker.matches("a/#", "a"));
+        assertTrue(PahoMqttEmbeddedBroker.matches("#", "a/b"));
+        assertFalse(PahoMqttEmbeddedBroker.matches("a/+", "a/b/c"));
+        assertFalse(PahoMqttEmbeddedBroker.matches("#", "$SYS/uptime"));
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anntex.camel.paho.persist;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Collections;
+
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class defines unit tests for the memory-mapped {@link PahoMqttMappedPersistence}.
+ *
+ * @author dennis.grewe [https://github.com/Anntex]
+ * @version 0.9-SNAPSHOT March 04, 2015
+ */
+public class PahoMqttMappedPersistenceTest
+{
+    // --------------------------------------------------
+    // PROPERTIES
+    // --------------------------------------------------
+
+    private static final String CLIENT_ID  = "camel-paho-mqtt";
+    private static final String SERVER_URI = "tcp://127.0.0.1:1883";
+
+    private File                mDirectory;
+
+    // --------------------------------------------------
+    // SETUP
+    // --------------------------------------------------
+
+    @Before
+    public void setUp()
+    {
+        this.mDirectory = new File("target/persistence-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown()
+    {
+        File[] files = this.mDirectory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                file.delete();
+            }
+        }
+        this.mDirectory.delete();
+    }
+
+    // --------------------------------------------------
+    // TESTS
+    // --------------------------------------------------
+
+    @Test
+    public void testPutGetRemove() throws Exception
+    {
+        PahoMqttMappedPersistence persistence = new PahoMqttMappedPersistence(this.mDirectory.getPath());
+        persistence.open(CLIENT_ID, SERVER_URI);
+
+        persistence.put("s-1", new PahoMqttPersistentData("header".getBytes(), "payload".getBytes()));
+        persistence.put("s-2", new PahoMqttPersistentData("h2".getBytes(), new byte[0]));
+
+        assertTrue(persistence.containsKey("s-1"));
+        MqttPersistable data = persistence.get("s-1");
+        assertArrayEquals("header".getBytes(), data.getHeaderBytes());
+        assertArrayEquals("payload".getBytes(), data.getPayloadBytes());
+
+        persistence.remove("s-1");
+        assertFalse(persistence.containsKey("s-1"));
+        assertNull(persistence.get("s-1"));
+        assertEquals(Collections.singletonList("s-2"), Collections.list(persistence.keys()));
+
+        persistence.close();
+    }
+
+    @Test
+    public void testEntriesSurviveReopen() throws Exception
+    {
+        PahoMqttMappedPersistence persistence = new PahoMqttMappedPersistence(this.mDirectory.getPath());
+        persistence.open(CLIENT_ID, SERVER_URI);
+        persistence.put("s-1", new PahoMqttPersistentData("h1".getBytes(), "p1".getBytes()));
+        persistence.put("s-2", new PahoMqttPersistentData("h2".getBytes(), "p2".getBytes()));
+        persistence.put("s-1", new PahoMqttPersistentData("h3".getBytes(), "p3".getBytes()));
+        persistence.remove("s-2");
+        persistence.close();
+
+        persistence = new PahoMqttMappedPersistence(this.mDirectory.getPath());
+        persistence.open(CLIENT_ID, SERVER_URI);
+
+        assertEquals(Collections.singletonList("s-1"), Collections.list(persistence.keys()));
+        assertArrayEquals("h3".getBytes(), persistence.get("s-1").getHeaderBytes());
+        assertArrayEquals("p3".getBytes(), persistence.get("s-1").getPayloadBytes());
+
+        persistence.close();
+    }
+
+    @Test
+    public void testCompactionKeepsLiveEntries() throws Exception
+    {
+        PahoMqttMappedPersistence persistence = new PahoMqttMappedPersistence(this.mDirectory.getPath(), 256);
+        persistence.open(CLIENT_ID, SERVER_URI);
+
+        // the entry stays alive while many others come and go
+        persistence.put("s-0", new PahoMqttPersistentData("live".getBytes(), new byte[100]));
+        for (int i = 1; i < 1000; i++)
+        {
+            persistence.put("s-" + i, new PahoMqttPersistentData("header".getBytes(), new byte[i % 50]));
+            persistence.remove("s-" + i);
+        }
+        persistence.close();
+
+        persistence = new PahoMqttMappedPersistence(this.mDirectory.getPath(), 256);
+        persistence.open(CLIENT_ID, SERVER_URI);
+
+        assertEquals(Collections.singletonList("s-0"), Collections.list(persistence.keys()));
+        assertArrayEquals("live".getBytes(), persistence.get("s-0").getHeaderBytes());
+        assertEquals(100, persistence.get("s-0").getPayloadLength());
+
+        persistence.close();
+    }
+
+    @Test
+    public void testClear() throws Exception
+    {
+        PahoMqttMappedPersistence persistence = new PahoMqttMappedPersistence(this.mDirectory.getPath());
+        persistence.open(CLIENT_ID, SERVER_URI);
+        persistence.put("s-1", new PahoMqttPersistentData("h1".getBytes(), "p1".getBytes()));
+        persistence.clear();
+        persistence.close();
+
+        persistence.open(CLIENT_ID, SERVER_URI);
+        assertFalse(persistence.keys().hasMoreElements());
+        persistence.close();
+    }
+}